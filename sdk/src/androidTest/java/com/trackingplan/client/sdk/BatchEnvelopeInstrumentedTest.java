@@ -0,0 +1,329 @@
+package com.trackingplan.client.sdk;
+
+import android.util.Log;
+
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.CompressionDictionary;
+import com.trackingplan.client.sdk.delivery.RawBatch;
+import com.trackingplan.client.sdk.delivery.TrackBuilder;
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+import com.trackingplan.client.sdk.interception.HttpRequest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests batches sent in an envelope whose header holds the fields shared by its raw tracks.
+ * Envelopes are expanded as the tracks endpoint would and compared with plain batches.
+ */
+public class BatchEnvelopeInstrumentedTest extends BaseInstrumentedTest {
+
+    private static final String LOG_TAG = "TrackingplanTest";
+
+    private LocalTracksServer server;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        try {
+            server = new LocalTracksServer();
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to start local tracks server", e);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            server.shutdown();
+        } catch (Exception e) {
+            // Ignore
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void given_Requests_when_JsonEnvelopeExpanded_then_MatchPlainRawTracks() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var requests = makeRequests(5);
+        final var session = TestRequests.newSession();
+
+        // When
+        final RawBatch envelope = client.createRawBatch(requests, session, BatchOutbox.FORMAT_JSON_ENVELOPE);
+        final List<byte[]> expanded = TrackBuilder.expandEnvelope(envelope.getHeader(), envelope.getTracks(), envelope.getFormat());
+
+        // Then
+        assertSameRawTracks(client.createRawTracks(requests, session), expanded);
+
+        final var header = new JSONObject(new String(envelope.getHeader(), StandardCharsets.UTF_8));
+        Assert.assertEquals(TEST_TP_ID, header.getString("tp_id"));
+        Assert.assertEquals("Test App", header.getJSONObject("context").getString("app_name"));
+        // Screen differs between requests so it isn't hoisted
+        Assert.assertFalse(header.getJSONObject("context").has("screen"));
+
+        final var track = new JSONObject(new String(envelope.getTracks().get(1), StandardCharsets.UTF_8));
+        Assert.assertFalse(track.has("tp_id"));
+        Assert.assertFalse(track.has("session_id"));
+        Assert.assertEquals("Screen1", track.getJSONObject("context").getString("screen"));
+        Assert.assertFalse(track.getJSONObject("context").has("app_name"));
+    }
+
+    @Test
+    public void given_Requests_when_CborEnvelopeExpanded_then_MatchPlainRawTracks() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var requests = makeRequests(5);
+        final var session = TestRequests.newSession();
+
+        // When
+        final RawBatch envelope = client.createRawBatch(requests, session, BatchOutbox.FORMAT_CBOR_ENVELOPE);
+        final List<byte[]> expanded = TrackBuilder.expandEnvelope(envelope.getHeader(), envelope.getTracks(), envelope.getFormat());
+
+        // Then
+        assertSameRawTracks(client.createRawTracks(requests, session), expanded);
+    }
+
+    @Test
+    public void given_EnvelopeEnabled_when_BatchSent_then_BodyIsEnvelope() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setEnvelopeEnabled(true);
+        final byte format = client.getRawTrackFormat();
+        Assert.assertEquals(BatchOutbox.FORMAT_JSON_ENVELOPE, format);
+        final var requests = makeRequests(3);
+        final RawBatch batch = client.createRawBatch(requests, TestRequests.newSession(), format);
+
+        // When
+        final int numTracksSent = client.sendRawTracks(batch.getHeader(), batch.getTracks(), batch.getFormat());
+
+        // Then
+        Assert.assertEquals(3, numTracksSent);
+        final var request = server.takeRequest(5000);
+        Assert.assertNotNull(request);
+        Assert.assertEquals("application/json", request.getHeader("Content-Type"));
+        final var body = new JSONObject(request.getBodyAsString());
+        Assert.assertEquals(2, body.getInt("v"));
+        Assert.assertEquals(TEST_ENVIRONMENT, body.getJSONObject("header").getString("environment"));
+        Assert.assertEquals(3, body.getJSONArray("tracks").length());
+    }
+
+    @Test
+    public void given_EnvelopeAndCborEnabled_when_BatchSent_then_BodyIsCborEnvelope() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setEnvelopeEnabled(true);
+        client.setCborEnabled(true);
+        final byte format = client.getRawTrackFormat();
+        Assert.assertEquals(BatchOutbox.FORMAT_CBOR_ENVELOPE, format);
+        final RawBatch batch = client.createRawBatch(makeRequests(3), TestRequests.newSession(), format);
+
+        // When
+        client.sendRawTracks(batch.getHeader(), batch.getTracks(), batch.getFormat());
+
+        // Then
+        final var request = server.takeRequest(5000);
+        Assert.assertNotNull(request);
+        Assert.assertEquals("application/cbor", request.getHeader("Content-Type"));
+        final Map<?, ?> body = (Map<?, ?>) request.getBodyAsCbor();
+        Assert.assertEquals(2L, body.get("v"));
+        Assert.assertEquals(TEST_TP_ID, ((Map<?, ?>) body.get("header")).get("tp_id"));
+        Assert.assertEquals(3, ((List<?>) body.get("tracks")).size());
+    }
+
+    @Test
+    public void given_EndpointRejectsEnvelope_when_BatchSent_then_BatchIsResentPlain() throws Exception {
+        // Given
+        server.setResponder(request -> request.getBodyAsString().startsWith("{") ? 400 : 204);
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setEnvelopeEnabled(true);
+        final RawBatch batch = client.createRawBatch(makeRequests(3), TestRequests.newSession(), client.getRawTrackFormat());
+
+        // When
+        logger.expectExactMessage("Tracks endpoint doesn't accept batch envelopes. Falling back to plain batches");
+        final int numTracksSent = client.sendRawTracks(batch.getHeader(), batch.getTracks(), batch.getFormat());
+
+        // Then
+        Assert.assertEquals(3, numTracksSent);
+        server.takeRequest(5000);
+        final var tracks = new JSONArray(server.takeRequest(5000).getBodyAsString());
+        Assert.assertEquals(3, tracks.length());
+        Assert.assertEquals(TEST_TP_ID, tracks.getJSONObject(0).getString("tp_id"));
+        Assert.assertEquals("Test App", tracks.getJSONObject(0).getJSONObject("context").getString("app_name"));
+
+        // Next batches are created without envelope
+        Assert.assertEquals(BatchOutbox.FORMAT_JSON, client.getRawTrackFormat());
+        logger.assertExpectationsMatch();
+    }
+
+    @Test
+    public void given_EndpointRejectsBatch_when_EnvelopeSent_then_EnvelopeIsKept() throws Exception {
+        // Given
+        server.setResponder(request -> 400);
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setEnvelopeEnabled(true);
+        final RawBatch batch = client.createRawBatch(makeRequests(3), TestRequests.newSession(), client.getRawTrackFormat());
+
+        // When
+        try {
+            client.sendRawTracks(batch.getHeader(), batch.getTracks(), batch.getFormat());
+            Assert.fail("Batch should have been rejected");
+        } catch (TrackingplanSendException ex) {
+            Assert.assertEquals(400, ex.getResponseCode());
+        }
+
+        // Then
+        Assert.assertEquals(BatchOutbox.FORMAT_JSON_ENVELOPE, client.getRawTrackFormat());
+    }
+
+    @Test
+    public void given_EndpointRejectsBatch_when_CborEnvelopeWithDictionarySent_then_BatchIsUploadedTwice() throws Exception {
+        // Given
+        server.setResponder(request -> 400);
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setEnvelopeEnabled(true);
+        client.setCborEnabled(true);
+        client.setPresetDictionaryVersion(1);
+        final RawBatch batch = client.createRawBatch(makeRequests(3), TestRequests.newSession(), client.getRawTrackFormat());
+        Assert.assertNotEquals(CompressionDictionary.NONE, batch.getDictionaryId());
+
+        // When
+        try {
+            client.sendRawTracks(batch.getHeader(), batch.getTracks(), batch.getFormat(), batch.getDictionaryId());
+            Assert.fail("Batch should have been rejected");
+        } catch (TrackingplanSendException ex) {
+            Assert.assertEquals(400, ex.getResponseCode());
+        }
+
+        // Then - Sent as is and once more as plain JSON without dictionary
+        Assert.assertEquals("application/cbor", server.takeRequest(5000).getHeader("Content-Type"));
+        final var plainRequest = server.takeRequest(5000);
+        Assert.assertEquals("application/json", plainRequest.getHeader("Content-Type"));
+        Assert.assertNull(plainRequest.getHeader("X-Trackingplan-Dictionary"));
+        Assert.assertNull(server.takeRequest(500));
+    }
+
+    @Test
+    public void given_EnvelopeAccepted_when_BatchRejected_then_BatchIsNotResent() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setEnvelopeEnabled(true);
+        final var session = TestRequests.newSession();
+        final RawBatch accepted = client.createRawBatch(makeRequests(3), session, client.getRawTrackFormat());
+        client.sendRawTracks(accepted.getHeader(), accepted.getTracks(), accepted.getFormat());
+        server.takeRequest(5000);
+
+        // When
+        server.setResponder(request -> 400);
+        final RawBatch rejected = client.createRawBatch(makeRequests(3), session, client.getRawTrackFormat());
+        try {
+            client.sendRawTracks(rejected.getHeader(), rejected.getTracks(), rejected.getFormat());
+            Assert.fail("Batch should have been rejected");
+        } catch (TrackingplanSendException ex) {
+            Assert.assertEquals(400, ex.getResponseCode());
+        }
+
+        // Then
+        Assert.assertNotNull(server.takeRequest(5000));
+        Assert.assertNull(server.takeRequest(500));
+        Assert.assertEquals(BatchOutbox.FORMAT_JSON_ENVELOPE, client.getRawTrackFormat());
+    }
+
+    @Test
+    public void benchmarkPlainVsEnvelope() throws Exception {
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var session = TestRequests.newSession();
+        final var requests = makeRequests(50);
+
+        // Warm up
+        client.createRawTracks(requests, session);
+        client.createRawBatch(requests, session, BatchOutbox.FORMAT_JSON_ENVELOPE);
+
+        long plainNanos = 0, envelopeNanos = 0, plainBytes = 0, envelopeBytes = 0;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            final var plainTracks = client.createRawTracks(requests, session);
+            plainNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            final var envelope = client.createRawBatch(requests, session, BatchOutbox.FORMAT_JSON_ENVELOPE);
+            envelopeNanos += System.nanoTime() - start;
+            plainBytes = totalSize(plainTracks);
+            envelopeBytes = totalSize(envelope.getTracks()) + envelope.getHeader().length;
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.ROOT,
+                "Batch of 50 small tracks: plain %.2f ms / %d bytes vs envelope %.2f ms / %d bytes",
+                plainNanos / 1e6 / 10, plainBytes, envelopeNanos / 1e6 / 10, envelopeBytes));
+
+        Assert.assertTrue(envelopeBytes < plainBytes * 0.8);
+    }
+
+    private TrackingplanConfig makeConfig() {
+        return TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .tags(Map.of("app_flavor", "test"))
+                .build();
+    }
+
+    /**
+     * Requests share the static context fields but each one has its own screen.
+     */
+    private static List<HttpRequest> makeRequests(int numRequests) {
+        final var requests = TestRequests.createFakeRequests(numRequests);
+        for (int i = 0; i < requests.size(); i++) {
+            final var request = requests.get(i);
+            request.addContextField("app_version", "1.0");
+            request.addContextField("device", "Pixel");
+            request.addContextField("screen", "Screen" + i);
+        }
+        return requests;
+    }
+
+    private static void assertSameRawTracks(List<byte[]> expected, List<byte[]> actual) throws Exception {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameJson(
+                    new JSONObject(new String(expected.get(i), StandardCharsets.UTF_8)),
+                    new JSONObject(new String(actual.get(i), StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Compares JSON objects regardless of the order of their keys.
+     */
+    private static void assertSameJson(Object expected, Object actual) throws Exception {
+        if (expected instanceof JSONObject) {
+            Assert.assertTrue(actual instanceof JSONObject);
+            final var expectedObject = (JSONObject) expected;
+            final var actualObject = (JSONObject) actual;
+            Assert.assertEquals(expectedObject.length(), actualObject.length());
+            final var keys = expectedObject.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                Assert.assertTrue("Missing key " + key, actualObject.has(key));
+                assertSameJson(expectedObject.get(key), actualObject.get(key));
+            }
+        } else {
+            Assert.assertEquals(String.valueOf(expected), String.valueOf(actual));
+        }
+    }
+
+    private static long totalSize(List<byte[]> rawTracks) {
+        long size = 0;
+        for (byte[] rawTrack : rawTracks) {
+            size += rawTrack.length;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,339 @@
+package com.trackingplan.client.sdk;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.CompressionDictionary;
+import com.trackingplan.client.sdk.delivery.TaskRunnerBatchSender;
+import com.trackingplan.client.sdk.util.TaskRunner;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BatchOutboxInstrumentedTest extends BaseInstrumentedTest {
+
+    private File outboxDir;
+    private HandlerThread handlerThread;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        outboxDir = new File(context.getFilesDir(), "test-outbox");
+        deleteRecursively(outboxDir);
+        handlerThread = new HandlerThread("OutboxTest");
+        handlerThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        handlerThread.quitSafely();
+        deleteRecursively(outboxDir);
+        super.tearDown();
+    }
+
+    @Test
+    public void given_AppendedBatches_when_Peek_then_BatchesAreReturnedInOrderUntilAcked() throws Exception {
+        // Given
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        outbox.append(makeTracks("a", 2), (byte) 1);
+        outbox.append(makeTracks("b", 3), (byte) 1);
+
+        // When
+        final var first = outbox.peek();
+        final var peekedAgain = outbox.peek();
+
+        // Then
+        Assert.assertNotNull(first);
+        Assert.assertEquals(2, first.getTracks().size());
+        Assert.assertEquals("a-0", new String(first.getTracks().get(0), StandardCharsets.UTF_8));
+        Assert.assertNotNull(peekedAgain);
+        Assert.assertEquals("a-0", new String(peekedAgain.getTracks().get(0), StandardCharsets.UTF_8));
+
+        outbox.ack(first);
+        final var second = outbox.peek();
+        Assert.assertNotNull(second);
+        Assert.assertEquals(3, second.getTracks().size());
+        Assert.assertEquals("b-2", new String(second.getTracks().get(2), StandardCharsets.UTF_8));
+
+        outbox.ack(second);
+        Assert.assertNull(outbox.peek());
+        Assert.assertEquals(0, outbox.getSizeBytes());
+        outbox.close();
+    }
+
+    @Test
+    public void given_BatchWithHeader_when_OutboxReopened_then_HeaderIsKeptWithTracks() throws Exception {
+        // Given
+        var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        final byte[] header = "header".getBytes(StandardCharsets.UTF_8);
+        outbox.append(header, makeTracks("a", 2), BatchOutbox.FORMAT_JSON_ENVELOPE);
+        outbox.append(makeTracks("b", 1), BatchOutbox.FORMAT_JSON);
+        outbox.close();
+
+        // When
+        outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        final var records = outbox.peek(2);
+
+        // Then
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals(BatchOutbox.FORMAT_JSON_ENVELOPE, records.get(0).getFormat());
+        Assert.assertArrayEquals(header, records.get(0).getHeader());
+        Assert.assertEquals("a-1", new String(records.get(0).getTracks().get(1), StandardCharsets.UTF_8));
+        Assert.assertNull(records.get(1).getHeader());
+        Assert.assertEquals("b-0", new String(records.get(1).getTracks().get(0), StandardCharsets.UTF_8));
+        outbox.close();
+    }
+
+    @Test
+    public void given_BatchWithDictionary_when_OutboxReopened_then_DictionaryIsKeptWithTracks() throws Exception {
+        // Given
+        var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        outbox.append(null, makeTracks("a", 2), BatchOutbox.FORMAT_JSON, (byte) 1);
+        outbox.append(makeTracks("b", 1), BatchOutbox.FORMAT_JSON);
+        outbox.close();
+
+        // When
+        outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        final var records = outbox.peek(2);
+
+        // Then
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals(1, records.get(0).getDictionaryId());
+        Assert.assertEquals("a-1", new String(records.get(0).getTracks().get(1), StandardCharsets.UTF_8));
+        Assert.assertEquals(CompressionDictionary.NONE, records.get(1).getDictionaryId());
+        outbox.close();
+    }
+
+    @Test
+    public void given_UndeliveredBatches_when_OutboxReopened_then_PendingBatchesAreReplayed() throws Exception {
+        // Given
+        var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        outbox.append(makeTracks("a", 1), (byte) 1);
+        outbox.append(makeTracks("b", 1), (byte) 1);
+        outbox.append(makeTracks("c", 1), (byte) 1);
+        outbox.ack(outbox.peek());
+        outbox.close();
+
+        // When
+        outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+
+        // Then
+        Assert.assertEquals(List.of("b-0", "c-0"), drain(outbox));
+        outbox.close();
+    }
+
+    @Test
+    public void given_TruncatedRecord_when_OutboxReopened_then_TruncatedRecordIsDiscarded() throws Exception {
+        // Given
+        var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        outbox.append(makeTracks("a", 1), (byte) 1);
+        outbox.close();
+        // Simulate a kill in the middle of an append: header of a 100-byte record and 3 bytes
+        try (var out = new FileOutputStream(findSegments().get(0), true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 1, 0, 0});
+        }
+
+        // When
+        outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        outbox.append(makeTracks("b", 1), (byte) 1);
+
+        // Then
+        Assert.assertEquals(List.of("a-0", "b-0"), drain(outbox));
+        outbox.close();
+    }
+
+    @Test
+    public void given_SegmentEndingInCorruptRecord_when_BatchesReadAheadAreAcked_then_EveryBatchIsDelivered() throws Exception {
+        // Given
+        var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        for (int i = 0; i < 40; i++) {
+            outbox.append(makeLargeTracks(10 * 1024), (byte) 1);
+        }
+        outbox.close();
+        final var segments = findSegments();
+        Assert.assertTrue(segments.size() > 1);
+        // Corrupt record at the end of a segment that is no longer written
+        try (var out = new FileOutputStream(segments.get(0), true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 1, 0, 0});
+        }
+        outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+
+        // When
+        final var records = outbox.peek(40);
+        for (var record : records) {
+            outbox.ack(record);
+        }
+
+        // Then
+        Assert.assertEquals(40, records.size());
+        Assert.assertNull(outbox.peek());
+        Assert.assertEquals(1, findSegments().size());
+        outbox.close();
+    }
+
+    @Test
+    public void given_ManyBatches_when_Delivered_then_SegmentsAreCompacted() throws Exception {
+        // Given
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        for (int i = 0; i < 100; i++) {
+            outbox.append(makeLargeTracks(10 * 1024), (byte) 1);
+        }
+        Assert.assertTrue(findSegments().size() > 1);
+
+        // When
+        Assert.assertEquals(100, drain(outbox).size());
+
+        // Then
+        Assert.assertEquals(1, findSegments().size());
+        Assert.assertEquals(0, outbox.getSizeBytes());
+        outbox.close();
+    }
+
+    @Test
+    public void given_OutboxFull_when_Appending_then_OldestBatchesAreDropped() throws Exception {
+        // Given
+        final long maxSizeBytes = 600 * 1024;
+        final var outbox = BatchOutbox.open(outboxDir, maxSizeBytes);
+
+        // When
+        for (int i = 0; i < 200; i++) {
+            outbox.append(List.of(("batch-" + i + "-" + "x".repeat(10 * 1024)).getBytes(StandardCharsets.UTF_8)), (byte) 1);
+        }
+
+        // Then
+        Assert.assertTrue(outbox.getSizeBytes() <= maxSizeBytes);
+        final var oldest = outbox.peek();
+        Assert.assertNotNull(oldest);
+        Assert.assertFalse(new String(oldest.getTracks().get(0), StandardCharsets.UTF_8).startsWith("batch-0-"));
+        final var remaining = drain(outbox);
+        Assert.assertTrue(remaining.get(remaining.size() - 1).startsWith("batch-199-"));
+        outbox.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void given_OpenedOutbox_when_OpenedAgain_then_Fails() throws Exception {
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        try {
+            BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        } finally {
+            outbox.close();
+        }
+    }
+
+    @Test
+    public void given_EndpointUnreachable_when_BatchSent_then_BatchIsDeliveredOnNextStart() throws Exception {
+        // Given
+        final var server = new LocalTracksServer();
+        server.start();
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .build();
+        server.shutdown();
+
+        final var taskRunner = new TaskRunner(new Handler(handlerThread.getLooper()));
+        final var requests = TestRequests.createFakeRequests(3);
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        final var batchSender = new TaskRunnerBatchSender(new TrackingplanClient(config, context), taskRunner, outbox);
+
+        // When
+        final var sent = new CountDownLatch(1);
+        batchSender.send(requests, TestRequests.newSession(), 1, batchId -> sent.countDown());
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+        runOnTaskRunner(taskRunner, batchSender::close);
+
+        // Then (next start)
+        final var newServer = new LocalTracksServer();
+        newServer.start();
+        try {
+            final var newConfig = TrackingplanConfig.newConfig(TEST_TP_ID)
+                    .environment(TEST_ENVIRONMENT)
+                    .tracksEndPoint(newServer.getUrl())
+                    .build();
+            final var reopenedOutbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+            final var newBatchSender = new TaskRunnerBatchSender(new TrackingplanClient(newConfig, context), taskRunner, reopenedOutbox);
+            newBatchSender.deliverPendingBatches();
+
+            final var received = newServer.takeRequest(5000);
+            Assert.assertNotNull("Pending batch not delivered", received);
+            Assert.assertEquals(3, new JSONArray(received.getBodyAsString()).length());
+
+            // Batch is acked after the response is received, so wait for the delivery to finish
+            newBatchSender.close();
+            final var deliveredOutbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+            Assert.assertNull(deliveredOutbox.peek());
+            deliveredOutbox.close();
+        } finally {
+            newServer.shutdown();
+        }
+    }
+
+    private static void runOnTaskRunner(TaskRunner taskRunner, Runnable runnable) throws InterruptedException {
+        final var done = new CountDownLatch(1);
+        taskRunner.executeTask(() -> {
+            runnable.run();
+            return true;
+        }, (result, error) -> done.countDown());
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static List<byte[]> makeTracks(String prefix, int numTracks) {
+        final List<byte[]> tracks = new ArrayList<>();
+        for (int i = 0; i < numTracks; i++) {
+            tracks.add((prefix + "-" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        return tracks;
+    }
+
+    private static List<byte[]> makeLargeTracks(int numBytes) {
+        return List.of("x".repeat(numBytes).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> drain(BatchOutbox outbox) throws IOException {
+        final List<String> tracks = new ArrayList<>();
+        BatchOutbox.Record record;
+        while ((record = outbox.peek()) != null) {
+            for (byte[] track : record.getTracks()) {
+                tracks.add(new String(track, StandardCharsets.UTF_8));
+            }
+            outbox.ack(record);
+        }
+        return tracks;
+    }
+
+    private List<File> findSegments() {
+        final List<File> segments = new ArrayList<>();
+        final File[] files = outboxDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".seg")) segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return segments;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
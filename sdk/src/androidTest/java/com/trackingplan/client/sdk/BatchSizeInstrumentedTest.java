@@ -0,0 +1,173 @@
+package com.trackingplan.client.sdk;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.TaskRunnerBatchSender;
+import com.trackingplan.client.sdk.delivery.TrackBuilder;
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.client.sdk.util.TaskRunner;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+public class BatchSizeInstrumentedTest extends BaseInstrumentedTest {
+
+    private File outboxDir;
+    private HandlerThread handlerThread;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        outboxDir = new File(context.getFilesDir(), "test-batch-size-outbox");
+        deleteRecursively(outboxDir);
+        handlerThread = new HandlerThread("BatchSizeTest");
+        handlerThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        handlerThread.quitSafely();
+        deleteRecursively(outboxDir);
+        super.tearDown();
+    }
+
+    @Test
+    public void given_JsonPayload_when_SizeEstimated_then_EstimateIsCloseToSerializedSize() throws Exception {
+        final var builder = new StringBuilder("{\"events\":[");
+        for (int i = 0; i < 50; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"event_type\":\"event_").append(i).append("\",\"user_id\":\"user\",\"time\":").append(i).append('}');
+        }
+        builder.append("]}");
+
+        assertEstimateIsClose(makeRequest(builder.toString().getBytes(StandardCharsets.UTF_8), "application/json"));
+    }
+
+    @Test
+    public void given_BinaryPayload_when_SizeEstimated_then_EstimateIncludesBase64Overhead() throws Exception {
+        final byte[] payload = new byte[3000];
+        new Random(1).nextBytes(payload);
+
+        assertEstimateIsClose(makeRequest(payload, "application/octet-stream"));
+        assertEstimateIsClose(makeRequest(gzip(payload), "application/json"));
+    }
+
+    @Test
+    public void given_BatchTooLarge_when_Sent_then_BatchIsSplitUntilAccepted() throws Exception {
+        // Given
+        final var server = new LocalTracksServer();
+        server.setResponder(request -> {
+            if (!"POST".equals(request.method)) return 204;
+            try {
+                return new JSONArray(request.getBodyAsString()).length() > 1 ? 413 : 204;
+            } catch (JSONException e) {
+                return 400;
+            }
+        });
+        server.start();
+
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .build();
+        final var taskRunner = new TaskRunner(new Handler(handlerThread.getLooper()));
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        final var batchSender = new TaskRunnerBatchSender(new TrackingplanClient(config, context), taskRunner, outbox);
+
+        try {
+            // When
+            final var sent = new CountDownLatch(1);
+            logger.expectExactMessage("Batch too large for tracks endpoint. Split into batches of 2 and 2 raw tracks");
+            logger.expectExactMessage("Batch too large for tracks endpoint. Split into batches of 1 and 1 raw tracks");
+            new Handler(handlerThread.getLooper()).post(() ->
+                    batchSender.send(TestRequests.createFakeRequests(4), TestRequests.newSession(), 0, batchId -> sent.countDown()));
+            Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+            // Then
+            final List<String> acceptedEvents = new ArrayList<>();
+            LocalTracksServer.ReceivedRequest request;
+            while ((request = server.takeRequest(0)) != null) {
+                final var tracks = new JSONArray(request.getBodyAsString());
+                if (tracks.length() == 1) {
+                    acceptedEvents.add(tracks.getJSONObject(0).getJSONObject("request").getString("post_payload"));
+                }
+            }
+            Assert.assertEquals(4, acceptedEvents.size());
+            for (int i = 0; i < 4; i++) {
+                final int eventIndex = i;
+                Assert.assertTrue(acceptedEvents.stream().anyMatch(payload -> payload.contains("event_" + eventIndex)));
+            }
+            Assert.assertEquals(0, outbox.getSizeBytes());
+            logger.assertExpectationsMatch();
+        } finally {
+            final var closed = new CountDownLatch(1);
+            new Handler(handlerThread.getLooper()).post(() -> {
+                batchSender.close();
+                closed.countDown();
+            });
+            Assert.assertTrue(closed.await(5, TimeUnit.SECONDS));
+            server.shutdown();
+        }
+    }
+
+    private void assertEstimateIsClose(HttpRequest request) throws Exception {
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID).environment(TEST_ENVIRONMENT).build();
+        final var client = new TrackingplanClient(config, context);
+        final int actualSize = client.createRawTracks(List.of(request), TestRequests.newSession()).get(0).length;
+        final long estimatedSize = TrackBuilder.estimateRawTrackSize(request);
+
+        Assert.assertTrue("Estimate " + estimatedSize + " too far from actual size " + actualSize,
+                estimatedSize >= actualSize * 0.8 && estimatedSize <= actualSize * 1.25);
+    }
+
+    private static HttpRequest makeRequest(byte[] payload, String contentType) {
+        final var request = new HttpRequest.Builder()
+                .setUrl("https://api.amplitude.com/batch")
+                .setHttpMethod("POST")
+                .setProvider("amplitude")
+                .setInterceptionModule("test")
+                .addHeaderField("Content-Type", contentType)
+                .setRequestPayload(payload)
+                .setRequestPayloadNumBytes(payload.length)
+                .setHttpResponseCode(200)
+                .build();
+        request.addContextField("app_name", "Test App");
+        request.addContextField("platform", "Android");
+        return request;
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,226 @@
+package com.trackingplan.client.sdk;
+
+import android.util.Log;
+
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.TrackBuilder;
+import com.trackingplan.client.sdk.interception.HttpRequest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests the CBOR wire format of raw tracks against the local tracks server, which decodes
+ * CBOR bodies as the tracks endpoint would. The benchmark compares serialization time and
+ * upload size of JSON and CBOR for gzip-heavy batches.
+ */
+public class CborWireFormatInstrumentedTest extends BaseInstrumentedTest {
+
+    private static final String LOG_TAG = "TrackingplanTest";
+    private static final String CONTENT_TYPE_CBOR = "application/cbor";
+
+    private LocalTracksServer server;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        try {
+            server = new LocalTracksServer();
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to start local tracks server", e);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            server.shutdown();
+        } catch (Exception e) {
+            // Ignore
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void given_Requests_when_CborRawTracksConvertedToJson_then_MatchJsonRawTracks() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var requests = makeMixedRequests();
+        final var session = TestRequests.newSession();
+
+        // When
+        final List<byte[]> jsonRawTracks = client.createRawTracks(requests, session, BatchOutbox.FORMAT_JSON);
+        final List<byte[]> cborRawTracks = client.createRawTracks(requests, session, BatchOutbox.FORMAT_CBOR);
+
+        // Then
+        Assert.assertEquals(jsonRawTracks.size(), cborRawTracks.size());
+        for (int i = 0; i < jsonRawTracks.size(); i++) {
+            final var expected = new String(jsonRawTracks.get(i), StandardCharsets.UTF_8);
+            final var actual = new String(TrackBuilder.cborRawTrackToJson(cborRawTracks.get(i)), StandardCharsets.UTF_8);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void given_CborEnabled_when_BatchSent_then_BodyIsCborArrayWithRawPayloadBytes() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setCborEnabled(true);
+        final var requests = makeMixedRequests();
+        final byte format = client.getRawTrackFormat();
+        Assert.assertEquals(BatchOutbox.FORMAT_CBOR, format);
+
+        // When
+        client.sendRawTracks(client.createRawTracks(requests, TestRequests.newSession(), format), format);
+
+        // Then
+        final var request = server.takeRequest(5000);
+        Assert.assertNotNull(request);
+        Assert.assertEquals(CONTENT_TYPE_CBOR, request.getHeader("Content-Type"));
+
+        final Object body = request.getBodyAsCbor();
+        Assert.assertTrue(body instanceof List);
+        final List<?> tracks = (List<?>) body;
+        Assert.assertEquals(requests.size(), tracks.size());
+
+        final Map<?, ?> gzipTrack = (Map<?, ?>) ((Map<?, ?>) tracks.get(0)).get("request");
+        Assert.assertEquals("gzip", gzipTrack.get("post_payload_type"));
+        Assert.assertArrayEquals(requests.get(0).getPayloadData(), (byte[]) gzipTrack.get("post_payload"));
+    }
+
+    @Test
+    public void given_EndpointRejectsCbor_when_BatchSent_then_BatchIsResentAsJson() throws Exception {
+        // Given
+        server.setResponder(request -> CONTENT_TYPE_CBOR.equals(request.getHeader("Content-Type")) ? 415 : 204);
+        final var client = new TrackingplanClient(makeConfig(), context);
+        client.setCborEnabled(true);
+        final var requests = makeMixedRequests();
+        final var rawTracks = client.createRawTracks(requests, TestRequests.newSession(), BatchOutbox.FORMAT_CBOR);
+
+        // When
+        logger.expectExactMessage("Tracks endpoint doesn't accept CBOR. Falling back to JSON");
+        final int numTracksSent = client.sendRawTracks(rawTracks, BatchOutbox.FORMAT_CBOR);
+
+        // Then
+        Assert.assertEquals(requests.size(), numTracksSent);
+        Assert.assertEquals(CONTENT_TYPE_CBOR, server.takeRequest(5000).getHeader("Content-Type"));
+        final var jsonRequest = server.takeRequest(5000);
+        Assert.assertEquals("application/json", jsonRequest.getHeader("Content-Type"));
+        final var tracks = new JSONArray(jsonRequest.getBodyAsString());
+        Assert.assertEquals(requests.size(), tracks.length());
+        Assert.assertEquals("gzip_base64", tracks.getJSONObject(0).getJSONObject("request").getString("post_payload_type"));
+
+        // Next batches are created as JSON
+        Assert.assertEquals(BatchOutbox.FORMAT_JSON, client.getRawTrackFormat());
+        logger.assertExpectationsMatch();
+    }
+
+    @Test
+    public void benchmarkJsonVsCborForGzipPayloads() throws Exception {
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var session = TestRequests.newSession();
+        final List<HttpRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            requests.add(makeRequest(gzip(randomJson(i)), "application/json"));
+        }
+
+        // Warm up
+        client.createRawTracks(requests, session, BatchOutbox.FORMAT_JSON);
+        client.createRawTracks(requests, session, BatchOutbox.FORMAT_CBOR);
+
+        long jsonNanos = 0, cborNanos = 0, jsonBytes = 0, cborBytes = 0;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            final var jsonTracks = client.createRawTracks(requests, session, BatchOutbox.FORMAT_JSON);
+            jsonNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            final var cborTracks = client.createRawTracks(requests, session, BatchOutbox.FORMAT_CBOR);
+            cborNanos += System.nanoTime() - start;
+            jsonBytes = totalSize(jsonTracks);
+            cborBytes = totalSize(cborTracks);
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.ROOT,
+                "Batch of 50 gzip payloads: JSON %.2f ms / %d bytes vs CBOR %.2f ms / %d bytes",
+                jsonNanos / 1e6 / 10, jsonBytes, cborNanos / 1e6 / 10, cborBytes));
+
+        // Base64 inflates already-compressed payloads by a third
+        Assert.assertTrue(cborBytes < jsonBytes * 0.85);
+    }
+
+    private TrackingplanConfig makeConfig() {
+        return TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .build();
+    }
+
+    private static List<HttpRequest> makeMixedRequests() throws Exception {
+        final List<HttpRequest> requests = new ArrayList<>();
+        requests.add(makeRequest(gzip(randomJson(0)), "application/json"));
+        final byte[] binary = new byte[200];
+        new Random(2).nextBytes(binary);
+        requests.add(makeRequest(binary, "application/octet-stream"));
+        requests.add(makeRequest(randomJson(1), "application/json"));
+        requests.add(makeRequest(new byte[0], "application/json"));
+        return requests;
+    }
+
+    private static HttpRequest makeRequest(byte[] payload, String contentType) {
+        final var request = new HttpRequest.Builder()
+                .setUrl("https://api.segment.io/v1/batch")
+                .setHttpMethod("POST")
+                .setProvider("segment")
+                .setInterceptionModule("test")
+                .addHeaderField("Content-Type", contentType)
+                .setRequestPayload(payload)
+                .setRequestPayloadNumBytes(payload.length)
+                .setHttpResponseCode(200)
+                .build();
+        request.addContextField("app_name", "Test App");
+        request.addContextField("platform", "Android");
+        return request;
+    }
+
+    private static byte[] randomJson(int seed) throws Exception {
+        final var random = new Random(seed);
+        final var events = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            events.put(new JSONObject()
+                    .put("event", "event_" + random.nextInt(1000))
+                    .put("userId", Long.toHexString(random.nextLong()))
+                    .put("timestamp", random.nextInt()));
+        }
+        return new JSONObject().put("batch", events).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static long totalSize(List<byte[]> rawTracks) {
+        long size = 0;
+        for (byte[] rawTrack : rawTracks) {
+            size += rawTrack.length;
+        }
+        return size;
+    }
+}
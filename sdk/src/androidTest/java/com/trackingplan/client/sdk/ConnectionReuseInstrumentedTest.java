@@ -0,0 +1,161 @@
+package com.trackingplan.client.sdk;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Instrumented tests for connection reuse against a local HTTPS stand-in of the tracks
+ * endpoint. The benchmark compares the time per batch with and without a warm connection.
+ */
+public class ConnectionReuseInstrumentedTest extends BaseInstrumentedTest {
+
+    private static final String LOG_TAG = "TrackingplanTest";
+    private static final int NUM_BATCHES = 20;
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+    private LocalHttpsTracksServer server;
+    private SSLSocketFactory defaultSocketFactory;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        try {
+            server = new LocalHttpsTracksServer(InstrumentationRegistry.getInstrumentation().getContext());
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to start local tracks server", e);
+        }
+        defaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HttpsURLConnection.setDefaultSSLSocketFactory(server.getClientSocketFactory());
+    }
+
+    @After
+    public void tearDown() {
+        HttpsURLConnection.setDefaultSSLSocketFactory(defaultSocketFactory);
+        try {
+            server.shutdown();
+        } catch (Exception e) {
+            // Ignore
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void given_ConnectionReuseDisabled_when_BatchesSent_then_EachBatchOpensNewConnection() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(0), context);
+
+        // When
+        sendBatches(client, NUM_BATCHES);
+
+        // Then
+        Assert.assertEquals(NUM_BATCHES, server.getNumRequests());
+        Assert.assertEquals(NUM_BATCHES, server.getNumConnections());
+    }
+
+    @Test
+    public void given_ConnectionReuseEnabled_when_BatchesSent_then_ConnectionIsReused() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(IDLE_TIMEOUT_MS), context);
+
+        // When
+        sendBatches(client, NUM_BATCHES);
+
+        // Then
+        Assert.assertEquals(NUM_BATCHES, server.getNumRequests());
+        Assert.assertEquals(1, server.getNumConnections());
+    }
+
+    @Test
+    public void given_WarmConnection_when_IdleConnectionClosed_then_NoRequestIsSent() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(IDLE_TIMEOUT_MS), context);
+        sendBatches(client, 1);
+
+        // When
+        client.closeIdleConnection();
+        sendBatches(client, 1);
+
+        // Then
+        final var first = server.takeRequest(5000);
+        final var second = server.takeRequest(5000);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertEquals("POST", first.method);
+        Assert.assertEquals("POST", second.method);
+        // No request other than the batches
+        Assert.assertEquals(0, server.getNumRequests());
+        // Closed connection wasn't reused by the second batch
+        Assert.assertEquals(2, server.getNumConnections());
+    }
+
+    @Test
+    public void given_ConnectionReuseEnabled_when_Preconnected_then_NoRequestIsSent() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(IDLE_TIMEOUT_MS), context);
+
+        // When
+        client.preconnect();
+        sendBatches(client, 1);
+
+        // Then
+        final var request = server.takeRequest(5000);
+        Assert.assertNotNull(request);
+        Assert.assertEquals("POST", request.method);
+        Assert.assertEquals(0, server.getNumRequests());
+        // Warm-up handshake and batch connection
+        Assert.assertEquals(2, server.getNumConnections());
+    }
+
+    @Test
+    public void benchmarkHandshakeSavingsPerBatch() throws Exception {
+        // Warm up class loading and TLS providers
+        sendBatches(new TrackingplanClient(makeConfig(0), context), 2);
+
+        final long newConnectionNanos = timeBatches(new TrackingplanClient(makeConfig(0), context));
+        final long reusedConnectionNanos = timeBatches(new TrackingplanClient(makeConfig(IDLE_TIMEOUT_MS), context));
+
+        final double newConnectionMs = newConnectionNanos / 1e6 / NUM_BATCHES;
+        final double reusedConnectionMs = reusedConnectionNanos / 1e6 / NUM_BATCHES;
+
+        Log.i(LOG_TAG, String.format(Locale.ROOT,
+                "Batch send time: %.2f ms (new connection) vs %.2f ms (reused connection). Savings per batch: %.2f ms",
+                newConnectionMs, reusedConnectionMs, newConnectionMs - reusedConnectionMs));
+
+        // 2 + NUM_BATCHES connections without reuse plus a single one with reuse
+        Assert.assertEquals(NUM_BATCHES + 3, server.getNumConnections());
+    }
+
+    private long timeBatches(TrackingplanClient client) throws Exception {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        sendBatches(client, NUM_BATCHES);
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private void sendBatches(TrackingplanClient client, int numBatches) throws Exception {
+        final var session = TestRequests.newSession();
+        for (int i = 0; i < numBatches; i++) {
+            client.sendTracks(TestRequests.createFakeRequests(10), session);
+        }
+    }
+
+    private TrackingplanConfig makeConfig(long connectionIdleTimeoutMs) {
+        return TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .connectionIdleTimeout(connectionIdleTimeoutMs)
+                .build();
+    }
+}
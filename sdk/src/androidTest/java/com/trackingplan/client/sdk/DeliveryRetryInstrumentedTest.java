@@ -0,0 +1,439 @@
+package com.trackingplan.client.sdk;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.trackingplan.client.sdk.delivery.Backpressure;
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.CircuitBreaker;
+import com.trackingplan.client.sdk.delivery.NetworkCostPolicy;
+import com.trackingplan.client.sdk.delivery.NetworkState;
+import com.trackingplan.client.sdk.delivery.NetworkStateProvider;
+import com.trackingplan.client.sdk.delivery.RetryPolicy;
+import com.trackingplan.client.sdk.delivery.TaskRunnerBatchSender;
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+import com.trackingplan.client.sdk.util.TaskRunner;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DeliveryRetryInstrumentedTest extends BaseInstrumentedTest {
+
+    private File outboxDir;
+    private HandlerThread handlerThread;
+    private TaskRunner taskRunner;
+    private LocalTracksServer server;
+    private TaskRunnerBatchSender batchSender;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        outboxDir = new File(context.getFilesDir(), "test-retry-outbox");
+        deleteRecursively(outboxDir);
+        handlerThread = new HandlerThread("RetryTest");
+        handlerThread.start();
+        taskRunner = new TaskRunner(new Handler(handlerThread.getLooper()));
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (batchSender != null) {
+                runOnTrackingplanThread(batchSender::close);
+            }
+            if (server != null) {
+                server.shutdown();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            handlerThread.quitSafely();
+            deleteRecursively(outboxDir);
+            super.tearDown();
+        }
+    }
+
+    @Test
+    public void given_Failure_when_Classified_then_OnlyTransientFailuresAreRetryable() {
+        final var policy = new RetryPolicy();
+
+        Assert.assertTrue(policy.isRetryable(new TrackingplanSendException("", 500)));
+        Assert.assertTrue(policy.isRetryable(new TrackingplanSendException("", 503)));
+        Assert.assertTrue(policy.isRetryable(new TrackingplanSendException("", 429)));
+        Assert.assertTrue(policy.isRetryable(new TrackingplanSendException("", 408)));
+        Assert.assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        Assert.assertTrue(policy.isRetryable(new TrackingplanSendException("", new SocketTimeoutException())));
+        Assert.assertTrue(policy.isRetryable(new ConnectException()));
+
+        Assert.assertFalse(policy.isRetryable(new TrackingplanSendException("", 400)));
+        Assert.assertFalse(policy.isRetryable(new TrackingplanSendException("", 404)));
+        Assert.assertFalse(policy.isRetryable(new TrackingplanSendException("", new JSONException("bad"))));
+    }
+
+    @Test
+    public void given_ConsecutiveFailures_when_DelayComputed_then_DelayGrowsExponentiallyWithJitter() {
+        final var policy = new RetryPolicy(1000, 10000, new Random(42));
+
+        Assert.assertEquals(1000, policy.getMaxDelayMs(1));
+        Assert.assertEquals(2000, policy.getMaxDelayMs(2));
+        Assert.assertEquals(4000, policy.getMaxDelayMs(3));
+        Assert.assertEquals(10000, policy.getMaxDelayMs(5));
+        Assert.assertEquals(10000, policy.getMaxDelayMs(100));
+
+        boolean jittered = false;
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            final long delayMs = policy.getDelayMs(attempt);
+            Assert.assertTrue(delayMs >= 0 && delayMs <= policy.getMaxDelayMs(attempt));
+            jittered |= delayMs != policy.getMaxDelayMs(attempt);
+        }
+        Assert.assertTrue(jittered);
+    }
+
+    @Test
+    public void given_CircuitBreaker_when_FailuresReachThreshold_then_OpensAndProbesAfterOpenPeriod() {
+        final var breaker = new CircuitBreaker(3, 1000, 4000);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertEquals(1000, breaker.getRemainingOpenTimeMs());
+
+        // Failed probe doubles the open period
+        fakeTime.advanceTime(1000);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertEquals(2000, breaker.getRemainingOpenTimeMs());
+
+        // Successful probe closes the breaker
+        fakeTime.advanceTime(2000);
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(0, breaker.getRemainingOpenTimeMs());
+    }
+
+    @Test
+    public void given_EndpointUnavailable_when_BatchSent_then_BatchIsRetriedUntilDelivered() throws Exception {
+        // Given
+        startServer(503);
+        createBatchSender(new CircuitBreaker());
+
+        // When
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 0, null));
+        Assert.assertNotNull(server.takeRequest(5000));
+        Assert.assertNotNull("Batch not retried", takeRequestAdvancingTime(5000));
+        server.setResponseCode(204);
+
+        // Then
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!isOutboxEmpty() && System.currentTimeMillis() < deadline) {
+            fakeTime.advanceTime(1000);
+            Thread.sleep(50);
+        }
+        Assert.assertTrue("Batch not delivered", isOutboxEmpty());
+    }
+
+    @Test
+    public void given_EndpointRejectsBatch_when_BatchSent_then_BatchIsDroppedWithoutRetrying() throws Exception {
+        // Given
+        startServer(400);
+        createBatchSender(new CircuitBreaker());
+
+        // When
+        final var sent = new CountDownLatch(1);
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 0, batchId -> sent.countDown()));
+        Assert.assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        // Then
+        Assert.assertNotNull(server.takeRequest(0));
+        Assert.assertNull(server.takeRequest(500));
+        Assert.assertTrue(isOutboxEmpty());
+    }
+
+    @Test
+    public void given_CircuitOpen_when_BatchSent_then_BatchIsNotSentUntilCircuitCloses() throws Exception {
+        // Given
+        startServer(500);
+        createBatchSender(new CircuitBreaker(1, 60 * 1000, 60 * 1000));
+        final var firstSent = new CountDownLatch(1);
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 0, batchId -> firstSent.countDown()));
+        Assert.assertTrue(firstSent.await(5, TimeUnit.SECONDS));
+        Assert.assertNotNull(server.takeRequest(0));
+
+        // When
+        final var secondSent = new CountDownLatch(1);
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 1, batchId -> secondSent.countDown()));
+        Assert.assertTrue(secondSent.await(5, TimeUnit.SECONDS));
+
+        // Then
+        Assert.assertNull(server.takeRequest(500));
+        Assert.assertFalse(isOutboxEmpty());
+    }
+
+    @Test
+    public void given_RetryAfterHeader_when_Parsed_then_DelayIsReturned() {
+        final long nowMs = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+
+        Assert.assertEquals(120 * 1000, Backpressure.parseRetryAfterMs("120", nowMs));
+        Assert.assertEquals(0, Backpressure.parseRetryAfterMs(" 0 ", nowMs));
+        Assert.assertEquals(30 * 1000, Backpressure.parseRetryAfterMs("Sun, 06 Nov 1994 08:50:07 GMT", nowMs));
+        // Dates in the past mean that the client can retry right away
+        Assert.assertEquals(0, Backpressure.parseRetryAfterMs("Sun, 06 Nov 1994 08:00:00 GMT", nowMs));
+
+        Assert.assertEquals(TrackingplanSendException.NO_RETRY_AFTER, Backpressure.parseRetryAfterMs(null, nowMs));
+        Assert.assertEquals(TrackingplanSendException.NO_RETRY_AFTER, Backpressure.parseRetryAfterMs("-5", nowMs));
+        Assert.assertEquals(TrackingplanSendException.NO_RETRY_AFTER, Backpressure.parseRetryAfterMs("soon", nowMs));
+    }
+
+    @Test
+    public void given_ThrottledResponses_when_PauseComputed_then_RetryAfterIsHonoredWithJitter() {
+        final var backpressure = new Backpressure(1000, 60 * 1000, new Random(7));
+
+        Assert.assertTrue(Backpressure.isThrottled(new TrackingplanSendException("", 429)));
+        Assert.assertTrue(Backpressure.isThrottled(new TrackingplanSendException("", 503)));
+        Assert.assertFalse(Backpressure.isThrottled(new TrackingplanSendException("", 500)));
+
+        // Retry-After is the minimum pause, stretched by up to a quarter of it
+        backpressure.onThrottled(10 * 1000);
+        Assert.assertEquals(1, backpressure.getLevel());
+        final long pauseMs = backpressure.getRemainingPauseMs();
+        Assert.assertTrue(pauseMs >= 10 * 1000 && pauseMs <= 12500);
+
+        fakeTime.advanceTime(pauseMs);
+        Assert.assertEquals(0, backpressure.getRemainingPauseMs());
+        Assert.assertTrue(backpressure.isThrottled());
+
+        // Without Retry-After, the pause grows with the level (between half and all of it)
+        backpressure.onThrottled(TrackingplanSendException.NO_RETRY_AFTER);
+        Assert.assertEquals(2, backpressure.getLevel());
+        final long secondPauseMs = backpressure.getRemainingPauseMs();
+        Assert.assertTrue(secondPauseMs >= 1000 && secondPauseMs <= 2000);
+
+        // Pauses never exceed the maximum
+        backpressure.onThrottled(24 * 60 * 60 * 1000);
+        Assert.assertEquals(60 * 1000, backpressure.getRemainingPauseMs());
+
+        backpressure.onSuccess();
+        Assert.assertFalse(backpressure.isThrottled());
+        Assert.assertEquals(0, backpressure.getRemainingPauseMs());
+    }
+
+    @Test
+    public void given_ThrottledResponse_when_BatchSent_then_RetryAfterIsReported() throws Exception {
+        // Given
+        startServer(429);
+        server.setResponseHeader("Retry-After", "7");
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .build();
+        final var client = new TrackingplanClient(config, context);
+
+        // When
+        try {
+            client.sendRawTracks(client.createRawTracks(TestRequests.createFakeRequests(2), TestRequests.newSession()), BatchOutbox.FORMAT_JSON);
+            Assert.fail("Batch should have been throttled");
+        } catch (TrackingplanSendException ex) {
+            // Then
+            Assert.assertEquals(429, ex.getResponseCode());
+            Assert.assertEquals(7000, ex.getRetryAfterMs());
+        }
+    }
+
+    @Test
+    public void given_EndpointThrottling_when_BatchSent_then_DeliveryIsPausedUntilRetryAfter() throws Exception {
+        // Given
+        startServer(429);
+        server.setResponseHeader("Retry-After", "1");
+        createBatchSender(new CircuitBreaker(1, 1000, 1000), new Backpressure());
+        final List<Integer> levels = new CopyOnWriteArrayList<>();
+        runOnTrackingplanThread(() -> batchSender.setBackpressureListener(levels::add));
+
+        logger.expectMessageStartsWith("Tracks endpoint is throttling clients. Delivery paused for ");
+        final var firstSent = new CountDownLatch(1);
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 0, batchId -> firstSent.countDown()));
+        Assert.assertTrue(firstSent.await(5, TimeUnit.SECONDS));
+        Assert.assertNotNull(server.takeRequest(0));
+
+        // When
+        final var secondSent = new CountDownLatch(1);
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 1, batchId -> secondSent.countDown()));
+        Assert.assertTrue(secondSent.await(5, TimeUnit.SECONDS));
+
+        // Then
+        // Throttling doesn't open the circuit breaker but pauses delivery until the fake
+        // clock reaches the end of the pause, even if retries are attempted meanwhile
+        Assert.assertNull(server.takeRequest(2000));
+        Assert.assertFalse(isOutboxEmpty());
+        Assert.assertEquals(List.of(1), levels);
+        logger.assertExpectationsMatch();
+
+        // Once the endpoint recovers, pending batches are delivered together
+        server.setResponseCode(204);
+        logger.expectExactMessage("Tracks endpoint recovered. Resuming normal delivery");
+        fakeTime.advanceTime(2 * 1000);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!isOutboxEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue("Batches not delivered", isOutboxEmpty());
+        Assert.assertEquals(List.of(1, 0), levels);
+        logger.assertExpectationsMatch();
+    }
+
+    @Test
+    public void given_Offline_when_BatchSent_then_BatchIsDeliveredOnceOnline() throws Exception {
+        // Given
+        startServer(204);
+        createBatchSender(new CircuitBreaker());
+        final var network = new FakeNetworkStateProvider(NetworkState.OFFLINE);
+        runOnTrackingplanThread(() -> batchSender.setNetworkCostPolicy(new NetworkCostPolicy(network)));
+
+        // When
+        final var sent = new CountDownLatch(1);
+        logger.expectExactMessage("Batch 0 kept in outbox until the network allows its delivery");
+        runOnTrackingplanThread(() -> batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), 0, batchId -> sent.countDown()));
+        Assert.assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        // Then
+        Assert.assertNull(server.takeRequest(500));
+        Assert.assertFalse(isOutboxEmpty());
+        logger.assertExpectationsMatch();
+
+        network.state = new NetworkState(true, true, false, false);
+        runOnTrackingplanThread(batchSender::deliverNow);
+        Assert.assertNotNull(server.takeRequest(5000));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!isOutboxEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue("Batch not delivered", isOutboxEmpty());
+    }
+
+    private static final class FakeNetworkStateProvider implements NetworkStateProvider {
+        volatile NetworkState state;
+
+        FakeNetworkStateProvider(NetworkState state) {
+            this.state = state;
+        }
+
+        @NonNull
+        @Override
+        public NetworkState getNetworkState() {
+            return state;
+        }
+
+        @Override
+        public void setListener(@Nullable Listener listener) {
+            // Changes are applied by calling deliverNow
+        }
+    }
+
+    private void startServer(int responseCode) throws Exception {
+        server = new LocalTracksServer();
+        server.setResponseCode(responseCode);
+        server.start();
+    }
+
+    private void createBatchSender(CircuitBreaker circuitBreaker) throws Exception {
+        createBatchSender(circuitBreaker, new Backpressure(50, 200, new Random(1)));
+    }
+
+    private void createBatchSender(CircuitBreaker circuitBreaker, Backpressure backpressure) throws Exception {
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .build();
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        batchSender = new TaskRunnerBatchSender(
+                new TrackingplanClient(config, context),
+                taskRunner,
+                outbox,
+                new RetryPolicy(50, 200, new Random(1)),
+                circuitBreaker,
+                backpressure,
+                TrackingplanConfig.DEFAULT_MAX_CONCURRENT_UPLOADS
+        );
+    }
+
+    /**
+     * Waits for the next request while advancing the fake clock, so that delivery pauses
+     * expire.
+     */
+    private LocalTracksServer.ReceivedRequest takeRequestAdvancingTime(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            final var request = server.takeRequest(50);
+            if (request != null) {
+                return request;
+            }
+            fakeTime.advanceTime(1000);
+        }
+        return null;
+    }
+
+    private boolean isOutboxEmpty() throws InterruptedException {
+        // Segments are inspected from the worker thread so that the check doesn't race with
+        // deliveries. Opening the outbox here would fail because it's locked by the sender.
+        final var size = new AtomicLong(-1);
+        final var done = new CountDownLatch(1);
+        taskRunner.executeTask(() -> {
+            long numBytes = 0;
+            final File[] files = outboxDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(".seg")) numBytes += file.length();
+                }
+            }
+            return numBytes;
+        }, (numBytes, error) -> {
+            if (numBytes != null) size.set(numBytes);
+            done.countDown();
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        return size.get() == 0;
+    }
+
+    private void runOnTrackingplanThread(Runnable runnable) throws InterruptedException {
+        final var done = new CountDownLatch(1);
+        new Handler(handlerThread.getLooper()).post(() -> {
+            runnable.run();
+            done.countDown();
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,193 @@
+package com.trackingplan.client.sdk;
+
+import com.trackingplan.client.sdk.delivery.EndpointSelector;
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+import com.trackingplan.shared.ServiceLocator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instrumented tests for the selection of the tracks endpoint among several local stand-in
+ * servers, some of them with injected delays. Latency is measured with the real clock.
+ */
+public class EndpointFailoverInstrumentedTest extends BaseInstrumentedTest {
+
+    private static final long COOLDOWN_MS = 60 * 1000;
+
+    private final List<LocalTracksServer> servers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        ServiceLocator.INSTANCE.reset();
+    }
+
+    @After
+    public void tearDown() {
+        for (LocalTracksServer server : servers) {
+            try {
+                server.shutdown();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void given_EndpointsWithDifferentLatency_when_SessionsStart_then_FastestEndpointIsSelected() throws Exception {
+        // Given
+        final var slow = startServer(400);
+        final var fast = startServer(0);
+        final var medium = startServer(150);
+        final var selector = new EndpointSelector(urls(slow, fast, medium), COOLDOWN_MS, COOLDOWN_MS);
+        final var client = new TrackingplanClient(makeConfig(slow, fast, medium), context, selector);
+
+        // When
+        // Every endpoint is measured in one session
+        for (int i = 0; i < 3; i++) {
+            sendBatch(client);
+            client.selectEndpointForSession();
+        }
+        for (int i = 0; i < 3; i++) {
+            sendBatch(client);
+        }
+
+        // Then
+        Assert.assertEquals(fast.getUrl(), selector.getCurrentEndpoint());
+        Assert.assertEquals(1, slow.getNumRequests());
+        Assert.assertEquals(1, medium.getNumRequests());
+        Assert.assertEquals(4, fast.getNumRequests());
+        Assert.assertTrue(selector.getScore(fast.getUrl()) < selector.getScore(medium.getUrl()));
+        Assert.assertTrue(selector.getScore(medium.getUrl()) < selector.getScore(slow.getUrl()));
+    }
+
+    @Test
+    public void given_CurrentEndpointDown_when_BatchSent_then_NextBatchIsSentToAnotherEndpoint() throws Exception {
+        // Given
+        final var down = startServer(0);
+        final var up = startServer(0);
+        final var selector = new EndpointSelector(urls(down, up), COOLDOWN_MS, COOLDOWN_MS);
+        final var client = new TrackingplanClient(makeConfig(down, up), context, selector);
+        down.shutdown();
+
+        // When
+        logger.expectExactMessage("Tracks endpoint " + down.getUrl() + " failed. Failing over to " + up.getUrl());
+        assertSendFails(client);
+        sendBatch(client);
+
+        // Then
+        logger.assertExpectationsMatch();
+        Assert.assertEquals(1, up.getNumRequests());
+
+        // The failed endpoint isn't chosen again while cooling down
+        client.selectEndpointForSession();
+        Assert.assertEquals(up.getUrl(), selector.getCurrentEndpoint());
+    }
+
+    @Test
+    public void given_EndpointUnavailable_when_BatchSent_then_EndpointFailsOver() throws Exception {
+        // Given
+        final var unavailable = startServer(0);
+        final var available = startServer(0);
+        unavailable.setResponseCode(500);
+        final var selector = new EndpointSelector(urls(unavailable, available), COOLDOWN_MS, COOLDOWN_MS);
+        final var client = new TrackingplanClient(makeConfig(unavailable, available), context, selector);
+
+        // When
+        assertSendFails(client);
+        sendBatch(client);
+
+        // Then
+        Assert.assertEquals(1, unavailable.getNumRequests());
+        Assert.assertEquals(1, available.getNumRequests());
+        Assert.assertEquals(available.getUrl(), selector.getCurrentEndpoint());
+    }
+
+    @Test
+    public void given_EndpointRejectsBatch_when_BatchSent_then_EndpointIsKept() throws Exception {
+        // Given
+        final var main = startServer(0);
+        final var other = startServer(0);
+        main.setResponseCode(413);
+        final var selector = new EndpointSelector(urls(main, other), COOLDOWN_MS, COOLDOWN_MS);
+        final var client = new TrackingplanClient(makeConfig(main, other), context, selector);
+
+        // When
+        assertSendFails(client);
+
+        // Then
+        Assert.assertEquals(main.getUrl(), selector.getCurrentEndpoint());
+        Assert.assertEquals(0, other.getNumRequests());
+    }
+
+    @Test
+    public void given_EndpointThrottling_when_BatchSent_then_EndpointIsKept() throws Exception {
+        for (int responseCode : new int[]{429, 503}) {
+            // Given
+            final var main = startServer(0);
+            final var other = startServer(0);
+            main.setResponseCode(responseCode);
+            final var selector = new EndpointSelector(urls(main, other), COOLDOWN_MS, COOLDOWN_MS);
+            final var client = new TrackingplanClient(makeConfig(main, other), context, selector);
+
+            // When
+            for (int i = 0; i < 2; i++) {
+                try {
+                    sendBatch(client);
+                    Assert.fail("Batch should have been throttled");
+                } catch (TrackingplanSendException ex) {
+                    Assert.assertEquals(responseCode, ex.getResponseCode());
+                }
+            }
+
+            // Then - Delivery pauses through Backpressure instead
+            Assert.assertEquals(main.getUrl(), selector.getCurrentEndpoint());
+            Assert.assertEquals(2, main.getNumRequests());
+            Assert.assertEquals(0, other.getNumRequests());
+        }
+    }
+
+    private LocalTracksServer startServer(long responseDelayMs) throws IOException {
+        final var server = new LocalTracksServer();
+        server.start();
+        server.setResponseDelay(responseDelayMs);
+        servers.add(server);
+        return server;
+    }
+
+    private static List<String> urls(LocalTracksServer... servers) {
+        final List<String> urls = new ArrayList<>();
+        for (LocalTracksServer server : servers) {
+            urls.add(server.getUrl());
+        }
+        return urls;
+    }
+
+    private void sendBatch(TrackingplanClient client) throws IOException {
+        client.sendTracks(TestRequests.createFakeRequests(2), TestRequests.newSession());
+    }
+
+    private void assertSendFails(TrackingplanClient client) {
+        try {
+            sendBatch(client);
+            Assert.fail("Batch should have failed");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    private TrackingplanConfig makeConfig(LocalTracksServer... servers) {
+        return TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoints(urls(servers))
+                .build();
+    }
+}
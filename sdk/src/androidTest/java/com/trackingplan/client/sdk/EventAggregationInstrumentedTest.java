@@ -0,0 +1,70 @@
+package com.trackingplan.client.sdk;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.client.sdk.interception.InterceptionContext;
+import com.trackingplan.shared.Storage;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Instrumented tests of the aggregation of high-frequency requests into a single track.
+ */
+public class EventAggregationInstrumentedTest extends BaseInstrumentedTest {
+
+    @Test
+    public void given_AggregatedProvider_when_QueueFlushed_then_OneAggregatedTrackIsSent() throws Exception {
+        // Given
+        prepareIngestConfig("{\"sample_rate\": 1}");
+        startTrackingplanInitializer();
+        final var instance = TrackingplanInstance.getInstance();
+
+        Trackingplan.init(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .aggregateProvider("amplitude", 60 * 1000)
+                .enableDebug()
+                .dryRun()
+                .start(context);
+        instance.waitForRunSync();
+
+        // When
+        logger.reset();
+        logger.expectExactMessage("Request added to aggregation window");
+        logger.expectExactMessage("Request added to aggregation window");
+        logger.expectExactMessage("Request added to aggregation window");
+        logger.expectExactMessage("Closed 1 aggregation windows");
+        logger.expectMessageStartingWithAndContaining("Batch:", List.of("\"aggregate_count\": 3"));
+
+        instance.runSync(() -> {
+            instance.processRequest(createFakeHeartbeatRequest(10), createContext());
+            instance.processRequest(createFakeHeartbeatRequest(20), createContext());
+            instance.processRequest(createFakeHeartbeatRequest(30), createContext());
+        });
+        instance.waitForRunSync();
+        instance.flushQueue();
+        instance.waitForRunSync();
+
+        // Then
+        logger.assertExpectationsMatch();
+    }
+
+    private void prepareIngestConfig(String json) throws Exception {
+        var storage = Storage.Companion.create(TEST_TP_ID, TEST_ENVIRONMENT);
+        storage.getIngestConfigCache().save(json);
+        storage.saveTrackingEnabled(true);
+    }
+
+    private HttpRequest createFakeHeartbeatRequest(int position) {
+        return new HttpRequest.Builder()
+                .setUrl("https://api.amplitude.com/heartbeat?position=" + position)
+                .setHttpMethod("GET")
+                .setProvider("amplitude")
+                .setInterceptionModule("test")
+                .build();
+    }
+
+    private InterceptionContext createContext() {
+        return InterceptionContext.createInterceptionContext(context);
+    }
+}
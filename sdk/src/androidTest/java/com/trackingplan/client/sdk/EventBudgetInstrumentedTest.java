@@ -0,0 +1,97 @@
+package com.trackingplan.client.sdk;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.client.sdk.interception.InterceptionContext;
+import com.trackingplan.shared.Storage;
+import com.trackingplan.shared.TimeProvider;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Instrumented tests of the event budget applied to sampled requests before they are queued.
+ */
+public class EventBudgetInstrumentedTest extends BaseInstrumentedTest {
+
+    @Test
+    public void given_ProviderRateLimit_when_RequestsExceedIt_then_RequestsSuppressedAndReported() throws Exception {
+        // Given
+        prepareIngestConfig("{\"sample_rate\": 1}");
+        startTrackingplanInitializer();
+        final var instance = TrackingplanInstance.getInstance();
+
+        Trackingplan.init(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .providerRateLimit(1)
+                .enableDebug()
+                .dryRun()
+                .start(context);
+        instance.waitForRunSync();
+
+        // When
+        logger.reset();
+        logger.expectExactMessage("Request dropped (reason: event budget exceeded)");
+        logger.expectExactMessage("Request dropped (reason: event budget exceeded)");
+        logger.expectMessageStartingWithAndContaining("Batch:", List.of("\"suppressed_count\": 2"));
+
+        instance.runSync(() -> {
+            instance.processRequest(createFakeAmplitudeRequest(), createContext());
+            instance.processRequest(createFakeAmplitudeRequest(), createContext());
+            instance.processRequest(createFakeAmplitudeRequest(), createContext());
+        });
+        instance.waitForRunSync();
+
+        // Bucket is refilled after a minute
+        fakeTime.advanceTime(TimeProvider.MINUTE);
+        instance.runSync(() -> instance.processRequest(createFakeAmplitudeRequest(), createContext()));
+        instance.flushQueue();
+        instance.waitForRunSync();
+
+        // Then
+        logger.assertExpectationsMatch();
+    }
+
+    @Test
+    public void given_SessionBudgetInIngestConfig_when_RequestsExceedIt_then_RequestsSuppressed() throws Exception {
+        // Given
+        prepareIngestConfig("{\"sample_rate\": 1, \"event_budget\": {\"max_events_per_session\": 2}}");
+        startTrackingplan(TEST_TP_ID, TEST_ENVIRONMENT, false);
+        final var instance = TrackingplanInstance.getInstance();
+
+        // When
+        logger.reset();
+        logger.expectMessageStartsWith("Request queued");
+        logger.expectMessageStartsWith("Request queued");
+        logger.expectExactMessage("Request dropped (reason: event budget exceeded)");
+
+        instance.runSync(() -> {
+            instance.processRequest(createFakeAmplitudeRequest(), createContext());
+            instance.processRequest(createFakeAmplitudeRequest(), createContext());
+            instance.processRequest(createFakeAmplitudeRequest(), createContext());
+        });
+        instance.waitForRunSync();
+
+        // Then
+        logger.assertExpectationsMatch();
+    }
+
+    private void prepareIngestConfig(String json) throws Exception {
+        var storage = Storage.Companion.create(TEST_TP_ID, TEST_ENVIRONMENT);
+        storage.getIngestConfigCache().save(json);
+        storage.saveTrackingEnabled(true);
+    }
+
+    private HttpRequest createFakeAmplitudeRequest() {
+        return new HttpRequest.Builder()
+                .setUrl("https://api.amplitude.com/batch")
+                .setHttpMethod("POST")
+                .setProvider("amplitude")
+                .setInterceptionModule("test")
+                .build();
+    }
+
+    private InterceptionContext createContext() {
+        return InterceptionContext.createInterceptionContext(context);
+    }
+}
@@ -1,5 +1,6 @@
 package com.trackingplan.client.sdk;
 
+import com.trackingplan.shared.Storage;
 import com.trackingplan.shared.TimeProvider;
 
 import org.junit.Assert;
@@ -193,4 +194,20 @@ public class IngestConfigCacheInstrumentedTest extends BaseInstrumentedTest {
         // Then
         logger.assertExpectationsMatch();
     }
+
+    @Test
+    public void given_CachedIngestConfigWithDeliveryOptions_when_SdkStarts_then_DeliveryOptionsAreApplied() throws Exception {
+        // Given
+        final var storage = Storage.Companion.create(TEST_TP_ID, TEST_ENVIRONMENT);
+        storage.getIngestConfigCache().save("{\"sample_rate\": 1, \"delivery\": {\"batch_timeout_ms\": 5000, \"compression\": false, \"max_requests_per_batch\": 100000}}");
+        storage.saveTrackingEnabled(true);
+
+        // When
+        logger.expectExactMessage("Previous ingest config found and is still valid");
+        logger.expectExactMessage("Delivery options updated: DeliveryOptions(targetBatchSizeBytes=null, maxBatchSizeBytes=null, maxRequestsPerBatch=500, batchTimeoutMs=5000, compression=false, flushOnBackground=null)");
+        startTrackingplan(TEST_TP_ID, TEST_ENVIRONMENT, false);
+
+        // Then
+        logger.assertExpectationsMatch();
+    }
 }
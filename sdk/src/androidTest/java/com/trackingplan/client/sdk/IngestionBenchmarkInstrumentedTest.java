@@ -0,0 +1,230 @@
+package com.trackingplan.client.sdk;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.core.os.HandlerCompat;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.client.sdk.interception.InstrumentRequestBuilder;
+import com.trackingplan.client.sdk.interception.InterceptionContext;
+import com.trackingplan.client.sdk.util.AndroidLog;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of the hand-over of intercepted requests from the threads of the host app to the
+ * Trackingplan thread. It compares TrackingplanInstance.enqueueInterceptedRequest with
+ * posting a task to a handler per request, as runSync does. Results are logged with the
+ * TrackingplanBenchmark tag. Only correctness is asserted, as timings depend on the device.
+ * <p>
+ * It's skipped unless it's enabled with the instrumentation argument "-e benchmark true".
+ */
+public class IngestionBenchmarkInstrumentedTest extends BaseInstrumentedTest {
+
+    private static final String LOG_TAG = "TrackingplanBenchmark";
+
+    private static final int NUM_PRODUCERS = 8;
+    private static final int REQUESTS_PER_PRODUCER = 10000;
+    private static final int NUM_REQUESTS = NUM_PRODUCERS * REQUESTS_PER_PRODUCER;
+
+    private HandlerThread handlerThread;
+    private Handler handler;
+
+    private interface Ingestion {
+        void enqueue(InstrumentRequestBuilder request);
+    }
+
+    /**
+     * Request that is only counted once it reaches the Trackingplan thread, so that the
+     * hand-over is measured instead of the request processor.
+     */
+    private static final class BenchmarkRequestBuilder extends InstrumentRequestBuilder {
+
+        private final Consumer consumer;
+        private final int producer;
+        private final int sequence;
+
+        BenchmarkRequestBuilder(TrackingplanInstance tpInstance, Consumer consumer, int producer, int sequence) {
+            super(tpInstance, "benchmark");
+            this.consumer = consumer;
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        protected boolean shouldProcessRequest(HttpRequest request) {
+            consumer.accept(producer, sequence);
+            return false;
+        }
+    }
+
+    /**
+     * Counts the requests processed and checks that those of each producer keep their order.
+     * Only used from the thread that processes the requests.
+     */
+    private static final class Consumer {
+
+        final CountDownLatch processed = new CountDownLatch(NUM_REQUESTS);
+        final int[] nextSequence = new int[NUM_PRODUCERS];
+        int numOutOfOrder = 0;
+
+        void accept(int producer, int sequence) {
+            if (sequence != nextSequence[producer]) {
+                numOutOfOrder += 1;
+            }
+            nextSequence[producer] = sequence + 1;
+            processed.countDown();
+        }
+    }
+
+    private static final class Result {
+        final double requestsPerSecond;
+        final long p50Nanos;
+        final long p99Nanos;
+        final long numOverflows;
+
+        Result(double requestsPerSecond, long p50Nanos, long p99Nanos, long numOverflows) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.numOverflows = numOverflows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.0f requests/s, enqueue p50 %d ns, p99 %d ns, %d overflows",
+                    requestsPerSecond, p50Nanos, p99Nanos, numOverflows);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        final var arguments = InstrumentationRegistry.getArguments();
+        Assume.assumeTrue("Benchmark not enabled", Boolean.parseBoolean(arguments.getString("benchmark")));
+        // Intercepted requests are logged in VERBOSE, which would be measured too
+        AndroidLog.setLogLevel(AndroidLog.LogLevel.INFO);
+        handlerThread = new HandlerThread("TrackingplanBenchmark");
+        handlerThread.start();
+        handler = HandlerCompat.createAsync(handlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        if (handlerThread != null) {
+            handlerThread.quitSafely();
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void given_BurstOfInterceptedRequests_when_HandedOver_then_EveryRequestIsProcessedInOrder() throws Exception {
+        // Given
+        startTrackingplan();
+        final var instance = TrackingplanInstance.getInstance();
+        // Warm up both paths so that JIT compilation isn't measured
+        run(instance, new Consumer(), handlerIngestion());
+        run(instance, new Consumer(), InstrumentRequestBuilder::build);
+
+        // When
+        final var handlerConsumer = new Consumer();
+        final var handlerResult = run(instance, handlerConsumer, handlerIngestion());
+        final var consumer = new Consumer();
+        final var result = run(instance, consumer, InstrumentRequestBuilder::build);
+
+        // Then
+        Log.i(LOG_TAG, "Handler.post per request: " + handlerResult);
+        Log.i(LOG_TAG, "Ingestion ring buffer: " + result);
+        Log.i(LOG_TAG, String.format(Locale.US, "Ring buffer throughput x%.2f, enqueue p99 x%.2f",
+                result.requestsPerSecond / handlerResult.requestsPerSecond,
+                (double) result.p99Nanos / Math.max(handlerResult.p99Nanos, 1)));
+        Assert.assertEquals(0, handlerConsumer.processed.getCount());
+        Assert.assertEquals(0, consumer.processed.getCount());
+        Assert.assertEquals(0, consumer.numOutOfOrder);
+    }
+
+    /**
+     * Same work as InstrumentRequestBuilder.build, but handed over to a dedicated thread with a
+     * task per request, as TrackingplanInstance.runSync does.
+     */
+    private Ingestion handlerIngestion() {
+        final var numActiveTasks = new AtomicInteger(0);
+        return request -> {
+            InterceptionContext.createInterceptionContext(context);
+            numActiveTasks.incrementAndGet();
+            handler.post(() -> {
+                try {
+                    request.processIntercepted();
+                } finally {
+                    numActiveTasks.decrementAndGet();
+                }
+            });
+        };
+    }
+
+    private Result run(TrackingplanInstance instance, Consumer consumer, Ingestion ingestion) throws InterruptedException {
+
+        final var start = new CountDownLatch(1);
+        final long[][] latencies = new long[NUM_PRODUCERS][REQUESTS_PER_PRODUCER];
+        final List<Thread> producers = new ArrayList<>();
+        final long numOverflowsBefore = instance.getNumIngestionOverflows();
+
+        for (int p = 0; p < NUM_PRODUCERS; p++) {
+            final int producer = p;
+            final long[] producerLatencies = latencies[p];
+            final var thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < REQUESTS_PER_PRODUCER; i++) {
+                    final var request = new BenchmarkRequestBuilder(instance, consumer, producer, i);
+                    request.setUrl("https://api.amplitude.com/batch");
+                    request.setHttpMethod("POST");
+                    final long enqueueStart = System.nanoTime();
+                    ingestion.enqueue(request);
+                    producerLatencies[i] = System.nanoTime() - enqueueStart;
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        Assert.assertTrue(consumer.processed.await(60, TimeUnit.SECONDS));
+        final long elapsedNanos = System.nanoTime() - startNanos;
+
+        final long[] allLatencies = new long[NUM_REQUESTS];
+        for (int p = 0; p < NUM_PRODUCERS; p++) {
+            System.arraycopy(latencies[p], 0, allLatencies, p * REQUESTS_PER_PRODUCER, REQUESTS_PER_PRODUCER);
+        }
+        Arrays.sort(allLatencies);
+
+        return new Result(
+                NUM_REQUESTS * 1e9 / elapsedNanos,
+                allLatencies[NUM_REQUESTS / 2],
+                allLatencies[(int) (NUM_REQUESTS * 0.99)],
+                instance.getNumIngestionOverflows() - numOverflowsBefore
+        );
+    }
+}
@@ -0,0 +1,71 @@
+package com.trackingplan.client.sdk;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * HTTPS variant of {@link LocalTracksServer}. It uses a self-signed certificate for 127.0.0.1
+ * stored in the test assets. Clients must trust it through {@link #getClientSocketFactory()}.
+ */
+final class LocalHttpsTracksServer extends LocalTracksServer {
+
+    private static final String KEYSTORE_ASSET = "local_tracks_server.p12";
+    private static final String KEY_ALIAS = "localhost";
+    private static final char[] KEYSTORE_PASSWORD = "trackingplan".toCharArray();
+
+    private final SSLContext serverContext;
+    private final SSLContext clientContext;
+
+    /**
+     * @param testContext Context of the test application, which holds the test assets
+     */
+    LocalHttpsTracksServer(@NonNull Context testContext) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = testContext.getAssets().open(KEYSTORE_ASSET)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        final KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry(KEY_ALIAS, keyStore.getCertificate(KEY_ALIAS));
+
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+    }
+
+    @Override
+    ServerSocket createServerSocket() throws IOException {
+        return serverContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @Override
+    String getScheme() {
+        return "https";
+    }
+
+    /**
+     * Socket factory that trusts the certificate of this server.
+     */
+    SSLSocketFactory getClientSocketFactory() {
+        return clientContext.getSocketFactory();
+    }
+}
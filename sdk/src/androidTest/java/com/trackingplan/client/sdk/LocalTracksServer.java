@@ -0,0 +1,317 @@
+package com.trackingplan.client.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.delivery.cbor.CborReader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal HTTP/1.1 server listening on the loopback interface. It stands in for the tracks
+ * endpoint in instrumented tests: every request is recorded with its decoded body and answered
+ * with a configurable status code. Keep-alive connections are supported.
+ */
+class LocalTracksServer {
+
+    static final class ReceivedRequest {
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+        final byte[] rawBody;
+
+        ReceivedRequest(String method, String path, Map<String, String> headers, byte[] rawBody) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.rawBody = rawBody;
+        }
+
+        @Nullable
+        String getHeader(@NonNull String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Body after undoing the Content-Encoding of the request.
+         */
+        byte[] getDecodedBody() throws IOException {
+            if ("gzip".equals(getHeader("Content-Encoding"))) {
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(rawBody))) {
+                    return readAll(in);
+                }
+            }
+            return rawBody;
+        }
+
+        String getBodyAsString() throws IOException {
+            return new String(getDecodedBody(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Body of a CBOR upload decoded to Java objects (see {@link CborReader}).
+         */
+        @Nullable
+        Object getBodyAsCbor() throws IOException {
+            return CborReader.decode(getDecodedBody());
+        }
+    }
+
+    /**
+     * Decides the response code of each request.
+     */
+    interface Responder {
+        int getResponseCode(@NonNull ReceivedRequest request) throws IOException;
+    }
+
+    private final BlockingQueue<ReceivedRequest> requests = new LinkedBlockingQueue<>();
+    private final List<Socket> openSockets = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger numConnections = new AtomicInteger(0);
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile Responder responder = request -> 204;
+    private final Map<String, String> responseHeaders = new ConcurrentHashMap<>();
+    private volatile boolean running = false;
+    private volatile long responseDelayMs = 0;
+
+    void start() throws IOException {
+        serverSocket = createServerSocket();
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "LocalTracksServer");
+        acceptThread.start();
+    }
+
+    void shutdown() throws IOException {
+        running = false;
+        serverSocket.close();
+        synchronized (openSockets) {
+            for (Socket socket : openSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    ServerSocket createServerSocket() throws IOException {
+        return new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    String getScheme() {
+        return "http";
+    }
+
+    /**
+     * Base URL to be used as tracks endpoint.
+     */
+    String getUrl() {
+        return getScheme() + "://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+    }
+
+    void setResponseCode(int code) {
+        this.responder = request -> code;
+    }
+
+    void setResponder(@NonNull Responder responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Adds a header to every response from now on.
+     */
+    void setResponseHeader(@NonNull String name, @NonNull String value) {
+        responseHeaders.put(name, value);
+    }
+
+    /**
+     * Delays every response from now on, e.g. to stand in for a distant endpoint.
+     */
+    void setResponseDelay(long delayMs) {
+        this.responseDelayMs = delayMs;
+    }
+
+    int getNumConnections() {
+        return numConnections.get();
+    }
+
+    int getNumRequests() {
+        return requests.size();
+    }
+
+    @Nullable
+    ReceivedRequest takeRequest(long timeoutMs) throws InterruptedException {
+        return requests.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                numConnections.incrementAndGet();
+                openSockets.add(socket);
+                new Thread(() -> serve(socket), "LocalTracksServer-conn").start();
+            } catch (IOException ex) {
+                // Server closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            boolean keepAlive = true;
+            while (running && keepAlive) {
+                final String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                final String[] parts = requestLine.split(" ");
+                final Map<String, String> headers = readHeaders(in);
+                final byte[] body = readBody(in, headers);
+                final var request = new ReceivedRequest(parts[0], parts.length > 1 ? parts[1] : "/", headers, body);
+                requests.add(request);
+
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                if (responseDelayMs > 0) {
+                    try {
+                        Thread.sleep(responseDelayMs);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                }
+                writeResponse(out, responder.getResponseCode(request), keepAlive);
+            }
+        } catch (IOException ex) {
+            // Client went away
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    private void writeResponse(OutputStream out, int code, boolean keepAlive) throws IOException {
+        final StringBuilder response = new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(" ").append(reasonPhrase(code)).append("\r\n");
+        if (code != 204) {
+            response.append("Content-Length: 0\r\n");
+        }
+        for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+            response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        response.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        response.append("\r\n");
+        out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 400: return "Bad Request";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 429: return "Too Many Requests";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim().toLowerCase(Locale.ROOT),
+                        line.substring(separator + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                final String sizeLine = readLine(in);
+                if (sizeLine == null) throw new IOException("Unexpected end of chunked body");
+                final int size = Integer.parseInt(sizeLine.split(";")[0].trim(), 16);
+                if (size == 0) {
+                    // Skip trailers
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                        // Ignored
+                    }
+                    return body.toByteArray();
+                }
+                body.write(readExactly(in, size));
+                readLine(in);
+            }
+        }
+        final String contentLength = headers.get("content-length");
+        if (contentLength == null) {
+            return new byte[0];
+        }
+        return readExactly(in, Integer.parseInt(contentLength));
+    }
+
+    private static byte[] readExactly(InputStream in, int size) throws IOException {
+        final byte[] data = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            int read = in.read(data, offset, size - offset);
+            if (read == -1) throw new IOException("Unexpected end of stream");
+            offset += read;
+        }
+        return data;
+    }
+
+    @Nullable
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
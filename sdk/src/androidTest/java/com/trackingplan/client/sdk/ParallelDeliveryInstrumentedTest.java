@@ -0,0 +1,317 @@
+package com.trackingplan.client.sdk;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.CircuitBreaker;
+import com.trackingplan.client.sdk.delivery.RetryPolicy;
+import com.trackingplan.client.sdk.delivery.TaskRunnerBatchSender;
+import com.trackingplan.client.sdk.util.TaskRunner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelDeliveryInstrumentedTest extends BaseInstrumentedTest {
+
+    private File outboxDir;
+    private HandlerThread handlerThread;
+    private LocalTracksServer server;
+    private TaskRunnerBatchSender batchSender;
+
+    private final AtomicInteger numUploadsInFlight = new AtomicInteger(0);
+    private final AtomicInteger maxUploadsInFlight = new AtomicInteger(0);
+    private volatile int responseCode = 204;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        outboxDir = new File(context.getFilesDir(), "test-parallel-outbox");
+        deleteRecursively(outboxDir);
+        handlerThread = new HandlerThread("ParallelDeliveryTest");
+        handlerThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            if (batchSender != null) {
+                runOnTrackingplanThread(batchSender::close);
+            }
+            if (server != null) {
+                server.shutdown();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            handlerThread.quitSafely();
+            deleteRecursively(outboxDir);
+            super.tearDown();
+        }
+    }
+
+    @Test
+    public void given_Backlog_when_BatchesSent_then_SeveralBatchesAreInFlightAndCallbacksKeepOrder() throws Exception {
+        // Given
+        startSlowServer(204, 300);
+        createBatchSender(4);
+
+        // When
+        final int numBatches = 4;
+        final List<Long> sentBatchIds = Collections.synchronizedList(new ArrayList<>());
+        final var sent = new CountDownLatch(numBatches);
+        runOnTrackingplanThread(() -> {
+            for (int i = 0; i < numBatches; i++) {
+                batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), i, batchId -> {
+                    sentBatchIds.add(batchId);
+                    sent.countDown();
+                });
+            }
+        });
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+        // Then
+        Assert.assertEquals(List.of(0L, 1L, 2L, 3L), sentBatchIds);
+        Assert.assertTrue("Batches were sent one after the other", maxUploadsInFlight.get() >= 2);
+        Assert.assertTrue(maxUploadsInFlight.get() <= 4);
+        Assert.assertEquals(numBatches, countReceivedPosts());
+    }
+
+    @Test
+    public void given_SlowUpload_when_BatchesSent_then_FreeSlotsAreRefilledWithoutWaitingForIt() throws Exception {
+        // Given
+        final var numPosts = new AtomicInteger(0);
+        final var numPostsDoneBeforeSlowOne = new AtomicInteger(-1);
+        final var numPostsDone = new AtomicInteger(0);
+        server = new LocalTracksServer();
+        server.setResponder(request -> {
+            if (!"POST".equals(request.method)) return 204;
+            final boolean first = numPosts.incrementAndGet() == 1;
+            try {
+                Thread.sleep(first ? 1000 : 100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (first) {
+                numPostsDoneBeforeSlowOne.set(numPostsDone.get());
+            }
+            numPostsDone.incrementAndGet();
+            return 204;
+        });
+        server.start();
+        createBatchSender(2);
+
+        // When
+        final int numBatches = 4;
+        final var sent = new CountDownLatch(numBatches);
+        runOnTrackingplanThread(() -> {
+            for (int i = 0; i < numBatches; i++) {
+                batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), i, batchId -> sent.countDown());
+            }
+        });
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+        // Then
+        Assert.assertTrue("Batches were sent in windows", numPostsDoneBeforeSlowOne.get() >= 2);
+        Assert.assertEquals(numBatches, countReceivedPosts());
+        Assert.assertTrue(isOutboxEmpty());
+    }
+
+    @Test
+    public void given_SingleUpload_when_BatchesSent_then_BatchesAreSentOneAfterTheOther() throws Exception {
+        // Given
+        startSlowServer(204, 100);
+        createBatchSender(1);
+
+        // When
+        final var sent = new CountDownLatch(3);
+        runOnTrackingplanThread(() -> {
+            for (int i = 0; i < 3; i++) {
+                batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), i, batchId -> sent.countDown());
+            }
+        });
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+        // Then
+        Assert.assertEquals(1, maxUploadsInFlight.get());
+        Assert.assertEquals(3, countReceivedPosts());
+    }
+
+    @Test
+    public void given_UploadInWindowFails_when_Delivered_then_FailedBatchAndFollowingOnesAreKept() throws Exception {
+        // Given
+        startSlowServer(500, 100);
+        createBatchSender(4);
+
+        // When
+        final var sent = new CountDownLatch(3);
+        logger.expectMessageStartsWith("Send failed and batch 0 was kept in outbox for later delivery");
+        runOnTrackingplanThread(() -> {
+            for (int i = 0; i < 3; i++) {
+                batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), i, batchId -> sent.countDown());
+            }
+        });
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+        // Then
+        logger.assertExpectationsMatch();
+        responseCode = 204;
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!isOutboxEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue("Batches not delivered", isOutboxEmpty());
+    }
+
+    @Test
+    public void given_FirstUploadInWindowFails_when_Delivered_then_OnlyFailedBatchIsSentAgain() throws Exception {
+        // Given
+        final var numPosts = new AtomicInteger(0);
+        server = new LocalTracksServer();
+        server.setResponder(request -> {
+            if (!"POST".equals(request.method)) return 204;
+            final boolean first = numPosts.incrementAndGet() == 1;
+            final int inFlight = numUploadsInFlight.incrementAndGet();
+            maxUploadsInFlight.accumulateAndGet(inFlight, Math::max);
+            try {
+                // The first upload fails after the other ones of the window were delivered
+                Thread.sleep(first ? 500 : 100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                numUploadsInFlight.decrementAndGet();
+            }
+            return first ? 500 : 204;
+        });
+        server.start();
+        createBatchSender(4);
+
+        // When
+        final int numBatches = 4;
+        final var sent = new CountDownLatch(numBatches);
+        runOnTrackingplanThread(() -> {
+            for (int i = 0; i < numBatches; i++) {
+                batchSender.send(TestRequests.createFakeRequests(2), TestRequests.newSession(), i, batchId -> sent.countDown());
+            }
+        });
+        Assert.assertTrue(sent.await(10, TimeUnit.SECONDS));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!isOutboxEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        // Then
+        Assert.assertTrue("Batches not delivered", isOutboxEmpty());
+        Assert.assertTrue("Batches were sent one after the other", maxUploadsInFlight.get() >= 2);
+        Assert.assertEquals(numBatches + 1, countReceivedPosts());
+    }
+
+    @Test
+    public void given_ReadTimeout_when_EndpointDoesNotRespond_then_UploadFailsInsteadOfBlocking() throws Exception {
+        // Given
+        startSlowServer(204, 3000);
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .readTimeout(200)
+                .build();
+        final var client = new TrackingplanClient(config, context);
+
+        // When
+        final long startMs = System.currentTimeMillis();
+        try {
+            client.sendTracks(TestRequests.createFakeRequests(1), TestRequests.newSession());
+            Assert.fail("Upload didn't time out");
+        } catch (IOException ex) {
+            // Then
+            Assert.assertTrue(System.currentTimeMillis() - startMs < 2000);
+        }
+    }
+
+    private void startSlowServer(int responseCode, long delayMs) throws Exception {
+        this.responseCode = responseCode;
+        server = new LocalTracksServer();
+        server.setResponder(request -> {
+            if (!"POST".equals(request.method)) return 204;
+            final int inFlight = numUploadsInFlight.incrementAndGet();
+            maxUploadsInFlight.accumulateAndGet(inFlight, Math::max);
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                numUploadsInFlight.decrementAndGet();
+            }
+            return this.responseCode;
+        });
+        server.start();
+    }
+
+    private void createBatchSender(int maxConcurrentUploads) throws Exception {
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .build();
+        final var outbox = BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        batchSender = new TaskRunnerBatchSender(
+                new TrackingplanClient(config, context),
+                new TaskRunner(new Handler(handlerThread.getLooper())),
+                outbox,
+                new RetryPolicy(50, 200, new Random(1)),
+                new CircuitBreaker(),
+                maxConcurrentUploads
+        );
+    }
+
+    private int countReceivedPosts() throws InterruptedException {
+        int numPosts = 0;
+        LocalTracksServer.ReceivedRequest request;
+        while ((request = server.takeRequest(0)) != null) {
+            if ("POST".equals(request.method)) numPosts += 1;
+        }
+        return numPosts;
+    }
+
+    private boolean isOutboxEmpty() {
+        long numBytes = 0;
+        final File[] files = outboxDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".seg")) numBytes += file.length();
+            }
+        }
+        return numBytes == 0;
+    }
+
+    private void runOnTrackingplanThread(Runnable runnable) throws InterruptedException {
+        final var done = new CountDownLatch(1);
+        new Handler(handlerThread.getLooper()).post(() -> {
+            runnable.run();
+            done.countDown();
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
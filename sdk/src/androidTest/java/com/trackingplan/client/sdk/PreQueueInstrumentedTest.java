@@ -1,12 +1,15 @@
 package com.trackingplan.client.sdk;
 
+import com.trackingplan.client.sdk.interception.HttpInstrumentRequestBuilder;
 import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.client.sdk.interception.InstrumentRequestBuilder;
 import com.trackingplan.client.sdk.interception.InterceptionContext;
 import com.trackingplan.shared.Storage;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -142,6 +145,54 @@ public class PreQueueInstrumentedTest extends BaseInstrumentedTest {
         );
     }
 
+    @Test
+    public void given_TrackingplanNotStarted_when_CustomDomainRequestIntercepted_then_PayloadIsSent() throws Exception {
+        // Given - Instruments enabled but custom domains not applied yet, as right before start
+        startTrackingplanInitializer();
+        final var instance = TrackingplanInstance.getInstance();
+        InstrumentRequestBuilder.setDisabled(false);
+
+        final var url = "https://analytics.mycompany.com/track";
+        final var builder = new HttpInstrumentRequestBuilder(instance, "okhttp");
+        builder.setUrl(url);
+        builder.setHttpMethod("POST");
+        builder.setHttpResponseCode(200);
+
+        // When - Intercepted the way the OkHttp instrument does
+        Assert.assertTrue("Provider can't be known yet", builder.isSupportedDestination(url));
+        final byte[] payload = "{\"event\":\"custom_event\"}".getBytes(StandardCharsets.UTF_8);
+        builder.setRequestPayload(payload);
+        builder.setRequestPayloadNumBytes(payload.length);
+
+        logger.reset();
+        logger.expectExactMessage("Request pre-queued (session not ready)");
+        logger.expectMessageStartingWithAndContaining("Batch:", List.of(
+                "\"endpoint\": \"https:\\/\\/analytics.mycompany.com\\/track\"",
+                "custom_event"
+        ));
+
+        builder.build();
+
+        var storage = Storage.Companion.create(TEST_TP_ID, TEST_ENVIRONMENT);
+        storage.getIngestConfigCache().save("{\"sample_rate\": 1}");
+        storage.saveTrackingEnabled(true);
+
+        Trackingplan.init(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .customDomains(Map.of("analytics.mycompany.com", "custom_provider"))
+                .enableDebug()
+                .dryRun()
+                .start(context);
+        instance.waitForRunSync();
+        instance.flushQueue();
+        instance.waitForRunSync();
+
+        // Then - Request was matched to the custom provider with its payload
+        logger.assertExpectationsMatch();
+        Assert.assertTrue(instance.isSupportedDestination(url));
+        Assert.assertFalse(instance.isSupportedDestination("https://unknown-analytics.example.com/track"));
+    }
+
     @Test
     public void given_UnknownDomain_when_RequestProcessed_then_RequestIgnored() throws Exception {
         // Given - Start trackingplan without custom domains
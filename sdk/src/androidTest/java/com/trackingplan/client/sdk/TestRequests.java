@@ -0,0 +1,44 @@
+package com.trackingplan.client.sdk;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.SamplingOptions;
+import com.trackingplan.shared.TrackingplanSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Factory of intercepted requests and sessions for tests that use TrackingplanClient directly.
+ */
+final class TestRequests {
+
+    private TestRequests() {
+    }
+
+    static TrackingplanSession newSession() {
+        return TrackingplanSession.Companion.newSession(1, true, SamplingOptions.Companion.getEMPTY());
+    }
+
+    static List<HttpRequest> createFakeRequests(int numRequests) {
+        final List<HttpRequest> requests = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            final byte[] payload = ("{\"api_key\":\"test\",\"events\":[{\"event_type\":\"event_" + i
+                    + "\",\"user_id\":\"user\",\"platform\":\"Android\"}]}").getBytes(StandardCharsets.UTF_8);
+            final var request = new HttpRequest.Builder()
+                    .setUrl("https://api.amplitude.com/batch")
+                    .setHttpMethod("POST")
+                    .setProvider("amplitude")
+                    .setInterceptionModule("test")
+                    .addHeaderField("Content-Type", "application/json")
+                    .setRequestPayload(payload)
+                    .setRequestPayloadNumBytes(payload.length)
+                    .setHttpResponseCode(200)
+                    .build();
+            request.addContextField("app_name", "Test App");
+            request.addContextField("platform", "Android");
+            requests.add(request);
+        }
+        return requests;
+    }
+}
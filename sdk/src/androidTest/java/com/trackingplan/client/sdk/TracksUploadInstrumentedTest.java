@@ -0,0 +1,141 @@
+package com.trackingplan.client.sdk;
+
+import com.trackingplan.client.sdk.delivery.TrackBuilder;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Instrumented tests for raw-track uploads (compression and streaming). A local server stands
+ * in for the tracks endpoint and decodes the received bodies.
+ */
+public class TracksUploadInstrumentedTest extends BaseInstrumentedTest {
+
+    private LocalTracksServer server;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        server = new LocalTracksServer();
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to start local tracks server", e);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            server.shutdown();
+        } catch (Exception e) {
+            // Ignore
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void given_CompressionEnabled_when_TracksSent_then_BodyIsGzippedJsonPayload() throws Exception {
+        // Given
+        final var config = makeConfig(9);
+        final var session = TestRequests.newSession();
+        final var requests = TestRequests.createFakeRequests(20);
+        final var client = new TrackingplanClient(config, context);
+
+        // When
+        final int numTracksSent = client.sendTracks(requests, session);
+
+        // Then
+        final var received = server.takeRequest(5000);
+        Assert.assertNotNull("Tracks endpoint not reached", received);
+        Assert.assertEquals(20, numTracksSent);
+        Assert.assertEquals("/" + TEST_TP_ID, received.path);
+        Assert.assertEquals("gzip", received.getHeader("Content-Encoding"));
+
+        final JSONArray expected = new TrackBuilder(config, context).createJsonPayload(requests, session);
+        final JSONArray actual = new JSONArray(received.getBodyAsString());
+        Assert.assertEquals(expected.toString(), actual.toString());
+
+        // Repeated keys and context compress well
+        Assert.assertTrue(received.rawBody.length < expected.toString().getBytes(StandardCharsets.UTF_8).length / 2);
+    }
+
+    @Test
+    public void given_CompressionDisabled_when_TracksSent_then_BodyIsPlainJsonPayload() throws Exception {
+        // Given
+        final var config = makeConfig(0);
+        final var session = TestRequests.newSession();
+        final var requests = TestRequests.createFakeRequests(2);
+        final var client = new TrackingplanClient(config, context);
+
+        // When
+        client.sendTracks(requests, session);
+
+        // Then
+        final var received = server.takeRequest(5000);
+        Assert.assertNotNull("Tracks endpoint not reached", received);
+        Assert.assertNull(received.getHeader("Content-Encoding"));
+
+        final JSONArray expected = new TrackBuilder(config, context).createJsonPayload(requests, session);
+        Assert.assertEquals(expected.toString(), new String(received.rawBody, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void given_LargeBatch_when_TracksSent_then_BodyIsStreamedInChunks() throws Exception {
+        // Given
+        final var config = makeConfig(0);
+        final var session = TestRequests.newSession();
+        final var requests = TestRequests.createFakeRequests(200);
+        final var client = new TrackingplanClient(config, context);
+
+        // When
+        final int numTracksSent = client.sendTracks(requests, session);
+
+        // Then
+        final var received = server.takeRequest(5000);
+        Assert.assertNotNull("Tracks endpoint not reached", received);
+        Assert.assertEquals(200, numTracksSent);
+        Assert.assertEquals("chunked", received.getHeader("Transfer-Encoding"));
+        Assert.assertNull(received.getHeader("Content-Length"));
+
+        final JSONArray expected = new TrackBuilder(config, context).createJsonPayload(requests, session);
+        Assert.assertEquals(expected.toString(), received.getBodyAsString());
+    }
+
+    @Test
+    public void given_DebugEnabled_when_TracksSent_then_StreamedBodyMatchesLoggedBatch() throws Exception {
+        // Given
+        final var config = TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .enableDebug()
+                .build();
+        final var session = TestRequests.newSession();
+        final var requests = TestRequests.createFakeRequests(3);
+        final var client = new TrackingplanClient(config, context);
+        logger.expectMessageStartsWith("Batch: [");
+
+        // When
+        client.sendTracks(requests, session);
+
+        // Then
+        final var received = server.takeRequest(5000);
+        Assert.assertNotNull("Tracks endpoint not reached", received);
+        final JSONArray expected = new TrackBuilder(config, context).createJsonPayload(requests, session);
+        Assert.assertEquals(expected.toString(), received.getBodyAsString());
+        logger.assertExpectationsMatch();
+    }
+
+    private TrackingplanConfig makeConfig(int compressionLevel) {
+        return TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(server.getUrl())
+                .compressionLevel(compressionLevel)
+                .build();
+    }
+}
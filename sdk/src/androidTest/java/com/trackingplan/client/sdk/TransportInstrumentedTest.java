@@ -0,0 +1,127 @@
+package com.trackingplan.client.sdk;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.trackingplan.client.sdk.delivery.transport.LoopbackTransport;
+import com.trackingplan.client.sdk.delivery.transport.TransportResponse;
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+
+import org.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Instrumented tests for the requests of the SDK sent through a pluggable transport. The
+ * in-memory loopback transport is used so that no network is involved.
+ */
+public class TransportInstrumentedTest extends BaseInstrumentedTest {
+
+    private static final String LOG_TAG = "TrackingplanTest";
+    private static final String TRACKS_END_POINT = "https://tracks.test/";
+    private static final String CONFIG_END_POINT = "https://config.test/";
+    private static final int NUM_BATCHES = 200;
+
+    private LoopbackTransport transport;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        transport = new LoopbackTransport();
+    }
+
+    @Test
+    public void given_LoopbackTransport_when_BatchSent_then_TracksAreReceivedInMemory() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+
+        // When
+        final int numTracks = client.sendTracks(TestRequests.createFakeRequests(3), TestRequests.newSession());
+
+        // Then
+        final var received = transport.takeRequest(0);
+        Assert.assertNotNull(received);
+        Assert.assertEquals(3, numTracks);
+        Assert.assertEquals("POST", received.getRequest().getMethod());
+        Assert.assertEquals(TRACKS_END_POINT + TEST_TP_ID, received.getRequest().getUrl());
+        Assert.assertEquals("application/json", received.getRequest().getHeader("Content-Type"));
+        Assert.assertEquals("gzip", received.getRequest().getHeader("Content-Encoding"));
+        final var tracks = new JSONArray(new String(received.getDecodedBody(), StandardCharsets.UTF_8));
+        Assert.assertEquals(3, tracks.length());
+    }
+
+    @Test
+    public void given_LoopbackThrottling_when_BatchSent_then_RetryAfterIsReported() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        transport.setResponder(request ->
+                new TransportResponse(429, Map.of("Retry-After", "7"), new byte[0], false));
+
+        // When
+        TrackingplanSendException error = null;
+        try {
+            client.sendTracks(TestRequests.createFakeRequests(2), TestRequests.newSession());
+        } catch (TrackingplanSendException ex) {
+            error = ex;
+        }
+
+        // Then
+        Assert.assertNotNull(error);
+        Assert.assertEquals(429, error.getResponseCode());
+        Assert.assertEquals(7000, error.getRetryAfterMs());
+    }
+
+    @Test
+    public void given_LoopbackTransport_when_IngestConfigDownloaded_then_ResponseBodyIsReturned() throws Exception {
+        // Given
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var json = "{\"sampling_rate\":1}";
+        transport.setResponder(request ->
+                new TransportResponse(200, Collections.emptyMap(), json.getBytes(StandardCharsets.UTF_8), false));
+
+        // When
+        final var config = client.downloadIngestConfigRaw();
+
+        // Then
+        final var received = transport.takeRequest(0);
+        Assert.assertNotNull(received);
+        Assert.assertEquals("GET", received.getRequest().getMethod());
+        Assert.assertEquals(CONFIG_END_POINT + "config-" + TEST_TP_ID + ".json", received.getRequest().getUrl());
+        Assert.assertEquals(json, config);
+    }
+
+    @Test
+    public void benchmarkBatchEncodingWithoutNetwork() throws Exception {
+        final var client = new TrackingplanClient(makeConfig(), context);
+        final var session = TestRequests.newSession();
+        transport.setKeepRequests(false);
+
+        // Warm up class loading
+        client.sendTracks(TestRequests.createFakeRequests(10), session);
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < NUM_BATCHES; i++) {
+            client.sendTracks(TestRequests.createFakeRequests(10), session);
+        }
+        final double batchMs = (SystemClock.elapsedRealtimeNanos() - start) / 1e6 / NUM_BATCHES;
+
+        Log.i(LOG_TAG, String.format(Locale.ROOT, "Batch encoding time without network: %.3f ms", batchMs));
+
+        Assert.assertEquals(NUM_BATCHES + 1, transport.getRequestCount());
+    }
+
+    private TrackingplanConfig makeConfig() {
+        return TrackingplanConfig.newConfig(TEST_TP_ID)
+                .environment(TEST_ENVIRONMENT)
+                .tracksEndPoint(TRACKS_END_POINT)
+                .configEndPoint(CONFIG_END_POINT)
+                .transport(transport)
+                .build();
+    }
+}
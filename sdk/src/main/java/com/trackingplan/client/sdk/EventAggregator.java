@@ -0,0 +1,224 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.ServiceLocator;
+import com.trackingplan.shared.adaptive.AdaptiveSamplingPattern;
+import com.trackingplan.shared.adaptive.PayloadFingerprint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Folds high-frequency requests (e.g. heartbeats, scroll or progress pings) into windowed
+ * aggregates so that a single track is sent for all of them.
+ * <p>
+ * Requests are aggregated if their provider is configured with an aggregation window or if
+ * the adaptive sampling pattern they matched has one. Requests with the same provider, matched
+ * pattern, method, URL shape (URL without query values), payload structure and event names
+ * (see PayloadFingerprint) go to the same window, so different events are never folded
+ * together. Requests whose payload can't be read (compressed, truncated or unstructured)
+ * aren't aggregated, as their events can't be told apart. The window
+ * opens with the first request, which is kept as the representative of the window, and closes
+ * after the window duration. The representative is then sent with the number of requests and
+ * the time of the first and last ones.
+ * <p>
+ * Only used from Trackingplan thread.
+ */
+final class EventAggregator {
+
+    // Requests aren't aggregated while this number of windows is open
+    static final int MAX_OPEN_WINDOWS = 100;
+
+    private static final class Window {
+        final HttpRequest representative;
+        final long closesAtMs;
+        int count = 1;
+        long lastTimeMs;
+
+        Window(@NonNull HttpRequest representative, long closesAtMs) {
+            this.representative = representative;
+            this.closesAtMs = closesAtMs;
+            this.lastTimeMs = representative.getCreatedTimeMs();
+        }
+
+        @NonNull
+        HttpRequest close() {
+            if (count > 1) {
+                representative.setAggregate(count, representative.getCreatedTimeMs(), lastTimeMs);
+            }
+            return representative;
+        }
+    }
+
+    // Open windows in the order they were opened
+    private final Map<List<Object>, Window> windows = new LinkedHashMap<>();
+    private Map<String, Long> providerWindowsMs = Collections.emptyMap();
+
+    void setProviderWindows(@NonNull Map<String, Long> providerWindowsMs) {
+        this.providerWindowsMs = new HashMap<>(providerWindowsMs);
+    }
+
+    /**
+     * Adds the request to its aggregation window if it must be aggregated.
+     *
+     * @return True if the request was added to a window. Otherwise, the request must be sent
+     * as usual.
+     */
+    boolean add(@NonNull HttpRequest request) {
+
+        final var samplingResult = request.getSamplingResult();
+        final AdaptiveSamplingPattern pattern = samplingResult != null ? samplingResult.getMatchedPattern() : null;
+
+        long windowMs = pattern != null ? pattern.getAggregateWindowMs() : 0;
+        if (windowMs <= 0) {
+            final Long providerWindowMs = providerWindowsMs.get(request.getProvider());
+            windowMs = providerWindowMs != null ? providerWindowMs : 0;
+        }
+
+        if (windowMs <= 0) {
+            return false;
+        }
+
+        String payload = null;
+        String structure = null;
+        if (request.getPayloadLength() > 0) {
+            if (request.isPayloadTruncated() || request.getContentEncoding() != null) {
+                return false;
+            }
+            payload = new String(request.getPayloadBuffer(), 0, request.getPayloadLength(), StandardCharsets.UTF_8);
+            final var fingerprint = PayloadFingerprint.Companion.compute(request.getUrl(), payload);
+            if (fingerprint == null) {
+                return false;
+            }
+            structure = fingerprint.getHash();
+        }
+
+        final List<Object> key = Arrays.asList(
+                request.getProvider(),
+                pattern != null && pattern.getAggregateWindowMs() > 0 ? pattern : null,
+                request.getMethod(),
+                getUrlShape(request.getUrl()),
+                structure,
+                PayloadFingerprint.Companion.eventNames(request.getUrl(), payload)
+        );
+
+        final var window = windows.get(key);
+        if (window != null) {
+            window.count += 1;
+            window.lastTimeMs = Math.max(window.lastTimeMs, request.getCreatedTimeMs());
+            // Only the representative is sent
+            request.releasePayload();
+            return true;
+        }
+
+        if (windows.size() >= MAX_OPEN_WINDOWS) {
+            return false;
+        }
+
+        windows.put(key, new Window(request, now() + windowMs));
+        return true;
+    }
+
+    /**
+     * Closes the windows whose duration elapsed.
+     *
+     * @return The requests to send in place of the closed windows
+     */
+    @NonNull
+    List<HttpRequest> takeClosed() {
+        return take(now());
+    }
+
+    /**
+     * Closes all the windows (e.g. before the app goes to background).
+     *
+     * @return The requests to send in place of the closed windows
+     */
+    @NonNull
+    List<HttpRequest> takeAll() {
+        return take(Long.MAX_VALUE);
+    }
+
+    /**
+     * Elapsed real time when the next window closes, or -1 if there are no open windows.
+     */
+    long getNextCloseTimeMs() {
+        long nextCloseTimeMs = -1;
+        for (Window window : windows.values()) {
+            if (nextCloseTimeMs < 0 || window.closesAtMs < nextCloseTimeMs) {
+                nextCloseTimeMs = window.closesAtMs;
+            }
+        }
+        return nextCloseTimeMs;
+    }
+
+    int getNumOpenWindows() {
+        return windows.size();
+    }
+
+    void clear() {
+        for (Window window : windows.values()) {
+            window.representative.releasePayload();
+        }
+        windows.clear();
+    }
+
+    @NonNull
+    private List<HttpRequest> take(long nowMs) {
+
+        final List<HttpRequest> closed = new ArrayList<>();
+        final Iterator<Window> it = windows.values().iterator();
+
+        while (it.hasNext()) {
+            final var window = it.next();
+            if (window.closesAtMs <= nowMs) {
+                closed.add(window.close());
+                it.remove();
+            }
+        }
+
+        return closed;
+    }
+
+    /**
+     * URL with the values of its query parameters removed and the names sorted, so that
+     * requests that only differ in the values (e.g. a timestamp or a position) are the same.
+     */
+    @NonNull
+    static String getUrlShape(@NonNull String url) {
+
+        final int queryStart = url.indexOf('?');
+        if (queryStart < 0) {
+            return url;
+        }
+
+        int queryEnd = url.indexOf('#', queryStart);
+        if (queryEnd < 0) {
+            queryEnd = url.length();
+        }
+
+        final var names = new TreeSet<String>();
+        for (String param : url.substring(queryStart + 1, queryEnd).split("&")) {
+            if (param.isEmpty()) continue;
+            final int equals = param.indexOf('=');
+            names.add(equals < 0 ? param : param.substring(0, equals));
+        }
+
+        return url.substring(0, queryStart) + "?" + String.join("&", names);
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import com.trackingplan.shared.ServiceLocator;
+
+/**
+ * Decides when pending requests are flushed so that uploads ride on the radio wake-ups
+ * caused by the host app instead of waking an idle cellular radio.
+ * <p>
+ * Every HTTP request of the host app seen by the instruments leaves the radio in its
+ * high-power tail for a few seconds. Pending requests that have waited long enough are
+ * flushed inside that window. When the batch timeout expires and the radio has been idle
+ * since the tail of the last host request, the flush is deferred so that it can piggyback
+ * on the next host request, up to a maximum deferral.
+ * <p>
+ * Only applies while radio aware, i.e. while the connection is metered, since waking the
+ * radio isn't a concern on unmetered networks. Time is measured with the elapsed real time
+ * of the shared TimeProvider. Methods are synchronized because the counter of avoided
+ * wake-ups can be read from any thread.
+ */
+final class RadioPiggybackScheduler {
+
+    // Time the cellular radio stays in a high-power state after a transfer
+    static final long RADIO_TAIL_WINDOW_MS = 10 * 1000;
+    // Time a flush can be deferred beyond the batch timeout while the radio is idle
+    static final long MAX_IDLE_RADIO_DEFERRAL_MS = 2 * 60 * 1000;
+
+    private boolean radioAware = false;
+    private long lastHostActivityMs = -1;
+    private long avoidedRadioWakeUps = 0;
+
+    public synchronized void setRadioAware(boolean radioAware) {
+        this.radioAware = radioAware;
+    }
+
+    public synchronized boolean isRadioAware() {
+        return radioAware;
+    }
+
+    /**
+     * Records that the host app used the network just now.
+     */
+    public synchronized void onHostNetworkActivity() {
+        lastHostActivityMs = now();
+    }
+
+    /**
+     * Returns true if host traffic was observed within the radio tail window.
+     */
+    public synchronized boolean isRadioActive() {
+        return lastHostActivityMs >= 0 && now() - lastHostActivityMs <= RADIO_TAIL_WINDOW_MS;
+    }
+
+    /**
+     * Returns true if requests pending for the given time should be flushed now that the
+     * radio is active. Requests must have waited at least half the batch timeout so that
+     * frequent host traffic doesn't result in tiny batches.
+     */
+    public synchronized boolean shouldPiggyback(long pendingForMs, long batchTimeoutMs) {
+        return radioAware && isRadioActive() && pendingForMs >= batchTimeoutMs / 2;
+    }
+
+    /**
+     * Time the flush of requests pending for the given time must be deferred once the batch
+     * timeout has expired, or 0 if they must be flushed now.
+     */
+    public synchronized long getFlushDeferralMs(long pendingForMs, long batchTimeoutMs) {
+        if (!radioAware || isRadioActive()) {
+            return 0;
+        }
+        return Math.max(0, batchTimeoutMs + MAX_IDLE_RADIO_DEFERRAL_MS - pendingForMs);
+    }
+
+    /**
+     * Records a flush done while the radio was active that would otherwise have been done by
+     * the batch timeout, possibly waking the radio up.
+     */
+    public synchronized void onPiggybackFlush() {
+        avoidedRadioWakeUps += 1;
+    }
+
+    /**
+     * Number of flushes moved to host radio activity instead of waking the radio up.
+     */
+    public synchronized long getAvoidedRadioWakeUps() {
+        return avoidedRadioWakeUps;
+    }
+
+    public synchronized void reset() {
+        radioAware = false;
+        lastHostActivityMs = -1;
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
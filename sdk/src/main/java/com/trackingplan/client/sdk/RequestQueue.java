@@ -3,11 +3,14 @@ package com.trackingplan.client.sdk;
 
 import androidx.annotation.NonNull;
 
-import com.trackingplan.client.sdk.delivery.TaskRunnerBatchSender;
+import com.trackingplan.client.sdk.delivery.TrackBuilder;
 import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.DeliveryOptions;
+import com.trackingplan.shared.ServiceLocator;
 import com.trackingplan.shared.TrackingplanSession;
 import com.trackingplan.client.sdk.util.AndroidLog;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -17,23 +20,120 @@ final class RequestQueue {
 
     private static final AndroidLog logger = AndroidLog.getInstance();
 
-    // TODO: Expose this through Advanced Options
-    private static final long BATCH_TIMEOUT_MS = 30 * 1000;
-    private static final int MAX_NUM_REQUESTS_IN_BATCH = 10;
+    // Batches are sealed by their estimated serialized size. A batch is full when it reaches
+    // the target batch size with at least MIN_NUM_REQUESTS_IN_BATCH requests, when the next
+    // request would make it bigger than the max batch size or when it has the max number of
+    // requests, whatever happens first. Defaults can be overridden by the ingest config.
+    static final long DEFAULT_BATCH_TIMEOUT_MS = 30 * 1000;
+    static final long DEFAULT_TARGET_BATCH_SIZE_BYTES = 64 * 1024;
+    static final long DEFAULT_MAX_BATCH_SIZE_BYTES = 256 * 1024;
+    static final int DEFAULT_MAX_NUM_REQUESTS_IN_BATCH = 50;
+    private static final int MIN_NUM_REQUESTS_IN_BATCH = 2;
+    // Number of missing requests to complete a batch at which the connection to the tracks
+    // endpoint is warmed up in advance (only when connection reuse is enabled)
+    private static final int PRECONNECT_THRESHOLD = 2;
 
     private final Queue<HttpRequest> queue = new LinkedList<>();
 
     private final TrackingplanInstance tpInstance;
 
+    // Batching options as configured
+    private long baseBatchTimeoutMs = DEFAULT_BATCH_TIMEOUT_MS;
+    private long baseTargetBatchSizeBytes = DEFAULT_TARGET_BATCH_SIZE_BYTES;
+    private long baseMaxBatchSizeBytes = DEFAULT_MAX_BATCH_SIZE_BYTES;
+    private int baseMaxNumRequestsInBatch = DEFAULT_MAX_NUM_REQUESTS_IN_BATCH;
+    private int batchWideningFactor = 1;
+
+    // Batching options in use, i.e. widened while the tracks endpoint is throttling clients
+    private long batchTimeoutMs = DEFAULT_BATCH_TIMEOUT_MS;
+    private long targetBatchSizeBytes = DEFAULT_TARGET_BATCH_SIZE_BYTES;
+    private long maxBatchSizeBytes = DEFAULT_MAX_BATCH_SIZE_BYTES;
+    private int maxNumRequestsInBatch = DEFAULT_MAX_NUM_REQUESTS_IN_BATCH;
+
     private int lastBatchId = 0;
 
     private boolean shuttingDown = false;
     private Runnable watcher = null;
+    private long watcherStartedMs = 0;
+    private TrackingplanSession watcherSession = null;
+    private Runnable watcherCallback = null;
+    private final RadioPiggybackScheduler radioScheduler = new RadioPiggybackScheduler();
+    private Runnable idleConnectionWatcher = null;
+    private boolean preconnectRequested = false;
 
     public RequestQueue(TrackingplanInstance instance) {
         tpInstance = instance;
     }
 
+    /**
+     * Changes how batches are sealed. The new settings apply to the next time the queue is
+     * processed. A running watcher keeps its deadline.
+     * <p>
+     * NOTE: This method must be called from Trackingplan thread.
+     */
+    public void setBatchingOptions(long batchTimeoutMs, long targetBatchSizeBytes, long maxBatchSizeBytes, int maxNumRequestsInBatch) {
+        tpInstance.checkRunningInTrackingplanThread();
+        this.baseBatchTimeoutMs = batchTimeoutMs;
+        this.baseTargetBatchSizeBytes = targetBatchSizeBytes;
+        this.baseMaxBatchSizeBytes = Math.max(maxBatchSizeBytes, targetBatchSizeBytes);
+        this.baseMaxNumRequestsInBatch = maxNumRequestsInBatch;
+        updateBatchingOptions();
+    }
+
+    /**
+     * Multiplies the batch timeout, sizes and number of requests by the given factor, within
+     * the bounds accepted by the tracks endpoint, so that fewer and larger batches are sent.
+     * A factor of 1 restores the configured batching options.
+     * <p>
+     * NOTE: This method must be called from Trackingplan thread.
+     */
+    public void setBatchWideningFactor(int factor) {
+        tpInstance.checkRunningInTrackingplanThread();
+        this.batchWideningFactor = Math.max(factor, 1);
+        updateBatchingOptions();
+    }
+
+    private void updateBatchingOptions() {
+        final int factor = batchWideningFactor;
+        batchTimeoutMs = Math.max(baseBatchTimeoutMs, Math.min(baseBatchTimeoutMs * factor, DeliveryOptions.MAX_BATCH_TIMEOUT_MS));
+        maxBatchSizeBytes = Math.max(baseMaxBatchSizeBytes, Math.min(baseMaxBatchSizeBytes * factor, DeliveryOptions.MAX_BATCH_SIZE_BYTES));
+        targetBatchSizeBytes = Math.min(baseTargetBatchSizeBytes * factor, maxBatchSizeBytes);
+        maxNumRequestsInBatch = Math.max(baseMaxNumRequestsInBatch, Math.min(baseMaxNumRequestsInBatch * factor, DeliveryOptions.MAX_REQUESTS_PER_BATCH));
+    }
+
+    @NonNull
+    public RadioPiggybackScheduler getRadioScheduler() {
+        return radioScheduler;
+    }
+
+    /**
+     * Flushes pending requests while the radio is still awake after a request of the host
+     * app (see RadioPiggybackScheduler).
+     * <p>
+     * NOTE: This method must be called from Trackingplan thread.
+     */
+    public void onHostNetworkActivity() {
+        tpInstance.checkRunningInTrackingplanThread();
+
+        radioScheduler.onHostNetworkActivity();
+
+        if (shuttingDown || watcher == null) {
+            return;
+        }
+
+        if (!radioScheduler.shouldPiggyback(now() - watcherStartedMs, batchTimeoutMs)) {
+            return;
+        }
+
+        final var session = watcherSession;
+        final var callback = watcherCallback;
+        stopWatcher();
+        radioScheduler.onPiggybackFlush();
+        logger.debug("Radio is active. Sending pending requests along with host app traffic ("
+                + radioScheduler.getAvoidedRadioWakeUps() + " radio wake-ups avoided)");
+        processQueue(session, true, callback);
+    }
+
     /**
      * This method must be called from Trackingplan thread
      */
@@ -47,14 +147,30 @@ final class RequestQueue {
         logger.debug("Request queued: " + request);
     }
 
+    /**
+     * Returns true if the request is still waiting in the queue, i.e. it can be updated
+     * before it's sent.
+     * <p>
+     * NOTE: This method must be called from Trackingplan thread.
+     */
+    public boolean isPending(@NonNull HttpRequest request) {
+        tpInstance.checkRunningInTrackingplanThread();
+        for (HttpRequest queued : queue) {
+            if (queued == request) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Process the queue of intercepted requests and send them to Trackingplan in batches
-     * of MAX_NUM_REQUESTS_IN_BATCH requests. More than one batch can be scheduled as a result
-     * of processing the queue but full batches are enforced.
+     * sealed by their estimated size (see setBatchingOptions). More than one batch can be
+     * scheduled as a result of processing the queue but full batches are enforced.
      * <p>
      * In order for a batch to be scheduled, there must be enough requests to make the batch full.
      * When forceSendBatch is true and there are no enough requests in the queue to complete a batch,
-     * a batch will be scheduled with less than MAX_NUM_REQUESTS_IN_BATCH.
+     * a batch will be scheduled with the remaining requests.
      * <p>
      * NOTE: This method must be called from Trackingplan thread.
      */
@@ -86,23 +202,27 @@ final class RequestQueue {
         logger.verbose("Processing queue...");
 
         // Most of the times processQueue is called just after enqueueRequest. However,
-        // after initialization the queue may have more than MAX_NUM_REQUESTS_IN_BATCH
-        // requests. In that case, processQueue has to prepare and schedule more than one batch.
+        // after initialization the queue may have enough requests to fill more than one
+        // batch. In that case, processQueue has to prepare and schedule more than one batch.
 
-        final int numBatchesToSend = getNumBatchesToSend(forceSendBatch);
+        final List<Integer> batchSizes = planBatches(forceSendBatch);
+        final int numBatchesToSend = batchSizes.size();
         final AtomicInteger batchesSentCounter = new AtomicInteger(0);
 
-        // Stop watcher because a new batch will be sent.
+        // Stop watchers because a new batch will be sent.
         if (numBatchesToSend > 0) {
             stopWatcher();
+            stopIdleConnectionWatcher();
+            preconnectRequested = false;
         }
 
         // Prepare batch and send
         for (int i = 0; i < numBatchesToSend; i++) {
-            final List<HttpRequest> batch = takeElements(queue);
-            final var batchSender = new TaskRunnerBatchSender(tpInstance.getClient(), tpInstance.getTaskRunner());
+            final List<HttpRequest> batch = takeElements(queue, batchSizes.get(i));
+            final var batchSender = tpInstance.getBatchSender();
             batchSender.send(batch, session, lastBatchId, (long batchId) -> {
                 // NOTE: This callback is executed in Trackingplan thread
+                restartIdleConnectionWatcher();
                 int numBatchesSent = batchesSentCounter.addAndGet(1);
                 if (numBatchesSent == numBatchesToSend) {
                     logger.debug("Batch sender finished (" + numBatchesSent + " batches sent)");
@@ -117,24 +237,64 @@ final class RequestQueue {
         if (!queue.isEmpty()) {
             // Queue has requests that are not included in a batch. If there are no further
             // calls to this method, these requests will never be sent. Set a timer to forcibly
-            // send all these requests if BATCH_TIMEOUT_MS have passed and no batch was sent in
+            // send all these requests if the batch timeout has passed and no batch was sent in
             // between.
             logger.verbose("Queue not full yet (" + queue.size() + " requests).");
             startWatcher(session, callback);
+            preconnectIfBatchAlmostFull();
         }
     }
 
-    private int getNumBatchesToSend(boolean forceSendBatch) {
-        int numBatchesToSend = queue.size() / MAX_NUM_REQUESTS_IN_BATCH;
-        int numOrphanRequests = queue.size() % MAX_NUM_REQUESTS_IN_BATCH;
-        if (forceSendBatch && numOrphanRequests > 0) {
-            numBatchesToSend += 1;
+    /**
+     * Splits the queue into full batches without modifying it. Size estimates are used so that
+     * requests don't have to be serialized.
+     *
+     * @return Number of requests of each full batch, in queue order. When forceSendBatch is
+     * true, the remaining requests are returned as a last batch.
+     */
+    @NonNull
+    private List<Integer> planBatches(boolean forceSendBatch) {
+
+        final List<Integer> batchSizes = new ArrayList<>();
+        int numRequests = 0;
+        long sizeBytes = 0;
+
+        for (HttpRequest request : queue) {
+            final long requestSizeBytes = TrackBuilder.estimateRawTrackSize(request);
+
+            if (numRequests > 0 && sizeBytes + requestSizeBytes > maxBatchSizeBytes) {
+                batchSizes.add(numRequests);
+                numRequests = 0;
+                sizeBytes = 0;
+            }
+
+            numRequests += 1;
+            sizeBytes += requestSizeBytes;
+
+            if (isBatchFull(numRequests, sizeBytes)) {
+                batchSizes.add(numRequests);
+                numRequests = 0;
+                sizeBytes = 0;
+            }
+        }
+
+        if (forceSendBatch && numRequests > 0) {
+            batchSizes.add(numRequests);
         }
-        return numBatchesToSend;
+
+        return batchSizes;
+    }
+
+    private boolean isBatchFull(int numRequests, long sizeBytes) {
+        return numRequests >= maxNumRequestsInBatch
+                || sizeBytes >= maxBatchSizeBytes
+                || (numRequests >= MIN_NUM_REQUESTS_IN_BATCH && sizeBytes >= targetBatchSizeBytes);
     }
 
     /**
-     * Sets a watcher that calls processQueue after BATCH_TIMEOUT_MS.
+     * Sets a watcher that calls processQueue after the batch timeout. If the radio is idle
+     * by then, the watcher is extended so that the flush can piggyback on host traffic
+     * instead (see onHostNetworkActivity).
      * <p>
      * If a watcher already existed, no watcher is started and the deadline of the previous
      * one is not changed.
@@ -148,9 +308,28 @@ final class RequestQueue {
 
         logger.debug("Watcher started");
 
-        watcher = tpInstance.runSyncDelayed(BATCH_TIMEOUT_MS, () -> {
+        watcherStartedMs = now();
+        watcherSession = session;
+        watcherCallback = callback;
+        scheduleWatcher(batchTimeoutMs);
+    }
+
+    private void scheduleWatcher(long delayMs) {
+        watcher = tpInstance.runSyncDelayed(delayMs, () -> {
             watcher = null;
+
+            final long deferralMs = radioScheduler.getFlushDeferralMs(now() - watcherStartedMs, batchTimeoutMs);
+            if (deferralMs > 0) {
+                logger.debug("Watcher timed out but radio is idle. Processing of the queue deferred for " + deferralMs + " ms");
+                scheduleWatcher(deferralMs);
+                return;
+            }
+
             logger.debug("Watcher timed out. Forcing the processing of the queue...");
+            final var session = watcherSession;
+            final var callback = watcherCallback;
+            watcherSession = null;
+            watcherCallback = null;
             processQueue(session, true, callback);
         });
     }
@@ -162,18 +341,103 @@ final class RequestQueue {
         }
         tpInstance.cancelDelayedTask(watcher);
         watcher = null;
+        watcherSession = null;
+        watcherCallback = null;
         logger.debug("Watcher stopped");
     }
 
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+
+    /**
+     * Warms up the connection to the tracks endpoint when the requests left in the queue are
+     * about to complete a batch, so that the batch doesn't have to wait for the DNS lookup and
+     * a full TLS handshake.
+     */
+    private void preconnectIfBatchAlmostFull() {
+
+        if (preconnectRequested || !tpInstance.getConfig().isConnectionReuseEnabled()) {
+            return;
+        }
+
+        long sizeBytes = 0;
+        for (HttpRequest request : queue) {
+            sizeBytes += TrackBuilder.estimateRawTrackSize(request);
+        }
+
+        final boolean almostFull = queue.size() >= maxNumRequestsInBatch - PRECONNECT_THRESHOLD
+                || sizeBytes >= targetBatchSizeBytes * 3 / 4;
+        if (!almostFull) {
+            return;
+        }
+
+        final var client = tpInstance.getClient();
+        if (client == null) {
+            return;
+        }
+
+        preconnectRequested = true;
+        logger.verbose("Batch almost full. Connecting to tracks endpoint in advance...");
+
+        tpInstance.getTaskRunner().executeTask(() -> {
+            client.preconnect();
+            return true;
+        }, (result, error) -> {
+            // NOTE: This callback is executed in Trackingplan thread
+            if (error != null) {
+                logger.verbose("Pre-connect failed: " + error.getMessage());
+            }
+        });
+    }
+
     /**
-     * Get max MAX_NUM_REQUESTS_IN_BATCH requests from queue. Queue is modified.
+     * Sets a watcher that closes the connection to the tracks endpoint once it has been idle
+     * for the configured connection idle timeout. Any previous watcher is cancelled.
+     */
+    private void restartIdleConnectionWatcher() {
+
+        final var config = tpInstance.getConfig();
+        if (shuttingDown || !config.isConnectionReuseEnabled()) {
+            return;
+        }
+
+        stopIdleConnectionWatcher();
+
+        idleConnectionWatcher = tpInstance.runSyncDelayed(config.getConnectionIdleTimeoutMs(), () -> {
+            idleConnectionWatcher = null;
+            closeIdleConnection();
+        });
+    }
+
+    private void stopIdleConnectionWatcher() {
+        if (idleConnectionWatcher == null) {
+            return;
+        }
+        tpInstance.cancelDelayedTask(idleConnectionWatcher);
+        idleConnectionWatcher = null;
+    }
+
+    private void closeIdleConnection() {
+        final var client = tpInstance.getClient();
+        if (client == null) {
+            return;
+        }
+        tpInstance.getTaskRunner().executeTask(() -> {
+            client.closeIdleConnection();
+            return true;
+        }, null);
+    }
+
+    /**
+     * Get max numRequests requests from queue. Queue is modified.
      */
     @NonNull
-    private List<HttpRequest> takeElements(Queue<HttpRequest> queue) {
+    private List<HttpRequest> takeElements(Queue<HttpRequest> queue, int numRequests) {
 
         final List<HttpRequest> batch = new LinkedList<>();
 
-        while (batch.size() < RequestQueue.MAX_NUM_REQUESTS_IN_BATCH && !queue.isEmpty()) {
+        while (batch.size() < numRequests && !queue.isEmpty()) {
             batch.add(queue.remove());
         }
 
@@ -193,6 +457,12 @@ final class RequestQueue {
     public void stop() {
         shuttingDown = true;
         stopWatcher();
+        radioScheduler.reset();
+        if (idleConnectionWatcher != null) {
+            stopIdleConnectionWatcher();
+            closeIdleConnection();
+        }
+        preconnectRequested = false;
         int numPendingRequests = discardPendingRequests();
         if (numPendingRequests > 0) {
             logger.debug(numPendingRequests + " pending intercepted requests were discarded");
@@ -204,6 +474,9 @@ final class RequestQueue {
      */
     public int discardPendingRequests() {
         int numRequests = queue.size();
+        for (HttpRequest request : queue) {
+            request.releasePayload();
+        }
         queue.clear();
         return numRequests;
     }
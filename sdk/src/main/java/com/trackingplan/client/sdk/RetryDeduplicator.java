@@ -0,0 +1,163 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.ServiceLocator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Recognizes the retries of failed uploads made by the analytics SDKs of the host app, which
+ * are intercepted as separate requests with the same provider, method, URL and payload.
+ * <p>
+ * A bounded window keeps the content hash of the last requests seen. When a retry arrives
+ * and the previous attempt is still waiting in the queue, the retry is collapsed into it:
+ * the previous attempt counts one more retry and takes the response code of the retry, so
+ * that a single track reports the final outcome. If the previous attempt was already sent,
+ * the retry is sent with its retry count so that ingest doesn't count it as a new event.
+ * <p>
+ * Only requests that were actually queued are recorded as attempts (see
+ * {@link #recordAttempt}), so that a retry of a request dropped by backpressure or the
+ * event budget is sent as a new event. The content hash of a request is computed once with
+ * {@link #contentHash} and passed to both methods.
+ * <p>
+ * Requests without payload aren't considered, as identical GET requests are often different
+ * events. Only used from Trackingplan thread.
+ */
+final class RetryDeduplicator {
+
+    static final int MAX_ENTRIES = 256;
+    static final long RETRY_WINDOW_MS = 5 * 60 * 1000;
+
+    private static final class Attempt {
+        final HttpRequest request;
+        long seenAtMs;
+
+        Attempt(@NonNull HttpRequest request, long seenAtMs) {
+            this.request = request;
+            this.seenAtMs = seenAtMs;
+        }
+    }
+
+    // Last attempt of each content hash, oldest first
+    private final Map<ByteBuffer, Attempt> attempts = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Attempt> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final MessageDigest digest;
+    private int numCollapsedRetries = 0;
+
+    RetryDeduplicator() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            digest = null;
+        }
+        this.digest = digest;
+    }
+
+    /**
+     * Collapses the request into its previous attempt if the request is a retry and
+     * isPending says that the previous attempt hasn't been sent yet. Otherwise, a retry takes
+     * the retry count of its previous attempt. The request isn't recorded as an attempt until
+     * {@link #recordAttempt} is called.
+     *
+     * @param key Content hash of the request (see {@link #contentHash})
+     * @return True if the request was collapsed and must not be sent
+     */
+    boolean collapseRetry(@NonNull HttpRequest request, @Nullable ByteBuffer key, @NonNull Predicate<HttpRequest> isPending) {
+
+        if (key == null) {
+            return false;
+        }
+
+        final long nowMs = now();
+        final var previous = attempts.get(key);
+
+        if (previous == null) {
+            return false;
+        }
+
+        if (nowMs - previous.seenAtMs > RETRY_WINDOW_MS || nowMs < previous.seenAtMs) {
+            attempts.remove(key);
+            return false;
+        }
+
+        if (isPending.test(previous.request)) {
+            previous.request.addRetry(request);
+            previous.seenAtMs = nowMs;
+            numCollapsedRetries += 1;
+            return true;
+        }
+
+        request.setRetryCount(previous.request.getRetryCount() + 1);
+        return false;
+    }
+
+    /**
+     * Records the request as the last attempt of its content. Called once the request has
+     * been queued for sending.
+     *
+     * @param key Content hash of the request (see {@link #contentHash})
+     */
+    void recordAttempt(@NonNull HttpRequest request, @Nullable ByteBuffer key) {
+
+        if (key == null) {
+            return;
+        }
+
+        attempts.remove(key);
+        attempts.put(key, new Attempt(request, now()));
+    }
+
+    /**
+     * Number of retries that weren't sent because they were collapsed into a previous attempt.
+     */
+    int getNumCollapsedRetries() {
+        return numCollapsedRetries;
+    }
+
+    void clear() {
+        attempts.clear();
+    }
+
+    /**
+     * Hash of the provider, method, URL and payload of the request.
+     *
+     * @return The hash or null if retries of the request aren't recognized
+     */
+    @Nullable
+    ByteBuffer contentHash(@NonNull HttpRequest request) {
+
+        if (digest == null || request.getPayloadLength() == 0) {
+            return null;
+        }
+
+        digest.reset();
+        digest.update(request.getProvider().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(request.getMethod().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(request.getUrl().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(request.getPayloadBuffer(), 0, request.getPayloadLength());
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.adaptive.PayloadFingerprint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends the payloads of requests whose structure was already sent during the session as a
+ * structural fingerprint plus a few sampled values (see PayloadFingerprint).
+ * <p>
+ * The first request of each structure in a session is sent in full, along with its
+ * fingerprint. Following requests with the same structure are sent without payload, except
+ * one in every refreshRate of them, which is sent in full. Payloads that are compressed,
+ * truncated or neither JSON nor form encoded are always sent in full.
+ * <p>
+ * Only used from Trackingplan thread.
+ */
+final class SchemaFingerprints {
+
+    // Structures remembered per session. New structures over this limit are always sent in full.
+    static final int MAX_FINGERPRINTS = 1024;
+
+    private final int refreshRate;
+
+    private String sessionId = "";
+    // Number of requests of each structure seen in the session
+    private final Map<String, Integer> occurrences = new HashMap<>();
+    private int numElidedPayloads = 0;
+
+    /**
+     * @param refreshRate One in every refreshRate requests with a known structure is sent in
+     *                    full. A structure is known as soon as its first request is queued,
+     *                    so these are what gets it to Trackingplan if that one is lost.
+     */
+    SchemaFingerprints(int refreshRate) {
+        if (refreshRate < 1) {
+            throw new IllegalArgumentException("Parameter refreshRate must be positive");
+        }
+        this.refreshRate = refreshRate;
+    }
+
+    /**
+     * Sets the fingerprint of the request and elides its payload if its structure was
+     * already sent in the given session.
+     */
+    void apply(@NonNull HttpRequest request, @NonNull String sessionId) {
+
+        if (!sessionId.equals(this.sessionId)) {
+            this.sessionId = sessionId;
+            occurrences.clear();
+        }
+
+        if (request.getPayloadLength() == 0
+                || request.isPayloadTruncated()
+                || request.getContentEncoding() != null) {
+            return;
+        }
+
+        final String payload = new String(request.getPayloadBuffer(), 0, request.getPayloadLength(), StandardCharsets.UTF_8);
+        final var fingerprint = PayloadFingerprint.Companion.compute(request.getUrl(), payload);
+        if (fingerprint == null) {
+            return;
+        }
+
+        final String hash = fingerprint.getHash();
+        final Integer count = occurrences.get(hash);
+
+        if (count == null) {
+            if (occurrences.size() < MAX_FINGERPRINTS) {
+                occurrences.put(hash, 1);
+            }
+            request.setPayloadFingerprint(hash, null);
+            return;
+        }
+
+        occurrences.put(hash, count + 1);
+
+        if (count % refreshRate == 0) {
+            request.setPayloadFingerprint(hash, null);
+            return;
+        }
+
+        request.setPayloadFingerprint(hash, fingerprint.getSampledValues());
+        numElidedPayloads += 1;
+    }
+
+    /**
+     * Number of payloads that were replaced by their fingerprint.
+     */
+    int getNumElidedPayloads() {
+        return numElidedPayloads;
+    }
+}
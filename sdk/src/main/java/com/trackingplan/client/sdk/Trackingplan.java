@@ -7,9 +7,11 @@ import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
+import com.trackingplan.client.sdk.delivery.transport.TracksTransport;
 import com.trackingplan.client.sdk.interception.InstrumentRequestBuilder;
 import com.trackingplan.client.sdk.util.AndroidLog;
 
+import java.util.List;
 import java.util.Map;
 
 final public class Trackingplan {
@@ -165,6 +167,84 @@ final public class Trackingplan {
             configBuilder = new TrackingplanConfig.Builder(tpId);
         }
 
+        @SuppressWarnings("unused")
+        public ConfigInitializer compressionLevel(int level) {
+            configBuilder.compressionLevel(level);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer connectionIdleTimeout(long timeoutMs) {
+            configBuilder.connectionIdleTimeout(timeoutMs);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer connectTimeout(int timeoutMs) {
+            configBuilder.connectTimeout(timeoutMs);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer readTimeout(int timeoutMs) {
+            configBuilder.readTimeout(timeoutMs);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer maxConcurrentUploads(int maxConcurrentUploads) {
+            configBuilder.maxConcurrentUploads(maxConcurrentUploads);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer providerRateLimit(int eventsPerMinute) {
+            configBuilder.providerRateLimit(eventsPerMinute);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer providerRateLimit(int eventsPerMinute, int burst) {
+            configBuilder.providerRateLimit(eventsPerMinute, burst);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer maxEventsPerSession(int maxEvents) {
+            configBuilder.maxEventsPerSession(maxEvents);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer aggregateProvider(@NonNull String provider, long windowMs) {
+            configBuilder.aggregateProvider(provider, windowMs);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer enableSchemaFingerprints() {
+            configBuilder.enableSchemaFingerprints();
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer enableSchemaFingerprints(int refreshRate) {
+            configBuilder.enableSchemaFingerprints(refreshRate);
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer disableNetworkCostPolicy() {
+            configBuilder.disableNetworkCostPolicy();
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public ConfigInitializer transport(@NonNull TracksTransport transport) {
+            configBuilder.transport(transport);
+            return this;
+        }
+
         @SuppressWarnings("unused")
         public ConfigInitializer configEndPoint(@NonNull String endPoint) {
             configBuilder.configEndPoint(endPoint);
@@ -213,6 +293,12 @@ final public class Trackingplan {
             return this;
         }
 
+        @SuppressWarnings("unused")
+        public ConfigInitializer tracksEndPoints(@NonNull List<String> endPoints) {
+            configBuilder.tracksEndPoints(endPoints);
+            return this;
+        }
+
         @SuppressWarnings("unused")
         public ConfigInitializer sourceAlias(@NonNull String alias) {
             configBuilder.sourceAlias(alias);
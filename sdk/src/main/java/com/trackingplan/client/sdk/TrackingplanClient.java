@@ -4,41 +4,180 @@ package com.trackingplan.client.sdk;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
-
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.delivery.Backpressure;
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.CompressionDictionary;
+import com.trackingplan.client.sdk.delivery.DeflateRequestBodyStream;
+import com.trackingplan.client.sdk.delivery.EndpointSelector;
+import com.trackingplan.client.sdk.delivery.GzipRequestBodyStream;
+import com.trackingplan.client.sdk.delivery.RawBatch;
 import com.trackingplan.client.sdk.delivery.TrackBuilder;
+import com.trackingplan.client.sdk.delivery.cbor.CborWriter;
+import com.trackingplan.client.sdk.delivery.transport.HttpUrlConnectionTransport;
+import com.trackingplan.client.sdk.delivery.transport.TracksTransport;
+import com.trackingplan.client.sdk.delivery.transport.TransportRequest;
+import com.trackingplan.client.sdk.delivery.transport.TransportResponse;
 import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
 import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.ServiceLocator;
 import com.trackingplan.shared.TrackingplanSession;
 import com.trackingplan.client.sdk.util.AndroidLog;
-import com.trackingplan.client.sdk.util.StreamUtils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 final public class TrackingplanClient {
 
     private static final AndroidLog logger = AndroidLog.getInstance();
 
-    private static final int TRACKS_CONNECT_TIMEOUT = 30 * 1000;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final String CONTENT_TYPE_CBOR = "application/cbor";
+    private static final int BAD_REQUEST = 400;
+    private static final int UNSUPPORTED_MEDIA_TYPE = 415;
 
     private final TrackingplanConfig config;
     private final TrackBuilder builder;
+    private final TracksTransport transport;
+    private final EndpointSelector endpointSelector;
+
+    // True when a keep-alive connection to the tracks endpoint is likely available in the
+    // pool of the transport. Accessed from the Trackingplan worker thread and upload threads.
+    private volatile boolean connectionWarm = false;
+
+    // Deflater level of the tracks uploads. It can be changed remotely through the ingest config.
+    private volatile int compressionLevel;
+    // True when uploads must use the best compression level (e.g. on metered networks)
+    private volatile boolean maxCompression = false;
+
+    // True when the ingest config allows sending raw tracks as CBOR. Once the tracks endpoint
+    // rejects CBOR, JSON is used for the lifetime of this client. Once it accepts CBOR, it's
+    // never blamed for a rejected batch.
+    private volatile boolean cborEnabled = false;
+    private volatile boolean cborRejected = false;
+    private volatile boolean cborAccepted = false;
+
+    // True when the ingest config allows sending batches in an envelope with a header of the
+    // fields shared by their raw tracks. Once the tracks endpoint rejects an envelope, plain
+    // batches are sent for the lifetime of this client.
+    private volatile boolean envelopeEnabled = false;
+    private volatile boolean envelopeRejected = false;
+    private volatile boolean envelopeAccepted = false;
+
+    // Latest version of the preset dictionaries known by the tracks endpoint or 0 if it doesn't
+    // accept them. Once the tracks endpoint rejects a batch compressed with a preset dictionary,
+    // gzip is used for the lifetime of this client.
+    private volatile int presetDictionaryVersion = 0;
+    private volatile boolean presetDictionaryRejected = false;
+    private volatile boolean presetDictionaryAccepted = false;
 
     public TrackingplanClient(@NonNull TrackingplanConfig config, @NonNull final Context context) {
+        this(config, context, new EndpointSelector(config.getTracksEndPoints()));
+    }
+
+    /**
+     * @param endpointSelector Selector of the tracks endpoint. It can be shared by clients
+     *                         created for the same config so that measurements are kept.
+     */
+    public TrackingplanClient(
+            @NonNull TrackingplanConfig config,
+            @NonNull final Context context,
+            @NonNull EndpointSelector endpointSelector
+    ) {
         this.config = config;
+        this.endpointSelector = endpointSelector;
         this.builder = new TrackBuilder(config, context);
+        this.compressionLevel = config.getCompressionLevel();
+        final var transport = config.getTransport();
+        this.transport = transport != null ? transport : new HttpUrlConnectionTransport();
+    }
+
+    /**
+     * Overrides the compression of the tracks uploads set in the config. When enabled, the
+     * configured level is used or the default one if compression was disabled in the config.
+     * The change applies to the next batch.
+     */
+    void setCompressionEnabled(boolean enabled) {
+        if (!enabled) {
+            compressionLevel = Deflater.NO_COMPRESSION;
+        } else if (config.isCompressionEnabled()) {
+            compressionLevel = config.getCompressionLevel();
+        } else {
+            compressionLevel = TrackingplanConfig.DEFAULT_COMPRESSION_LEVEL;
+        }
+    }
+
+    /**
+     * Makes compressed uploads use the best compression level, trading CPU for bytes sent.
+     * Uncompressed uploads stay uncompressed. The change applies to the next batch.
+     */
+    void setMaxCompression(boolean enabled) {
+        maxCompression = enabled;
+    }
+
+    /**
+     * Enables sending raw tracks as CBOR instead of JSON. The change applies to the next
+     * batches created.
+     */
+    void setCborEnabled(boolean enabled) {
+        cborEnabled = enabled;
+    }
+
+    /**
+     * Enables sending batches in an envelope instead of a plain array of raw tracks. The
+     * change applies to the next batches created.
+     */
+    void setEnvelopeEnabled(boolean enabled) {
+        envelopeEnabled = enabled;
+    }
+
+    /**
+     * Enables compressing batches with the preset dictionary of their main provider. Only
+     * dictionaries up to the given version are used. Use 0 to disable them. The change
+     * applies to the next batches created.
+     */
+    void setPresetDictionaryVersion(int version) {
+        presetDictionaryVersion = version;
+    }
+
+    /**
+     * Chooses the tracks endpoint of a new session among the configured ones.
+     */
+    void selectEndpointForSession() {
+        final String previous = endpointSelector.getCurrentEndpoint();
+        final String endpoint = endpointSelector.selectForSession();
+        if (!endpoint.equals(previous)) {
+            // The warm connection, if any, is to the previous endpoint
+            connectionWarm = false;
+            logger.debug("Tracks endpoint selected for this session: " + endpoint);
+        }
+    }
+
+    /**
+     * Format in which new raw tracks are created. It's one of the BatchOutbox formats.
+     */
+    public byte getRawTrackFormat() {
+        final boolean cbor = cborEnabled && !cborRejected;
+        if (envelopeEnabled && !envelopeRejected) {
+            return cbor ? BatchOutbox.FORMAT_CBOR_ENVELOPE : BatchOutbox.FORMAT_JSON_ENVELOPE;
+        }
+        return cbor ? BatchOutbox.FORMAT_CBOR : BatchOutbox.FORMAT_JSON;
     }
 
     /**
@@ -49,95 +188,542 @@ final public class TrackingplanClient {
      * @throws IOException if download fails
      */
     String downloadIngestConfigRaw() throws IOException {
-        URL url = new URL(config.getConfigEndPoint() + "config-" + config.getTpId() + ".json");
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        final var request = new TransportRequest.Builder(config.getConfigEndPoint() + "config-" + config.getTpId() + ".json")
+                .setTimeouts(config.getConnectTimeoutMs(), config.getReadTimeoutMs())
+                .build();
+
+        final byte[] body = transport.execute(request).getBody();
+        if (body == null) {
+            throw new IOException("Ingest config response couldn't be read");
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    public int sendTracks(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws IOException {
+
+        if (config.isDebugEnabled() || config.isDryRunEnabled()) {
+            // Whole batch is built in memory so that it can be logged
+            final JSONArray batchPayload;
+
+            try {
+                batchPayload = builder.createJsonPayload(requests, session);
+
+                if (config.isDebugEnabled()) {
+                    String payloadString = batchPayload.toString(2);
+                    logger.verbose("Batch: " + payloadString);
+                }
+
+            } catch (JSONException ex) {
+                throw new TrackingplanSendException("Send failed", ex);
+            }
+
+            if (config.isDryRunEnabled()) {
+                logger.info("Dry run mode enabled. No tracks sent");
+                return batchPayload.length();
+            }
+
+            return uploadTracks(CONTENT_TYPE_JSON, jsonPayload(writer -> {
+                writer.write(batchPayload.toString());
+                return batchPayload.length();
+            }), null);
+        }
+
+        return uploadTracks(CONTENT_TYPE_JSON, jsonPayload(writer -> builder.writeJsonPayload(requests, session, writer)), null);
+    }
 
+    /**
+     * Converts intercepted requests into raw tracks encoded as UTF-8 JSON, ready to be stored
+     * in the outbox and sent later with {@link #sendRawTracks(List)}.
+     */
+    @NonNull
+    public List<byte[]> createRawTracks(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws IOException {
         try {
-            return readResponse(urlConnection.getInputStream());
-        } catch (FileNotFoundException ex) {
-            return readResponse(urlConnection.getErrorStream());
-        } finally {
-            urlConnection.disconnect();
+            return builder.createRawTracks(requests, session);
+        } catch (JSONException ex) {
+            throw new TrackingplanSendException("Send failed", ex);
         }
     }
 
-    private String readResponse(InputStream inputStream) throws IOException {
-        try (InputStream in = new BufferedInputStream(inputStream)) {
-            return StreamUtils.convertInputStreamToString(in);
+    /**
+     * Converts intercepted requests into raw tracks encoded in the given format.
+     *
+     * @param format One of the BatchOutbox formats
+     */
+    @NonNull
+    public List<byte[]> createRawTracks(List<HttpRequest> requests, @NonNull final TrackingplanSession session, byte format) throws IOException {
+        if (format == BatchOutbox.FORMAT_CBOR) {
+            return builder.createCborRawTracks(requests, session);
         }
+        return createRawTracks(requests, session);
     }
 
-    public int sendTracks(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws IOException {
+    /**
+     * Converts intercepted requests into a batch of raw tracks encoded in the given format,
+     * ready to be stored in the outbox and sent later with
+     * {@link #sendRawTracks(byte[], List, byte, byte)}.
+     *
+     * @param format One of the BatchOutbox formats
+     */
+    @NonNull
+    public RawBatch createRawBatch(List<HttpRequest> requests, @NonNull final TrackingplanSession session, byte format) throws IOException {
+
+        final RawBatch rawBatch;
+
+        switch (format) {
+            case BatchOutbox.FORMAT_JSON_ENVELOPE:
+                try {
+                    rawBatch = builder.createJsonEnvelope(requests, session);
+                } catch (JSONException ex) {
+                    throw new TrackingplanSendException("Send failed", ex);
+                }
+                break;
+            case BatchOutbox.FORMAT_CBOR_ENVELOPE:
+                rawBatch = builder.createCborEnvelope(requests, session);
+                break;
+            default:
+                rawBatch = new RawBatch(format, null, createRawTracks(requests, session, format));
+        }
+
+        if (presetDictionaryVersion <= 0 || presetDictionaryRejected) {
+            return rawBatch;
+        }
+
+        final byte dictionaryId = CompressionDictionary.selectFor(requests, presetDictionaryVersion);
+        return new RawBatch(rawBatch.getFormat(), rawBatch.getHeader(), rawBatch.getTracks(), dictionaryId);
+    }
+
+    /**
+     * Sends a batch of raw tracks previously created with {@link #createRawTracks}.
+     *
+     * @return Number of tracks sent
+     */
+    public int sendRawTracks(@NonNull List<byte[]> rawTracks) throws IOException {
+        return sendRawTracks(rawTracks, BatchOutbox.FORMAT_JSON);
+    }
 
-        JSONArray batchPayload;
+    /**
+     * Sends a batch of raw tracks encoded in the given format. CBOR batches are sent as an
+     * application/cbor array. See {@link #sendRawTracks(byte[], List, byte, byte)} for what
+     * happens when the tracks endpoint doesn't accept CBOR.
+     *
+     * @return Number of tracks sent
+     */
+    public int sendRawTracks(@NonNull List<byte[]> rawTracks, byte format) throws IOException {
+
+        if (BatchOutbox.isEnvelopeFormat(format)) {
+            throw new IllegalArgumentException("Envelope formats require a header");
+        }
+
+        return sendRawTracks(null, rawTracks, format, CompressionDictionary.NONE);
+    }
 
+    /**
+     * Sends a batch created with {@link #createRawBatch}. Batches in one of the envelope
+     * formats are sent as an envelope.
+     *
+     * @param header Header of the batch. Ignored when the format isn't an envelope format.
+     * @return Number of tracks sent
+     */
+    public int sendRawTracks(@Nullable byte[] header, @NonNull List<byte[]> rawTracks, byte format) throws IOException {
+        return sendRawTracks(header, rawTracks, format, CompressionDictionary.NONE);
+    }
+
+    /**
+     * Sends a batch created with {@link #createRawBatch} compressed with the given preset
+     * dictionary.
+     * <p>
+     * CBOR, envelopes and preset dictionaries are features that the tracks endpoint may not
+     * support. When it rejects a batch (400 or 415) that uses any of them it hasn't accepted
+     * yet, the batch is sent again once as plain JSON raw tracks without dictionary. If that
+     * succeeds, those features are disabled for the lifetime of this client and the following
+     * batches are created, and sent, without them. CBOR is only blamed for rejections of its
+     * media type (415). Otherwise, the batch was rejected for its content and the error of the
+     * plain batch is thrown. So a batch is uploaded twice at most, and only once when its
+     * features are known to be accepted.
+     *
+     * @param header Header of the batch. Ignored when the format isn't an envelope format.
+     * @param dictionaryId Id of the preset dictionary of the batch or CompressionDictionary.NONE
+     * @return Number of tracks sent
+     */
+    public int sendRawTracks(@Nullable byte[] header, @NonNull List<byte[]> rawTracks, byte format, byte dictionaryId) throws IOException {
+
+        final boolean envelope = BatchOutbox.isEnvelopeFormat(format);
+        final boolean cbor = format == BatchOutbox.FORMAT_CBOR || format == BatchOutbox.FORMAT_CBOR_ENVELOPE;
+
+        if (envelope && header == null) {
+            throw new IllegalArgumentException("Envelope formats require a header");
+        }
+
+        if ((cbor && cborRejected) || (envelope && envelopeRejected)) {
+            // Batch created before the feature was rejected
+            return sendRawTracks(null, toJsonRawTracks(header, rawTracks, format), BatchOutbox.FORMAT_JSON, dictionaryId);
+        }
+
+        // Batches created before the dictionary was rejected are sent without it too
+        final CompressionDictionary dictionary = compressionLevel == Deflater.NO_COMPRESSION || presetDictionaryRejected
+                ? null
+                : CompressionDictionary.get(dictionaryId);
+
+        if (config.isDebugEnabled()) {
+            logRawTracks(toJsonRawTracks(header, rawTracks, format));
+        }
+
+        if (config.isDryRunEnabled()) {
+            logger.info("Dry run mode enabled. No tracks sent");
+            return rawTracks.size();
+        }
+
+        final String contentType = cbor ? CONTENT_TYPE_CBOR : CONTENT_TYPE_JSON;
+        final PayloadWriter payloadWriter;
+        if (envelope) {
+            payloadWriter = out -> {
+                TrackBuilder.writeEnvelope(header, rawTracks, format, out);
+                return rawTracks.size();
+            };
+        } else if (cbor) {
+            payloadWriter = cborRawTracks(rawTracks);
+        } else {
+            payloadWriter = jsonRawTracks(rawTracks);
+        }
+
+        final int numTracksSent;
         try {
-            batchPayload = builder.createJsonPayload(requests, session);
+            numTracksSent = uploadTracks(contentType, payloadWriter, dictionary);
+        } catch (TrackingplanSendException ex) {
+            final int responseCode = ex.getResponseCode();
+            if (responseCode != BAD_REQUEST && responseCode != UNSUPPORTED_MEDIA_TYPE) {
+                throw ex;
+            }
+            final boolean blameCbor = cbor && !cborAccepted && responseCode == UNSUPPORTED_MEDIA_TYPE;
+            final boolean blameEnvelope = envelope && !envelopeAccepted;
+            final boolean blameDictionary = dictionary != null && !presetDictionaryAccepted;
+            if (!blameCbor && !blameEnvelope && !blameDictionary) {
+                throw ex;
+            }
+            final int numPlainTracksSent = uploadTracks(CONTENT_TYPE_JSON, jsonRawTracks(toJsonRawTracks(header, rawTracks, format)), null);
+            if (blameCbor) {
+                cborRejected = true;
+                logger.warn("Tracks endpoint doesn't accept CBOR. Falling back to JSON");
+            }
+            if (blameEnvelope) {
+                envelopeRejected = true;
+                logger.warn("Tracks endpoint doesn't accept batch envelopes. Falling back to plain batches");
+            }
+            if (blameDictionary) {
+                presetDictionaryRejected = true;
+                logger.warn("Tracks endpoint doesn't accept preset dictionary " + dictionary.getName() + ". Falling back to gzip");
+            }
+            return numPlainTracksSent;
+        }
 
-            if (config.isDebugEnabled()) {
-                String payloadString = batchPayload.toString(2);
-                logger.verbose("Batch: " + payloadString);
+        if (cbor) {
+            cborAccepted = true;
+        }
+        if (envelope) {
+            envelopeAccepted = true;
+        }
+        if (dictionary != null) {
+            presetDictionaryAccepted = true;
+        }
+
+        return numTracksSent;
+    }
+
+    /**
+     * Converts a batch of raw tracks in the given format into plain JSON raw tracks.
+     */
+    @NonNull
+    private static List<byte[]> toJsonRawTracks(@Nullable byte[] header, @NonNull List<byte[]> rawTracks, byte format) throws IOException {
+        if (BatchOutbox.isEnvelopeFormat(format)) {
+            return expandEnvelope(header, rawTracks, format);
+        }
+        if (format == BatchOutbox.FORMAT_CBOR) {
+            return cborRawTracksToJson(rawTracks);
+        }
+        return rawTracks;
+    }
+
+    private void logRawTracks(@NonNull List<byte[]> jsonRawTracks) {
+        try {
+            JSONArray batchPayload = new JSONArray();
+            for (byte[] rawTrack : jsonRawTracks) {
+                batchPayload.put(new JSONObject(new String(rawTrack, StandardCharsets.UTF_8)));
             }
+            logger.verbose("Batch: " + batchPayload.toString(2));
+        } catch (JSONException ex) {
+            logger.verbose("Batch: cannot be logged (" + ex.getMessage() + ")");
+        }
+    }
 
+    @NonNull
+    private static List<byte[]> expandEnvelope(@NonNull byte[] header, @NonNull List<byte[]> rawTracks, byte format) throws IOException {
+        try {
+            return TrackBuilder.expandEnvelope(header, rawTracks, format);
         } catch (JSONException ex) {
             throw new TrackingplanSendException("Send failed", ex);
         }
+    }
 
-        sendTracks(batchPayload);
-        return batchPayload.length();
+    @NonNull
+    private static List<byte[]> cborRawTracksToJson(@NonNull List<byte[]> rawTracks) throws IOException {
+        final List<byte[]> jsonRawTracks = new ArrayList<>(rawTracks.size());
+        try {
+            for (byte[] rawTrack : rawTracks) {
+                jsonRawTracks.add(TrackBuilder.cborRawTrackToJson(rawTrack));
+            }
+        } catch (JSONException ex) {
+            throw new TrackingplanSendException("Send failed", ex);
+        }
+        return jsonRawTracks;
     }
 
-    private void sendTracks(JSONArray batch) throws IOException {
-        byte[] payload = batch.toString().getBytes(StandardCharsets.UTF_8);
+    private interface PayloadWriter {
+        int writeTo(@NonNull OutputStream out) throws IOException, JSONException;
+    }
 
-        if (config.isDryRunEnabled()) {
-            logger.info("Dry run mode enabled. No tracks sent");
-            return;
-        }
+    private interface JsonPayloadWriter {
+        int writeTo(@NonNull Writer writer) throws IOException, JSONException;
+    }
 
-        sendTracks(payload);
+    /**
+     * Adapts a writer of a JSON payload to the request body. Characters are encoded as UTF-8.
+     */
+    private static PayloadWriter jsonPayload(@NonNull JsonPayloadWriter payloadWriter) {
+        return out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+            int numTracks = payloadWriter.writeTo(writer);
+            writer.flush();
+            return numTracks;
+        };
     }
 
-    private void sendTracks(byte[] payload) throws IOException {
+    /**
+     * Writes JSON raw tracks as a JSON array.
+     */
+    private static PayloadWriter jsonRawTracks(@NonNull List<byte[]> rawTracks) {
+        return jsonPayload(writer -> {
+            writer.write('[');
+            for (int i = 0; i < rawTracks.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(new String(rawTracks.get(i), StandardCharsets.UTF_8));
+            }
+            writer.write(']');
+            return rawTracks.size();
+        });
+    }
 
-        // TODO: Compress rawTracks before sending
+    /**
+     * Writes CBOR raw tracks as a CBOR array.
+     */
+    private static PayloadWriter cborRawTracks(@NonNull List<byte[]> rawTracks) {
+        return out -> {
+            final var writer = new CborWriter(out);
+            writer.writeArrayHeader(rawTracks.size());
+            for (byte[] rawTrack : rawTracks) {
+                out.write(rawTrack);
+            }
+            return rawTracks.size();
+        };
+    }
 
-        var endpoint = config.getTracksEndPoint() + config.getTpId();
+    /**
+     * Sends a batch of raw tracks. The payload is streamed to the transport while it is
+     * generated so that the whole batch is never held in memory.
+     *
+     * @param dictionary Preset dictionary to deflate the payload with or null to gzip it
+     * @return Number of tracks written into the request body
+     */
+    private int uploadTracks(
+            @NonNull String contentType,
+            @NonNull PayloadWriter payloadWriter,
+            @Nullable CompressionDictionary dictionary
+    ) throws IOException {
+
+        final String baseUrl = endpointSelector.getCurrentEndpoint();
+        var endpoint = baseUrl + config.getTpId();
         if (config.isTestingEnabled()) {
             endpoint = endpoint + "?t=" + System.currentTimeMillis();
         }
 
-        HttpURLConnection conn = makeNewTracksConnection(endpoint);
+        final int compressionLevel = maxCompression && this.compressionLevel != Deflater.NO_COMPRESSION
+                ? Deflater.BEST_COMPRESSION
+                : this.compressionLevel;
+
+        final int[] numTracks = {0};
+        final var request = makeTracksRequest(endpoint, compressionLevel, dictionary, contentType, out -> {
+            final OutputStream compressed = openCompressedStream(out, compressionLevel, dictionary);
+            final OutputStream body = new BufferedOutputStream(compressed, WRITE_BUFFER_SIZE);
+            boolean written = false;
+            try {
+                numTracks[0] = payloadWriter.writeTo(body);
+                body.close();
+                written = true;
+            } catch (JSONException ex) {
+                throw new TrackingplanSendException("Send failed", ex);
+            } finally {
+                if (!written) {
+                    abortCompressedStream(compressed);
+                }
+            }
+        });
 
-        logger.verbose("Connecting to endpoint: " + conn.getURL().toString());
+        logger.verbose("Connecting to endpoint: " + endpoint);
+
+        boolean reusable = false;
+        final long startMs = ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
 
         try {
-            try (OutputStream out = conn.getOutputStream()) {
-                out.write(payload);
+            // Response body is ignored. Tracks endpoint will return 204 if request was
+            // parsed correctly. Otherwise it will return a != 204 code.
+            final TransportResponse response;
+            try {
+                response = transport.execute(request);
+            } catch (TrackingplanSendException ex) {
+                // The batch couldn't be written
+                throw ex;
+            } catch (IOException ex) {
+                onEndpointFailure(baseUrl, startMs);
+                throw ex;
             }
 
-            // Read response code explicitly to force the sending of the request.
-            // Response is ignored. Tracks endpoint will return 204 if request was
-            // parsed correctly. Otherwise it will return a != 204 code.
-            int responseCode = conn.getResponseCode();
+            // Throttling (429 and 503) is global to the tracks service, so it pauses delivery (see
+            // Backpressure) instead of failing over to another endpoint, which would throttle too
+            final int responseCode = response.getCode();
+            final boolean throttled = Backpressure.isThrottled(responseCode);
+            if (responseCode >= 500 && !throttled) {
+                onEndpointFailure(baseUrl, startMs);
+            } else if (!throttled) {
+                endpointSelector.onSuccess(baseUrl, ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime() - startMs);
+            }
 
             logger.verbose("Raw tracks sent. Response code " + responseCode);
 
+            // Endpoint asks clients to slow down
+            long retryAfterMs = TrackingplanSendException.NO_RETRY_AFTER;
+            if (throttled) {
+                final long nowMs = ServiceLocator.INSTANCE.getTimeProvider().currentTimeMillis();
+                retryAfterMs = Backpressure.parseRetryAfterMs(response.getHeader("Retry-After"), nowMs);
+            }
+
+            // After a failover, the next batch is sent through a connection to another endpoint
+            reusable = config.isConnectionReuseEnabled()
+                    && response.isConnectionReusable()
+                    && baseUrl.equals(endpointSelector.getCurrentEndpoint());
+
+            if (!response.isSuccessful()) {
+                throw new TrackingplanSendException("Tracks endpoint responded with code " + responseCode, responseCode, retryAfterMs);
+            }
+
+            return numTracks[0];
+
         } catch (SocketTimeoutException ex) {
             throw new TrackingplanSendException("Connection to tracks timed out", ex);
         } finally {
-            conn.disconnect();
+            connectionWarm = reusable;
+        }
+    }
+
+    /**
+     * Resolves the tracks endpoint and completes a TLS handshake with it ahead of the next
+     * batch, so that the batch doesn't wait for the DNS lookup and a full handshake. No request
+     * is sent. Does nothing when connection reuse is disabled or a warm connection is likely
+     * available.
+     */
+    public void preconnect() throws IOException {
+
+        if (!config.isConnectionReuseEnabled() || connectionWarm) {
+            return;
         }
+
+        transport.preconnect(endpointSelector.getCurrentEndpoint() + config.getTpId(), config.getConnectTimeoutMs());
+        logger.verbose("Connection to tracks endpoint warmed up");
     }
 
-    private HttpURLConnection makeNewTracksConnection(@NonNull String tracksEndPoint) throws IOException {
-        URL tracksEndPointURL = new URL(tracksEndPoint);
-        HttpURLConnection conn = (HttpURLConnection) tracksEndPointURL.openConnection();
-        conn.setConnectTimeout(TRACKS_CONNECT_TIMEOUT);
-        conn.setDoOutput(true);
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("Accept", "application/json");
-        return conn;
+    /**
+     * Closes the warm connection to the tracks endpoint, if any. No request is sent for it.
+     */
+    public void closeIdleConnection() {
+
+        if (!connectionWarm) {
+            return;
+        }
+
+        connectionWarm = false;
+
+        transport.closeIdleConnections();
+        logger.verbose("Idle connection to tracks endpoint closed");
+    }
+
+    /**
+     * Reports an upload that the endpoint couldn't handle so that the next batches are sent
+     * to another endpoint, if any.
+     */
+    private void onEndpointFailure(@NonNull String baseUrl, long startMs) {
+        final long latencyMs = ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime() - startMs;
+        if (endpointSelector.onFailure(baseUrl, latencyMs)) {
+            connectionWarm = false;
+            logger.warn("Tracks endpoint " + baseUrl + " failed. Failing over to " + endpointSelector.getCurrentEndpoint());
+        }
+    }
+
+    @NonNull
+    private TransportRequest makeTracksRequest(
+            @NonNull String tracksEndPoint,
+            int compressionLevel,
+            @Nullable CompressionDictionary dictionary,
+            @NonNull String contentType,
+            @NonNull TracksTransport.BodyWriter body
+    ) {
+        final var builder = new TransportRequest.Builder(tracksEndPoint)
+                .setMethod("POST")
+                .setTimeouts(config.getConnectTimeoutMs(), config.getReadTimeoutMs())
+                .setHeader("Content-Type", contentType)
+                .setHeader("Accept", "application/json")
+                .setKeepAlive(config.isConnectionReuseEnabled())
+                .setBody(body);
+        if (compressionLevel != Deflater.NO_COMPRESSION && dictionary != null) {
+            // Zlib stream. The endpoint looks up the dictionary by its name.
+            builder.setHeader("Content-Encoding", "deflate");
+            builder.setHeader("X-Trackingplan-Dictionary", dictionary.getName());
+        } else if (compressionLevel != Deflater.NO_COMPRESSION) {
+            builder.setHeader("Content-Encoding", "gzip");
+        }
+        if (!config.isConnectionReuseEnabled()) {
+            // Closing the connection alone doesn't guarantee that the socket isn't kept in the pool
+            builder.setHeader("Connection", "close");
+        }
+        return builder.build();
+    }
+
+    /**
+     * Wraps the request body of a tracks upload. When compression is enabled, the body is
+     * compressed on the fly so that no compressed copy of the payload is kept in memory. It's
+     * deflated with the preset dictionary, if any, or gzipped otherwise.
+     */
+    private static OutputStream openCompressedStream(
+            @NonNull OutputStream out,
+            int compressionLevel,
+            @Nullable CompressionDictionary dictionary
+    ) throws IOException {
+        if (compressionLevel != Deflater.NO_COMPRESSION && dictionary != null) {
+            return new DeflateRequestBodyStream(out, compressionLevel, dictionary);
+        }
+        if (compressionLevel != Deflater.NO_COMPRESSION) {
+            return new GzipRequestBodyStream(out, compressionLevel);
+        }
+        return out;
+    }
+
+    /**
+     * Releases the native memory of the Deflater of a body that couldn't be written.
+     */
+    private static void abortCompressedStream(@NonNull OutputStream compressed) {
+        if (compressed instanceof DeflateRequestBodyStream) {
+            ((DeflateRequestBodyStream) compressed).abort();
+        } else if (compressed instanceof GzipRequestBodyStream) {
+            ((GzipRequestBodyStream) compressed).abort();
+        }
     }
 }
@@ -2,14 +2,19 @@
 package com.trackingplan.client.sdk;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import com.trackingplan.client.sdk.delivery.transport.TracksTransport;
 import com.trackingplan.shared.TrackingplanConfigBuilder;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.zip.Deflater;
 
 /**
  * Immutable class.
@@ -20,6 +25,52 @@ final public class TrackingplanConfig {
     public static final int MAX_REQUEST_BODY_SIZE_IN_BYTES =
             com.trackingplan.shared.TrackingplanConfig.MAX_REQUEST_BODY_SIZE_IN_BYTES;
 
+    /**
+     * Compression level used for raw-track uploads. Level 0 disables compression.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Time a warm connection to the tracks endpoint is kept open without sending batches.
+     * Value 0 disables connection reuse, so a new connection is opened for every batch.
+     */
+    public static final long DEFAULT_CONNECTION_IDLE_TIMEOUT_MS = 0;
+
+    /**
+     * Maximum time to establish a connection to the tracks endpoint.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Maximum time to wait for the tracks endpoint to respond once the batch was written.
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Number of batches that can be uploaded at the same time.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 2;
+
+    public static final int MAX_CONCURRENT_UPLOADS = 8;
+
+    /**
+     * Requests of the same provider that can be sent per minute. Value 0 means no limit.
+     */
+    public static final int DEFAULT_PROVIDER_EVENTS_PER_MINUTE = 0;
+
+    /**
+     * Requests that can be sent during a session. Value 0 means no limit.
+     */
+    public static final int DEFAULT_MAX_EVENTS_PER_SESSION = 0;
+
+    /**
+     * One in every this number of requests with an already sent payload structure is sent
+     * in full when schema fingerprints are enabled.
+     */
+    public static final int DEFAULT_SCHEMA_FINGERPRINT_REFRESH_RATE = 100;
+
+    static final int SCHEMA_FINGERPRINTS_DISABLED = -1;
+
     public final static TrackingplanConfig EMPTY = new TrackingplanConfig();
 
     // Shared configuration (contains common fields)
@@ -28,6 +79,22 @@ final public class TrackingplanConfig {
     // Android-specific fields
     private final Map<String, String> customContext;
     private final boolean backgroundObserver;
+    private final int compressionLevel;
+    private final long connectionIdleTimeoutMs;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int maxConcurrentUploads;
+    private final int providerEventsPerMinute;
+    private final int providerBurst;
+    private final int maxEventsPerSession;
+    private final boolean networkCostPolicy;
+    @Nullable
+    private final TracksTransport transport;
+    // Alternative tracks endpoints including the main one. Empty if only the main one is used.
+    private final List<String> tracksEndPoints;
+    // Aggregation window of the providers whose requests are aggregated
+    private final Map<String, Long> aggregationWindows;
+    private final int schemaFingerprintRefreshRate;
 
     @VisibleForTesting
     public static Builder newConfig(@NonNull String tpId) {
@@ -39,16 +106,55 @@ final public class TrackingplanConfig {
         this.sharedConfig = com.trackingplan.shared.TrackingplanConfig.Companion.empty();
         this.customContext = Collections.emptyMap();
         this.backgroundObserver = true;
+        this.compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        this.connectionIdleTimeoutMs = DEFAULT_CONNECTION_IDLE_TIMEOUT_MS;
+        this.connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+        this.readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+        this.maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+        this.providerEventsPerMinute = DEFAULT_PROVIDER_EVENTS_PER_MINUTE;
+        this.providerBurst = DEFAULT_PROVIDER_EVENTS_PER_MINUTE;
+        this.maxEventsPerSession = DEFAULT_MAX_EVENTS_PER_SESSION;
+        this.networkCostPolicy = true;
+        this.transport = null;
+        this.tracksEndPoints = Collections.emptyList();
+        this.aggregationWindows = Collections.emptyMap();
+        this.schemaFingerprintRefreshRate = SCHEMA_FINGERPRINTS_DISABLED;
     }
 
     private TrackingplanConfig(
             com.trackingplan.shared.TrackingplanConfig sharedConfig,
             Map<String, String> customContext,
-            boolean backgroundObserver
+            boolean backgroundObserver,
+            int compressionLevel,
+            long connectionIdleTimeoutMs,
+            int connectTimeoutMs,
+            int readTimeoutMs,
+            int maxConcurrentUploads,
+            int providerEventsPerMinute,
+            int providerBurst,
+            int maxEventsPerSession,
+            boolean networkCostPolicy,
+            @Nullable TracksTransport transport,
+            List<String> tracksEndPoints,
+            Map<String, Long> aggregationWindows,
+            int schemaFingerprintRefreshRate
     ) {
         this.sharedConfig = sharedConfig;
         this.customContext = Collections.unmodifiableMap(new HashMap<>(customContext));
         this.backgroundObserver = backgroundObserver;
+        this.compressionLevel = compressionLevel;
+        this.connectionIdleTimeoutMs = connectionIdleTimeoutMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.providerEventsPerMinute = providerEventsPerMinute;
+        this.providerBurst = providerBurst;
+        this.maxEventsPerSession = maxEventsPerSession;
+        this.networkCostPolicy = networkCostPolicy;
+        this.transport = transport;
+        this.tracksEndPoints = Collections.unmodifiableList(new ArrayList<>(tracksEndPoints));
+        this.aggregationWindows = Collections.unmodifiableMap(new HashMap<>(aggregationWindows));
+        this.schemaFingerprintRefreshRate = schemaFingerprintRefreshRate;
     }
 
     @NonNull
@@ -60,6 +166,85 @@ final public class TrackingplanConfig {
         return backgroundObserver;
     }
 
+    /**
+     * Deflater compression level used to gzip raw tracks before sending them.
+     * A value of 0 ({@link Deflater#NO_COMPRESSION}) sends raw tracks uncompressed.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionLevel != Deflater.NO_COMPRESSION;
+    }
+
+    /**
+     * Time in milliseconds after which an idle connection to the tracks endpoint is closed.
+     * A value of 0 means that connections are not reused between batches.
+     */
+    public long getConnectionIdleTimeoutMs() {
+        return connectionIdleTimeoutMs;
+    }
+
+    public boolean isConnectionReuseEnabled() {
+        return connectionIdleTimeoutMs > 0;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * Maximum number of batches sent to the tracks endpoint at the same time.
+     */
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    /**
+     * Maximum number of requests of the same provider sent per minute. A value of 0 means
+     * that there is no limit.
+     */
+    public int getProviderEventsPerMinute() {
+        return providerEventsPerMinute;
+    }
+
+    /**
+     * Maximum number of requests of the same provider sent at once after a quiet period.
+     */
+    public int getProviderBurst() {
+        return providerBurst;
+    }
+
+    /**
+     * Maximum number of requests sent during a session. A value of 0 means that there is
+     * no limit.
+     */
+    public int getMaxEventsPerSession() {
+        return maxEventsPerSession;
+    }
+
+    /**
+     * Returns true if delivery adapts to the cost of the connection (metered, roaming, Data
+     * Saver).
+     */
+    public boolean isNetworkCostPolicyEnabled() {
+        return networkCostPolicy;
+    }
+
+    /**
+     * Transport used to download the ingest config and upload batches, or null to use
+     * HttpURLConnection.
+     */
+    @Nullable
+    public TracksTransport getTransport() {
+        return transport;
+    }
+
     public boolean isDebugEnabled() {
         return sharedConfig.getDebug();
     }
@@ -101,6 +286,43 @@ final public class TrackingplanConfig {
         return sharedConfig.getTracksEndpoint();
     }
 
+    /**
+     * Tracks endpoints batches can be sent to, the main one first. The endpoint of each
+     * session is chosen by their measured latency and error rate (see EndpointSelector).
+     */
+    @NonNull
+    public List<String> getTracksEndPoints() {
+        if (tracksEndPoints.isEmpty()) {
+            return Collections.singletonList(getTracksEndPoint());
+        }
+        return tracksEndPoints;
+    }
+
+    /**
+     * Duration in milliseconds of the aggregation window of each provider whose requests are
+     * aggregated instead of sent one by one.
+     */
+    @NonNull
+    public Map<String, Long> getAggregationWindows() {
+        return aggregationWindows;
+    }
+
+    /**
+     * Returns true if payloads whose structure was already sent during the session are sent
+     * as a fingerprint of the structure plus a few values.
+     */
+    public boolean isSchemaFingerprintEnabled() {
+        return schemaFingerprintRefreshRate != SCHEMA_FINGERPRINTS_DISABLED;
+    }
+
+    /**
+     * One in every this number of payloads with a known structure is sent in full. A value of
+     * 0 means that they are never sent in full.
+     */
+    public int getSchemaFingerprintRefreshRate() {
+        return schemaFingerprintRefreshRate;
+    }
+
     @NonNull
     public String getConfigEndPoint() {
         return sharedConfig.getConfigEndpoint();
@@ -121,7 +343,20 @@ final public class TrackingplanConfig {
         return new TrackingplanConfig(
                 updatedSharedConfig,
                 this.customContext,
-                this.backgroundObserver
+                this.backgroundObserver,
+                this.compressionLevel,
+                this.connectionIdleTimeoutMs,
+                this.connectTimeoutMs,
+                this.readTimeoutMs,
+                this.maxConcurrentUploads,
+                this.providerEventsPerMinute,
+                this.providerBurst,
+                this.maxEventsPerSession,
+                this.networkCostPolicy,
+                this.transport,
+                this.tracksEndPoints,
+                this.aggregationWindows,
+                this.schemaFingerprintRefreshRate
         );
     }
 
@@ -143,13 +378,29 @@ final public class TrackingplanConfig {
         if (o == null || getClass() != o.getClass()) return false;
         TrackingplanConfig that = (TrackingplanConfig) o;
         return backgroundObserver == that.backgroundObserver
+                && compressionLevel == that.compressionLevel
+                && connectionIdleTimeoutMs == that.connectionIdleTimeoutMs
+                && connectTimeoutMs == that.connectTimeoutMs
+                && readTimeoutMs == that.readTimeoutMs
+                && maxConcurrentUploads == that.maxConcurrentUploads
+                && providerEventsPerMinute == that.providerEventsPerMinute
+                && providerBurst == that.providerBurst
+                && maxEventsPerSession == that.maxEventsPerSession
+                && networkCostPolicy == that.networkCostPolicy
+                && Objects.equals(transport, that.transport)
+                && tracksEndPoints.equals(that.tracksEndPoints)
+                && aggregationWindows.equals(that.aggregationWindows)
+                && schemaFingerprintRefreshRate == that.schemaFingerprintRefreshRate
                 && customContext.equals(that.customContext)
                 && sharedConfig.equals(that.sharedConfig);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(sharedConfig, customContext, backgroundObserver);
+        return Objects.hash(sharedConfig, customContext, backgroundObserver, compressionLevel,
+                connectionIdleTimeoutMs, connectTimeoutMs, readTimeoutMs, maxConcurrentUploads,
+                providerEventsPerMinute, providerBurst, maxEventsPerSession, networkCostPolicy, transport,
+                tracksEndPoints, aggregationWindows, schemaFingerprintRefreshRate);
     }
 
     public static class Builder {
@@ -157,6 +408,19 @@ final public class TrackingplanConfig {
         private final TrackingplanConfigBuilder sharedBuilder;
         private final Map<String, String> customContext = new HashMap<>();
         private boolean backgroundObserver = true;
+        private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        private long connectionIdleTimeoutMs = DEFAULT_CONNECTION_IDLE_TIMEOUT_MS;
+        private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+        private int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+        private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+        private int providerEventsPerMinute = DEFAULT_PROVIDER_EVENTS_PER_MINUTE;
+        private int providerBurst = DEFAULT_PROVIDER_EVENTS_PER_MINUTE;
+        private int maxEventsPerSession = DEFAULT_MAX_EVENTS_PER_SESSION;
+        private boolean networkCostPolicy = true;
+        private TracksTransport transport = null;
+        private final List<String> tracksEndPoints = new ArrayList<>();
+        private final Map<String, Long> aggregationWindows = new HashMap<>();
+        private int schemaFingerprintRefreshRate = SCHEMA_FINGERPRINTS_DISABLED;
 
         public Builder(String tpId) {
             if (tpId.isEmpty()) {
@@ -165,6 +429,114 @@ final public class TrackingplanConfig {
             sharedBuilder = new TrackingplanConfigBuilder().tpId(tpId);
         }
 
+        /**
+         * Sets the Deflater level (0-9, or -1 for the default level) used to gzip raw tracks.
+         * Use 0 to send raw tracks uncompressed.
+         */
+        public Builder compressionLevel(int level) {
+            if (level != Deflater.DEFAULT_COMPRESSION
+                    && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+                throw new IllegalArgumentException("Parameter compressionLevel must be between 0 and 9");
+            }
+            this.compressionLevel = level;
+            return this;
+        }
+
+        /**
+         * Keeps the connection to the tracks endpoint open between batches and closes it after
+         * the given idle time. The connection is also warmed up (DNS and TLS) when a batch is
+         * about to be full. Use 0 to open a new connection for every batch.
+         */
+        public Builder connectionIdleTimeout(long timeoutMs) {
+            if (timeoutMs < 0) {
+                throw new IllegalArgumentException("Parameter connectionIdleTimeout cannot be negative");
+            }
+            this.connectionIdleTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        public Builder connectTimeout(int timeoutMs) {
+            if (timeoutMs <= 0) {
+                throw new IllegalArgumentException("Parameter connectTimeout must be greater than 0");
+            }
+            this.connectTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for the tracks endpoint to respond. A slow upload never waits
+         * longer than this, so that it doesn't hold back the following batches indefinitely.
+         */
+        public Builder readTimeout(int timeoutMs) {
+            if (timeoutMs <= 0) {
+                throw new IllegalArgumentException("Parameter readTimeout must be greater than 0");
+            }
+            this.readTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Sets how many batches can be uploaded at the same time (1-8). Use 1 to send batches
+         * one after the other.
+         */
+        public Builder maxConcurrentUploads(int maxConcurrentUploads) {
+            if (maxConcurrentUploads < 1 || maxConcurrentUploads > MAX_CONCURRENT_UPLOADS) {
+                throw new IllegalArgumentException("Parameter maxConcurrentUploads must be between 1 and " + MAX_CONCURRENT_UPLOADS);
+            }
+            this.maxConcurrentUploads = maxConcurrentUploads;
+            return this;
+        }
+
+        /**
+         * Limits the requests of each provider sent to Trackingplan to the given number per
+         * minute, allowing bursts of the same size. Use 0 to remove the limit.
+         */
+        public Builder providerRateLimit(int eventsPerMinute) {
+            return providerRateLimit(eventsPerMinute, eventsPerMinute);
+        }
+
+        /**
+         * Limits the requests of each provider sent to Trackingplan to the given number per
+         * minute, allowing bursts of up to burst requests. Use 0 to remove the limit.
+         */
+        public Builder providerRateLimit(int eventsPerMinute, int burst) {
+            if (eventsPerMinute < 0) {
+                throw new IllegalArgumentException("Parameter eventsPerMinute cannot be negative");
+            }
+            if (eventsPerMinute > 0 && burst < 1) {
+                throw new IllegalArgumentException("Parameter burst must be greater than 0");
+            }
+            this.providerEventsPerMinute = eventsPerMinute;
+            this.providerBurst = eventsPerMinute > 0 ? burst : 0;
+            return this;
+        }
+
+        /**
+         * Limits the requests sent to Trackingplan during a session. Use 0 to remove the limit.
+         */
+        public Builder maxEventsPerSession(int maxEvents) {
+            if (maxEvents < 0) {
+                throw new IllegalArgumentException("Parameter maxEventsPerSession cannot be negative");
+            }
+            this.maxEventsPerSession = maxEvents;
+            return this;
+        }
+
+        /**
+         * Folds the requests of the given provider that have the same shape (method, URL,
+         * query parameter names and payload structure) and event names into a single
+         * aggregated track per window of the given duration. The track keeps the first request
+         * of the window along with the number of requests and the time of the first and last
+         * ones.
+         */
+        public Builder aggregateProvider(@NonNull String provider, long windowMs) {
+            if (windowMs <= 0) {
+                throw new IllegalArgumentException("Parameter windowMs must be greater than 0");
+            }
+            this.aggregationWindows.put(provider, windowMs);
+            return this;
+        }
+
         public Builder configEndPoint(@NonNull String configEndPoint) {
             sharedBuilder.configEndpoint(configEndPoint);
             return this;
@@ -202,6 +574,49 @@ final public class TrackingplanConfig {
             return this;
         }
 
+        /**
+         * Sends the payloads whose structure (key paths and value types) was already sent
+         * during the session as a fingerprint of the structure plus a few short values.
+         * One in every {@link #DEFAULT_SCHEMA_FINGERPRINT_REFRESH_RATE} of them is sent in full.
+         */
+        public Builder enableSchemaFingerprints() {
+            return enableSchemaFingerprints(DEFAULT_SCHEMA_FINGERPRINT_REFRESH_RATE);
+        }
+
+        /**
+         * Same as {@link #enableSchemaFingerprints()} but one in every refreshRate payloads
+         * with a known structure is sent in full. It can't be 0: a structure is known once its
+         * first payload is queued, so full payloads must be sent again in case that one was
+         * never delivered.
+         */
+        public Builder enableSchemaFingerprints(int refreshRate) {
+            if (refreshRate < 1) {
+                throw new IllegalArgumentException("Parameter refreshRate must be positive");
+            }
+            this.schemaFingerprintRefreshRate = refreshRate;
+            return this;
+        }
+
+        /**
+         * Sends batches as soon as they are full whatever the connection, instead of holding
+         * them longer on metered networks and deferring large ones while roaming or with
+         * Data Saver enabled.
+         */
+        public Builder disableNetworkCostPolicy() {
+            this.networkCostPolicy = false;
+            return this;
+        }
+
+        /**
+         * Sends the requests of the SDK through the given transport instead of
+         * HttpURLConnection, e.g. an OkHttpTransport that shares the connection pool of the
+         * app.
+         */
+        public Builder transport(@NonNull TracksTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
         @VisibleForTesting
         public Builder disableBackgroundObserver() {
             this.backgroundObserver = false;
@@ -226,6 +641,24 @@ final public class TrackingplanConfig {
 
         public Builder tracksEndPoint(@NonNull String tracksEndPoint) {
             sharedBuilder.tracksEndpoint(tracksEndPoint);
+            this.tracksEndPoints.clear();
+            return this;
+        }
+
+        /**
+         * Sets several tracks endpoints (e.g. one per region). The first one is the main one.
+         * Batches of each session are sent to the endpoint with the best latency and error
+         * rate measured so far, and sent to another one if it fails.
+         */
+        public Builder tracksEndPoints(@NonNull List<String> tracksEndPoints) {
+            if (tracksEndPoints.isEmpty()) {
+                throw new IllegalArgumentException("At least one tracks endpoint is required");
+            }
+            sharedBuilder.tracksEndpoint(tracksEndPoints.get(0));
+            this.tracksEndPoints.clear();
+            if (tracksEndPoints.size() > 1) {
+                this.tracksEndPoints.addAll(tracksEndPoints);
+            }
             return this;
         }
 
@@ -235,7 +668,20 @@ final public class TrackingplanConfig {
             return new TrackingplanConfig(
                     sharedConfig,
                     customContext,
-                    backgroundObserver
+                    backgroundObserver,
+                    compressionLevel,
+                    connectionIdleTimeoutMs,
+                    connectTimeoutMs,
+                    readTimeoutMs,
+                    maxConcurrentUploads,
+                    providerEventsPerMinute,
+                    providerBurst,
+                    maxEventsPerSession,
+                    networkCostPolicy,
+                    transport,
+                    tracksEndPoints,
+                    aggregationWindows,
+                    schemaFingerprintRefreshRate
             );
         }
     }
@@ -12,21 +12,34 @@ import android.os.SystemClock;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.os.HandlerCompat;
 import androidx.lifecycle.DefaultLifecycleObserver;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleOwner;
 
+import com.trackingplan.client.sdk.delivery.AndroidNetworkStateProvider;
+import com.trackingplan.client.sdk.delivery.BatchOutbox;
+import com.trackingplan.client.sdk.delivery.EndpointSelector;
+import com.trackingplan.client.sdk.delivery.NetworkCostPolicy;
+import com.trackingplan.client.sdk.delivery.NetworkState;
+import com.trackingplan.client.sdk.delivery.TaskRunnerBatchSender;
 import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.client.sdk.interception.InstrumentRequestBuilder;
 import com.trackingplan.client.sdk.interception.InterceptionContext;
 import com.trackingplan.client.sdk.session.StorageMigration;
 import com.trackingplan.client.sdk.util.AndroidLog;
+import com.trackingplan.shared.DeliveryOptions;
+import com.trackingplan.shared.EventBudget;
+import com.trackingplan.shared.EventBudgetOptions;
 import com.trackingplan.shared.SamplingOptions;
+import com.trackingplan.shared.ServiceLocator;
 import com.trackingplan.shared.Storage;
 import com.trackingplan.shared.TrackingplanIngestConfig;
 import com.trackingplan.shared.TrackingplanSession;
 import com.trackingplan.client.sdk.util.JSONUtils;
+import com.trackingplan.client.sdk.util.MpscRingBuffer;
 import com.trackingplan.client.sdk.util.ScreenViewTracker;
 import com.trackingplan.client.sdk.util.TaskRunner;
 import com.trackingplan.client.sdk.util.ThreadUtils;
@@ -40,15 +53,22 @@ import org.jetbrains.annotations.NotNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Trackingplan singleton instance.
@@ -85,6 +105,17 @@ final public class TrackingplanInstance {
 
     private static final long FETCH_CONFIG_RETRY_INTERVAL_MS = 5 * 60 * 1000;
 
+    // Batches are this many times larger while the tracks endpoint is throttling clients
+    private static final int BACKPRESSURE_BATCH_WIDENING_FACTOR = 4;
+    // Maximum extra sampling applied while throttled is 2^MAX_BACKPRESSURE_SAMPLING_SHIFT
+    private static final int MAX_BACKPRESSURE_SAMPLING_SHIFT = 4;
+
+    // Intercepted requests waiting for the Trackingplan thread. When full, requests wait in an
+    // unbounded overflow queue instead.
+    static final int INGESTION_BUFFER_CAPACITY = 1024;
+    // Intercepted requests processed per message so that other tasks aren't delayed by bursts
+    private static final int INGESTION_DRAIN_BATCH_SIZE = 64;
+
     private static final AndroidLog logger = AndroidLog.getInstance();
 
     private static volatile TrackingplanInstance instance;
@@ -103,8 +134,21 @@ final public class TrackingplanInstance {
     private final Handler handler;
     private final AtomicInteger numActiveTasks;
 
+    // Intercepted requests published by the threads of the host app without locking
+    private final MpscRingBuffer<InstrumentRequestBuilder> ingestionBuffer = new MpscRingBuffer<>(INGESTION_BUFFER_CAPACITY);
+    // Requests that didn't fit in the buffer, and those intercepted after them until it's empty
+    private final Queue<InstrumentRequestBuilder> ingestionOverflow = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numPendingOverflows = new AtomicInteger(0);
+    private final AtomicBoolean ingestionDrainScheduled = new AtomicBoolean(false);
+    private final AtomicLong numIngestionOverflows = new AtomicLong(0);
+    private final Runnable ingestionDrainTask = this::drainIngestionBufferTask;
+    private final Consumer<InstrumentRequestBuilder> ingestionConsumer = TrackingplanInstance::processIntercepted;
+
+    // Replaced as a whole, as instruments read it from threads of the host app
     @NotNull
-    private final Map<String, String> providers;
+    private volatile Map<String, String> providers;
+    // False until the custom domains of the config are part of providers
+    private volatile boolean customDomainsApplied = false;
     private final RequestQueue requestQueue;
     private final Queue<PreQueuedRequest> preQueue = new LinkedList<>();
 
@@ -123,8 +167,40 @@ final public class TrackingplanInstance {
 
     private volatile TrackingplanConfig config;
     private TrackingplanClient client;
+    // Kept when the client is replaced so that endpoint measurements aren't lost
+    private EndpointSelector endpointSelector;
+    private TaskRunnerBatchSender batchSender;
     private Storage storage;
 
+    // Delivery tuning received in the ingest config
+    @NonNull
+    private DeliveryOptions deliveryOptions = DeliveryOptions.Companion.getEMPTY();
+    private boolean flushOnBackground = true;
+
+    // Limits on the number of sampled requests sent. Only used from Trackingplan thread.
+    private final EventBudget eventBudget = new EventBudget();
+
+    // Retries of the host app collapsed into their first attempt. Only used from Trackingplan thread.
+    private final RetryDeduplicator retryDeduplicator = new RetryDeduplicator();
+
+    // Windows of high-frequency requests sent as a single track. Only used from Trackingplan thread.
+    private final EventAggregator eventAggregator = new EventAggregator();
+    private Runnable aggregationWatcher = null;
+    private long aggregationWatcherTimeMs = -1;
+
+    // Null when disabled by config or not started. Only used from Trackingplan thread.
+    private SchemaFingerprints schemaFingerprints;
+
+    // Throttle level of the tracks endpoint (0 if not throttling). Only used from Trackingplan thread.
+    private int backpressureLevel = 0;
+    private int backpressureSamplingCounter = 0;
+
+    // Cost of the current connection. Null policy when disabled by config or not started.
+    // Only used from Trackingplan thread.
+    private NetworkCostPolicy networkCostPolicy;
+    @NonNull
+    private NetworkCostPolicy.Cost networkCost = NetworkCostPolicy.Cost.UNMETERED;
+
     @NonNull
     private TrackingplanSession currentSession;
 
@@ -234,6 +310,8 @@ final public class TrackingplanInstance {
             }
 
             this.config = config;
+            applyEventBudgetOptions(EventBudgetOptions.Companion.getEMPTY());
+
             try {
                 this.storage = StorageMigration.createWithMigration(config.getTpId(), config.getEnvironment());
             } catch (Exception e) {
@@ -241,13 +319,35 @@ final public class TrackingplanInstance {
                 return;
             }
 
-            providers.clear();
-            providers.putAll(makeDefaultProviders());
+            final Map<String, String> providers = makeDefaultProviders();
             providers.putAll(config.customDomains());
+            this.providers = providers;
+            this.customDomainsApplied = true;
+
+            // Warm up so that interceptors don't look up the package manager in app threads
+            InterceptionContext.init(context);
 
             requestQueue.start();
+            eventAggregator.setProviderWindows(config.getAggregationWindows());
+            if (config.isSchemaFingerprintEnabled()) {
+                schemaFingerprints = new SchemaFingerprints(config.getSchemaFingerprintRefreshRate());
+            }
+
+            endpointSelector = new EndpointSelector(config.getTracksEndPoints());
+            client = new TrackingplanClient(config, context, endpointSelector);
+            batchSender = new TaskRunnerBatchSender(client, taskRunner, openOutbox(config), config.getMaxConcurrentUploads());
+            batchSender.setBackpressureListener(this::onBackpressureChanged);
+
+            if (config.isNetworkCostPolicyEnabled()) {
+                networkCostPolicy = new NetworkCostPolicy(new AndroidNetworkStateProvider(context));
+                batchSender.setNetworkCostPolicy(networkCostPolicy);
+                final var networkStateProvider = networkCostPolicy.getNetworkStateProvider();
+                networkStateProvider.setListener(state -> runSync(() -> onNetworkStateChanged(state)));
+                onNetworkStateChanged(networkStateProvider.getNetworkState());
+            }
 
-            client = new TrackingplanClient(config, context);
+            // Deliver batches that previous executions couldn't send
+            batchSender.deliverPendingBatches();
 
             logger.info("Trackingplan started");
             startSession();
@@ -265,7 +365,14 @@ final public class TrackingplanInstance {
         // Stop in Trackingplan thread
         runSync(() -> {
             requestQueue.stop();
+            for (PreQueuedRequest item : preQueue) {
+                item.request.releasePayload();
+            }
             preQueue.clear();
+            retryDeduplicator.clear();
+            eventAggregator.clear();
+            cancelAggregationWatcher();
+            schemaFingerprints = null;
 
             // Wait for pending taskRunner tasks to finish
             final CountDownLatch lock = new CountDownLatch(1);
@@ -276,9 +383,26 @@ final public class TrackingplanInstance {
                 logger.warn("Current thread interrupted while waiting for Trackingplan.stop");
             }
 
+            if (batchSender != null) {
+                batchSender.close();
+                batchSender = null;
+            }
+
+            if (networkCostPolicy != null) {
+                networkCostPolicy.getNetworkStateProvider().setListener(null);
+                networkCostPolicy = null;
+            }
+            networkCost = NetworkCostPolicy.Cost.UNMETERED;
+
+            onBackpressureChanged(0);
+            updateBatchWidening();
+            applyDeliveryOptions(DeliveryOptions.Companion.getEMPTY());
+            applyEventBudgetOptions(EventBudgetOptions.Companion.getEMPTY());
+
             stopSession();
             this.currentSession = TrackingplanSession.Companion.getEMPTY();
             this.config = TrackingplanConfig.EMPTY;
+            this.customDomainsApplied = false;
 
             logger.info("Trackingplan stopped");
         });
@@ -288,10 +412,19 @@ final public class TrackingplanInstance {
         return context;
     }
 
+    @NonNull
+    TrackingplanConfig getConfig() {
+        return config;
+    }
+
     TrackingplanClient getClient() {
         return client;
     }
 
+    TaskRunnerBatchSender getBatchSender() {
+        return batchSender;
+    }
+
     TaskRunner getTaskRunner() {
         return taskRunner;
     }
@@ -311,6 +444,8 @@ final public class TrackingplanInstance {
         numActiveTasks.incrementAndGet();
         this.handler.post(() -> {
             try {
+                // Requests intercepted before the task was posted are processed first
+                drainIngestionBuffer(Integer.MAX_VALUE);
                 task.run();
             } catch (Exception ex) {
                 logger.error("RunSync failed: " + ex.getMessage());
@@ -339,10 +474,83 @@ final public class TrackingplanInstance {
         this.handler.removeCallbacks(callback);
     }
 
+    /**
+     * Hands an intercepted request over to the Trackingplan thread. It's called from the
+     * threads of the host app and never waits: the request is published into a ring buffer
+     * that the Trackingplan thread drains in batches. If the buffer is full (the thread is
+     * behind), the request is added to an overflow queue instead, so no request is lost.
+     * Requests intercepted afterwards are added to that queue too until it's empty, and it's
+     * only drained once the buffer is empty. Therefore, requests intercepted by the same
+     * thread are processed in the order they were intercepted. Requests intercepted at the
+     * same time by different threads may be processed in any order.
+     */
+    public void enqueueInterceptedRequest(@NonNull InstrumentRequestBuilder request) {
+
+        if (numPendingOverflows.get() > 0 || !ingestionBuffer.offer(request)) {
+            numIngestionOverflows.incrementAndGet();
+            // Counted before it's added so that later requests of this thread queue behind it
+            numPendingOverflows.incrementAndGet();
+            ingestionOverflow.add(request);
+        }
+
+        if (ingestionDrainScheduled.compareAndSet(false, true)) {
+            numActiveTasks.incrementAndGet();
+            handler.post(ingestionDrainTask);
+        }
+    }
+
+    /**
+     * Number of intercepted requests that went through the overflow queue.
+     */
+    public long getNumIngestionOverflows() {
+        return numIngestionOverflows.get();
+    }
+
+    private void drainIngestionBufferTask() {
+        try {
+            // Cleared before draining so that requests published meanwhile schedule another drain
+            ingestionDrainScheduled.set(false);
+            drainIngestionBuffer(INGESTION_DRAIN_BATCH_SIZE);
+            if (hasPendingIngestion() && ingestionDrainScheduled.compareAndSet(false, true)) {
+                numActiveTasks.incrementAndGet();
+                handler.post(ingestionDrainTask);
+            }
+        } finally {
+            numActiveTasks.decrementAndGet();
+        }
+    }
+
+    private void drainIngestionBuffer(int maxRequests) {
+        int numRequests = ingestionBuffer.drain(ingestionConsumer, maxRequests);
+        // Overflowed requests were intercepted after the ones in the buffer
+        while (numRequests < maxRequests && ingestionBuffer.isEmpty()) {
+            final var request = ingestionOverflow.poll();
+            if (request == null) {
+                // Counted but not added yet. The producer schedules another drain.
+                break;
+            }
+            processIntercepted(request);
+            numPendingOverflows.decrementAndGet();
+            numRequests += 1;
+        }
+    }
+
+    private boolean hasPendingIngestion() {
+        return !ingestionBuffer.isEmpty() || numPendingOverflows.get() > 0;
+    }
+
+    private static void processIntercepted(@NonNull InstrumentRequestBuilder request) {
+        try {
+            request.processIntercepted();
+        } catch (Exception ex) {
+            logger.error("RunSync failed: " + ex.getMessage());
+        }
+    }
+
     @VisibleForTesting
     public boolean waitForRunSync() {
         try {
-            while (numActiveTasks.get() > 0) {
+            while (numActiveTasks.get() > 0 || hasPendingIngestion()) {
                 Thread.sleep(500);
             }
             return false;
@@ -386,6 +594,40 @@ final public class TrackingplanInstance {
         }
     }
 
+    /**
+     * Called for every HTTP request of the host app seen by the instruments, whether or not
+     * it is targeted to a supported destination, so that pending requests can be sent while
+     * the radio is still awake.
+     * <p>
+     * NOTE: This method must be called from Trackingplan thread.
+     */
+    public void onHostNetworkActivity() {
+        checkRunningInTrackingplanThread();
+        requestQueue.onHostNetworkActivity();
+    }
+
+    /**
+     * True if the URL belongs to a supported destination or it can't be known yet because
+     * Trackingplan hasn't started. Requests intercepted before start are pre-queued and
+     * matched against the custom domains later, so their payload must be kept. Instruments
+     * use it to skip the payload of requests that will be ignored. Safe to call from any
+     * thread.
+     */
+    public boolean isSupportedDestination(@NonNull String url) {
+        if (!customDomainsApplied) {
+            return true;
+        }
+        return UrlMatcherJava.matchProvider(providers, url) != null;
+    }
+
+    /**
+     * Number of flushes of pending requests that were sent along with host app traffic
+     * instead of waking the radio up.
+     */
+    public long getAvoidedRadioWakeUps() {
+        return requestQueue.getRadioScheduler().getAvoidedRadioWakeUps();
+    }
+
     private void processRequestWithSession(
             @NonNull final HttpRequest request,
             @NonNull final InterceptionContext interceptionContext
@@ -395,24 +637,70 @@ final public class TrackingplanInstance {
 
         if (!isTargetedToSupportedDestination(request)) {
             logger.verbose("Request ignored. Doesn't belong to a supported destination");
+            request.releasePayload();
             return;
         }
 
         Request sharedRequest = new Request(
                 request.getProvider(),
                 request.getUrl(),
-                request.getPayloadData().length > 0
-                        ? new String(request.getPayloadData(), StandardCharsets.UTF_8)
+                request.getPayloadLength() > 0
+                        ? new String(request.getPayloadBuffer(), 0, request.getPayloadLength(), StandardCharsets.UTF_8)
                         : null
         );
         SamplingResult result = currentSession.evaluateSamplingDecision(sharedRequest);
         if (result instanceof SamplingResult.Drop) {
             DropReason reason = ((SamplingResult.Drop) result).getReason();
             logger.verbose("Request dropped (reason: " + reason.getValue() + ")");
+            request.releasePayload();
             return;
         }
         request.setSamplingResult((SamplingResult.Include) result);
 
+        final var contentHash = retryDeduplicator.contentHash(request);
+        if (retryDeduplicator.collapseRetry(request, contentHash, requestQueue::isPending)) {
+            logger.verbose("Request collapsed into its previous attempt (reason: retry of the host app)");
+            request.releasePayload();
+            return;
+        }
+
+        if (eventAggregator.add(request)) {
+            logger.verbose("Request added to aggregation window");
+            scheduleAggregationWatcher();
+            return;
+        }
+
+        queueSampledRequest(request, contentHash);
+    }
+
+    /**
+     * Queues a request that passed the sampling evaluation, unless backpressure or the event
+     * budget drop it.
+     *
+     * @param contentHash Content hash of the request (see RetryDeduplicator.contentHash)
+     */
+    private void queueSampledRequest(@NonNull final HttpRequest request, @Nullable final ByteBuffer contentHash) {
+
+        if (!applyBackpressureSampling(request)) {
+            logger.verbose("Request dropped (reason: tracks endpoint throttling)");
+            request.releasePayload();
+            return;
+        }
+
+        if (!eventBudget.tryAcquire(request.getProvider(), currentSession.getSessionId())) {
+            logger.verbose("Request dropped (reason: event budget exceeded)");
+            request.releasePayload();
+            return;
+        }
+        request.setSuppressedCount(eventBudget.takeSuppressedCount(request.getProvider()));
+
+        // Not dropped from here on, so later retries of the request are sent as retries
+        retryDeduplicator.recordAttempt(request, contentHash);
+
+        if (schemaFingerprints != null) {
+            schemaFingerprints.apply(request, currentSession.getSessionId());
+        }
+
         requestQueue.queueRequest(request);
 
         // Keep reference to session in case currentSession changes while processing the queue
@@ -429,6 +717,59 @@ final public class TrackingplanInstance {
         });
     }
 
+    /**
+     * Sends the aggregated requests of the windows that closed, or of all of them if
+     * closeAll is true.
+     */
+    private void closeAggregationWindows(boolean closeAll) {
+
+        checkRunningInTrackingplanThread();
+
+        final var aggregated = closeAll ? eventAggregator.takeAll() : eventAggregator.takeClosed();
+        if (!aggregated.isEmpty()) {
+            logger.verbose("Closed " + aggregated.size() + " aggregation windows");
+        }
+
+        for (HttpRequest request : aggregated) {
+            queueSampledRequest(request, retryDeduplicator.contentHash(request));
+        }
+
+        cancelAggregationWatcher();
+        scheduleAggregationWatcher();
+    }
+
+    private void scheduleAggregationWatcher() {
+
+        final long nextCloseTimeMs = eventAggregator.getNextCloseTimeMs();
+        if (nextCloseTimeMs < 0) {
+            return;
+        }
+
+        // Keep the watcher if it already fires in time for the next window to close
+        if (aggregationWatcher != null && aggregationWatcherTimeMs <= nextCloseTimeMs) {
+            return;
+        }
+
+        cancelAggregationWatcher();
+
+        final long delayMs = Math.max(0, nextCloseTimeMs - ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime());
+        aggregationWatcherTimeMs = nextCloseTimeMs;
+        aggregationWatcher = runSyncDelayed(delayMs, () -> {
+            aggregationWatcher = null;
+            aggregationWatcherTimeMs = -1;
+            if (!isConfigured()) return;
+            closeAggregationWindows(false);
+        });
+    }
+
+    private void cancelAggregationWatcher() {
+        if (aggregationWatcher != null) {
+            cancelDelayedTask(aggregationWatcher);
+            aggregationWatcher = null;
+            aggregationWatcherTimeMs = -1;
+        }
+    }
+
     private void processPreQueue() {
         checkRunningInTrackingplanThread();
 
@@ -505,6 +846,7 @@ final public class TrackingplanInstance {
                 lock.countDown();
                 return;
             }
+            closeAggregationWindows(true);
             requestQueue.processQueue(currentSession, true, lock::countDown);
         };
 
@@ -560,13 +902,37 @@ final public class TrackingplanInstance {
             this.config = newConfig;
 
             if (client != null) {
-                client = new TrackingplanClient(newConfig, context);
+                client = new TrackingplanClient(newConfig, context, endpointSelector);
+                applyClientOptions(client, deliveryOptions);
+                batchSender.setClient(client);
             }
             
             logger.debug("Tags updated: " + newTags);
         });
     }
 
+    /**
+     * Opens the outbox where batches are kept until they are delivered. Dry run mode doesn't
+     * deliver batches so no outbox is used.
+     *
+     * @return The outbox or null if it couldn't be opened
+     */
+    private BatchOutbox openOutbox(@NonNull final TrackingplanConfig config) {
+
+        if (config.isDryRunEnabled()) {
+            return null;
+        }
+
+        final var outboxDir = new File(context.getFilesDir(), "trackingplan/outbox/" + config.getTpId());
+
+        try {
+            return BatchOutbox.open(outboxDir, BatchOutbox.DEFAULT_MAX_SIZE_BYTES);
+        } catch (IOException ex) {
+            logger.warn("Outbox disabled. Batches will be discarded if they cannot be sent: " + ex.getMessage());
+            return null;
+        }
+    }
+
     private void startSession() {
 
         checkRunningInTrackingplanThread();
@@ -588,6 +954,9 @@ final public class TrackingplanInstance {
 
         if (session.isNew()) {
             logger.debug("New session started: " + session);
+            if (client != null) {
+                client.selectEndpointForSession();
+            }
         } else {
             logger.debug("Session resumed: " + session);
         }
@@ -698,6 +1067,8 @@ final public class TrackingplanInstance {
         if (cachedConfig != null) {
             logger.verbose("Previous ingest config found and is still valid");
             logger.verbose("Sampling rate: " + cachedConfig.getSamplingRate(config.getEnvironment()));
+            applyDeliveryOptions(cachedConfig.getDelivery());
+            applyEventBudgetOptions(cachedConfig.getEventBudget());
             return cachedConfig;
         }
 
@@ -718,6 +1089,8 @@ final public class TrackingplanInstance {
                     lastError = null;
                     logger.debug("Ingest config downloaded and saved");
                     logger.verbose("Sampling rate: " + ingestConfig.getSamplingRate(config.getEnvironment()));
+                    applyDeliveryOptions(ingestConfig.getDelivery());
+                    applyEventBudgetOptions(ingestConfig.getEventBudget());
                 } else {
                     throw new Exception("Failed to parse or validate downloaded config");
                 }
@@ -737,6 +1110,174 @@ final public class TrackingplanInstance {
         return ingestConfig;
     }
 
+    /**
+     * Applies the delivery tuning of the ingest config. Options that aren't set fall back
+     * to the SDK defaults. Values are already clamped to safe bounds by the parser.
+     */
+    private void applyDeliveryOptions(@NonNull DeliveryOptions options) {
+
+        checkRunningInTrackingplanThread();
+
+        if (options.equals(deliveryOptions)) {
+            return;
+        }
+
+        deliveryOptions = options;
+
+        requestQueue.setBatchingOptions(
+                valueOrDefault(options.getBatchTimeoutMs(), RequestQueue.DEFAULT_BATCH_TIMEOUT_MS),
+                valueOrDefault(options.getTargetBatchSizeBytes(), RequestQueue.DEFAULT_TARGET_BATCH_SIZE_BYTES),
+                valueOrDefault(options.getMaxBatchSizeBytes(), RequestQueue.DEFAULT_MAX_BATCH_SIZE_BYTES),
+                valueOrDefault(options.getMaxRequestsPerBatch(), RequestQueue.DEFAULT_MAX_NUM_REQUESTS_IN_BATCH)
+        );
+
+        if (client != null) {
+            applyClientOptions(client, options);
+        }
+
+        flushOnBackground = valueOrDefault(options.getFlushOnBackground(), true);
+
+        logger.debug("Delivery options updated: " + options);
+    }
+
+    private void applyClientOptions(@NonNull TrackingplanClient client, @NonNull DeliveryOptions options) {
+        client.setCompressionEnabled(valueOrDefault(options.getCompression(), config.isCompressionEnabled()));
+        client.setCborEnabled(DeliveryOptions.WIRE_FORMAT_CBOR.equals(options.getWireFormat()));
+        client.setEnvelopeEnabled(valueOrDefault(options.getBatchEnvelope(), DeliveryOptions.BATCH_ENVELOPE_V1) == DeliveryOptions.BATCH_ENVELOPE_V2);
+        client.setPresetDictionaryVersion(valueOrDefault(options.getPresetDictionaryVersion(), 0));
+        client.setMaxCompression(NetworkCostPolicy.isMaxCompressionPreferred(networkCost));
+    }
+
+    /**
+     * Applies the event budget of the ingest config. Limits that aren't set fall back to the
+     * local config. When only the rate is set, bursts are as large as the rate.
+     */
+    private void applyEventBudgetOptions(@NonNull EventBudgetOptions options) {
+
+        checkRunningInTrackingplanThread();
+
+        final Integer remoteRate = options.getProviderEventsPerMinute();
+        final int burst = options.getProviderBurst() != null
+                ? options.getProviderBurst()
+                : remoteRate != null ? 0 : config.getProviderBurst();
+
+        eventBudget.update(
+                valueOrDefault(remoteRate, config.getProviderEventsPerMinute()),
+                burst,
+                valueOrDefault(options.getMaxEventsPerSession(), config.getMaxEventsPerSession())
+        );
+
+        if (!options.equals(EventBudgetOptions.Companion.getEMPTY())) {
+            logger.debug("Event budget updated: " + options);
+        }
+    }
+
+    /**
+     * Buffers tracks in larger batches while the tracks endpoint is throttling clients and
+     * restores the configured batching once it recovers.
+     */
+    private void onBackpressureChanged(int level) {
+
+        checkRunningInTrackingplanThread();
+
+        if (level == backpressureLevel) {
+            return;
+        }
+
+        backpressureLevel = level;
+        backpressureSamplingCounter = 0;
+        updateBatchWidening();
+
+        logger.debug("Backpressure level changed to " + level);
+    }
+
+    /**
+     * Adapts batching and compression to the cost of the new connection. Pending requests and
+     * batches are delivered when the device reaches an unmetered network, and pending batches
+     * also when it gets back online or stops being on an expensive network.
+     */
+    private void onNetworkStateChanged(@NonNull NetworkState state) {
+
+        checkRunningInTrackingplanThread();
+
+        if (networkCostPolicy == null) {
+            return;
+        }
+
+        final NetworkCostPolicy.Cost cost = NetworkCostPolicy.getCost(state);
+        if (cost == networkCost) {
+            return;
+        }
+
+        final NetworkCostPolicy.Cost previousCost = networkCost;
+        networkCost = cost;
+        networkCostPolicy.resetDeferral();
+        logger.debug("Network cost changed to " + cost + " (" + state + ")");
+
+        updateBatchWidening();
+        if (client != null) {
+            client.setMaxCompression(NetworkCostPolicy.isMaxCompressionPreferred(cost));
+        }
+        requestQueue.getRadioScheduler().setRadioAware(
+                cost == NetworkCostPolicy.Cost.METERED || cost == NetworkCostPolicy.Cost.EXPENSIVE);
+
+        if (cost == NetworkCostPolicy.Cost.UNMETERED) {
+            logger.debug("Unmetered network available. Sending pending requests...");
+            flushQueue(0);
+        }
+
+        final boolean cheaper = cost == NetworkCostPolicy.Cost.UNMETERED
+                || previousCost == NetworkCostPolicy.Cost.OFFLINE
+                || previousCost == NetworkCostPolicy.Cost.EXPENSIVE;
+        if (cheaper && cost != NetworkCostPolicy.Cost.OFFLINE && batchSender != null) {
+            batchSender.deliverNow();
+        }
+    }
+
+    /**
+     * Makes batches larger while the tracks endpoint is throttling clients or the connection
+     * is metered, whatever requires the largest batches.
+     */
+    private void updateBatchWidening() {
+        final int backpressureFactor = backpressureLevel > 0 ? BACKPRESSURE_BATCH_WIDENING_FACTOR : 1;
+        requestQueue.setBatchWideningFactor(Math.max(backpressureFactor, NetworkCostPolicy.getBatchWideningFactor(networkCost)));
+    }
+
+    /**
+     * Thins out sampled requests while the tracks endpoint is throttling clients and
+     * backpressure sampling is enabled by the ingest config. Every consecutive throttled
+     * response doubles the sampling, up to 2^MAX_BACKPRESSURE_SAMPLING_SHIFT. Requests are
+     * kept in a round-robin fashion so that the outcome is deterministic, and kept requests
+     * report the increased sampling rate.
+     *
+     * @return False if the request must be dropped
+     */
+    private boolean applyBackpressureSampling(@NonNull HttpRequest request) {
+
+        if (backpressureLevel == 0 || !valueOrDefault(deliveryOptions.getBackpressureSampling(), false)) {
+            return true;
+        }
+
+        final int factor = 1 << Math.min(backpressureLevel, MAX_BACKPRESSURE_SAMPLING_SHIFT);
+        final boolean keep = backpressureSamplingCounter == 0;
+        backpressureSamplingCounter = (backpressureSamplingCounter + 1) % factor;
+
+        if (keep) {
+            final SamplingResult.Include included = request.getSamplingResult();
+            request.setSamplingResult(new SamplingResult.Include(
+                    included.getEffectiveSampleRate() * factor,
+                    included.getMatchedPattern(),
+                    included.getSamplingMode()
+            ));
+        }
+
+        return keep;
+    }
+
+    private static <T> T valueOrDefault(T value, T defaultValue) {
+        return value != null ? value : defaultValue;
+    }
+
     private void initRequestContext(HttpRequest request, InterceptionContext interceptionContext) {
         request.addContextField("app_name", InterceptionContext.appName);
         request.addContextField("app_version", InterceptionContext.appVersion);
@@ -813,6 +1354,10 @@ final public class TrackingplanInstance {
             runSync(() -> {
                 if (!isConfigured()) return;
                 logger.verbose("onStop lifecycle called.");
+                if (!flushOnBackground) {
+                    logger.verbose("Flush on background disabled by ingest config");
+                    return;
+                }
                 logger.debug("Processing queue before going to background");
                 // Do not wait as this is called from TP thread
                 flushQueue(0);
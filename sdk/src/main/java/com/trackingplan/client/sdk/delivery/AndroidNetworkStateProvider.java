@@ -0,0 +1,113 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.util.AndroidLog;
+
+/**
+ * NetworkStateProvider backed by ConnectivityManager. It requires the ACCESS_NETWORK_STATE
+ * permission. If the app removed it from its manifest, the state is always UNKNOWN and
+ * batches are sent as if the network were unmetered.
+ */
+final public class AndroidNetworkStateProvider implements NetworkStateProvider {
+
+    private static final AndroidLog logger = AndroidLog.getInstance();
+
+    @Nullable
+    private final ConnectivityManager connectivityManager;
+
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    public AndroidNetworkStateProvider(@NonNull Context context) {
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @NonNull
+    @Override
+    public NetworkState getNetworkState() {
+
+        if (connectivityManager == null) {
+            return NetworkState.UNKNOWN;
+        }
+
+        try {
+            final Network network = connectivityManager.getActiveNetwork();
+            if (network == null) {
+                return NetworkState.OFFLINE;
+            }
+            return toNetworkState(connectivityManager.getNetworkCapabilities(network));
+        } catch (SecurityException ex) {
+            return NetworkState.UNKNOWN;
+        }
+    }
+
+    @Override
+    public synchronized void setListener(@Nullable Listener listener) {
+
+        if (connectivityManager == null) {
+            return;
+        }
+
+        if (networkCallback != null) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+
+        if (listener == null) {
+            return;
+        }
+
+        final var callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities capabilities) {
+                listener.onNetworkStateChanged(toNetworkState(capabilities));
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                listener.onNetworkStateChanged(NetworkState.OFFLINE);
+            }
+        };
+
+        try {
+            connectivityManager.registerDefaultNetworkCallback(callback);
+            networkCallback = callback;
+        } catch (RuntimeException ex) {
+            // Missing permission or too many callbacks registered by the app
+            logger.warn("Couldn't watch network changes: " + ex.getMessage());
+        }
+    }
+
+    @NonNull
+    private NetworkState toNetworkState(@Nullable NetworkCapabilities capabilities) {
+
+        if (capabilities == null || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+            return NetworkState.OFFLINE;
+        }
+
+        boolean metered = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // e.g. 5G networks that the carrier doesn't bill for a while
+            metered &= !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED);
+        }
+
+        boolean roaming = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            roaming = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+        }
+
+        // Data Saver only restricts background data on metered networks
+        final boolean dataSaverEnabled = metered && connectivityManager != null
+                && connectivityManager.getRestrictBackgroundStatus() == ConnectivityManager.RESTRICT_BACKGROUND_STATUS_ENABLED;
+
+        return new NetworkState(true, metered, roaming, dataSaverEnabled);
+    }
+}
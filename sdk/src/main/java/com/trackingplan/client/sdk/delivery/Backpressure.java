@@ -0,0 +1,163 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+import com.trackingplan.shared.ServiceLocator;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Pauses the delivery of batches while the tracks endpoint asks clients to slow down.
+ * <p>
+ * A 429 or 503 response is a throttling signal: the endpoint is reachable but overloaded, so
+ * no batch is sent until the pause expires. The pause honors the Retry-After header of the
+ * response when present, stretched by a random amount of up to RETRY_AFTER_JITTER of its
+ * length so that devices throttled at the same time don't come back at the same time.
+ * Without Retry-After, the pause grows exponentially with the number of consecutive
+ * throttled responses (the throttle level) and is randomized between half and all of it.
+ * <p>
+ * The endpoint is considered recovered, and the level reset, after the first successful
+ * delivery. Time is measured with the elapsed real time of the shared TimeProvider. Methods
+ * are synchronized because the state is updated from upload threads and read from the
+ * Trackingplan thread.
+ */
+final public class Backpressure {
+
+    public static final long DEFAULT_BASE_PAUSE_MS = 5 * 1000;
+    public static final long DEFAULT_MAX_PAUSE_MS = 60 * 60 * 1000;
+    private static final double RETRY_AFTER_JITTER = 0.25;
+
+    private final long basePauseMs;
+    private final long maxPauseMs;
+    private final Random random;
+
+    private int level = 0;
+    private long pausedUntilMs = 0;
+
+    public Backpressure() {
+        this(DEFAULT_BASE_PAUSE_MS, DEFAULT_MAX_PAUSE_MS, new Random());
+    }
+
+    public Backpressure(long basePauseMs, long maxPauseMs, @NonNull Random random) {
+        if (basePauseMs <= 0 || maxPauseMs < basePauseMs) {
+            throw new IllegalArgumentException("Invalid pause durations: base " + basePauseMs + ", max " + maxPauseMs);
+        }
+        this.basePauseMs = basePauseMs;
+        this.maxPauseMs = maxPauseMs;
+        this.random = random;
+    }
+
+    /**
+     * Returns true if the error is a response asking the client to slow down.
+     */
+    public static boolean isThrottled(@NonNull Exception error) {
+        if (!(error instanceof TrackingplanSendException)) {
+            return false;
+        }
+        return isThrottled(((TrackingplanSendException) error).getResponseCode());
+    }
+
+    /**
+     * Returns true if the response code of the tracks endpoint asks clients to slow down.
+     */
+    public static boolean isThrottled(int responseCode) {
+        return responseCode == 429 || responseCode == 503;
+    }
+
+    /**
+     * Reports a throttled response and pauses delivery. When several uploads are throttled
+     * at once, the longest pause wins.
+     *
+     * @param retryAfterMs Delay requested by the endpoint or
+     *                     TrackingplanSendException.NO_RETRY_AFTER if none
+     */
+    public synchronized void onThrottled(long retryAfterMs) {
+        level += 1;
+        final long pauseMs = Math.min(getPauseMs(retryAfterMs), maxPauseMs);
+        pausedUntilMs = Math.max(pausedUntilMs, now() + pauseMs);
+    }
+
+    public synchronized void onSuccess() {
+        level = 0;
+        pausedUntilMs = 0;
+    }
+
+    /**
+     * True from the first throttled response until a batch is delivered again, even if the
+     * pause has already expired.
+     */
+    public synchronized boolean isThrottled() {
+        return level > 0;
+    }
+
+    /**
+     * Number of consecutive throttled responses or 0 if the endpoint isn't throttling.
+     */
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * Time left until batches can be sent again or 0 if delivery isn't paused.
+     */
+    public synchronized long getRemainingPauseMs() {
+        return Math.max(0, pausedUntilMs - now());
+    }
+
+    private long getPauseMs(long retryAfterMs) {
+        if (retryAfterMs >= 0) {
+            return retryAfterMs + (long) (random.nextDouble() * retryAfterMs * RETRY_AFTER_JITTER);
+        }
+        final int exponent = Math.min(level - 1, 30);
+        long capMs = basePauseMs << exponent;
+        if (capMs <= 0 || capMs > maxPauseMs) {
+            capMs = maxPauseMs;
+        }
+        return capMs / 2 + (long) (random.nextDouble() * (capMs / 2 + 1));
+    }
+
+    /**
+     * Parses the value of a Retry-After header, which is either a number of seconds or an
+     * HTTP-date.
+     *
+     * @param nowMs Current wall-clock time, used to turn a date into a delay
+     * @return Delay in milliseconds or TrackingplanSendException.NO_RETRY_AFTER if the value
+     * is missing or malformed
+     */
+    public static long parseRetryAfterMs(@Nullable String value, long nowMs) {
+
+        if (value == null || value.trim().isEmpty()) {
+            return TrackingplanSendException.NO_RETRY_AFTER;
+        }
+
+        final String trimmed = value.trim();
+
+        try {
+            final long seconds = Long.parseLong(trimmed);
+            return seconds < 0 ? TrackingplanSendException.NO_RETRY_AFTER : Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+        } catch (NumberFormatException ex) {
+            // Not a number of seconds
+        }
+
+        final var format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            final Date date = format.parse(trimmed);
+            return date == null ? TrackingplanSendException.NO_RETRY_AFTER : Math.max(0, date.getTime() - nowMs);
+        } catch (ParseException ex) {
+            return TrackingplanSendException.NO_RETRY_AFTER;
+        }
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
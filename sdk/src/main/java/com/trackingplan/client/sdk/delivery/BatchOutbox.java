@@ -0,0 +1,617 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.util.AndroidLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed outbox of batches of raw tracks. Batches are appended to segment files before
+ * being sent and removed once delivered, so that tracks survive crashes and process kills
+ * and are replayed the next time Trackingplan starts. Delivery is at-least-once.
+ * <p>
+ * Layout of the outbox directory:
+ * <ul>
+ *     <li>{@code <id>.seg}: Append-only segment files with a sequence of records each.</li>
+ *     <li>{@code index}: Position of the first record that hasn't been delivered yet.</li>
+ *     <li>{@code lock}: Prevents other processes from using the same outbox.</li>
+ * </ul>
+ * A record is made of its length (int), the CRC32 of its body (int) and the body. The body
+ * holds the format of the tracks (byte), the header of the batch as a length-prefixed byte
+ * array (envelope formats only), the number of tracks (int), every track as a
+ * length-prefixed byte array and, optionally, the id of the preset dictionary used to
+ * compress the batch (byte). Records without dictionary id are compressed without one. A
+ * truncated record or one that fails the CRC check marks the end of its segment (e.g. the
+ * process was killed while appending).
+ * <p>
+ * Segments whose records have all been delivered are deleted. When the outbox grows beyond its
+ * maximum size, the oldest segments are deleted even if they weren't delivered.
+ * <p>
+ * This class isn't thread-safe. It must be used from the Trackingplan worker thread.
+ */
+final public class BatchOutbox {
+
+    public static final long DEFAULT_MAX_SIZE_BYTES = 2 * 1024 * 1024;
+
+    static final long MAX_SEGMENT_SIZE_BYTES = 256 * 1024;
+
+    // Body of records holds raw tracks encoded as UTF-8 JSON objects
+    public static final byte FORMAT_JSON = 1;
+
+    // Body of records holds raw tracks encoded as CBOR maps
+    public static final byte FORMAT_CBOR = 2;
+
+    // Body of records holds a header with the fields shared by the raw tracks and the raw
+    // tracks without those fields, all of them encoded as UTF-8 JSON objects
+    public static final byte FORMAT_JSON_ENVELOPE = 3;
+
+    // Same as FORMAT_JSON_ENVELOPE but header and raw tracks are encoded as CBOR maps
+    public static final byte FORMAT_CBOR_ENVELOPE = 4;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_FILE = "index";
+    private static final String LOCK_FILE = "lock";
+
+    private static final AndroidLog logger = AndroidLog.getInstance();
+
+    /**
+     * Batch read from the outbox. It must be acknowledged with {@link #ack(Record)} once it
+     * has been delivered.
+     */
+    public static final class Record {
+        private final long segmentId;
+        private final long nextOffset;
+        private final byte format;
+        private final byte[] header;
+        private final List<byte[]> tracks;
+        private final byte dictionaryId;
+
+        private Record(long segmentId, long nextOffset, byte format, byte[] header, List<byte[]> tracks, byte dictionaryId) {
+            this.segmentId = segmentId;
+            this.nextOffset = nextOffset;
+            this.format = format;
+            this.header = header;
+            this.tracks = tracks;
+            this.dictionaryId = dictionaryId;
+        }
+
+        public byte getFormat() {
+            return format;
+        }
+
+        /**
+         * Header of the batch or null if the format isn't an envelope format.
+         */
+        @Nullable
+        public byte[] getHeader() {
+            return header;
+        }
+
+        @NonNull
+        public List<byte[]> getTracks() {
+            return tracks;
+        }
+
+        /**
+         * Id of the preset dictionary of the batch or CompressionDictionary.NONE.
+         */
+        public byte getDictionaryId() {
+            return dictionaryId;
+        }
+
+        /**
+         * Size of the header and tracks of the batch, i.e. before compression.
+         */
+        public long getSizeBytes() {
+            long sizeBytes = header != null ? header.length : 0;
+            for (byte[] track : tracks) {
+                sizeBytes += track.length;
+            }
+            return sizeBytes;
+        }
+    }
+
+    private final File dir;
+    private final long maxSizeBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+
+    // Position of the first record not delivered yet
+    private long readSegmentId;
+    private long readOffset;
+
+    private long writeSegmentId;
+    private FileChannel writeChannel;
+
+    private BatchOutbox(@NonNull File dir, long maxSizeBytes, FileChannel lockChannel, FileLock lock) {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the outbox stored in the given directory. The directory is created if needed.
+     *
+     * @throws IOException if the outbox cannot be opened or is in use by another process
+     */
+    @NonNull
+    public static BatchOutbox open(@NonNull File dir, long maxSizeBytes) throws IOException {
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + dir);
+        }
+
+        final FileChannel lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+        final FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (IOException | RuntimeException ex) {
+            lockChannel.close();
+            throw new IOException("Cannot lock outbox", ex);
+        }
+
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Outbox is in use by another process");
+        }
+
+        final BatchOutbox outbox = new BatchOutbox(dir, maxSizeBytes, lockChannel, lock);
+        try {
+            outbox.load();
+        } catch (IOException ex) {
+            outbox.close();
+            throw ex;
+        }
+        return outbox;
+    }
+
+    /**
+     * Returns true if batches of the given format have a header with the fields shared by
+     * their tracks.
+     */
+    public static boolean isEnvelopeFormat(byte format) {
+        return format == FORMAT_JSON_ENVELOPE || format == FORMAT_CBOR_ENVELOPE;
+    }
+
+    /**
+     * Appends a batch of tracks to the outbox. The whole record is written at once, so a kill
+     * can only leave a truncated record at the end of the last segment, which is discarded.
+     */
+    public void append(@NonNull List<byte[]> tracks, byte format) throws IOException {
+        append(null, tracks, format);
+    }
+
+    /**
+     * Appends a batch of tracks with its header to the outbox.
+     *
+     * @param header Shared fields of the tracks. Required by envelope formats, ignored otherwise.
+     */
+    public void append(@Nullable byte[] header, @NonNull List<byte[]> tracks, byte format) throws IOException {
+        append(header, tracks, format, CompressionDictionary.NONE);
+    }
+
+    /**
+     * Appends a batch of tracks with its header and the id of its preset dictionary to the outbox.
+     */
+    public void append(@Nullable byte[] header, @NonNull List<byte[]> tracks, byte format, byte dictionaryId) throws IOException {
+
+        if (isEnvelopeFormat(format) && header == null) {
+            throw new IllegalArgumentException("Envelope formats require a header");
+        }
+
+        final byte[] record = encodeRecord(header, tracks, format, dictionaryId);
+
+        if (writeChannel.size() > 0 && writeChannel.size() + record.length > MAX_SEGMENT_SIZE_BYTES) {
+            rollSegment();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            writeChannel.write(buffer);
+        }
+
+        enforceMaxSize();
+    }
+
+    /**
+     * Gets the oldest batch that hasn't been delivered yet without removing it.
+     *
+     * @return The batch or null if every batch was delivered
+     */
+    @Nullable
+    public Record peek() throws IOException {
+        while (true) {
+            final File segment = segments.get(readSegmentId);
+            final Record record = segment != null ? readRecord(segment, readSegmentId, readOffset) : null;
+            if (record != null) {
+                return record;
+            }
+            // End of segment. Move to the next one if any.
+            final Long nextSegmentId = segments.higherKey(readSegmentId);
+            if (nextSegmentId == null) {
+                return null;
+            }
+            deleteSegment(readSegmentId);
+            readSegmentId = nextSegmentId;
+            readOffset = 0;
+            saveIndex();
+        }
+    }
+
+    /**
+     * Gets up to maxRecords of the oldest batches that haven't been delivered yet, in order,
+     * without removing them. Records must be acked in the same order.
+     */
+    @NonNull
+    public List<Record> peek(int maxRecords) throws IOException {
+
+        final List<Record> records = new ArrayList<>();
+
+        Record record = peek();
+        while (record != null) {
+            records.add(record);
+            if (records.size() >= maxRecords) {
+                break;
+            }
+            record = peekNext(record);
+        }
+
+        return records;
+    }
+
+    /**
+     * Gets the batch stored after the given one without removing it, so that batches can be
+     * read ahead of the ones still being delivered. Records must be acked in order.
+     *
+     * @return The batch or null if no batch was stored after the given one yet
+     */
+    @Nullable
+    public Record peekNext(@NonNull Record record) throws IOException {
+
+        long segmentId = record.segmentId;
+        long offset = record.nextOffset;
+
+        while (true) {
+            final File segment = segments.get(segmentId);
+            final Record next = segment != null ? readRecord(segment, segmentId, offset) : null;
+            if (next != null) {
+                return next;
+            }
+            final Long nextSegmentId = segments.higherKey(segmentId);
+            if (nextSegmentId == null) {
+                return null;
+            }
+            segmentId = nextSegmentId;
+            offset = 0;
+        }
+    }
+
+    /**
+     * Marks a batch previously returned by {@link #peek()} or {@link #peekNext(Record)} as
+     * delivered. Batches must be acked in order.
+     */
+    public void ack(@NonNull Record record) throws IOException {
+
+        if (record.segmentId < readSegmentId) {
+            // Segment was dropped because the outbox was full
+            return;
+        }
+
+        if (record.segmentId > readSegmentId) {
+            // Batch was read ahead past the last valid record of the read segment (e.g. it ends
+            // with a corrupt record), so the segments before the one of the batch were delivered
+            for (Long id : new ArrayList<>(segments.subMap(readSegmentId, record.segmentId).keySet())) {
+                deleteSegment(id);
+            }
+            readSegmentId = record.segmentId;
+        }
+
+        readOffset = record.nextOffset;
+
+        // Compaction: segment fully delivered and no longer written
+        final File segment = segments.get(readSegmentId);
+        if (readSegmentId != writeSegmentId && segment != null && readOffset >= segment.length()) {
+            final Long nextSegmentId = segments.higherKey(readSegmentId);
+            deleteSegment(readSegmentId);
+            readSegmentId = nextSegmentId != null ? nextSegmentId : writeSegmentId;
+            readOffset = 0;
+        } else if (readSegmentId == writeSegmentId && readOffset >= writeChannel.size()) {
+            // Everything delivered. Reuse the segment from the beginning. Index is saved first
+            // so that a kill in between can only cause batches to be delivered twice.
+            readOffset = 0;
+            saveIndex();
+            writeChannel.truncate(0);
+            writeChannel.position(0);
+            return;
+        }
+
+        saveIndex();
+    }
+
+    /**
+     * Total size in bytes of the segment files.
+     */
+    public long getSizeBytes() {
+        long size = 0;
+        for (File segment : segments.values()) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    public void close() {
+        try {
+            if (writeChannel != null) {
+                writeChannel.close();
+            }
+        } catch (IOException ex) {
+            // Ignore
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+    }
+
+    private void load() throws IOException {
+
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    final long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, file);
+                } catch (NumberFormatException ex) {
+                    // Not a segment
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1L, segmentFile(1));
+        }
+
+        readSegmentId = segments.firstKey();
+        readOffset = 0;
+        loadIndex();
+
+        // Segments before the read position were already delivered
+        for (Long id : new ArrayList<>(segments.headMap(readSegmentId).keySet())) {
+            deleteSegment(id);
+        }
+
+        if (!segments.containsKey(readSegmentId)) {
+            readSegmentId = segments.isEmpty() ? 1 : segments.firstKey();
+            readOffset = 0;
+            segments.putIfAbsent(readSegmentId, segmentFile(readSegmentId));
+        }
+
+        writeSegmentId = segments.lastKey();
+        writeChannel = new RandomAccessFile(segments.get(writeSegmentId), "rw").getChannel();
+
+        // Discard a truncated record left by a kill in the middle of an append
+        final long validEnd = findEndOfValidRecords(segments.get(writeSegmentId));
+        if (validEnd < writeChannel.size()) {
+            logger.warn("Outbox segment " + writeSegmentId + " had a truncated record (" + (writeChannel.size() - validEnd) + " bytes discarded)");
+            writeChannel.truncate(validEnd);
+        }
+        writeChannel.position(validEnd);
+
+        if (readSegmentId == writeSegmentId && readOffset > validEnd) {
+            readOffset = 0;
+        }
+    }
+
+    private void loadIndex() {
+
+        final File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+            final long segmentId = in.readLong();
+            final long offset = in.readLong();
+            final int checksum = in.readInt();
+            if (checksum != indexChecksum(segmentId, offset)) {
+                throw new IOException("Checksum mismatch");
+            }
+            readSegmentId = segmentId;
+            readOffset = offset;
+        } catch (IOException ex) {
+            // Batches could be delivered twice but none is lost
+            logger.warn("Outbox index is corrupt and will be ignored: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file which then replaces the previous index atomically.
+     */
+    private void saveIndex() throws IOException {
+        final File tmpFile = new File(dir, INDEX_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeLong(readSegmentId);
+            out.writeLong(readOffset);
+            out.writeInt(indexChecksum(readSegmentId, readOffset));
+        }
+        if (!tmpFile.renameTo(new File(dir, INDEX_FILE))) {
+            throw new IOException("Cannot save outbox index");
+        }
+    }
+
+    private static int indexChecksum(long segmentId, long offset) {
+        final CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putLong(segmentId).putLong(offset).array());
+        return (int) crc.getValue();
+    }
+
+    private void rollSegment() throws IOException {
+        writeChannel.close();
+        writeSegmentId += 1;
+        final File segment = segmentFile(writeSegmentId);
+        segments.put(writeSegmentId, segment);
+        writeChannel = new RandomAccessFile(segment, "rw").getChannel();
+    }
+
+    private void enforceMaxSize() throws IOException {
+
+        long size = getSizeBytes();
+        long numBytesDropped = 0;
+
+        while (size > maxSizeBytes && segments.size() > 1) {
+            final long oldestId = segments.firstKey();
+            final long segmentSize = segments.get(oldestId).length();
+            deleteSegment(oldestId);
+            size -= segmentSize;
+            numBytesDropped += segmentSize;
+            if (oldestId == readSegmentId) {
+                readSegmentId = segments.firstKey();
+                readOffset = 0;
+            }
+        }
+
+        if (numBytesDropped > 0) {
+            saveIndex();
+            logger.warn("Outbox is full. " + numBytesDropped + " bytes of undelivered batches were dropped");
+        }
+    }
+
+    private void deleteSegment(long id) {
+        final File segment = segments.remove(id);
+        if (segment != null && !segment.delete() && segment.exists()) {
+            logger.warn("Cannot delete outbox segment " + segment.getName());
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format(Locale.ROOT, "%019d", id) + SEGMENT_SUFFIX);
+    }
+
+    private long findEndOfValidRecords(@NonNull File segment) throws IOException {
+        long offset = 0;
+        Record record;
+        while ((record = readRecord(segment, writeSegmentId, offset)) != null) {
+            offset = record.nextOffset;
+        }
+        return offset;
+    }
+
+    @NonNull
+    static byte[] encodeRecord(@Nullable byte[] header, @NonNull List<byte[]> tracks, byte format, byte dictionaryId) {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeByte(format);
+            if (isEnvelopeFormat(format)) {
+                out.writeInt(header.length);
+                out.write(header);
+            }
+            out.writeInt(tracks.size());
+            for (byte[] track : tracks) {
+                out.writeInt(track.length);
+                out.write(track);
+            }
+            if (dictionaryId != CompressionDictionary.NONE) {
+                out.writeByte(dictionaryId);
+            }
+        } catch (IOException ex) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+
+        final byte[] bodyBytes = body.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyBytes.length)
+                .putInt(bodyBytes.length)
+                .putInt((int) crc.getValue())
+                .put(bodyBytes)
+                .array();
+    }
+
+    @Nullable
+    private static Record readRecord(@NonNull File segment, long segmentId, long offset) throws IOException {
+
+        if (!segment.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+
+            final long remaining = file.length() - offset;
+            if (remaining < RECORD_HEADER_SIZE) {
+                return null;
+            }
+
+            file.seek(offset);
+            final int length = file.readInt();
+            final int checksum = file.readInt();
+            if (length <= 0 || length > remaining - RECORD_HEADER_SIZE) {
+                return null;
+            }
+
+            final byte[] body = new byte[length];
+            file.readFully(body);
+
+            final CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(body);
+            final byte format = buffer.get();
+            byte[] header = null;
+            if (isEnvelopeFormat(format)) {
+                header = new byte[buffer.getInt()];
+                buffer.get(header);
+            }
+            final int numTracks = buffer.getInt();
+            if (numTracks < 0) {
+                return null;
+            }
+            final List<byte[]> tracks = new ArrayList<>(numTracks);
+            for (int i = 0; i < numTracks; i++) {
+                final byte[] track = new byte[buffer.getInt()];
+                buffer.get(track);
+                tracks.add(track);
+            }
+            final byte dictionaryId = buffer.hasRemaining() ? buffer.get() : CompressionDictionary.NONE;
+
+            final long nextOffset = offset + RECORD_HEADER_SIZE + length;
+            return new Record(segmentId, nextOffset, format, header, Collections.unmodifiableList(tracks), dictionaryId);
+
+        } catch (RuntimeException ex) {
+            // Malformed body that passed the CRC check
+            return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.shared.ServiceLocator;
+
+/**
+ * Pauses the delivery of batches while the tracks endpoint is unhealthy.
+ * <p>
+ * The breaker starts CLOSED and opens after a number of consecutive retryable failures.
+ * While OPEN, no batch is sent. Once the open period expires, the breaker moves to HALF_OPEN
+ * and lets a single probe through: a success closes the breaker and a failure opens it again
+ * for twice as long (up to a maximum).
+ * <p>
+ * Time is measured with the elapsed real time of the shared TimeProvider. Methods are
+ * synchronized because the breaker is updated from the worker thread and read from the
+ * Trackingplan thread.
+ */
+final public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30 * 1000;
+    public static final long DEFAULT_MAX_OPEN_DURATION_MS = 10 * 60 * 1000;
+
+    private final int failureThreshold;
+    private final long initialOpenDurationMs;
+    private final long maxOpenDurationMs;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openDurationMs;
+    private long openedAtMs = 0;
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MS, DEFAULT_MAX_OPEN_DURATION_MS);
+    }
+
+    public CircuitBreaker(int failureThreshold, long openDurationMs, long maxOpenDurationMs) {
+        if (failureThreshold < 1 || openDurationMs <= 0 || maxOpenDurationMs < openDurationMs) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.failureThreshold = failureThreshold;
+        this.initialOpenDurationMs = openDurationMs;
+        this.maxOpenDurationMs = maxOpenDurationMs;
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Returns true if a batch can be sent now. When the open period has expired, the breaker
+     * moves to HALF_OPEN and the caller is expected to report the outcome of its attempt.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && getRemainingOpenTimeMs() == 0) {
+            state = State.HALF_OPEN;
+        }
+        return state != State.OPEN;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openDurationMs = initialOpenDurationMs;
+    }
+
+    /**
+     * Reports a retryable failure. Failures caused by the batch itself (i.e. rejected by the
+     * endpoint) must not be reported since they don't say anything about endpoint health.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures += 1;
+        if (state == State.HALF_OPEN) {
+            openDurationMs = Math.min(openDurationMs * 2, maxOpenDurationMs);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    @NonNull
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Time left until the breaker lets a probe through or 0 if it isn't OPEN.
+     */
+    public synchronized long getRemainingOpenTimeMs() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        final long elapsedMs = now() - openedAtMs;
+        return elapsedMs >= openDurationMs ? 0 : openDurationMs - elapsedMs;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAtMs = now();
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
@@ -0,0 +1,200 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Preset dictionary used to deflate the batches of raw tracks of a provider.
+ * <p>
+ * Batches hold many short payloads with the same keys, which plain gzip has to learn again in
+ * every upload. A preset dictionary holds those keys upfront (see Deflater.setDictionary), so
+ * that even their first occurrences are encoded as back-references. Dictionaries can be
+ * rebuilt from recorded raw tracks with PresetDictionaryTrainer in the SDK tests. Keys are
+ * written as they appear inside the post_payload string of JSON raw tracks, which also covers
+ * the unescaped keys of CBOR raw tracks. The most frequent fragments go last, closest to the
+ * data.
+ * <p>
+ * Dictionaries are immutable once released. A new dictionary for a provider gets a new id and
+ * version, and both the SDK and the tracks endpoint keep every version so that stored batches
+ * can be decoded. Batches are compressed with the newest version the endpoint knows.
+ */
+final public class CompressionDictionary {
+
+    // Id of batches that are compressed without preset dictionary
+    public static final byte NONE = 0;
+
+    // Fields of the raw tracks themselves, shared by the dictionaries of every provider
+    private static final String TRACK_FRAGMENTS = ""
+            + "\"suppressed_count\":\"aggregate_first_ts\":\"aggregate_last_ts\":\"aggregate_count\":"
+            + "\"payload_fingerprint\":\"payload_values\":\"retry_count\":\"sampling_mode\":"
+            + "\"post_payload_type\":\"binary\"\"gzip\"\"source_alias\":\"android\"\"tags\":{"
+            + "\"environment\":\"PRODUCTION\"\"sdk\":\"android\",\"sdk_version\":\"tp_id\":\"TP"
+            + "\"sampling_rate\":1,\"session_id\":\"context\":{\"app_version\":\"response_code\":200"
+            + "\"provider\":\"request\":{\"endpoint\":\"https://\",\"method\":\"POST\",\"post_payload\":\"";
+
+    private static final Map<Byte, CompressionDictionary> dictionariesById = new HashMap<>();
+    // Every version of the dictionaries of each provider, oldest first
+    private static final Map<String, List<CompressionDictionary>> dictionariesByProvider = new HashMap<>();
+
+    static {
+        register(new CompressionDictionary((byte) 1, "amplitude", 1, ""
+                + "\\\"device_manufacturer\\\":\\\"device_brand\\\":\\\"device_model\\\":\\\"carrier\\\":"
+                + "\\\"country\\\":\\\"language\\\":\\\"locale\\\":\\\"ip\\\":\\\"$remote\\\""
+                + "\\\"adid\\\":\\\"android_id\\\":\\\"idfv\\\":\\\"plan\\\":{\\\"branch\\\":\\\"source\\\":\\\"version\\\":"
+                + "\\\"groups\\\":{},\\\"group_properties\\\":{},\\\"partner_id\\\":\\\"ingestion_metadata\\\":"
+                + "\\\"library\\\":\\\"amplitude-analytics-android/\\\"\\\"os_name\\\":\\\"android\\\",\\\"os_version\\\":"
+                + "\\\"platform\\\":\\\"Android\\\",\\\"app_version\\\":\\\"version_name\\\":"
+                + "\\\"user_properties\\\":{\\\"$set\\\":{\\\"$setOnce\\\":{\\\"$add\\\":{"
+                + "\\\"event_properties\\\":{},\\\"session_id\\\":\\\"event_id\\\":\\\"insert_id\\\":\\\""
+                + "\\\"user_id\\\":\\\"device_id\\\":\\\"time\\\":\\\"options\\\":{\\\"min_id_length\\\":"
+                + "{\\\"api_key\\\":\\\"client_upload_time\\\":\\\"events\\\":[{\\\"event_type\\\":\\\"session_start\\\""
+                + "\\\"event_type\\\":\\\"$identify\\\"\\\"event_type\\\":\\\"session_end\\\"\\\"event_properties\\\":{"));
+
+        register(new CompressionDictionary((byte) 2, "segment", 1, ""
+                + "\\\"integrations\\\":{},\\\"writeKey\\\":\\\"sentAt\\\":\\\"_metadata\\\":{\\\"bundled\\\":[],"
+                + "\\\"unbundled\\\":[]\\\"instanceId\\\":\\\"userAgent\\\":\\\"Dalvik/2.1.0 (Linux; U; Android "
+                + "\\\"timezone\\\":\\\"locale\\\":\\\"en-US\\\"\\\"screen\\\":{\\\"density\\\":\\\"height\\\":\\\"width\\\":"
+                + "\\\"network\\\":{\\\"bluetooth\\\":false,\\\"carrier\\\":\\\"cellular\\\":false,\\\"wifi\\\":true},"
+                + "\\\"os\\\":{\\\"name\\\":\\\"Android\\\",\\\"version\\\":\\\"library\\\":{\\\"name\\\":\\\"analytics-kotlin\\\","
+                + "\\\"device\\\":{\\\"id\\\":\\\"manufacturer\\\":\\\"model\\\":\\\"name\\\":\\\"type\\\":\\\"android\\\"},"
+                + "\\\"app\\\":{\\\"build\\\":\\\"name\\\":\\\"namespace\\\":\\\"version\\\":\\\"traits\\\":{},"
+                + "\\\"context\\\":{\\\"anonymousId\\\":\\\"userId\\\":\\\"messageId\\\":\\\"timestamp\\\":\\\""
+                + "{\\\"batch\\\":[{\\\"type\\\":\\\"screen\\\"\\\"type\\\":\\\"identify\\\"\\\"properties\\\":{}"
+                + "\\\"type\\\":\\\"track\\\",\\\"event\\\":\\\"properties\\\":{"));
+
+        register(new CompressionDictionary((byte) 3, "mixpanel", 1, ""
+                + "%22%24lib_version%22%3A%22%24app_version_string%22%3A%22%24app_build_number%22%3A"
+                + "%22%24has_nfc%22%3A%22%24has_telephone%22%3A%22%24bluetooth_enabled%22%3A"
+                + "%22%24bluetooth_version%22%3A%22%24screen_dpi%22%3A%22%24screen_height%22%3A"
+                + "%22%24screen_width%22%3A%22%24wifi%22%3A%22%24carrier%22%3A%22%24brand%22%3A"
+                + "%22%24manufacturer%22%3A%22%24model%22%3A%22%24os%22%3A%22Android%22%2C"
+                + "%22%24os_version%22%3A%22mp_lib%22%3A%22android%22%2C%22%24had_persisted_distinct_id%22%3A"
+                + "%22%24insert_id%22%3A%22%24device_id%22%3A%22%24user_id%22%3A%22distinct_id%22%3A"
+                + "%22token%22%3A%22time%22%3A%22%24mp_metadata%22%3A%7B%22%24mp_event_id%22%3A"
+                + "%22%24mp_session_id%22%3A%22%24mp_session_seq_id%22%3A%22%24mp_session_start_sec%22%3A"
+                + "ip=1&data=%5B%7B%22event%22%3A%22properties%22%3A%7B%22"));
+    }
+
+    private final byte id;
+    private final String provider;
+    private final int version;
+    private final byte[] data;
+
+    CompressionDictionary(byte id, @NonNull String provider, int version, @NonNull String providerFragments) {
+        this.id = id;
+        this.provider = provider;
+        this.version = version;
+        this.data = (TRACK_FRAGMENTS + providerFragments).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @VisibleForTesting
+    static void register(@NonNull CompressionDictionary dictionary) {
+        if (dictionariesById.containsKey(dictionary.id)) {
+            throw new IllegalArgumentException("Dictionary id " + dictionary.id + " is already in use");
+        }
+        dictionariesById.put(dictionary.id, dictionary);
+        List<CompressionDictionary> versions = dictionariesByProvider.get(dictionary.provider);
+        if (versions == null) {
+            versions = new ArrayList<>();
+            dictionariesByProvider.put(dictionary.provider, versions);
+        }
+        versions.add(dictionary);
+        versions.sort((a, b) -> Integer.compare(a.version, b.version));
+    }
+
+    /**
+     * Gets the dictionary with the given id.
+     *
+     * @return The dictionary or null if the id is {@link #NONE} or unknown
+     */
+    @Nullable
+    public static CompressionDictionary get(byte id) {
+        return dictionariesById.get(id);
+    }
+
+    /**
+     * Chooses the dictionary of the provider with the most requests in the batch among the
+     * ones with a dictionary not newer than maxVersion.
+     *
+     * @return The id of the dictionary or {@link #NONE} if no provider of the batch has one
+     */
+    public static byte selectFor(@NonNull List<HttpRequest> requests, int maxVersion) {
+
+        final Map<CompressionDictionary, Integer> counts = new HashMap<>();
+        CompressionDictionary selected = null;
+        int selectedCount = 0;
+
+        for (HttpRequest request : requests) {
+            final var dictionary = getNewest(request.getProvider(), maxVersion);
+            if (dictionary == null) {
+                continue;
+            }
+            final Integer previous = counts.get(dictionary);
+            final int count = previous != null ? previous + 1 : 1;
+            counts.put(dictionary, count);
+            if (count > selectedCount) {
+                selected = dictionary;
+                selectedCount = count;
+            }
+        }
+
+        return selected != null ? selected.id : NONE;
+    }
+
+    /**
+     * Gets the newest dictionary of the provider not newer than maxVersion.
+     *
+     * @return The dictionary or null if the provider has none up to that version
+     */
+    @Nullable
+    static CompressionDictionary getNewest(@NonNull String provider, int maxVersion) {
+        final var versions = dictionariesByProvider.get(provider);
+        if (versions == null) {
+            return null;
+        }
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            final var dictionary = versions.get(i);
+            if (dictionary.version <= maxVersion) {
+                return dictionary;
+            }
+        }
+        return null;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    @NonNull
+    public String getProvider() {
+        return provider;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Name advertised to the tracks endpoint so that it inflates the batch with the same
+     * dictionary, e.g. amplitude-v1.
+     */
+    @NonNull
+    public String getName() {
+        return provider + "-v" + version;
+    }
+
+    @NonNull
+    public byte[] getData() {
+        return data.clone();
+    }
+}
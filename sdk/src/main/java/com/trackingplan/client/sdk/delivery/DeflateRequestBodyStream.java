@@ -0,0 +1,54 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Zlib stream used to compress the body of raw-track uploads with a preset dictionary. The
+ * zlib header carries the Adler-32 checksum of the dictionary, so the tracks endpoint can
+ * check that it inflates the body with the same one.
+ */
+final public class DeflateRequestBodyStream extends DeflaterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private boolean closed = false;
+
+    public DeflateRequestBodyStream(
+            @NonNull OutputStream out,
+            int compressionLevel,
+            @NonNull CompressionDictionary dictionary
+    ) {
+        super(out, new Deflater(compressionLevel), BUFFER_SIZE);
+        // Dictionary must be set before anything is written
+        def.setDictionary(dictionary.getData());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            // Deflaters passed to DeflaterOutputStream aren't released when the stream is closed
+            def.end();
+        }
+    }
+
+    /**
+     * Releases the Deflater without finishing the stream. Used instead of close when the body
+     * couldn't be written, since the upload is failing anyway.
+     */
+    public void abort() {
+        closed = true;
+        def.end();
+    }
+}
@@ -0,0 +1,417 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.TrackingplanClient;
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+import com.trackingplan.client.sdk.util.AndroidLog;
+import com.trackingplan.client.sdk.util.TaskRunner;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * TaskRunner task that delivers every pending batch of the outbox.
+ * <p>
+ * Batches are read from the head of the outbox and uploaded in parallel, with up to
+ * maxConcurrentUploads records in flight. Each time an upload finishes, another record is
+ * read ahead and uploaded in its place, even if a previous upload is still in flight.
+ * Outcomes are processed in outbox order, so batches are always acked in the order they
+ * were stored. Only one record is sent at a time while
+ * the circuit breaker is probing the endpoint (HALF_OPEN).
+ * <p>
+ * Uploads run in the upload executor and report back to the TaskRunner thread, which is
+ * the only one that touches the outbox. The TaskRunner thread never waits for an upload, so
+ * other tasks (e.g. storing new batches) keep running while batches are delivered.
+ * <p>
+ * Delivery stops at the first retryable failure, when the circuit breaker is open or while
+ * the endpoint is throttling clients (see {@link Backpressure}), and the remaining batches
+ * are kept in the outbox for the next attempt. Throttled responses pause delivery but aren't
+ * reported to the circuit breaker since the endpoint is reachable. Delivery also stops when
+ * the {@link NetworkCostPolicy}, if any, defers the next batch because of the connection.
+ * <p>
+ * Batches that were still in flight when a retryable failure happened and were delivered
+ * are acked too, so that they aren't uploaded twice. Since the outbox is acked in order, the
+ * failing batch and any other batch before the last delivered one are appended again to the
+ * outbox and sent after the other pending batches. Batches rejected by the endpoint are
+ * removed from the outbox since sending them again would fail the same way, except when they
+ * are rejected for being too large (413). In that case, the batch is split in two halves
+ * that are sent separately.
+ */
+final class DeliverBatchTask implements TaskRunner.AsyncTask<DeliverBatchTask.DeliveryResult> {
+
+    private static final AndroidLog logger = AndroidLog.getInstance();
+
+    // Uploads that finished after a slower one wait to be acked in order. This bounds how
+    // many of them are kept per upload slot, since their records are held in memory.
+    private static final int MAX_UNACKED_UPLOADS_PER_SLOT = 4;
+
+    public static class DeliveryResult {
+        public int numBatchesDelivered;
+        public int numBatchesRejected;
+        public int numBatchesSplit;
+        // Retryable error that stopped the delivery of pending batches or null if none
+        public IOException deliveryError;
+        // True if delivery was skipped or stopped because the circuit breaker is open
+        public boolean circuitOpen;
+        // True if delivery was skipped or stopped because the endpoint is throttling clients
+        public boolean throttled;
+        // True if delivery was stopped because the network cost policy deferred a batch
+        public boolean networkDeferred;
+        // True if there are batches left in the outbox
+        public boolean pendingBatches;
+    }
+
+    private static class Upload {
+        final BatchOutbox.Record record;
+        boolean finished = false;
+        IOException error;
+
+        Upload(BatchOutbox.Record record) {
+            this.record = record;
+        }
+    }
+
+    private final TrackingplanClient client;
+    private final BatchOutbox outbox;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final Backpressure backpressure;
+    @Nullable
+    private final NetworkCostPolicy networkCostPolicy;
+    private final TaskRunner taskRunner;
+    private final ExecutorService uploadExecutor;
+    private final int maxConcurrentUploads;
+
+    // State of the delivery. Only used from TaskRunner thread.
+    private final DeliveryResult result = new DeliveryResult();
+    // Uploads whose outcome wasn't processed yet, in outbox order
+    private final ArrayDeque<Upload> uploads = new ArrayDeque<>();
+    private int numUploadsInFlight = 0;
+    private TaskRunner.Callback<DeliveryResult> callback;
+    // True once no more uploads must be started
+    private boolean stopped = false;
+    private boolean networkDeferred = false;
+    private boolean finished = false;
+
+    private final CountDownLatch finishedLatch = new CountDownLatch(1);
+    private volatile boolean started = false;
+
+    /**
+     * @param networkCostPolicy Policy that decides which batches can be sent on the current
+     *                          connection or null to send them regardless
+     * @param taskRunner TaskRunner where the task runs
+     * @param uploadExecutor Executor where uploads run
+     * @param maxConcurrentUploads Maximum number of records sent at the same time
+     */
+    public DeliverBatchTask(
+            @NonNull final TrackingplanClient client,
+            @NonNull final BatchOutbox outbox,
+            @NonNull final RetryPolicy retryPolicy,
+            @NonNull final CircuitBreaker circuitBreaker,
+            @NonNull final Backpressure backpressure,
+            @Nullable final NetworkCostPolicy networkCostPolicy,
+            @NonNull final TaskRunner taskRunner,
+            @NonNull final ExecutorService uploadExecutor,
+            int maxConcurrentUploads
+    ) {
+        this.client = client;
+        this.outbox = outbox;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.backpressure = backpressure;
+        this.networkCostPolicy = networkCostPolicy;
+        this.taskRunner = taskRunner;
+        this.uploadExecutor = uploadExecutor;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    @Override
+    public void start(@NonNull TaskRunner.Callback<DeliveryResult> callback) {
+        this.callback = callback;
+        if (finished) {
+            // Cancelled before it started
+            callback.onComplete(null, new IOException("Delivery cancelled"));
+            return;
+        }
+        started = true;
+        try {
+            startUploads();
+            finishIfDone();
+        } catch (Exception ex) {
+            finish(null, ex);
+        }
+    }
+
+    /**
+     * Blocks the calling thread until the delivery finishes, if it was started, so that the
+     * outbox can be closed safely. It must not be called from TaskRunner thread.
+     */
+    public void awaitFinished() throws InterruptedException {
+        if (started) {
+            finishedLatch.await();
+        }
+    }
+
+    /**
+     * Stops the delivery without waiting for the uploads in flight, whose batches are kept
+     * in the outbox. Meant for TaskRunner thread, where {@link #awaitFinished()} would block
+     * the processing of their outcomes.
+     */
+    public void cancel() {
+        // NOTE: This method is executed in TaskRunner thread
+        if (callback == null) {
+            finished = true;
+            stopped = true;
+            return;
+        }
+        finish(null, new IOException("Delivery cancelled"));
+    }
+
+    /**
+     * Starts uploads until maxConcurrentUploads records are in flight or delivery must stop.
+     */
+    private void startUploads() throws IOException {
+
+        while (!stopped) {
+
+            if (backpressure.getRemainingPauseMs() > 0) {
+                result.throttled = true;
+                stopped = true;
+                break;
+            }
+
+            if (!circuitBreaker.allowRequest()) {
+                result.circuitOpen = true;
+                stopped = true;
+                break;
+            }
+
+            final boolean probing = circuitBreaker.getState() == CircuitBreaker.State.HALF_OPEN;
+            final boolean windowFull = probing ? !uploads.isEmpty()
+                    : numUploadsInFlight >= maxConcurrentUploads || uploads.size() >= maxConcurrentUploads * MAX_UNACKED_UPLOADS_PER_SLOT;
+            if (windowFull) {
+                break;
+            }
+
+            final BatchOutbox.Record record = uploads.isEmpty() ? outbox.peek() : outbox.peekNext(uploads.getLast().record);
+            if (record == null) {
+                // Every pending batch is in flight already
+                break;
+            }
+
+            // Records after a deferred one aren't sent either so that batches are still acked in order
+            if (networkCostPolicy != null && !networkCostPolicy.canSend(record.getSizeBytes())) {
+                networkDeferred = true;
+                stopped = true;
+                break;
+            }
+
+            startUpload(record);
+        }
+    }
+
+    private void startUpload(@NonNull BatchOutbox.Record record) {
+        final Upload upload = new Upload(record);
+        uploads.addLast(upload);
+        numUploadsInFlight += 1;
+        uploadExecutor.execute(() -> {
+            try {
+                final IOException error = sendRecord(record);
+                taskRunner.execute(() -> onUploadFinished(upload, error));
+            } catch (RuntimeException ex) {
+                taskRunner.execute(() -> finish(null, ex));
+            }
+        });
+    }
+
+    private void onUploadFinished(@NonNull Upload upload, @Nullable IOException error) {
+        // NOTE: This method is executed in TaskRunner thread
+
+        if (finished) {
+            return;
+        }
+
+        upload.finished = true;
+        upload.error = error;
+        numUploadsInFlight -= 1;
+
+        try {
+            processOutcomes();
+            startUploads();
+            finishIfDone();
+        } catch (Exception ex) {
+            finish(null, ex);
+        }
+    }
+
+    private void finishIfDone() throws IOException {
+
+        if (!uploads.isEmpty()) {
+            return;
+        }
+
+        if (result.deliveryError != null) {
+            result.throttled = backpressure.isThrottled();
+            result.circuitOpen = circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+            result.pendingBatches = true;
+        } else {
+            result.pendingBatches = outbox.peek() != null;
+            result.networkDeferred = networkDeferred && result.pendingBatches;
+            if (!result.pendingBatches && networkCostPolicy != null) {
+                networkCostPolicy.resetDeferral();
+            }
+        }
+
+        finish(result, null);
+    }
+
+    private void finish(@Nullable DeliveryResult result, @Nullable Exception error) {
+
+        if (finished) {
+            return;
+        }
+
+        finished = true;
+        stopped = true;
+        finishedLatch.countDown();
+        callback.onComplete(result, error);
+    }
+
+    private IOException sendRecord(@NonNull BatchOutbox.Record record) {
+        try {
+            client.sendRawTracks(record.getHeader(), record.getTracks(), record.getFormat(), record.getDictionaryId());
+            return null;
+        } catch (IOException ex) {
+            return ex;
+        }
+    }
+
+    /**
+     * Acks, splits or keeps the records of the finished uploads at the head of the window,
+     * in order, depending on the outcome of each upload. After a retryable failure, no more
+     * uploads are started and the outcomes of the ones in flight are processed together once
+     * all of them finish.
+     */
+    private void processOutcomes() throws IOException {
+
+        while (result.deliveryError == null && !uploads.isEmpty() && uploads.getFirst().finished) {
+
+            final Upload upload = uploads.getFirst();
+            final BatchOutbox.Record record = upload.record;
+            final IOException error = upload.error;
+
+            if (error == null) {
+                circuitBreaker.onSuccess();
+                backpressure.onSuccess();
+                result.numBatchesDelivered += 1;
+                outbox.ack(record);
+                uploads.removeFirst();
+                continue;
+            }
+
+            if (isPayloadTooLarge(error) && record.getTracks().size() > 1) {
+                circuitBreaker.onSuccess();
+                splitRecord(record);
+                result.numBatchesSplit += 1;
+                uploads.removeFirst();
+                continue;
+            }
+
+            if (Backpressure.isThrottled(error)) {
+                backpressure.onThrottled(((TrackingplanSendException) error).getRetryAfterMs());
+                result.deliveryError = error;
+                stopped = true;
+                break;
+            }
+
+            if (retryPolicy.isRetryable(error)) {
+                circuitBreaker.onFailure();
+                result.deliveryError = error;
+                stopped = true;
+                break;
+            }
+
+            // The endpoint is reachable but rejected the batch
+            circuitBreaker.onSuccess();
+            result.numBatchesRejected += 1;
+            logger.warn("Batch rejected by tracks endpoint and removed from outbox: " + error.getMessage());
+            outbox.ack(record);
+            uploads.removeFirst();
+        }
+
+        if (result.deliveryError != null) {
+            for (Upload upload : uploads) {
+                if (!upload.finished) {
+                    return;
+                }
+            }
+            ackDeliveredAfterFailure(new ArrayList<>(uploads));
+            uploads.clear();
+        }
+    }
+
+    /**
+     * Acks the uploads that were delivered after the failing one, which is the first of the
+     * list. Records from the failing one up to the last delivered one that weren't delivered
+     * are appended again before being acked, as split halves are, so that none is lost if the
+     * process dies in between. Records after the last delivered one are kept in place.
+     */
+    private void ackDeliveredAfterFailure(@NonNull List<Upload> failedUploads) throws IOException {
+
+        int lastDelivered = failedUploads.size() - 1;
+        while (lastDelivered > 0 && failedUploads.get(lastDelivered).error != null) {
+            lastDelivered -= 1;
+        }
+
+        if (lastDelivered == 0) {
+            return;
+        }
+
+        int numRequeued = 0;
+        for (int i = 0; i <= lastDelivered; i++) {
+            final Upload upload = failedUploads.get(i);
+            if (upload.error == null) {
+                result.numBatchesDelivered += 1;
+            } else {
+                final BatchOutbox.Record record = upload.record;
+                outbox.append(record.getHeader(), record.getTracks(), record.getFormat(), record.getDictionaryId());
+                numRequeued += 1;
+            }
+        }
+
+        for (int i = 0; i <= lastDelivered; i++) {
+            outbox.ack(failedUploads.get(i).record);
+        }
+
+        logger.debug("Batches delivered after a failed one were acked. "
+                + numRequeued + " undelivered batches moved to the end of the outbox");
+    }
+
+    /**
+     * Replaces the record with two records holding half of its tracks each. Halves are
+     * appended before the record is acked so that no track is lost if the process dies in
+     * between (tracks would be sent twice instead). As a result, halves are sent after any
+     * other pending batch. Both halves keep the header and the dictionary of the record, if any.
+     */
+    private void splitRecord(@NonNull BatchOutbox.Record record) throws IOException {
+        final List<byte[]> tracks = record.getTracks();
+        final int half = tracks.size() / 2;
+        outbox.append(record.getHeader(), tracks.subList(0, half), record.getFormat(), record.getDictionaryId());
+        outbox.append(record.getHeader(), tracks.subList(half, tracks.size()), record.getFormat(), record.getDictionaryId());
+        outbox.ack(record);
+        logger.debug("Batch too large for tracks endpoint. Split into batches of "
+                + half + " and " + (tracks.size() - half) + " raw tracks");
+    }
+
+    private static boolean isPayloadTooLarge(@NonNull IOException error) {
+        return error instanceof TrackingplanSendException
+                && ((TrackingplanSendException) error).getResponseCode() == 413;
+    }
+}
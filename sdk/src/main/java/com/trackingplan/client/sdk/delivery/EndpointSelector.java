@@ -0,0 +1,210 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.shared.ServiceLocator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses which of the configured tracks endpoints batches are sent to.
+ * <p>
+ * The upload latency and error rate of every endpoint are tracked as exponentially weighted
+ * moving averages. The endpoint is chosen when a session starts and kept for the whole
+ * session. Endpoints that were never used are tried first, in config order, so that all of
+ * them get measured. Afterwards, the endpoint with the lowest expected latency is chosen,
+ * where errors make an endpoint look slower.
+ * <p>
+ * When an upload to the current endpoint fails, the selector fails over to the best endpoint
+ * that isn't cooling down. A failed endpoint cools down for a period that doubles with every
+ * consecutive failure (up to a maximum). If all of them are cooling down, the one that
+ * recovers first is used.
+ * <p>
+ * Time is measured with the elapsed real time of the shared TimeProvider. Methods are
+ * synchronized because the selector is updated from upload threads and read from the
+ * Trackingplan thread.
+ */
+final public class EndpointSelector {
+
+    public static final long DEFAULT_COOLDOWN_MS = 30 * 1000;
+    public static final long DEFAULT_MAX_COOLDOWN_MS = 10 * 60 * 1000;
+
+    // Weight of the last sample in the moving averages
+    private static final double EWMA_ALPHA = 0.3;
+    // An endpoint that always fails looks this many times slower than its latency
+    private static final double ERROR_PENALTY = 4;
+
+    private static final class EndpointStats {
+        final String url;
+        int numSamples = 0;
+        // Latency of successful uploads or -1 if none succeeded
+        double latencyMs = -1;
+        double errorRate = 0;
+        int consecutiveFailures = 0;
+        long coolingDownUntilMs = 0;
+
+        EndpointStats(@NonNull String url) {
+            this.url = url;
+        }
+
+        void addSample(long uploadLatencyMs, boolean error) {
+            // Failures say nothing about latency (e.g. a refused connection fails fast)
+            if (!error) {
+                latencyMs = latencyMs < 0 ? uploadLatencyMs : EWMA_ALPHA * uploadLatencyMs + (1 - EWMA_ALPHA) * latencyMs;
+            }
+            final double errorSample = error ? 1 : 0;
+            errorRate = numSamples == 0 ? errorSample : EWMA_ALPHA * errorSample + (1 - EWMA_ALPHA) * errorRate;
+            numSamples += 1;
+        }
+
+        double getScore() {
+            if (latencyMs < 0) {
+                return Double.MAX_VALUE;
+            }
+            return latencyMs * (1 + ERROR_PENALTY * errorRate);
+        }
+    }
+
+    private final List<EndpointStats> endpoints = new ArrayList<>();
+    private final List<String> urls;
+    private final long cooldownMs;
+    private final long maxCooldownMs;
+
+    private EndpointStats current;
+
+    public EndpointSelector(@NonNull List<String> urls) {
+        this(urls, DEFAULT_COOLDOWN_MS, DEFAULT_MAX_COOLDOWN_MS);
+    }
+
+    public EndpointSelector(@NonNull List<String> urls, long cooldownMs, long maxCooldownMs) {
+        if (urls.isEmpty() || cooldownMs < 0 || maxCooldownMs < cooldownMs) {
+            throw new IllegalArgumentException("Invalid endpoint selector settings");
+        }
+        for (String url : urls) {
+            endpoints.add(new EndpointStats(url));
+        }
+        this.urls = Collections.unmodifiableList(new ArrayList<>(urls));
+        this.cooldownMs = cooldownMs;
+        this.maxCooldownMs = maxCooldownMs;
+        this.current = endpoints.get(0);
+    }
+
+    @NonNull
+    public List<String> getEndpoints() {
+        return urls;
+    }
+
+    /**
+     * Endpoint batches are currently sent to.
+     */
+    @NonNull
+    public synchronized String getCurrentEndpoint() {
+        return current.url;
+    }
+
+    /**
+     * Chooses the endpoint for a new session.
+     *
+     * @return The chosen endpoint
+     */
+    @NonNull
+    public synchronized String selectForSession() {
+        current = chooseBest(null);
+        return current.url;
+    }
+
+    /**
+     * Reports an upload that reached the endpoint and got a response that says the endpoint
+     * is healthy (i.e. any response but 5xx or 429). Throttled uploads (429 and 503) aren't
+     * reported, as throttling applies to every endpoint.
+     */
+    public synchronized void onSuccess(@NonNull String url, long latencyMs) {
+        final var stats = find(url);
+        if (stats == null) {
+            return;
+        }
+        stats.addSample(latencyMs, false);
+        stats.consecutiveFailures = 0;
+        stats.coolingDownUntilMs = 0;
+    }
+
+    /**
+     * Reports an upload that couldn't reach the endpoint or that the endpoint couldn't
+     * handle. If the endpoint is the current one, the selector fails over to another one.
+     *
+     * @return True if the current endpoint changed
+     */
+    public synchronized boolean onFailure(@NonNull String url, long latencyMs) {
+        final var stats = find(url);
+        if (stats == null) {
+            return false;
+        }
+
+        stats.addSample(latencyMs, true);
+        stats.consecutiveFailures += 1;
+        final int shift = Math.min(stats.consecutiveFailures - 1, 30);
+        stats.coolingDownUntilMs = now() + Math.min(cooldownMs << shift, maxCooldownMs);
+
+        if (stats != current || endpoints.size() == 1) {
+            return false;
+        }
+
+        current = chooseBest(stats);
+        return current != stats;
+    }
+
+    /**
+     * Expected latency of the given endpoint, or -1 if no upload to it succeeded.
+     */
+    public synchronized double getScore(@NonNull String url) {
+        final var stats = find(url);
+        return stats == null || stats.latencyMs < 0 ? -1 : stats.getScore();
+    }
+
+    @NonNull
+    private EndpointStats chooseBest(EndpointStats excluded) {
+
+        final long nowMs = now();
+        EndpointStats best = null;
+
+        for (EndpointStats stats : endpoints) {
+            if (stats == excluded || stats.coolingDownUntilMs > nowMs) {
+                continue;
+            }
+            if (stats.numSamples == 0) {
+                return stats;
+            }
+            if (best == null || stats.getScore() < best.getScore()) {
+                best = stats;
+            }
+        }
+
+        if (best != null) {
+            return best;
+        }
+
+        // All endpoints are cooling down
+        for (EndpointStats stats : endpoints) {
+            if (best == null || stats.coolingDownUntilMs < best.coolingDownUntilMs) {
+                best = stats;
+            }
+        }
+        return best;
+    }
+
+    private EndpointStats find(@NonNull String url) {
+        for (EndpointStats stats : endpoints) {
+            if (stats.url.equals(url)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
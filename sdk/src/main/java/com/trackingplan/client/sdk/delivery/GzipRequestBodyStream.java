@@ -0,0 +1,31 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip stream used to compress the body of raw-track uploads. Unlike {@link GZIPOutputStream},
+ * the compression level of the underlying Deflater can be configured.
+ */
+final public class GzipRequestBodyStream extends GZIPOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    public GzipRequestBodyStream(@NonNull OutputStream out, int compressionLevel) throws IOException {
+        super(out, BUFFER_SIZE);
+        // Level must be set before anything is written. Header written by super is not deflated.
+        def.setLevel(compressionLevel);
+    }
+
+    /**
+     * Releases the Deflater without finishing the stream. Used instead of close when the body
+     * couldn't be written, since the upload is failing anyway.
+     */
+    public void abort() {
+        def.end();
+    }
+}
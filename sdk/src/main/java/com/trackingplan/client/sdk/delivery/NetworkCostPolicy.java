@@ -0,0 +1,162 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.shared.ServiceLocator;
+
+/**
+ * Adapts the delivery of batches to what the current connection costs the user.
+ * <p>
+ * On metered networks, batches are held longer (i.e. they are larger) and compressed as much
+ * as possible. On expensive networks (roaming or Data Saver enabled), batches are held even
+ * longer and large batches are deferred until the user is back on a cheaper network, up to
+ * a maximum deferral time. Once it expires, every large batch is let through until the
+ * deferred backlog is delivered or the network changes. Nothing is sent without connectivity. Pending batches are
+ * delivered as soon as the device reaches an unmetered network.
+ * <p>
+ * Time is measured with the elapsed real time of the shared TimeProvider. Methods are
+ * synchronized because the policy is queried from the worker thread and the Trackingplan
+ * thread.
+ */
+final public class NetworkCostPolicy {
+
+    public enum Cost {
+        OFFLINE,
+        UNMETERED,
+        METERED,
+        EXPENSIVE
+    }
+
+    public static final long DEFAULT_LARGE_BATCH_SIZE_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_DEFERRAL_MS = 60 * 60 * 1000;
+
+    private static final int METERED_BATCH_WIDENING_FACTOR = 2;
+    private static final int EXPENSIVE_BATCH_WIDENING_FACTOR = 4;
+
+    private final NetworkStateProvider networkStateProvider;
+    private final long largeBatchSizeBytes;
+    private final long maxDeferralMs;
+
+    // Time at which a large batch was deferred for the first time or -1 if none is deferred
+    private long deferringSinceMs = -1;
+    // True once the max deferral was reached, until the backlog is delivered or the network changes
+    private boolean deferralExpired = false;
+
+    public NetworkCostPolicy(@NonNull NetworkStateProvider networkStateProvider) {
+        this(networkStateProvider, DEFAULT_LARGE_BATCH_SIZE_BYTES, DEFAULT_MAX_DEFERRAL_MS);
+    }
+
+    public NetworkCostPolicy(@NonNull NetworkStateProvider networkStateProvider, long largeBatchSizeBytes, long maxDeferralMs) {
+        if (largeBatchSizeBytes <= 0 || maxDeferralMs < 0) {
+            throw new IllegalArgumentException("Invalid network cost policy settings");
+        }
+        this.networkStateProvider = networkStateProvider;
+        this.largeBatchSizeBytes = largeBatchSizeBytes;
+        this.maxDeferralMs = maxDeferralMs;
+    }
+
+    @NonNull
+    public NetworkStateProvider getNetworkStateProvider() {
+        return networkStateProvider;
+    }
+
+    @NonNull
+    public Cost getCost() {
+        return getCost(networkStateProvider.getNetworkState());
+    }
+
+    @NonNull
+    public static Cost getCost(@NonNull NetworkState state) {
+        if (!state.isConnected()) {
+            return Cost.OFFLINE;
+        }
+        if (state.isRoaming() || state.isDataSaverEnabled()) {
+            return Cost.EXPENSIVE;
+        }
+        return state.isMetered() ? Cost.METERED : Cost.UNMETERED;
+    }
+
+    /**
+     * Factor by which batches are made larger on the given network (see
+     * RequestQueue.setBatchWideningFactor).
+     */
+    public static int getBatchWideningFactor(@NonNull Cost cost) {
+        switch (cost) {
+            case METERED:
+                return METERED_BATCH_WIDENING_FACTOR;
+            case EXPENSIVE:
+                return EXPENSIVE_BATCH_WIDENING_FACTOR;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Returns true if uploads should use the best compression level, trading CPU for bytes.
+     */
+    public static boolean isMaxCompressionPreferred(@NonNull Cost cost) {
+        return cost == Cost.METERED || cost == Cost.EXPENSIVE;
+    }
+
+    /**
+     * Returns true if a batch of the given size can be sent now. Large batches stop being
+     * deferred once the oldest deferral reaches the maximum deferral time, and aren't deferred
+     * again until {@link #resetDeferral()} is called.
+     */
+    public synchronized boolean canSend(long batchSizeBytes) {
+
+        final Cost cost = getCost();
+
+        if (cost == Cost.OFFLINE) {
+            return false;
+        }
+
+        if (cost != Cost.EXPENSIVE || batchSizeBytes <= largeBatchSizeBytes) {
+            if (cost != Cost.EXPENSIVE) {
+                deferringSinceMs = -1;
+                deferralExpired = false;
+            }
+            return true;
+        }
+
+        if (deferralExpired) {
+            return true;
+        }
+
+        final long nowMs = now();
+        if (deferringSinceMs < 0) {
+            deferringSinceMs = nowMs;
+        }
+
+        if (nowMs - deferringSinceMs >= maxDeferralMs) {
+            deferringSinceMs = -1;
+            deferralExpired = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Lets large batches be deferred again after the max deferral expired. Called when the
+     * deferred backlog has been delivered or the network changed.
+     */
+    public synchronized void resetDeferral() {
+        deferralExpired = false;
+    }
+
+    /**
+     * Time left until deferred large batches are sent anyway, or 0 if none is deferred.
+     */
+    public synchronized long getRemainingDeferralMs() {
+        if (deferringSinceMs < 0) {
+            return 0;
+        }
+        return Math.max(0, deferringSinceMs + maxDeferralMs - now());
+    }
+
+    private static long now() {
+        return ServiceLocator.INSTANCE.getTimeProvider().elapsedRealTime();
+    }
+}
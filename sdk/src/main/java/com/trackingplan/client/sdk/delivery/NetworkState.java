@@ -0,0 +1,80 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import java.util.Objects;
+
+/**
+ * Snapshot of the connection used to reach the tracks endpoint.
+ */
+final public class NetworkState {
+
+    /**
+     * State used when the connection can't be inspected. Batches are sent as usual.
+     */
+    public static final NetworkState UNKNOWN = new NetworkState(true, false, false, false);
+
+    public static final NetworkState OFFLINE = new NetworkState(false, false, false, false);
+
+    private final boolean connected;
+    private final boolean metered;
+    private final boolean roaming;
+    private final boolean dataSaverEnabled;
+
+    /**
+     * @param connected        True if there is a network with internet access
+     * @param metered          True if the user may pay for the traffic (e.g. mobile data)
+     * @param roaming          True if the network is a roaming network
+     * @param dataSaverEnabled True if the user restricted background data for this app
+     */
+    public NetworkState(boolean connected, boolean metered, boolean roaming, boolean dataSaverEnabled) {
+        this.connected = connected;
+        this.metered = metered;
+        this.roaming = roaming;
+        this.dataSaverEnabled = dataSaverEnabled;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isMetered() {
+        return metered;
+    }
+
+    public boolean isRoaming() {
+        return roaming;
+    }
+
+    public boolean isDataSaverEnabled() {
+        return dataSaverEnabled;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        NetworkState that = (NetworkState) o;
+        return connected == that.connected
+                && metered == that.metered
+                && roaming == that.roaming
+                && dataSaverEnabled == that.dataSaverEnabled;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(connected, metered, roaming, dataSaverEnabled);
+    }
+
+    @Override
+    @NonNull
+    public String toString() {
+        return "NetworkState{" +
+                "connected=" + connected +
+                ", metered=" + metered +
+                ", roaming=" + roaming +
+                ", dataSaver=" + dataSaverEnabled +
+                '}';
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Source of the state of the connection used to reach the tracks endpoint.
+ */
+public interface NetworkStateProvider {
+
+    interface Listener {
+        /**
+         * Called from any thread when the default network or its capabilities change.
+         */
+        void onNetworkStateChanged(@NonNull NetworkState state);
+    }
+
+    /**
+     * Current state of the default network. It can be called from any thread.
+     */
+    @NonNull
+    NetworkState getNetworkState();
+
+    /**
+     * Starts notifying changes to the given listener. Passing null stops notifications.
+     */
+    void setListener(@Nullable Listener listener);
+}
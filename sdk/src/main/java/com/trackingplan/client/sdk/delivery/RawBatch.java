@@ -0,0 +1,60 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Raw tracks created from a batch of intercepted requests, ready to be stored in the outbox.
+ * <p>
+ * Batches in one of the envelope formats also have a header with the fields shared by all
+ * their tracks. Those fields are left out of the tracks themselves.
+ * <p>
+ * Batches can also have the id of the preset dictionary they are compressed with when sent
+ * (see CompressionDictionary).
+ */
+final public class RawBatch {
+
+    private final byte format;
+    private final byte[] header;
+    private final List<byte[]> tracks;
+    private final byte dictionaryId;
+
+    /**
+     * @param format One of the BatchOutbox formats
+     * @param header Shared fields of the tracks or null if the format isn't an envelope format
+     */
+    public RawBatch(byte format, @Nullable byte[] header, @NonNull List<byte[]> tracks) {
+        this(format, header, tracks, CompressionDictionary.NONE);
+    }
+
+    /**
+     * @param dictionaryId Id of the preset dictionary of the batch or CompressionDictionary.NONE
+     */
+    public RawBatch(byte format, @Nullable byte[] header, @NonNull List<byte[]> tracks, byte dictionaryId) {
+        this.format = format;
+        this.header = header;
+        this.tracks = tracks;
+        this.dictionaryId = dictionaryId;
+    }
+
+    public byte getFormat() {
+        return format;
+    }
+
+    @Nullable
+    public byte[] getHeader() {
+        return header;
+    }
+
+    @NonNull
+    public List<byte[]> getTracks() {
+        return tracks;
+    }
+
+    public byte getDictionaryId() {
+        return dictionaryId;
+    }
+}
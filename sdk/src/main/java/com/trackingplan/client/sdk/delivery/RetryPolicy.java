@@ -0,0 +1,85 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.client.sdk.exceptions.TrackingplanSendException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides which delivery failures are worth retrying and how long to wait before the next
+ * attempt.
+ * <p>
+ * Timeouts, connectivity errors, 5xx, 408 and 429 responses are retryable. Any other 4xx
+ * response means the endpoint rejected the batch, so sending it again won't help.
+ * <p>
+ * Delays grow exponentially with the number of consecutive failed attempts and are randomized
+ * with full jitter (a random delay between 0 and the exponential cap) so that devices that
+ * failed at the same time don't retry at the same time.
+ */
+final public class RetryPolicy {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 2 * 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random;
+
+    public RetryPolicy() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+
+    public RetryPolicy(long baseDelayMs, long maxDelayMs, @NonNull Random random) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Invalid retry delays: base " + baseDelayMs + ", max " + maxDelayMs);
+        }
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+
+    public boolean isRetryable(@NonNull IOException error) {
+
+        if (error instanceof TrackingplanSendException) {
+            final int responseCode = ((TrackingplanSendException) error).getResponseCode();
+            if (responseCode != TrackingplanSendException.NO_RESPONSE_CODE) {
+                return isRetryableResponseCode(responseCode);
+            }
+            // Batch couldn't be encoded. It will fail the same way again.
+            if (error.getCause() instanceof JSONException) {
+                return false;
+            }
+        }
+
+        // Timeouts and connectivity errors
+        return true;
+    }
+
+    public static boolean isRetryableResponseCode(int responseCode) {
+        return responseCode >= 500 || responseCode == 408 || responseCode == 429;
+    }
+
+    /**
+     * Delay before the next attempt.
+     *
+     * @param attempt Number of consecutive failed attempts so far (starting at 1)
+     */
+    public long getDelayMs(int attempt) {
+        final long cap = getMaxDelayMs(attempt);
+        return (long) (random.nextDouble() * (cap + 1));
+    }
+
+    /**
+     * Upper bound of the delay before the next attempt, that is, the delay without jitter.
+     */
+    public long getMaxDelayMs(int attempt) {
+        final int exponent = Math.max(0, Math.min(attempt - 1, 30));
+        final long delayMs = baseDelayMs << exponent;
+        return delayMs <= 0 || delayMs > maxDelayMs ? maxDelayMs : delayMs;
+    }
+}
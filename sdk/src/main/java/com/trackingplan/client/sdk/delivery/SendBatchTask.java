@@ -41,8 +41,15 @@ final class SendBatchTask implements Callable<SendBatchTask.BatchResult> {
 
     @Override
     public BatchResult call() throws Exception {
-        int numRequestsSent = client.sendTracks(batch, this.session);
-        int numFailedRequests = batch.size() - numRequestsSent;
-        return new BatchResult(numRequestsSent, numFailedRequests);
+        try {
+            int numRequestsSent = client.sendTracks(batch, this.session);
+            int numFailedRequests = batch.size() - numRequestsSent;
+            return new BatchResult(numRequestsSent, numFailedRequests);
+        } finally {
+            // Sent or discarded, payloads aren't needed anymore
+            for (HttpRequest request : batch) {
+                request.releasePayload();
+            }
+        }
     }
 }
@@ -0,0 +1,61 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.client.sdk.TrackingplanClient;
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.TrackingplanSession;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * TaskRunner task that converts a batch to raw tracks and appends it to the outbox.
+ * Delivery is done afterwards by {@link DeliverBatchTask}.
+ */
+final class StoreBatchTask implements Callable<StoreBatchTask.StoreResult> {
+
+    public static class StoreResult {
+        public final int numRequestsQueued;
+        public final int numFailedRequests;
+
+        public StoreResult(int numRequestsQueued, int numFailedRequests) {
+            this.numRequestsQueued = numRequestsQueued;
+            this.numFailedRequests = numFailedRequests;
+        }
+    }
+
+    private final List<HttpRequest> batch;
+    private final TrackingplanSession session;
+    private final TrackingplanClient client;
+    private final BatchOutbox outbox;
+
+    public StoreBatchTask(
+            @NonNull final List<HttpRequest> batch,
+            @NonNull final TrackingplanSession session,
+            @NonNull final TrackingplanClient client,
+            @NonNull final BatchOutbox outbox
+    ) {
+        this.batch = batch;
+        this.session = session;
+        this.client = client;
+        this.outbox = outbox;
+    }
+
+    @Override
+    public StoreResult call() throws Exception {
+        final RawBatch rawBatch;
+        try {
+            rawBatch = client.createRawBatch(batch, session, client.getRawTrackFormat());
+        } finally {
+            // Raw tracks hold a copy of the payloads
+            for (HttpRequest request : batch) {
+                request.releasePayload();
+            }
+        }
+        outbox.append(rawBatch.getHeader(), rawBatch.getTracks(), rawBatch.getFormat(), rawBatch.getDictionaryId());
+        final int numRawTracks = rawBatch.getTracks().size();
+        return new StoreResult(numRawTracks, batch.size() - numRawTracks);
+    }
+}
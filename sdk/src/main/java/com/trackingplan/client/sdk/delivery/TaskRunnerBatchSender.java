@@ -2,33 +2,435 @@
 package com.trackingplan.client.sdk.delivery;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.trackingplan.client.sdk.BatchSender;
 import com.trackingplan.client.sdk.TrackingplanClient;
+import com.trackingplan.client.sdk.TrackingplanConfig;
 import com.trackingplan.client.sdk.interception.HttpRequest;
 import com.trackingplan.shared.TrackingplanSession;
 import com.trackingplan.client.sdk.util.AndroidLog;
 import com.trackingplan.client.sdk.util.TaskRunner;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * TaskRunner implementation of a BatchSender
+ * TaskRunner implementation of a BatchSender.
+ * <p>
+ * When an outbox is provided, batches are stored on disk before being sent and are only
+ * removed after they have been delivered. Otherwise, batches are sent once and discarded
+ * if sending fails.
+ * <p>
+ * Batches stored while a delivery is running are delivered together by the next one, so that
+ * a backlog (e.g. after the pre-queue drains) is uploaded with up to maxConcurrentUploads
+ * batches in flight instead of one after the other. Uploads don't block the TaskRunner
+ * thread, so batches keep being stored while a delivery is running. Send callbacks are still called in the
+ * order batches were sent, once the delivery that covered them finishes.
+ * <p>
+ * Retryable failures schedule a new delivery attempt with exponential backoff and jitter.
+ * While a retry is scheduled, new batches are stored in the outbox without trying to send
+ * them. The circuit breaker postpones retries while the tracks endpoint keeps failing.
+ * <p>
+ * Throttled responses (429 and 503) pause every delivery for the time requested by the
+ * endpoint (see {@link Backpressure}). The BackpressureListener is told when throttling
+ * starts, escalates and ends so that the SDK can buffer and thin out tracks meanwhile.
  */
 final public class TaskRunnerBatchSender implements BatchSender {
 
     private static final AndroidLog logger = AndroidLog.getInstance();
 
-    private final TrackingplanClient client;
+    private static final long UPLOAD_THREAD_KEEP_ALIVE_MS = 30 * 1000;
+
+    public interface BackpressureListener {
+        /**
+         * Called from Trackingplan thread when the throttle level of the tracks endpoint
+         * changes. Level 0 means that the endpoint has recovered.
+         */
+        void onBackpressureChanged(int level);
+    }
+
+    private static class StoredBatch {
+        final long batchId;
+        final StoreBatchTask.StoreResult storeResult;
+        final SendCallback callback;
+
+        StoredBatch(long batchId, StoreBatchTask.StoreResult storeResult, SendCallback callback) {
+            this.batchId = batchId;
+            this.storeResult = storeResult;
+            this.callback = callback;
+        }
+    }
+
     private final TaskRunner taskRunner;
+    @Nullable
+    private final BatchOutbox outbox;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final Backpressure backpressure;
+    private final int maxConcurrentUploads;
+    private final ThreadPoolExecutor uploadExecutor;
+    private TrackingplanClient client;
+
+    // Stored batches waiting for the next delivery to report their outcome
+    private final Queue<StoredBatch> storedBatches = new ArrayDeque<>();
+    private boolean deliveryRunning = false;
+    private boolean deliveryRequested = false;
+    // Last delivery started or scheduled, so that close can wait for its uploads
+    @Nullable
+    private DeliverBatchTask lastDelivery;
+
+    private Runnable retryTask = null;
+    private int numFailedAttempts = 0;
+    private boolean closed = false;
+
+    @Nullable
+    private BackpressureListener backpressureListener;
+    private int reportedBackpressureLevel = 0;
+
+    @Nullable
+    private NetworkCostPolicy networkCostPolicy;
+
+    public TaskRunnerBatchSender(
+            @NonNull TrackingplanClient client,
+            @NonNull TaskRunner taskRunner,
+            @Nullable BatchOutbox outbox
+    ) {
+        this(client, taskRunner, outbox, TrackingplanConfig.DEFAULT_MAX_CONCURRENT_UPLOADS);
+    }
+
+    public TaskRunnerBatchSender(
+            @NonNull TrackingplanClient client,
+            @NonNull TaskRunner taskRunner,
+            @Nullable BatchOutbox outbox,
+            int maxConcurrentUploads
+    ) {
+        this(client, taskRunner, outbox, new RetryPolicy(), new CircuitBreaker(), maxConcurrentUploads);
+    }
 
-    public TaskRunnerBatchSender(@NonNull TrackingplanClient client, @NonNull TaskRunner taskRunner) {
+    public TaskRunnerBatchSender(
+            @NonNull TrackingplanClient client,
+            @NonNull TaskRunner taskRunner,
+            @Nullable BatchOutbox outbox,
+            @NonNull RetryPolicy retryPolicy,
+            @NonNull CircuitBreaker circuitBreaker,
+            int maxConcurrentUploads
+    ) {
+        this(client, taskRunner, outbox, retryPolicy, circuitBreaker, new Backpressure(), maxConcurrentUploads);
+    }
+
+    public TaskRunnerBatchSender(
+            @NonNull TrackingplanClient client,
+            @NonNull TaskRunner taskRunner,
+            @Nullable BatchOutbox outbox,
+            @NonNull RetryPolicy retryPolicy,
+            @NonNull CircuitBreaker circuitBreaker,
+            @NonNull Backpressure backpressure,
+            int maxConcurrentUploads
+    ) {
+        if (maxConcurrentUploads < 1) {
+            throw new IllegalArgumentException("Parameter maxConcurrentUploads must be greater than 0");
+        }
         this.client = client;
         this.taskRunner = taskRunner;
+        this.outbox = outbox;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.backpressure = backpressure;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.uploadExecutor = makeUploadExecutor(maxConcurrentUploads);
+    }
+
+    /**
+     * Sets the client used for the next batches. Batches already scheduled keep using the
+     * previous client. This method must be called from Trackingplan thread.
+     */
+    public void setClient(@NonNull TrackingplanClient client) {
+        this.client = client;
+    }
+
+    /**
+     * This method must be called from Trackingplan thread.
+     */
+    public void setBackpressureListener(@Nullable BackpressureListener listener) {
+        this.backpressureListener = listener;
+    }
+
+    /**
+     * Sets the policy that decides which batches can be sent on the current connection. Null
+     * sends batches regardless of the connection. This method must be called from
+     * Trackingplan thread.
+     */
+    public void setNetworkCostPolicy(@Nullable NetworkCostPolicy networkCostPolicy) {
+        this.networkCostPolicy = networkCostPolicy;
     }
 
     @Override
     public void send(@NonNull final List<HttpRequest> batch, @NonNull final TrackingplanSession session, final long batchId, SendCallback callback) {
+
+        if (outbox == null) {
+            sendWithoutOutbox(batch, session, batchId, callback);
+            return;
+        }
+
+        final var task = new StoreBatchTask(batch, session, client, outbox);
+        taskRunner.executeTask(task, (storeResult, error) -> {
+            // NOTE: This callback is executed in Trackingplan thread
+            if (error != null) {
+                logger.error("Send failed and batch " + batchId + " will be discarded: " + error.getMessage());
+                notifyBatchSent(batchId, callback);
+                return;
+            }
+            if (retryTask != null || closed) {
+                logger.debug("Batch " + batchId + " kept in outbox until the next delivery attempt");
+                // The retry may have been running already when this batch was stored
+                deliveryRequested = true;
+                notifyBatchSent(batchId, callback);
+                return;
+            }
+            storedBatches.add(new StoredBatch(batchId, storeResult, callback));
+            requestDelivery();
+        });
+    }
+
+    /**
+     * Delivers the batches left in the outbox by previous executions (e.g. because the app was
+     * killed or the device was offline). This method must be called from Trackingplan thread.
+     */
+    public void deliverPendingBatches() {
+
+        if (outbox == null) {
+            return;
+        }
+
+        requestDelivery();
+    }
+
+    /**
+     * Delivers the outbox right away, even if a retry was scheduled. It is meant for when the
+     * connection gets cheaper or comes back, so that deferred batches don't wait for the retry.
+     * Circuit breaker and throttling pauses still apply. This method must be called from
+     * Trackingplan thread.
+     */
+    public void deliverNow() {
+
+        if (outbox == null || closed) {
+            return;
+        }
+
+        if (retryTask != null) {
+            taskRunner.cancelDelayedTask(retryTask);
+            retryTask = null;
+        }
+
+        requestDelivery();
+    }
+
+    /**
+     * Releases the outbox and cancels any scheduled retry. It must be called from Trackingplan
+     * thread once there are no pending tasks. Uploads of a running delivery are waited for,
+     * unless it's called from TaskRunner thread, where the delivery is cancelled instead.
+     */
+    public void close() {
+        closed = true;
+        if (retryTask != null) {
+            taskRunner.cancelDelayedTask(retryTask);
+            retryTask = null;
+        }
+        uploadExecutor.shutdown();
+        if (lastDelivery != null) {
+            // Uploads may still be in flight and their outcomes are written to the outbox
+            if (taskRunner.isCurrentThread()) {
+                // Outcomes are processed in this thread, so they cannot be waited for
+                lastDelivery.cancel();
+            } else {
+                try {
+                    lastDelivery.awaitFinished();
+                } catch (InterruptedException e) {
+                    logger.warn("Current thread interrupted while waiting for delivery to finish");
+                }
+            }
+            lastDelivery = null;
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Starts a delivery of the outbox unless one is already running or a retry is scheduled.
+     * In that case, the delivery is done once the current one finishes.
+     */
+    private void requestDelivery() {
+
+        if (closed) {
+            return;
+        }
+
+        if (deliveryRunning || retryTask != null) {
+            deliveryRequested = true;
+            return;
+        }
+
+        deliveryRunning = true;
+        deliveryRequested = false;
+
+        final List<StoredBatch> batches = new ArrayList<>(storedBatches);
+        storedBatches.clear();
+
+        taskRunner.executeAsyncTask(newDeliverBatchTask(), (result, error) -> {
+            deliveryRunning = false;
+            onDeliveryCompleted(batches, result, error);
+        });
+    }
+
+    private DeliverBatchTask newDeliverBatchTask() {
+        lastDelivery = new DeliverBatchTask(client, outbox, retryPolicy, circuitBreaker, backpressure, networkCostPolicy, taskRunner, uploadExecutor, maxConcurrentUploads);
+        return lastDelivery;
+    }
+
+    private void onDeliveryCompleted(
+            @NonNull List<StoredBatch> batches,
+            @Nullable DeliverBatchTask.DeliveryResult result,
+            @Nullable Exception error
+    ) {
+        // NOTE: This callback is executed in Trackingplan thread
+
+        for (StoredBatch batch : batches) {
+            if (error != null) {
+                logger.warn("Send failed and batch " + batch.batchId + " was kept in outbox for later delivery: " + error.getMessage());
+            } else if (result.pendingBatches && result.networkDeferred && result.deliveryError == null) {
+                logger.debug("Batch " + batch.batchId + " kept in outbox until the network allows its delivery");
+            } else if (result.pendingBatches) {
+                final String reason = result.deliveryError != null ? result.deliveryError.getMessage()
+                        : result.throttled ? "tracks endpoint is throttling clients" : "circuit breaker is open";
+                logger.warn("Send failed and batch " + batch.batchId + " was kept in outbox for later delivery: " + reason);
+            } else {
+                logger.debug(batch.storeResult.numRequestsQueued + " raw tracks of batch " + batch.batchId + " sent to Trackingplan (" + batch.storeResult.numFailedRequests + " failed)");
+            }
+            notifyBatchSent(batch.batchId, batch.callback);
+        }
+
+        if (error != null) {
+            if (batches.isEmpty()) {
+                logger.warn("Pending batches couldn't be delivered: " + error.getMessage());
+            }
+        } else {
+            final int numPendingBatchesDelivered = result.numBatchesDelivered - batches.size();
+            if (!result.pendingBatches && numPendingBatchesDelivered > 0) {
+                logger.debug(numPendingBatchesDelivered + " pending batches delivered from outbox");
+            }
+            if (batches.isEmpty() && result.pendingBatches && result.deliveryError != null) {
+                logger.warn("Pending batches couldn't be delivered: " + result.deliveryError.getMessage());
+            }
+            onDeliveryFinished(result);
+        }
+
+        reportBackpressure();
+
+        if (deliveryRequested && retryTask == null) {
+            requestDelivery();
+        }
+    }
+
+    private void onDeliveryFinished(@NonNull DeliverBatchTask.DeliveryResult result) {
+
+        if (!result.pendingBatches) {
+            numFailedAttempts = 0;
+            return;
+        }
+
+        if (closed || retryTask != null) {
+            return;
+        }
+
+        if (result.deliveryError != null) {
+            numFailedAttempts += 1;
+        }
+
+        long delayMs = Math.max(
+                retryPolicy.getDelayMs(Math.max(numFailedAttempts, 1)),
+                Math.max(circuitBreaker.getRemainingOpenTimeMs(), backpressure.getRemainingPauseMs())
+        );
+
+        if (result.networkDeferred && result.deliveryError == null && networkCostPolicy != null) {
+            if (networkCostPolicy.getCost() == NetworkCostPolicy.Cost.OFFLINE) {
+                // Delivery resumes when the device is back online (see deliverNow)
+                logger.debug("Delivery of pending batches deferred until the device is online");
+                return;
+            }
+            delayMs = Math.max(delayMs, networkCostPolicy.getRemainingDeferralMs());
+            logger.debug("Large pending batches deferred on expensive network. Retrying delivery in " + delayMs + " ms");
+        } else {
+            logger.debug("Retrying delivery of pending batches in " + delayMs + " ms (attempt " + (numFailedAttempts + 1) + ")");
+        }
+
+        deliveryRequested = false;
+        retryTask = taskRunner.executeAsyncTaskDelayed(delayMs, newDeliverBatchTask(), (retryResult, error) -> {
+            retryTask = null;
+            onDeliveryCompleted(new ArrayList<>(), retryResult, error);
+        });
+
+        // Batches stored during the failed delivery wait for the retry too
+        StoredBatch batch;
+        while ((batch = storedBatches.poll()) != null) {
+            logger.debug("Batch " + batch.batchId + " kept in outbox until the next delivery attempt");
+            notifyBatchSent(batch.batchId, batch.callback);
+        }
+    }
+
+    private void reportBackpressure() {
+
+        final int level = backpressure.getLevel();
+        if (level == reportedBackpressureLevel || closed) {
+            return;
+        }
+
+        if (level == 0) {
+            logger.info("Tracks endpoint recovered. Resuming normal delivery");
+        } else if (reportedBackpressureLevel == 0) {
+            logger.warn("Tracks endpoint is throttling clients. Delivery paused for " + backpressure.getRemainingPauseMs() + " ms");
+        }
+
+        reportedBackpressureLevel = level;
+
+        if (backpressureListener != null) {
+            backpressureListener.onBackpressureChanged(level);
+        }
+    }
+
+    private static void notifyBatchSent(long batchId, @Nullable SendCallback callback) {
+        if (callback != null) {
+            callback.onBatchSent(batchId);
+        }
+    }
+
+    @NonNull
+    private static ThreadPoolExecutor makeUploadExecutor(int numThreads) {
+        final AtomicInteger threadCounter = new AtomicInteger(0);
+        final var executor = new ThreadPoolExecutor(
+                numThreads,
+                numThreads,
+                UPLOAD_THREAD_KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "Trackingplan-upload-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void sendWithoutOutbox(@NonNull final List<HttpRequest> batch, @NonNull final TrackingplanSession session, final long batchId, SendCallback callback) {
         SendBatchTask task = new SendBatchTask(batch, client, session);
         taskRunner.executeTask(task, (batchResult, error) -> {
             if (error == null) {
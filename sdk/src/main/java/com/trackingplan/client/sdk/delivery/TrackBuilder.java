@@ -10,6 +10,8 @@ import androidx.annotation.NonNull;
 
 import com.trackingplan.client.sdk.BuildConfig;
 import com.trackingplan.client.sdk.TrackingplanConfig;
+import com.trackingplan.client.sdk.delivery.cbor.CborReader;
+import com.trackingplan.client.sdk.delivery.cbor.CborWriter;
 import com.trackingplan.client.sdk.interception.HttpRequest;
 import com.trackingplan.client.sdk.util.AndroidLog;
 import com.trackingplan.shared.TrackingplanSession;
@@ -20,15 +22,38 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 final public class TrackBuilder {
 
-    private static final String HEADER_CONTENT_ENCODING = "content-encoding";
-    private static final String HEADER_CONTENT_TYPE = "content-type";
+    // Estimated size of the fields of a raw track that don't depend on the intercepted request
+    // (tp_id, environment, session_id, sdk version, JSON keys, etc.)
+    private static final int RAW_TRACK_OVERHEAD_BYTES = 384;
+
+    private static final int PAYLOAD_EMPTY = 0;
+    private static final int PAYLOAD_TEXT = 1;
+    private static final int PAYLOAD_GZIP = 2;
+    private static final int PAYLOAD_BINARY = 3;
+    // Replaced by its structural fingerprint and sampled values
+    private static final int PAYLOAD_ELIDED = 4;
+
+    // Values of post_payload_type. In CBOR raw tracks, binary payloads are byte strings.
+    private static final String PAYLOAD_TYPE_GZIP_BASE64 = "gzip_base64";
+    private static final String PAYLOAD_TYPE_BASE64 = "base64";
+    private static final String PAYLOAD_TYPE_GZIP = "gzip";
+    private static final String PAYLOAD_TYPE_BINARY = "binary";
+
+    // Version of the batch envelope sent to the tracks endpoint
+    private static final int ENVELOPE_VERSION = 2;
 
     private static final AndroidLog logger = AndroidLog.getInstance();
 
@@ -44,7 +69,7 @@ final public class TrackBuilder {
 
         for (HttpRequest request : requests) {
             try {
-                payload.put(createRawTrack(request, session));
+                payload.put(createRawTrack(request, session, null));
             } catch (JSONException e) {
                 logger.error("Cannot convert request to raw track: " + e.getMessage());
                 logger.debug("Request information: " + request);
@@ -58,12 +83,305 @@ final public class TrackBuilder {
         return payload;
     }
 
-    private JSONObject createRawTrack(HttpRequest request, @NonNull final TrackingplanSession session) throws JSONException {
+    /**
+     * Converts each request into a raw track encoded as UTF-8 JSON. Requests that cannot be
+     * converted are skipped.
+     */
+    public List<byte[]> createRawTracks(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws JSONException {
+
+        List<byte[]> rawTracks = new ArrayList<>(requests.size());
+
+        for (HttpRequest request : requests) {
+            try {
+                rawTracks.add(createRawTrack(request, session, null).toString().getBytes(StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                logger.error("Cannot convert request to raw track: " + e.getMessage());
+                logger.debug("Request information: " + request);
+            }
+        }
+
+        if (rawTracks.isEmpty()) {
+            throw new JSONException("JSON conversion failed");
+        }
+
+        return rawTracks;
+    }
+
+    /**
+     * Converts each request into a raw track encoded as a CBOR map with the same fields as
+     * the JSON raw tracks. Binary payloads are kept as byte strings instead of being
+     * base64-encoded, so their post_payload_type is "gzip" or "binary". Requests that cannot
+     * be converted are skipped.
+     */
+    public List<byte[]> createCborRawTracks(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws IOException {
+
+        List<byte[]> rawTracks = new ArrayList<>(requests.size());
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        for (HttpRequest request : requests) {
+            buffer.reset();
+            try {
+                writeCborRawTrack(request, session, null, new CborWriter(buffer));
+                rawTracks.add(buffer.toByteArray());
+            } catch (IOException | RuntimeException e) {
+                logger.error("Cannot convert request to raw track: " + e.getMessage());
+                logger.debug("Request information: " + request);
+            }
+        }
+
+        if (rawTracks.isEmpty()) {
+            throw new IOException("CBOR conversion failed");
+        }
+
+        return rawTracks;
+    }
+
+    /**
+     * Converts each request into a raw track encoded as UTF-8 JSON, leaving out the fields
+     * shared by all of them: tp_id, environment, source_alias, tags, session_id, sdk,
+     * sdk_version and the context fields with the same value in every request. Those fields
+     * are written once in the header of the batch instead.
+     *
+     * @see #expandEnvelope
+     */
+    @NonNull
+    public RawBatch createJsonEnvelope(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws JSONException {
+
+        final Map<String, String> sharedContext = getSharedContext(requests);
+        final List<byte[]> rawTracks = new ArrayList<>(requests.size());
+
+        for (HttpRequest request : requests) {
+            try {
+                rawTracks.add(createRawTrack(request, session, sharedContext).toString().getBytes(StandardCharsets.UTF_8));
+            } catch (JSONException e) {
+                logger.error("Cannot convert request to raw track: " + e.getMessage());
+                logger.debug("Request information: " + request);
+            }
+        }
+
+        if (rawTracks.isEmpty()) {
+            throw new JSONException("JSON conversion failed");
+        }
+
+        final byte[] header = createEnvelopeHeader(session, sharedContext).toString().getBytes(StandardCharsets.UTF_8);
+
+        return new RawBatch(BatchOutbox.FORMAT_JSON_ENVELOPE, header, rawTracks);
+    }
+
+    /**
+     * CBOR counterpart of {@link #createJsonEnvelope}. Binary payloads are kept as byte
+     * strings like in {@link #createCborRawTracks}.
+     */
+    @NonNull
+    public RawBatch createCborEnvelope(List<HttpRequest> requests, @NonNull final TrackingplanSession session) throws IOException {
+
+        final Map<String, String> sharedContext = getSharedContext(requests);
+        final List<byte[]> rawTracks = new ArrayList<>(requests.size());
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        for (HttpRequest request : requests) {
+            buffer.reset();
+            try {
+                writeCborRawTrack(request, session, sharedContext, new CborWriter(buffer));
+                rawTracks.add(buffer.toByteArray());
+            } catch (IOException | RuntimeException e) {
+                logger.error("Cannot convert request to raw track: " + e.getMessage());
+                logger.debug("Request information: " + request);
+            }
+        }
+
+        if (rawTracks.isEmpty()) {
+            throw new IOException("CBOR conversion failed");
+        }
+
+        buffer.reset();
+        writeCborEnvelopeHeader(session, sharedContext, new CborWriter(buffer));
+
+        return new RawBatch(BatchOutbox.FORMAT_CBOR_ENVELOPE, buffer.toByteArray(), rawTracks);
+    }
+
+    /**
+     * Writes a batch in one of the envelope formats as the body of an upload:
+     * {@code {"v": 2, "header": {...}, "tracks": [{...}, ...]}}. The tracks endpoint gets
+     * every raw track back by adding the fields of the header to each track. Context fields
+     * of the header are added to the context of each track.
+     */
+    public static void writeEnvelope(@NonNull byte[] header, @NonNull List<byte[]> rawTracks, byte format, @NonNull OutputStream out) throws IOException {
+
+        if (format == BatchOutbox.FORMAT_CBOR_ENVELOPE) {
+            final var writer = new CborWriter(out);
+            writer.writeMapHeader(3);
+            writer.writeString("v").writeLong(ENVELOPE_VERSION);
+            writer.writeString("header");
+            out.write(header);
+            writer.writeString("tracks").writeArrayHeader(rawTracks.size());
+            for (byte[] rawTrack : rawTracks) {
+                out.write(rawTrack);
+            }
+            return;
+        }
+
+        out.write(("{\"v\":" + ENVELOPE_VERSION + ",\"header\":").getBytes(StandardCharsets.UTF_8));
+        out.write(header);
+        out.write(",\"tracks\":[".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < rawTracks.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(rawTracks.get(i));
+        }
+        out.write("]}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Expands a batch in one of the envelope formats into the UTF-8 JSON raw tracks that
+     * {@link #createRawTracks} would have created for the same requests. This is what the
+     * tracks endpoint does when it receives an envelope.
+     */
+    @NonNull
+    public static List<byte[]> expandEnvelope(@NonNull byte[] header, @NonNull List<byte[]> rawTracks, byte format) throws IOException, JSONException {
+
+        final boolean isCbor = format == BatchOutbox.FORMAT_CBOR_ENVELOPE;
+        final JSONObject headerJson = isCbor ? cborRawTrackToJsonObject(header) : new JSONObject(new String(header, StandardCharsets.UTF_8));
+        final JSONObject sharedContext = headerJson.optJSONObject("context");
+
+        final List<byte[]> expandedTracks = new ArrayList<>(rawTracks.size());
+
+        for (byte[] rawTrack : rawTracks) {
+            final JSONObject trackJson = isCbor ? cborRawTrackToJsonObject(rawTrack) : new JSONObject(new String(rawTrack, StandardCharsets.UTF_8));
+
+            final var context = new JSONObject();
+            copyFields(sharedContext, context);
+            copyFields(trackJson.optJSONObject("context"), context);
+            trackJson.remove("context");
+
+            final var expanded = new JSONObject();
+            copyFields(headerJson, expanded);
+            copyFields(trackJson, expanded);
+            expanded.put("context", context);
+
+            expandedTracks.add(expanded.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        return expandedTracks;
+    }
+
+    /**
+     * Converts a raw track created by {@link #createCborRawTracks} into the UTF-8 JSON raw
+     * track that {@link #createRawTracks} would have created for the same request.
+     */
+    @NonNull
+    public static byte[] cborRawTrackToJson(@NonNull byte[] cborRawTrack) throws IOException, JSONException {
+        return cborRawTrackToJsonObject(cborRawTrack).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject cborRawTrackToJsonObject(@NonNull byte[] cborRawTrack) throws IOException, JSONException {
+
+        final Object rawTrack = CborReader.decode(cborRawTrack);
+        if (!(rawTrack instanceof Map)) {
+            throw new IOException("Raw track is not a CBOR map");
+        }
+
+        final JSONObject json = (JSONObject) toJsonValue(rawTrack);
+        final JSONObject requestJson = json.optJSONObject("request");
+        if (requestJson != null) {
+            final String payloadType = requestJson.optString("post_payload_type");
+            if (PAYLOAD_TYPE_GZIP.equals(payloadType)) {
+                requestJson.put("post_payload_type", PAYLOAD_TYPE_GZIP_BASE64);
+            } else if (PAYLOAD_TYPE_BINARY.equals(payloadType)) {
+                requestJson.put("post_payload_type", PAYLOAD_TYPE_BASE64);
+            }
+        }
+
+        return json;
+    }
+
+    /**
+     * Writes the same payload as {@link #createJsonPayload} into the given writer, one raw
+     * track at a time, so that only a single track is kept in memory. Requests that cannot
+     * be converted are skipped.
+     *
+     * @return Number of raw tracks written
+     */
+    public int writeJsonPayload(List<HttpRequest> requests, @NonNull final TrackingplanSession session, @NonNull Writer writer) throws JSONException, IOException {
+
+        int numTracks = 0;
+
+        writer.write('[');
+
+        for (HttpRequest request : requests) {
+            JSONObject rawTrack;
+            try {
+                rawTrack = createRawTrack(request, session, null);
+            } catch (JSONException e) {
+                logger.error("Cannot convert request to raw track: " + e.getMessage());
+                logger.debug("Request information: " + request);
+                continue;
+            }
+            if (numTracks > 0) {
+                writer.write(',');
+            }
+            writer.write(rawTrack.toString());
+            numTracks++;
+        }
+
+        if (numTracks == 0) {
+            throw new JSONException("JSON conversion failed");
+        }
+
+        writer.write(']');
+
+        return numTracks;
+    }
+
+    /**
+     * Estimates the size of the raw track of the given request once serialized, without
+     * actually serializing it. Binary payloads grow by 4/3 when base64-encoded and text
+     * payloads are given some margin for JSON escaping. Tags and custom context are not
+     * taken into account.
+     */
+    public static long estimateRawTrackSize(@NonNull HttpRequest request) {
+
+        long size = RAW_TRACK_OVERHEAD_BYTES + request.getUrl().length() + request.getProvider().length();
+
+        final int payloadLength = request.getPayloadLength();
+        final int payloadKind = request.isPayloadElided() ? PAYLOAD_ELIDED : getPayloadKind(request);
+
+        if (payloadKind == PAYLOAD_ELIDED) {
+            size += estimateStringMapSize(request.getSampledPayloadValues());
+        } else if (payloadKind == PAYLOAD_GZIP || payloadKind == PAYLOAD_BINARY) {
+            size += (payloadLength + 2L) / 3 * 4;
+        } else {
+            size += payloadLength + payloadLength / 8;
+        }
+
+        return size + estimateStringMapSize(request.getContext());
+    }
+
+    private static long estimateStringMapSize(@NonNull Map<String, String> map) {
+        long size = 0;
+        for (var entry : map.entrySet()) {
+            // Quotes, colon and comma
+            size += entry.getKey().length() + entry.getValue().length() + 6;
+        }
+        return size;
+    }
+
+    /**
+     * Creates the raw track of a request. When sharedContext isn't null, the fields that go
+     * in the header of an envelope are left out, as well as the context fields in
+     * sharedContext.
+     */
+    private JSONObject createRawTrack(HttpRequest request, @NonNull final TrackingplanSession session, Map<String, String> sharedContext) throws JSONException {
+
+        final boolean inEnvelope = sharedContext != null;
 
         var rawTrack = new JSONObject();
 
-        rawTrack.put("tp_id", config.getTpId());
-        rawTrack.put("environment", config.getEnvironment());
+        if (!inEnvelope) {
+            rawTrack.put("tp_id", config.getTpId());
+            rawTrack.put("environment", config.getEnvironment());
+        }
         rawTrack.put("provider", request.getProvider());
         rawTrack.put("ts", request.getCreatedTimeMs());
 
@@ -71,28 +389,47 @@ final public class TrackBuilder {
         rawTrack.put("request", requestJson);
         requestJson.put("endpoint", request.getUrl());
         requestJson.put("method", request.getMethod());
-        parsePayload(request, requestJson);
+        if (request.isPayloadElided()) {
+            requestJson.put("payload_values", new JSONObject(request.getSampledPayloadValues()));
+        } else {
+            parsePayload(request, requestJson);
+        }
+        if (request.getPayloadFingerprint() != null) {
+            requestJson.put("payload_fingerprint", request.getPayloadFingerprint());
+        }
 
         if (request.getResponseCode() != -1) {
             requestJson.put("response_code", request.getResponseCode());
         }
 
-        rawTrack.put("source_alias", config.getSourceAlias());
+        if (inEnvelope) {
+            final var context = new JSONObject();
+            for (var entry : getContext(request).entrySet()) {
+                if (!entry.getValue().equals(sharedContext.get(entry.getKey()))) {
+                    context.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (context.length() > 0) {
+                rawTrack.put("context", context);
+            }
+        } else {
+            rawTrack.put("source_alias", config.getSourceAlias());
 
-        if (!config.tags().isEmpty()) {
-            rawTrack.put("tags", getTagsAsJson(config.tags()));
-        }
+            if (!config.tags().isEmpty()) {
+                rawTrack.put("tags", getTagsAsJson(config.tags()));
+            }
 
-        var context = new JSONObject();
-        rawTrack.put("context", context);
+            var context = new JSONObject();
+            rawTrack.put("context", context);
 
-        // Context established by unit tests
-        for (var entry : config.customContext().entrySet()) {
-            context.put(entry.getKey(), entry.getValue());
-        }
+            // Context established by unit tests
+            for (var entry : config.customContext().entrySet()) {
+                context.put(entry.getKey(), entry.getValue());
+            }
 
-        for (var entry : request.getContext().entrySet()) {
-            context.put(entry.getKey(), entry.getValue());
+            for (var entry : request.getContext().entrySet()) {
+                context.put(entry.getKey(), entry.getValue());
+            }
         }
 
         SamplingResult.Include samplingResult = request.getSamplingResult();
@@ -102,13 +439,247 @@ final public class TrackBuilder {
         }
         // Note: If samplingResult is null, sampling_rate is intentionally omitted to signal
         // a bug in the SDK. Ingest will log this case and use a default value of 1.
-        rawTrack.put("session_id", session.getSessionId());
-        rawTrack.put("sdk", "android");
-        rawTrack.put("sdk_version", BuildConfig.SDK_VERSION);
+        if (request.getSuppressedCount() > 0) {
+            rawTrack.put("suppressed_count", request.getSuppressedCount());
+        }
+        if (request.getRetryCount() > 0) {
+            rawTrack.put("retry_count", request.getRetryCount());
+        }
+        if (request.getAggregateCount() > 0) {
+            rawTrack.put("aggregate_count", request.getAggregateCount());
+            rawTrack.put("aggregate_first_ts", request.getAggregateFirstTimeMs());
+            rawTrack.put("aggregate_last_ts", request.getAggregateLastTimeMs());
+        }
+        if (!inEnvelope) {
+            rawTrack.put("session_id", session.getSessionId());
+            rawTrack.put("sdk", "android");
+            rawTrack.put("sdk_version", BuildConfig.SDK_VERSION);
+        }
 
         return rawTrack;
     }
 
+    /**
+     * Creates the header of an envelope with the fields left out of its raw tracks.
+     */
+    private JSONObject createEnvelopeHeader(@NonNull final TrackingplanSession session, @NonNull Map<String, String> sharedContext) throws JSONException {
+
+        var header = new JSONObject();
+
+        header.put("tp_id", config.getTpId());
+        header.put("environment", config.getEnvironment());
+        header.put("source_alias", config.getSourceAlias());
+
+        if (!config.tags().isEmpty()) {
+            header.put("tags", getTagsAsJson(config.tags()));
+        }
+
+        header.put("context", getTagsAsJson(sharedContext));
+        header.put("session_id", session.getSessionId());
+        header.put("sdk", "android");
+        header.put("sdk_version", BuildConfig.SDK_VERSION);
+
+        return header;
+    }
+
+    /**
+     * CBOR counterpart of {@link #createRawTrack}. Fields are written in the same order.
+     */
+    private void writeCborRawTrack(HttpRequest request, @NonNull final TrackingplanSession session, Map<String, String> sharedContext, CborWriter writer) throws IOException {
+
+        final boolean inEnvelope = sharedContext != null;
+
+        writer.writeStartMap();
+
+        if (!inEnvelope) {
+            writer.writeString("tp_id").writeString(config.getTpId());
+            writer.writeString("environment").writeString(config.getEnvironment());
+        }
+        writer.writeString("provider").writeString(request.getProvider());
+        writer.writeString("ts").writeLong(request.getCreatedTimeMs());
+
+        writer.writeString("request").writeStartMap();
+        writer.writeString("endpoint").writeString(request.getUrl());
+        writer.writeString("method").writeString(request.getMethod());
+
+        final byte[] payload = request.getPayloadBuffer();
+        final int payloadLength = request.getPayloadLength();
+        switch (request.isPayloadElided() ? PAYLOAD_ELIDED : getPayloadKind(request)) {
+            case PAYLOAD_ELIDED:
+                writer.writeString("payload_values");
+                writeCborStringMap(request.getSampledPayloadValues(), writer);
+                break;
+            case PAYLOAD_EMPTY:
+                writer.writeString("post_payload").writeNull();
+                break;
+            case PAYLOAD_GZIP:
+                writer.writeString("post_payload").writeBytes(payload, 0, payloadLength);
+                writer.writeString("post_payload_type").writeString(PAYLOAD_TYPE_GZIP);
+                break;
+            case PAYLOAD_BINARY:
+                writer.writeString("post_payload").writeBytes(payload, 0, payloadLength);
+                writer.writeString("post_payload_type").writeString(PAYLOAD_TYPE_BINARY);
+                break;
+            default:
+                writer.writeString("post_payload").writeString(bytesToUtf8(payload, payloadLength));
+        }
+        if (request.getPayloadFingerprint() != null) {
+            writer.writeString("payload_fingerprint").writeString(request.getPayloadFingerprint());
+        }
+
+        if (request.getResponseCode() != -1) {
+            writer.writeString("response_code").writeLong(request.getResponseCode());
+        }
+        writer.writeBreak();
+
+        if (inEnvelope) {
+            final Map<String, String> context = new LinkedHashMap<>();
+            for (var entry : getContext(request).entrySet()) {
+                if (!entry.getValue().equals(sharedContext.get(entry.getKey()))) {
+                    context.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!context.isEmpty()) {
+                writer.writeString("context");
+                writeCborStringMap(context, writer);
+            }
+        } else {
+            writer.writeString("source_alias").writeString(config.getSourceAlias());
+
+            if (!config.tags().isEmpty()) {
+                writer.writeString("tags");
+                writeCborStringMap(config.tags(), writer);
+            }
+
+            writer.writeString("context");
+            writeCborStringMap(getContext(request), writer);
+        }
+
+        SamplingResult.Include samplingResult = request.getSamplingResult();
+        if (samplingResult != null) {
+            writer.writeString("sampling_rate").writeLong(samplingResult.getEffectiveSampleRate());
+            writer.writeString("sampling_mode").writeString(samplingResult.getSamplingMode().getValue());
+        }
+        if (request.getSuppressedCount() > 0) {
+            writer.writeString("suppressed_count").writeLong(request.getSuppressedCount());
+        }
+        if (request.getRetryCount() > 0) {
+            writer.writeString("retry_count").writeLong(request.getRetryCount());
+        }
+        if (request.getAggregateCount() > 0) {
+            writer.writeString("aggregate_count").writeLong(request.getAggregateCount());
+            writer.writeString("aggregate_first_ts").writeLong(request.getAggregateFirstTimeMs());
+            writer.writeString("aggregate_last_ts").writeLong(request.getAggregateLastTimeMs());
+        }
+        if (!inEnvelope) {
+            writer.writeString("session_id").writeString(session.getSessionId());
+            writer.writeString("sdk").writeString("android");
+            writer.writeString("sdk_version").writeString(BuildConfig.SDK_VERSION);
+        }
+
+        writer.writeBreak();
+    }
+
+    /**
+     * CBOR counterpart of {@link #createEnvelopeHeader}.
+     */
+    private void writeCborEnvelopeHeader(@NonNull final TrackingplanSession session, @NonNull Map<String, String> sharedContext, CborWriter writer) throws IOException {
+
+        writer.writeStartMap();
+
+        writer.writeString("tp_id").writeString(config.getTpId());
+        writer.writeString("environment").writeString(config.getEnvironment());
+        writer.writeString("source_alias").writeString(config.getSourceAlias());
+
+        if (!config.tags().isEmpty()) {
+            writer.writeString("tags");
+            writeCborStringMap(config.tags(), writer);
+        }
+
+        writer.writeString("context");
+        writeCborStringMap(sharedContext, writer);
+        writer.writeString("session_id").writeString(session.getSessionId());
+        writer.writeString("sdk").writeString("android");
+        writer.writeString("sdk_version").writeString(BuildConfig.SDK_VERSION);
+
+        writer.writeBreak();
+    }
+
+    /**
+     * Context of the raw track of a request. Custom context is established by unit tests.
+     */
+    private Map<String, String> getContext(HttpRequest request) {
+        if (config.customContext().isEmpty()) {
+            return request.getContext();
+        }
+        final Map<String, String> context = new LinkedHashMap<>(config.customContext());
+        context.putAll(request.getContext());
+        return context;
+    }
+
+    /**
+     * Context fields that have the same value in every request, like the app name or the
+     * device, which are set in every request by Trackingplan.
+     */
+    private Map<String, String> getSharedContext(List<HttpRequest> requests) {
+
+        if (requests.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+
+        final Map<String, String> sharedContext = new LinkedHashMap<>(getContext(requests.get(0)));
+
+        for (int i = 1; i < requests.size() && !sharedContext.isEmpty(); i++) {
+            final Map<String, String> context = getContext(requests.get(i));
+            sharedContext.entrySet().removeIf(entry -> !entry.getValue().equals(context.get(entry.getKey())));
+        }
+
+        return sharedContext;
+    }
+
+    private static void copyFields(JSONObject from, JSONObject to) throws JSONException {
+        if (from == null) {
+            return;
+        }
+        final var keys = from.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            to.put(key, from.get(key));
+        }
+    }
+
+    private static void writeCborStringMap(Map<String, String> map, CborWriter writer) throws IOException {
+        writer.writeMapHeader(map.size());
+        for (var entry : map.entrySet()) {
+            writer.writeString(entry.getKey()).writeString(entry.getValue());
+        }
+    }
+
+    /**
+     * Converts a value decoded by {@link CborReader} to its org.json counterpart. Byte strings
+     * become base64 strings.
+     */
+    private static Object toJsonValue(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        } else if (value instanceof byte[]) {
+            return new String(Base64.encode((byte[]) value, Base64.DEFAULT | Base64.NO_WRAP));
+        } else if (value instanceof Map) {
+            final var json = new JSONObject();
+            for (var entry : ((Map<?, ?>) value).entrySet()) {
+                json.put((String) entry.getKey(), toJsonValue(entry.getValue()));
+            }
+            return json;
+        } else if (value instanceof List) {
+            final var json = new JSONArray();
+            for (Object item : (List<?>) value) {
+                json.put(toJsonValue(item));
+            }
+            return json;
+        }
+        return value;
+    }
+
     private static JSONObject getTagsAsJson(Map<String, String> tags) throws JSONException {
         var tagsJson = new JSONObject();
 
@@ -121,38 +692,55 @@ final public class TrackBuilder {
 
     private void parsePayload(HttpRequest request, JSONObject requestJson) throws JSONException {
 
-        byte[] payload = request.getPayloadData();
+        byte[] payload = request.getPayloadBuffer();
+        int payloadLength = request.getPayloadLength();
+
+        switch (getPayloadKind(request)) {
+            case PAYLOAD_EMPTY:
+                requestJson.put("post_payload", JSONObject.NULL);
+                break;
+            case PAYLOAD_GZIP:
+                requestJson.put("post_payload", bytesTob64(payload, payloadLength));
+                requestJson.put("post_payload_type", PAYLOAD_TYPE_GZIP_BASE64);
+                break;
+            case PAYLOAD_BINARY:
+                requestJson.put("post_payload", bytesTob64(payload, payloadLength));
+                requestJson.put("post_payload_type", PAYLOAD_TYPE_BASE64);
+                break;
+            default:
+                requestJson.put("post_payload", bytesToUtf8(payload, payloadLength));
+        }
+    }
 
-        if (payload.length == 0) {
-            requestJson.put("post_payload", JSONObject.NULL);
-            return;
+    private static int getPayloadKind(HttpRequest request) {
+
+        if (request.getPayloadLength() == 0) {
+            return PAYLOAD_EMPTY;
         }
 
-        var contentEncoding = request.getHeaders().get(HEADER_CONTENT_ENCODING);
-        var contentType = request.getHeaders().get(HEADER_CONTENT_TYPE);
+        var contentEncoding = request.getContentEncoding();
+        var contentType = request.getContentType();
 
-        if (!StringUtils.isEmpty(contentEncoding) || isGzipCompressed(payload)) {
-            requestJson.put("post_payload", bytesTob64(payload));
-            requestJson.put("post_payload_type", "gzip_base64");
+        if (!StringUtils.isEmpty(contentEncoding) || isGzipCompressed(request.getPayloadBuffer(), request.getPayloadLength())) {
+            return PAYLOAD_GZIP;
         } else if ("application/octet-stream".equals(contentType)) {
-            requestJson.put("post_payload", bytesTob64(payload));
-            requestJson.put("post_payload_type", "base64");
-        } else {
-            requestJson.put("post_payload", bytesToUtf8(payload));
+            return PAYLOAD_BINARY;
         }
+
+        return PAYLOAD_TEXT;
     }
 
-    private String bytesTob64(byte[] bytes) {
-        byte[] encoded = Base64.encode(bytes, Base64.DEFAULT | Base64.NO_WRAP);
+    private String bytesTob64(byte[] bytes, int length) {
+        byte[] encoded = Base64.encode(bytes, 0, length, Base64.DEFAULT | Base64.NO_WRAP);
         return new String(encoded);
     }
 
-    private String bytesToUtf8(byte[] bytes) {
-        return new String(bytes, StandardCharsets.UTF_8);
+    private String bytesToUtf8(byte[] bytes, int length) {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
     }
 
-    private boolean isGzipCompressed(byte[] bytes) {
-        if ((bytes == null) || (bytes.length < 2)) {
+    private static boolean isGzipCompressed(byte[] bytes, int length) {
+        if ((bytes == null) || (length < 2)) {
             return false;
         } else {
             return ((bytes[0] == (byte) (GZIPInputStream.GZIP_MAGIC)) && (bytes[1] == (byte) (GZIPInputStream.GZIP_MAGIC >> 8)));
@@ -39,10 +39,10 @@ import java.util.UUID;
  * The reason was far from my understanding. So I preferred to disabled it.
  *
  * Moreover, our own TaskRunner is good enough for the purposes of this software.
- * The main difference is that our implementation will discard some tracks due to
- * application killed by the user, crashes or doze and stand-by modes. But this scenario
- * should be managed already by the Application using this library so the most likely is
- * that no requests are going to be send during doze/stand-by.
+ * Batches are written to a BatchOutbox before being sent, so tracks are no longer lost
+ * when the application is killed by the user or crashes. They are delivered on the next
+ * start instead. Doze and stand-by modes should be managed already by the Application
+ * using this library so the most likely is that no requests are going to be send then.
  */
 /*
 final public class WorkManagerBatchSender implements BatchSender {
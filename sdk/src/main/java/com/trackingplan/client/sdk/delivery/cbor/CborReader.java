@@ -0,0 +1,241 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.cbor;
+
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.BREAK;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.INDEFINITE_LENGTH;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_ARRAY;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_BYTES;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_MAP;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_NEGATIVE;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_SIMPLE;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_TEXT;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.MAJOR_UNSIGNED;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.SIMPLE_FALSE;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.SIMPLE_NULL;
+import static com.trackingplan.client.sdk.delivery.cbor.CborWriter.SIMPLE_TRUE;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder of the CBOR data items written by {@link CborWriter}. It's used to convert raw
+ * tracks back to JSON when the tracks endpoint doesn't accept CBOR and by tests.
+ * <p>
+ * Items are decoded to Java objects: unsigned and negative integers to Long, text strings to
+ * String, byte strings to byte[], arrays to List, maps to Map (keys must be text strings),
+ * floats to Double, booleans to Boolean and null/undefined to null. Tags are ignored.
+ */
+final public class CborReader {
+
+    private static final int MAJOR_TAG = 6;
+    private static final int SIMPLE_UNDEFINED = 23;
+
+    private final byte[] data;
+    private int position;
+
+    public CborReader(@NonNull byte[] data) {
+        this.data = data;
+        this.position = 0;
+    }
+
+    /**
+     * Decodes a byte array that holds exactly one data item.
+     */
+    @Nullable
+    public static Object decode(@NonNull byte[] data) throws IOException {
+        final var reader = new CborReader(data);
+        final Object item = reader.read();
+        if (reader.hasMore()) {
+            throw new IOException("Malformed CBOR: unexpected data after item");
+        }
+        return item;
+    }
+
+    public boolean hasMore() {
+        return position < data.length;
+    }
+
+    /**
+     * Decodes the next data item.
+     */
+    @Nullable
+    public Object read() throws IOException {
+        final int initialByte = readByte();
+        if (initialByte == BREAK) {
+            throw new IOException("Malformed CBOR: unexpected break");
+        }
+        return readItem(initialByte);
+    }
+
+    private Object readItem(int initialByte) throws IOException {
+
+        final int majorType = initialByte >>> 5;
+        final int additionalInfo = initialByte & 0x1F;
+
+        switch (majorType) {
+            case MAJOR_UNSIGNED:
+                return readArgument(additionalInfo);
+            case MAJOR_NEGATIVE:
+                return -1 - readArgument(additionalInfo);
+            case MAJOR_BYTES:
+                return readByteString(majorType, additionalInfo);
+            case MAJOR_TEXT:
+                return new String(readByteString(majorType, additionalInfo), StandardCharsets.UTF_8);
+            case MAJOR_ARRAY:
+                return readArray(additionalInfo);
+            case MAJOR_MAP:
+                return readMap(additionalInfo);
+            case MAJOR_TAG:
+                readArgument(additionalInfo);
+                return read();
+            case MAJOR_SIMPLE:
+            default:
+                return readSimple(additionalInfo);
+        }
+    }
+
+    private List<Object> readArray(int additionalInfo) throws IOException {
+        final List<Object> array = new ArrayList<>();
+        if (additionalInfo == INDEFINITE_LENGTH) {
+            int initialByte;
+            while ((initialByte = readByte()) != BREAK) {
+                array.add(readItem(initialByte));
+            }
+        } else {
+            final long size = readLength(additionalInfo);
+            for (long i = 0; i < size; i++) {
+                array.add(read());
+            }
+        }
+        return array;
+    }
+
+    private Map<String, Object> readMap(int additionalInfo) throws IOException {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        if (additionalInfo == INDEFINITE_LENGTH) {
+            int initialByte;
+            while ((initialByte = readByte()) != BREAK) {
+                map.put(toKey(readItem(initialByte)), read());
+            }
+        } else {
+            final long size = readLength(additionalInfo);
+            for (long i = 0; i < size; i++) {
+                map.put(toKey(read()), read());
+            }
+        }
+        return map;
+    }
+
+    private byte[] readByteString(int majorType, int additionalInfo) throws IOException {
+
+        if (additionalInfo != INDEFINITE_LENGTH) {
+            final int length = (int) readLength(additionalInfo);
+            final byte[] bytes = new byte[length];
+            System.arraycopy(data, position, bytes, 0, length);
+            position += length;
+            return bytes;
+        }
+
+        // Indefinite-length string: sequence of definite-length chunks of the same type
+        final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        int initialByte;
+        while ((initialByte = readByte()) != BREAK) {
+            if (initialByte >>> 5 != majorType || (initialByte & 0x1F) == INDEFINITE_LENGTH) {
+                throw new IOException("Malformed CBOR: invalid string chunk");
+            }
+            final byte[] chunk = readByteString(majorType, initialByte & 0x1F);
+            chunks.write(chunk, 0, chunk.length);
+        }
+        return chunks.toByteArray();
+    }
+
+    private Object readSimple(int additionalInfo) throws IOException {
+        switch (additionalInfo) {
+            case SIMPLE_FALSE:
+                return Boolean.FALSE;
+            case SIMPLE_TRUE:
+                return Boolean.TRUE;
+            case SIMPLE_NULL:
+            case SIMPLE_UNDEFINED:
+                return null;
+            case 25:
+                return (double) halfToFloat((int) readBigEndian(2));
+            case 26:
+                return (double) Float.intBitsToFloat((int) readBigEndian(4));
+            case 27:
+                return Double.longBitsToDouble(readBigEndian(8));
+            default:
+                throw new IOException("Malformed CBOR: unsupported simple value " + additionalInfo);
+        }
+    }
+
+    private long readLength(int additionalInfo) throws IOException {
+        final long length = readArgument(additionalInfo);
+        if (length < 0 || length > data.length - position) {
+            throw new IOException("Malformed CBOR: invalid length " + length);
+        }
+        return length;
+    }
+
+    private long readArgument(int additionalInfo) throws IOException {
+        if (additionalInfo < 24) {
+            return additionalInfo;
+        }
+        switch (additionalInfo) {
+            case 24:
+                return readBigEndian(1);
+            case 25:
+                return readBigEndian(2);
+            case 26:
+                return readBigEndian(4);
+            case 27:
+                return readBigEndian(8);
+            default:
+                throw new IOException("Malformed CBOR: invalid argument " + additionalInfo);
+        }
+    }
+
+    private long readBigEndian(int numBytes) throws IOException {
+        long value = 0;
+        for (int i = 0; i < numBytes; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        if (position >= data.length) {
+            throw new IOException("Malformed CBOR: unexpected end of data");
+        }
+        return data[position++] & 0xFF;
+    }
+
+    private static String toKey(Object key) throws IOException {
+        if (!(key instanceof String)) {
+            throw new IOException("Malformed CBOR: map keys must be text strings");
+        }
+        return (String) key;
+    }
+
+    private static float halfToFloat(int half) {
+        final int exponent = (half >> 10) & 0x1F;
+        final int mantissa = half & 0x3FF;
+        final float value;
+        if (exponent == 0) {
+            value = mantissa * (float) Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        } else {
+            value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+}
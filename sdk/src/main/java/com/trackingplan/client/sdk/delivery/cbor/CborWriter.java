@@ -0,0 +1,130 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.cbor;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal streaming encoder of CBOR (RFC 8949) data items.
+ * <p>
+ * Only the types needed by raw tracks are supported: integers, text and byte strings,
+ * booleans, null, arrays and maps. Maps and arrays can be written with a known length or
+ * as indefinite-length containers closed with {@link #writeBreak()}. The writer doesn't
+ * validate the structure of what is written.
+ */
+final public class CborWriter {
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int SIMPLE_FALSE = 20;
+    static final int SIMPLE_TRUE = 21;
+    static final int SIMPLE_NULL = 22;
+
+    static final int INDEFINITE_LENGTH = 31;
+    static final int BREAK = 0xFF;
+
+    private final OutputStream out;
+
+    public CborWriter(@NonNull OutputStream out) {
+        this.out = out;
+    }
+
+    public CborWriter writeArrayHeader(int size) throws IOException {
+        writeHeader(MAJOR_ARRAY, size);
+        return this;
+    }
+
+    public CborWriter writeMapHeader(int size) throws IOException {
+        writeHeader(MAJOR_MAP, size);
+        return this;
+    }
+
+    /**
+     * Starts a map whose number of entries isn't known in advance.
+     */
+    public CborWriter writeStartMap() throws IOException {
+        out.write((MAJOR_MAP << 5) | INDEFINITE_LENGTH);
+        return this;
+    }
+
+    /**
+     * Closes the last indefinite-length container.
+     */
+    public CborWriter writeBreak() throws IOException {
+        out.write(BREAK);
+        return this;
+    }
+
+    public CborWriter writeString(@NonNull String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHeader(MAJOR_TEXT, bytes.length);
+        out.write(bytes);
+        return this;
+    }
+
+    public CborWriter writeBytes(@NonNull byte[] value) throws IOException {
+        return writeBytes(value, 0, value.length);
+    }
+
+    public CborWriter writeBytes(@NonNull byte[] value, int offset, int length) throws IOException {
+        writeHeader(MAJOR_BYTES, length);
+        out.write(value, offset, length);
+        return this;
+    }
+
+    public CborWriter writeLong(long value) throws IOException {
+        if (value >= 0) {
+            writeHeader(MAJOR_UNSIGNED, value);
+        } else {
+            writeHeader(MAJOR_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    public CborWriter writeBoolean(boolean value) throws IOException {
+        out.write((MAJOR_SIMPLE << 5) | (value ? SIMPLE_TRUE : SIMPLE_FALSE));
+        return this;
+    }
+
+    public CborWriter writeNull() throws IOException {
+        out.write((MAJOR_SIMPLE << 5) | SIMPLE_NULL);
+        return this;
+    }
+
+    /**
+     * Writes the head of a data item using the shortest encoding of its argument.
+     */
+    private void writeHeader(int majorType, long argument) throws IOException {
+        final int type = majorType << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument <= 0xFF) {
+            out.write(type | 24);
+            out.write((int) argument);
+        } else if (argument <= 0xFFFF) {
+            out.write(type | 25);
+            writeBigEndian(argument, 2);
+        } else if (argument <= 0xFFFFFFFFL) {
+            out.write(type | 26);
+            writeBigEndian(argument, 4);
+        } else {
+            out.write(type | 27);
+            writeBigEndian(argument, 8);
+        }
+    }
+
+    private void writeBigEndian(long value, int numBytes) throws IOException {
+        for (int i = numBytes - 1; i >= 0; i--) {
+            out.write((int) (value >>> (i * 8)) & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Completes a TLS handshake with a server without sending any request. HTTP clients can't
+ * adopt the socket, so it's closed right away, but the next connection they open with the
+ * same SSLSocketFactory resumes the TLS session instead of doing a full handshake.
+ */
+final class ConnectionWarmer {
+
+    private ConnectionWarmer() {
+    }
+
+    static void warmUp(
+            @NonNull URL url,
+            @NonNull InetAddress address,
+            @NonNull SSLSocketFactory sslSocketFactory,
+            int timeoutMs
+    ) throws IOException {
+
+        if (!"https".equals(url.getProtocol())) {
+            // Nothing to resume for plain connections
+            return;
+        }
+
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            // Host name is used as the key of the session cache and for SNI
+            try (SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, url.getHost(), port, true)) {
+                sslSocket.startHandshake();
+            }
+        }
+    }
+}
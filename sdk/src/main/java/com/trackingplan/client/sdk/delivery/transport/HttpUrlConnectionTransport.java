@@ -0,0 +1,159 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Transport backed by HttpURLConnection. Kept-alive connections are pooled by the platform,
+ * so connections are only reused when the response is fully read and the server doesn't
+ * ask to close them.
+ * <p>
+ * HttpURLConnection has no API to evict pooled sockets. Instead, HTTPS connections are
+ * opened with a {@link TrackedSSLSocketFactory} and its sockets are closed when no request
+ * is in flight, so that all of them are idle. The pool discards closed sockets. Plain HTTP
+ * connections are left to the keep-alive eviction of the pool.
+ */
+final public class HttpUrlConnectionTransport implements TracksTransport {
+
+    private final Object lock = new Object();
+    private int numRequestsInFlight = 0;
+    private TrackedSSLSocketFactory socketFactory;
+
+    @NonNull
+    @Override
+    public TransportResponse execute(@NonNull TransportRequest request) throws IOException {
+
+        final HttpURLConnection conn = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        conn.setConnectTimeout(request.getConnectTimeoutMs());
+        conn.setReadTimeout(request.getReadTimeoutMs());
+        conn.setRequestMethod(request.getMethod());
+        for (var header : request.getHeaders().entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(getSocketFactory());
+        }
+
+        synchronized (lock) {
+            numRequestsInFlight += 1;
+        }
+
+        boolean reusable = false;
+
+        try {
+            final var body = request.getBody();
+            if (body != null) {
+                conn.setDoOutput(true);
+                // Body size is unknown until it is completely written
+                conn.setChunkedStreamingMode(0);
+                // Body is intentionally not closed on failure. Closing it would complete the
+                // chunked body and send a truncated payload. Disconnecting aborts the request.
+                body.writeTo(conn.getOutputStream());
+            }
+
+            // Reading the response code forces the sending of the request
+            final int code = conn.getResponseCode();
+            final byte[] responseBody = readBody(conn, code, request.getMethod());
+
+            reusable = request.isKeepAlive()
+                    && responseBody != null
+                    && !"close".equalsIgnoreCase(conn.getHeaderField("Connection"));
+
+            return new TransportResponse(code, readHeaders(conn), responseBody, reusable);
+
+        } finally {
+            if (!reusable) {
+                conn.disconnect();
+            }
+            synchronized (lock) {
+                numRequestsInFlight -= 1;
+            }
+        }
+    }
+
+    @Override
+    public void preconnect(@NonNull String url, int timeoutMs) throws IOException {
+        final var parsedUrl = new URL(url);
+        // Resolved addresses are cached by InetAddress
+        final InetAddress address = InetAddress.getByName(parsedUrl.getHost());
+        ConnectionWarmer.warmUp(parsedUrl, address, getSocketFactory(), timeoutMs);
+    }
+
+    /**
+     * Closes the pooled HTTPS sockets unless a request is in flight, since it may be using
+     * one of them. In that case, they are left to the pool.
+     */
+    @Override
+    public void closeIdleConnections() {
+        synchronized (lock) {
+            if (numRequestsInFlight == 0 && socketFactory != null) {
+                socketFactory.closeSockets();
+            }
+        }
+    }
+
+    @NonNull
+    private TrackedSSLSocketFactory getSocketFactory() {
+        synchronized (lock) {
+            // Default factory may be replaced, e.g. to trust a custom certificate
+            final SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+            if (socketFactory == null || socketFactory.getDelegate() != defaultFactory) {
+                socketFactory = new TrackedSSLSocketFactory(defaultFactory);
+            }
+            return socketFactory;
+        }
+    }
+
+    /**
+     * Reads and closes the response body so that the socket is returned to the pool.
+     *
+     * @return The body or null if it couldn't be read
+     */
+    @Nullable
+    private static byte[] readBody(@NonNull HttpURLConnection conn, int code, @NonNull String method) {
+
+        if ("HEAD".equals(method)) {
+            return new byte[0];
+        }
+
+        try {
+            final InputStream in = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (in == null) {
+                return new byte[0];
+            }
+            try (InputStream body = in) {
+                return StreamUtils.readAll(body).toByteArray();
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> readHeaders(@NonNull HttpURLConnection conn) {
+        final Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> field : conn.getHeaderFields().entrySet()) {
+            // Status line is returned with a null key
+            if (field.getKey() == null || field.getValue().isEmpty()) {
+                continue;
+            }
+            headers.put(field.getKey(), field.getValue().get(field.getValue().size() - 1));
+        }
+        return headers;
+    }
+}
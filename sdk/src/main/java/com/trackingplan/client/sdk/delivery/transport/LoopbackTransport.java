@@ -0,0 +1,130 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.client.sdk.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-memory transport that never touches the network. Requests are kept until they are taken
+ * with {@link #takeRequest(long)} and answered by a {@link Responder}, which by default
+ * responds 204 to every request. Meant for tests and benchmarks of the delivery pipeline.
+ */
+final public class LoopbackTransport implements TracksTransport {
+
+    public interface Responder {
+        /**
+         * Called from the thread that sends the request.
+         */
+        @NonNull
+        TransportResponse respond(@NonNull ReceivedRequest request) throws IOException;
+    }
+
+    public static final class ReceivedRequest {
+
+        private final TransportRequest request;
+        private final byte[] body;
+
+        ReceivedRequest(@NonNull TransportRequest request, @NonNull byte[] body) {
+            this.request = request;
+            this.body = body;
+        }
+
+        @NonNull
+        public TransportRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * Body as sent, i.e. gzipped if the request has a gzip Content-Encoding.
+         */
+        @NonNull
+        public byte[] getBody() {
+            return body;
+        }
+
+        @NonNull
+        public byte[] getDecodedBody() throws IOException {
+            if (!"gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+                return body;
+            }
+            try (var in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                return StreamUtils.readAll(in).toByteArray();
+            }
+        }
+    }
+
+    public static final Responder NO_CONTENT = request ->
+            new TransportResponse(204, Collections.emptyMap(), new byte[0], request.getRequest().isKeepAlive());
+
+    private final BlockingQueue<ReceivedRequest> requests = new LinkedBlockingQueue<>();
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+    private volatile Responder responder = NO_CONTENT;
+    private volatile boolean keepRequests = true;
+
+    public void setResponder(@NonNull Responder responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Stops keeping received requests so that memory doesn't grow in benchmarks. Requests
+     * are still counted.
+     */
+    public void setKeepRequests(boolean keepRequests) {
+        this.keepRequests = keepRequests;
+    }
+
+    @NonNull
+    @Override
+    public TransportResponse execute(@NonNull TransportRequest request) throws IOException {
+
+        final var out = new ByteArrayOutputStream();
+        final var body = request.getBody();
+        if (body != null) {
+            body.writeTo(out);
+        }
+
+        final var received = new ReceivedRequest(request, out.toByteArray());
+        requestCount.incrementAndGet();
+        if (keepRequests) {
+            requests.add(received);
+        }
+
+        return responder.respond(received);
+    }
+
+    @Override
+    public void preconnect(@NonNull String url, int timeoutMs) {
+        // No connections
+    }
+
+    @Override
+    public void closeIdleConnections() {
+        // No connections
+    }
+
+    /**
+     * Waits up to the given time for the next received request.
+     *
+     * @return The request or null if none was received in time
+     */
+    @Nullable
+    public ReceivedRequest takeRequest(long timeoutMs) throws InterruptedException {
+        return requests.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/**
+ * Transport backed by OkHttp. Uploads are multiplexed over HTTP/2 when the server supports
+ * it. OkHttp must be a dependency of the app since the SDK doesn't bundle it.
+ * <p>
+ * When created from the OkHttpClient of the app, its connection pool and dispatcher are
+ * shared, so the SDK doesn't open extra sockets to servers the app already talks to. In that
+ * case idle connections are left to the pool, since evicting them would also close the
+ * connections of the app.
+ * <p>
+ * Requests of the SDK sent through this transport aren't intercepted.
+ */
+final public class OkHttpTransport implements TracksTransport {
+
+    private final OkHttpClient baseClient;
+    private final boolean ownsConnectionPool;
+
+    // Client derived from the base client with the timeouts of the last request
+    private OkHttpClient client;
+    private int connectTimeoutMs = -1;
+    private int readTimeoutMs = -1;
+
+    /**
+     * Creates a transport with its own connection pool.
+     */
+    public OkHttpTransport() {
+        this(new OkHttpClient(), true);
+    }
+
+    /**
+     * Creates a transport that shares the connection pool of the given client. Timeouts are
+     * taken from the Trackingplan config instead of the given client.
+     */
+    public OkHttpTransport(@NonNull OkHttpClient client) {
+        this(client, false);
+    }
+
+    private OkHttpTransport(@NonNull OkHttpClient client, boolean ownsConnectionPool) {
+        this.baseClient = client;
+        this.ownsConnectionPool = ownsConnectionPool;
+    }
+
+    @NonNull
+    @Override
+    public TransportResponse execute(@NonNull TransportRequest request) throws IOException {
+
+        final var builder = new Request.Builder().url(request.getUrl());
+        for (var header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+
+        final var body = request.getBody();
+        builder.method(request.getMethod(), body != null ? new StreamingRequestBody(body) : null);
+
+        try (Response response = getClient(request).newCall(builder.build()).execute()) {
+            final byte[] responseBody = readBody(response.body());
+            final boolean reusable = request.isKeepAlive()
+                    && responseBody != null
+                    && !"close".equalsIgnoreCase(response.header("Connection"));
+            return new TransportResponse(response.code(), readHeaders(response.headers()), responseBody, reusable);
+        }
+    }
+
+    @Override
+    public void preconnect(@NonNull String url, int timeoutMs) throws IOException {
+        final var parsedUrl = new URL(url);
+        final List<InetAddress> addresses = baseClient.dns().lookup(parsedUrl.getHost());
+        ConnectionWarmer.warmUp(parsedUrl, addresses.get(0), baseClient.sslSocketFactory(), timeoutMs);
+    }
+
+    @Override
+    public void closeIdleConnections() {
+        if (ownsConnectionPool) {
+            baseClient.connectionPool().evictAll();
+        }
+    }
+
+    @NonNull
+    private synchronized OkHttpClient getClient(@NonNull TransportRequest request) {
+        if (client == null
+                || connectTimeoutMs != request.getConnectTimeoutMs()
+                || readTimeoutMs != request.getReadTimeoutMs()) {
+            connectTimeoutMs = request.getConnectTimeoutMs();
+            readTimeoutMs = request.getReadTimeoutMs();
+            // Derived clients share the connection pool and dispatcher of the base client
+            client = baseClient.newBuilder()
+                    .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                    .writeTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return client;
+    }
+
+    @Nullable
+    private static byte[] readBody(@Nullable ResponseBody body) {
+        if (body == null) {
+            return new byte[0];
+        }
+        try {
+            return body.bytes();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private static Map<String, String> readHeaders(@NonNull Headers headers) {
+        final Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < headers.size(); i++) {
+            map.put(headers.name(i), headers.value(i));
+        }
+        return map;
+    }
+
+    /**
+     * Request body of unknown length that is written while it is generated. The Content-Type
+     * header is set by the request.
+     */
+    private static final class StreamingRequestBody extends RequestBody {
+
+        private final BodyWriter writer;
+
+        StreamingRequestBody(@NonNull BodyWriter writer) {
+            this.writer = writer;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return null;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            writer.writeTo(sink.outputStream());
+        }
+    }
+}
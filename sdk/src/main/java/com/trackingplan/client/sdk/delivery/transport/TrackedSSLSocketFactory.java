@@ -0,0 +1,103 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SSLSocketFactory that keeps track of the sockets it creates so that they can be closed
+ * later, e.g. when they are idle in the connection pool of HttpURLConnection, which can't
+ * evict them. Sockets are weakly referenced so that discarded ones can be collected.
+ */
+final class TrackedSSLSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private final Set<Socket> sockets = Collections.newSetFromMap(new WeakHashMap<>());
+
+    TrackedSSLSocketFactory(@NonNull SSLSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    @NonNull
+    SSLSocketFactory getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Closes every socket created so far.
+     */
+    void closeSockets() {
+
+        final List<Socket> socketsToClose;
+        synchronized (sockets) {
+            socketsToClose = new ArrayList<>(sockets);
+            sockets.clear();
+        }
+
+        for (Socket socket : socketsToClose) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return track(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    @NonNull
+    private Socket track(@NonNull Socket socket) {
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return socket;
+    }
+}
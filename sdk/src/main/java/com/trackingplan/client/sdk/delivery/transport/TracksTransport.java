@@ -0,0 +1,45 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * HTTP client used by the SDK to download the ingest config and upload batches.
+ * <p>
+ * Implementations must be thread-safe since several batches can be uploaded at the same
+ * time. Available implementations are {@link HttpUrlConnectionTransport} (default),
+ * {@link OkHttpTransport} and {@link LoopbackTransport}.
+ */
+public interface TracksTransport {
+
+    interface BodyWriter {
+        /**
+         * Writes the request body while it is generated. The body is complete when the
+         * stream is closed. If an exception is thrown, the request must be aborted instead of
+         * sending a truncated body.
+         */
+        void writeTo(@NonNull OutputStream out) throws IOException;
+    }
+
+    /**
+     * Sends the request and reads the whole response. HTTP error codes are returned as
+     * responses. Failures to reach the server are thrown.
+     */
+    @NonNull
+    TransportResponse execute(@NonNull TransportRequest request) throws IOException;
+
+    /**
+     * Resolves the host of the given URL and completes a TLS handshake with it, without
+     * sending any request, so that the next request to the server skips the DNS lookup and
+     * resumes the TLS session.
+     */
+    void preconnect(@NonNull String url, int timeoutMs) throws IOException;
+
+    /**
+     * Closes the idle connections kept alive by the transport, if any.
+     */
+    void closeIdleConnections();
+}
@@ -0,0 +1,141 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable class.
+ * Request sent through a {@link TracksTransport}.
+ */
+final public class TransportRequest {
+
+    private final String url;
+    private final String method;
+    private final Map<String, String> headers;
+    @Nullable
+    private final TracksTransport.BodyWriter body;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final boolean keepAlive;
+
+    private TransportRequest(@NonNull Builder builder) {
+        this.url = builder.url;
+        this.method = builder.method;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(builder.headers));
+        this.body = builder.body;
+        this.connectTimeoutMs = builder.connectTimeoutMs;
+        this.readTimeoutMs = builder.readTimeoutMs;
+        this.keepAlive = builder.keepAlive;
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    @NonNull
+    public String getMethod() {
+        return method;
+    }
+
+    @NonNull
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Nullable
+    public String getHeader(@NonNull String name) {
+        for (var entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writer of the request body or null if the request has no body.
+     */
+    @Nullable
+    public TracksTransport.BodyWriter getBody() {
+        return body;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * Returns true if the connection should be kept open for the next requests.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    @Override
+    @NonNull
+    public String toString() {
+        return method + " " + url;
+    }
+
+    public static class Builder {
+
+        private final String url;
+        private String method = "GET";
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private TracksTransport.BodyWriter body = null;
+        private int connectTimeoutMs = 0;
+        private int readTimeoutMs = 0;
+        private boolean keepAlive = false;
+
+        public Builder(@NonNull String url) {
+            this.url = url;
+        }
+
+        public Builder setMethod(@NonNull String method) {
+            this.method = method;
+            return this;
+        }
+
+        public Builder setHeader(@NonNull String name, @NonNull String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Builder setBody(@Nullable TracksTransport.BodyWriter body) {
+            this.body = body;
+            return this;
+        }
+
+        /**
+         * Value 0 means no timeout.
+         */
+        public Builder setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            return this;
+        }
+
+        public Builder setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        @NonNull
+        public TransportRequest build() {
+            if (body != null && ("GET".equals(method) || "HEAD".equals(method))) {
+                throw new IllegalStateException("Method " + method + " cannot have a body");
+            }
+            return new TransportRequest(this);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.transport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable class.
+ * Response received through a {@link TracksTransport}. Header names are case-insensitive.
+ */
+final public class TransportResponse {
+
+    private final int code;
+    private final Map<String, String> headers;
+    @Nullable
+    private final byte[] body;
+    private final boolean connectionReusable;
+
+    /**
+     * @param body               Response body or null if it couldn't be read
+     * @param connectionReusable True if the connection was kept open for the next requests
+     */
+    public TransportResponse(int code, @NonNull Map<String, String> headers, @Nullable byte[] body, boolean connectionReusable) {
+        final Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        map.putAll(headers);
+        this.code = code;
+        this.headers = Collections.unmodifiableMap(map);
+        this.body = body;
+        this.connectionReusable = connectionReusable;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public boolean isSuccessful() {
+        return code >= 200 && code < 300;
+    }
+
+    @Nullable
+    public String getHeader(@NonNull String name) {
+        return headers.get(name);
+    }
+
+    @NonNull
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Nullable
+    public byte[] getBody() {
+        return body;
+    }
+
+    public boolean isConnectionReusable() {
+        return connectionReusable;
+    }
+
+    @Override
+    @NonNull
+    public String toString() {
+        return "TransportResponse{code=" + code + '}';
+    }
+}
@@ -4,10 +4,45 @@ package com.trackingplan.client.sdk.exceptions;
 import java.io.IOException;
 
 public class TrackingplanSendException extends IOException {
+
+    public static final int NO_RESPONSE_CODE = -1;
+    public static final long NO_RETRY_AFTER = -1;
+
+    private final int responseCode;
+    private final long retryAfterMs;
+
     public TrackingplanSendException(String message) {
         super(message);
+        this.responseCode = NO_RESPONSE_CODE;
+        this.retryAfterMs = NO_RETRY_AFTER;
     }
     public TrackingplanSendException(String message, Throwable cause) {
         super(message, cause);
+        this.responseCode = NO_RESPONSE_CODE;
+        this.retryAfterMs = NO_RETRY_AFTER;
+    }
+    public TrackingplanSendException(String message, int responseCode) {
+        this(message, responseCode, NO_RETRY_AFTER);
+    }
+    public TrackingplanSendException(String message, int responseCode, long retryAfterMs) {
+        super(message);
+        this.responseCode = responseCode;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * HTTP response code returned by the endpoint or NO_RESPONSE_CODE if the request
+     * failed before getting a response.
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Delay requested by the Retry-After header of the response or NO_RETRY_AFTER if the
+     * response didn't have one.
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
     }
 }
@@ -14,16 +14,26 @@ public final class HttpInstrumentRequestBuilder extends InstrumentRequestBuilder
         super(tpInstance, instrument);
     }
 
+    @Override
+    protected void afterBuild(@NonNull HttpRequest request) {
+        // The radio is awake after any request of the host app that reached the network
+        if (!request.hasConnectionError()) {
+            tpInstance.onHostNetworkActivity();
+        }
+    }
+
     @Override
     protected boolean shouldProcessRequest(HttpRequest request) {
 
         if (request.hasConnectionError()) {
             logger.verbose("Request ignored. Request failed locally with error: " + request.getErrorMessage());
+            request.releasePayload();
             return false;
         }
 
         if (request.isPayloadTruncated()) {
             logger.verbose("Request ignored. Payload was truncated");
+            request.releasePayload();
             return false;
         }
 
@@ -4,32 +4,56 @@ package com.trackingplan.client.sdk.interception;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.trackingplan.client.sdk.util.ArrayStringMap;
 import com.trackingplan.client.sdk.util.StringUtils;
 import com.trackingplan.shared.adaptive.SamplingResult;
 
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 
 
 /**
- * Immutable class
+ * Intercepted HTTP request. Instruments set its fields through {@link Builder}. The request
+ * processor then completes it (context, provider, sampling) from Trackingplan thread, and
+ * its payload is released either there, when the request is dropped, or by the batch task
+ * that builds its raw track in the TaskRunner thread. Not thread-safe: a request is only
+ * used by one of those threads at a time.
+ * <p>
+ * Only the headers read when building raw tracks (Content-Type and Content-Encoding) are
+ * kept. The payload may live in a buffer of {@link PayloadBufferPool} longer than the
+ * payload itself: use getPayloadBuffer and getPayloadLength to read it without copying.
  */
 final public class HttpRequest {
+
+    public static final String HEADER_CONTENT_TYPE = "Content-Type";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
     private String url = "";
     private String method = "GET";
     private String userAgent = "";
     private int responseCode = -1;
     private long payloadSizeBytes = 0;
-    private byte[] payloadData = new byte[0]; // Payload truncated
-    private final Map<String, String> context = new HashMap<>();
-    private final Map<String, String> headers = new HashMap<>();
+    private byte[] payloadData = EMPTY_PAYLOAD; // Payload truncated
+    private int payloadLength = 0;
+    private boolean payloadPooled = false;
+    private final ArrayStringMap context = new ArrayStringMap();
+    private String contentType = null;
+    private String contentEncoding = null;
     private boolean hasError = false;
     private long createdTimeMs = 0;
     private String provider = "";
     private String interceptionModule = "";
     private SamplingResult.Include samplingResult = null;
+    private int suppressedCount = 0;
+    private int aggregateCount = 0;
+    private long aggregateFirstTimeMs = 0;
+    private long aggregateLastTimeMs = 0;
+    private int retryCount = 0;
+    private String payloadFingerprint = null;
+    private Map<String, String> sampledPayloadValues = null;
 
     private HttpRequest() {
         // Empty constructor
@@ -73,6 +97,91 @@ final public class HttpRequest {
         this.samplingResult = result;
     }
 
+    /**
+     * Number of previous requests of the same provider that weren't sent because they
+     * exceeded the event budget.
+     */
+    public int getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public void setSuppressedCount(int suppressedCount) {
+        this.suppressedCount = suppressedCount;
+    }
+
+    /**
+     * Number of requests this request stands for when it's the representative of an
+     * aggregation window, or 0 if it isn't aggregated.
+     */
+    public int getAggregateCount() {
+        return aggregateCount;
+    }
+
+    public long getAggregateFirstTimeMs() {
+        return aggregateFirstTimeMs;
+    }
+
+    public long getAggregateLastTimeMs() {
+        return aggregateLastTimeMs;
+    }
+
+    public void setAggregate(int count, long firstTimeMs, long lastTimeMs) {
+        this.aggregateCount = count;
+        this.aggregateFirstTimeMs = firstTimeMs;
+        this.aggregateLastTimeMs = lastTimeMs;
+    }
+
+    /**
+     * Number of times the host app retried this request. The response code is the one of
+     * the last attempt.
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    /**
+     * Counts a retry of this request made by the host app and takes its outcome.
+     */
+    public void addRetry(@NonNull HttpRequest retry) {
+        this.retryCount += 1;
+        this.responseCode = retry.responseCode;
+        this.hasError = retry.hasError;
+    }
+
+    /**
+     * Structural fingerprint of the payload, or null if it wasn't computed.
+     */
+    @Nullable
+    public String getPayloadFingerprint() {
+        return payloadFingerprint;
+    }
+
+    /**
+     * Values sent in place of the payload when its structure was already sent, or null if
+     * the payload is sent.
+     */
+    @Nullable
+    public Map<String, String> getSampledPayloadValues() {
+        return sampledPayloadValues;
+    }
+
+    public boolean isPayloadElided() {
+        return sampledPayloadValues != null;
+    }
+
+    /**
+     * Sets the structural fingerprint of the payload. If sampledValues isn't null, the
+     * payload is replaced by them in the raw track.
+     */
+    public void setPayloadFingerprint(@NonNull String fingerprint, @Nullable Map<String, String> sampledValues) {
+        this.payloadFingerprint = fingerprint;
+        this.sampledPayloadValues = sampledValues != null ? Collections.unmodifiableMap(sampledValues) : null;
+    }
+
     /**
      * Gets the status code of the intercepted HTTP request.
      * Return -1 if no code can be discerned. For instance,
@@ -89,12 +198,46 @@ final public class HttpRequest {
         return payloadSizeBytes;
     }
 
+    /**
+     * Payload kept of the request. It's a copy when the payload is held in a pooled buffer.
+     */
     public byte[] getPayloadData() {
+        if (payloadLength == payloadData.length) {
+            return payloadData;
+        }
+        return Arrays.copyOf(payloadData, payloadLength);
+    }
+
+    /**
+     * Buffer that holds the payload in its first getPayloadLength() bytes.
+     */
+    @NonNull
+    public byte[] getPayloadBuffer() {
         return payloadData;
     }
 
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
     public boolean isPayloadTruncated() {
-        return payloadData.length < payloadSizeBytes;
+        return payloadLength < payloadSizeBytes;
+    }
+
+    /**
+     * Gives the payload buffer back to the pool if it was taken from it. The payload is empty
+     * afterwards. Called once the raw track of the request has been built or when the request
+     * is dropped.
+     */
+    public void releasePayload() {
+        final byte[] buffer = payloadData;
+        final boolean pooled = payloadPooled;
+        payloadData = EMPTY_PAYLOAD;
+        payloadLength = 0;
+        payloadPooled = false;
+        if (pooled) {
+            PayloadBufferPool.getInstance().release(buffer);
+        }
     }
 
     public boolean hasConnectionError() {
@@ -116,18 +259,26 @@ final public class HttpRequest {
         return StringUtils.getNonNullOrDefault(context.get("request_error"), "");
     }
 
+    /**
+     * Read-only map of context fields.
+     */
     @NonNull
     public Map<String, String> getContext() {
-        return Collections.unmodifiableMap(context);
+        return context;
     }
 
     public void addContextField(@NonNull String name, @NonNull String value) {
-        context.put(name, value);
+        context.set(name, value);
     }
 
-    @NonNull
-    public Map<String, String> getHeaders() {
-        return Collections.unmodifiableMap(headers);
+    @Nullable
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Nullable
+    public String getContentEncoding() {
+        return contentEncoding;
     }
 
     @Override
@@ -143,87 +294,124 @@ final public class HttpRequest {
                 ", url='" + url + '\'' +
                 ", created_at='" + createdTimeMs + '\'' +
                 ", context='" + context.toString() + '\'' +
-                ", headers='" + headers.toString() + '\'' +
+                ", contentType='" + contentType + '\'' +
+                ", contentEncoding='" + contentEncoding + '\'' +
                 '}';
     }
 
     public static class Builder {
 
-        private HttpRequest request = new HttpRequest();
+        // Created on first use, so that a builder doesn't allocate a request it won't build
+        private HttpRequest request;
 
         public Builder setUrl(@NonNull String url) {
-            request.url = url;
+            request().url = url;
             return this;
         }
 
         public Builder setHttpMethod(@NonNull String method) {
-            request.method = method;
+            request().method = method;
             return this;
         }
 
         public Builder setUserAgent(@NonNull String userAgent) {
-            request.userAgent = userAgent;
+            request().userAgent = userAgent;
             return this;
         }
 
         public Builder setHttpResponseCode(int responseCode) {
-            request.responseCode = responseCode;
+            request().responseCode = responseCode;
             return this;
         }
 
         public Builder setRequestPayload(byte[] payload) {
+            final HttpRequest request = request();
+            request.releasePayload();
             request.payloadData = payload;
+            request.payloadLength = payload.length;
+            return this;
+        }
+
+        /**
+         * Sets a payload held in the first length bytes of a buffer taken from
+         * {@link PayloadBufferPool}. The request owns the buffer from now on.
+         */
+        public Builder setPooledRequestPayload(@NonNull byte[] buffer, int length) {
+            final HttpRequest request = request();
+            request.releasePayload();
+            request.payloadData = buffer;
+            request.payloadLength = length;
+            request.payloadPooled = true;
             return this;
         }
 
         public Builder setRequestPayloadNumBytes(long numBytes) {
-            request.payloadSizeBytes = numBytes;
+            request().payloadSizeBytes = numBytes;
             return this;
         }
 
         public Builder setException(@NonNull Exception ex) {
-            request.hasError = true;
+            request().hasError = true;
             String message = ex.getMessage();
             if (message != null) {
-                request.context.put("request_error", ex.getMessage());
+                request().context.set("request_error", message);
             }
             return this;
         }
 
         public Builder addContextField(@NonNull String name, @NonNull String value) {
-            request.context.put(name, value);
+            request().context.set(name, value);
             return this;
         }
 
+        /**
+         * Header names are case-insensitive. Headers other than Content-Type and
+         * Content-Encoding are ignored.
+         */
         public Builder addHeaderField(String key, String value) {
-            String keyStr = key != null ? key.toLowerCase(Locale.ROOT) : null;
-            request.headers.put(keyStr, value);
+            if (HEADER_CONTENT_TYPE.equalsIgnoreCase(key)) {
+                request().contentType = value;
+            } else if (HEADER_CONTENT_ENCODING.equalsIgnoreCase(key)) {
+                request().contentEncoding = value;
+            }
             return this;
         }
 
         public boolean hasHeaderField(String key) {
-            return request.headers.containsKey(key);
+            if (HEADER_CONTENT_TYPE.equalsIgnoreCase(key)) {
+                return request != null && request.contentType != null;
+            } else if (HEADER_CONTENT_ENCODING.equalsIgnoreCase(key)) {
+                return request != null && request.contentEncoding != null;
+            }
+            return false;
         }
 
         public Builder setProvider(@NonNull String provider) {
-            request.provider = provider;
+            request().provider = provider;
             return this;
         }
 
         public Builder setInterceptionModule(@NonNull String interceptionModule) {
-            request.interceptionModule = interceptionModule;
+            request().interceptionModule = interceptionModule;
             return this;
         }
 
         public HttpRequest build() {
-            HttpRequest result = this.request;
+            HttpRequest result = request();
             result.createdTimeMs = System.currentTimeMillis();
             reset();
             return result;
         }
 
+        private HttpRequest request() {
+            if (request == null) {
+                request = new HttpRequest();
+            }
+            return request;
+        }
+
         private void reset() {
-            this.request = new HttpRequest();
+            this.request = null;
         }
     }
 }
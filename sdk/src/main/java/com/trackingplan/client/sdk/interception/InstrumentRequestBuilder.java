@@ -21,6 +21,9 @@ public abstract class InstrumentRequestBuilder {
     final protected TrackingplanInstance tpInstance;
     final protected String instrument;
 
+    // Set when the request is intercepted, before it's handed over to the Trackingplan thread
+    private InterceptionContext interceptionContext;
+
     public InstrumentRequestBuilder(TrackingplanInstance tpInstance, @NonNull String instrument) {
         this.builder = new HttpRequest.Builder();
         this.tpInstance = tpInstance;
@@ -52,6 +55,14 @@ public abstract class InstrumentRequestBuilder {
         builder.setRequestPayload(payload);
     }
 
+    /**
+     * Sets a payload held in the first length bytes of a buffer taken from
+     * {@link PayloadBufferPool}. The request owns the buffer from now on.
+     */
+    public void setPooledRequestPayload(@NonNull byte[] buffer, int length) {
+        builder.setPooledRequestPayload(buffer, length);
+    }
+
     public void setRequestPayloadNumBytes(long numBytes) {
         builder.setRequestPayloadNumBytes(numBytes);
     }
@@ -60,6 +71,14 @@ public abstract class InstrumentRequestBuilder {
         builder.setException(ex);
     }
 
+    /**
+     * True if a request to the URL would be processed, so that instruments can skip the
+     * work of capturing the payload of the other requests. Safe to call from any thread.
+     */
+    public boolean isSupportedDestination(@NonNull String url) {
+        return !disabled && tpInstance != null && tpInstance.isSupportedDestination(url);
+    }
+
     /**
      * This method is called from instruments used for request interception. So it is the
      * entrypoint to the request processor and delivery system. Note that in HTTP instruments
@@ -80,33 +99,47 @@ public abstract class InstrumentRequestBuilder {
 
             builder.setInterceptionModule(instrument);
 
-            final var interceptionContext = InterceptionContext.createInterceptionContext(tpInstance.getContext());
+            interceptionContext = InterceptionContext.createInterceptionContext(tpInstance.getContext());
             interceptionContext.instrument = instrument;
 
-            tpInstance.runSync(() -> {
+            tpInstance.enqueueInterceptedRequest(this);
+
+        } catch (Exception ex) {
+            AndroidLog.getInstance().warn("Interception failed: " + ex.getMessage());
+        }
+    }
 
-                beforeBuild();
+    /**
+     * Builds the intercepted request and passes it to the request processor. Called by
+     * TrackingplanInstance once per intercepted request.
+     * <p>
+     * NOTE: This method must be called from Trackingplan thread.
+     */
+    public final void processIntercepted() {
 
-                HttpRequest request = builder.build();
-                logger.verbose("Request intercepted: " + request);
+        beforeBuild();
 
-                if (!shouldProcessRequest(request)) {
-                    return;
-                }
+        HttpRequest request = builder.build();
+        logger.verbose("Request intercepted: " + request);
 
-                // Process requests synchronously in Trackingplan thread
-                tpInstance.processRequest(request, interceptionContext);
-            });
+        afterBuild(request);
 
-        } catch (Exception ex) {
-            AndroidLog.getInstance().warn("Interception failed: " + ex.getMessage());
+        if (!shouldProcessRequest(request)) {
+            return;
         }
+
+        // Process requests synchronously in Trackingplan thread
+        tpInstance.processRequest(request, interceptionContext);
     }
 
     protected void beforeBuild() {
         // Empty implementation
     }
 
+    protected void afterBuild(@NonNull HttpRequest request) {
+        // Empty implementation
+    }
+
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     protected boolean shouldProcessRequest(HttpRequest request) {
         return true;
@@ -1,8 +1,6 @@
 // Copyright (c) 2022 Trackingplan
 package com.trackingplan.client.sdk.interception;
 
-import android.app.ActivityManager;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -14,7 +12,6 @@ import androidx.annotation.NonNull;
 import com.trackingplan.client.sdk.util.ScreenViewTracker;
 import com.trackingplan.client.sdk.util.ServiceLocator;
 
-import java.util.List;
 import java.util.Locale;
 
 public class InterceptionContext {
@@ -32,33 +29,43 @@ public class InterceptionContext {
 
     public String instrument = "";
 
+    /**
+     * Creates the context of an intercepted request. It's called from the threads of the host
+     * app where requests are intercepted, so it doesn't make any call to system services.
+     * The activity and screen names are the ones tracked by the ScreenViewTracker, if any.
+     */
     @NonNull
     public static InterceptionContext createInterceptionContext(@NonNull final Context context) {
 
-        if (!initialized) {
-            synchronized (InterceptionContext.class) {
-                if (!initialized) {
-                    initCommonContext(context);
-                    initialized = true;
-                }
-            }
-        }
+        // Usually done by Trackingplan on start. Only requests intercepted before it pay for it.
+        init(context);
 
         var interceptionContext = new InterceptionContext();
 
-        final String activityName = getTopActivityName(context);
-        if (!activityName.isEmpty()) {
-            interceptionContext.activityName = activityName;
-        }
-
         final var screenViewTracker = ServiceLocator.tryGetSharedInstance(ScreenViewTracker.class);
         if (screenViewTracker != null) {
+            interceptionContext.activityName = screenViewTracker.getCurrentActivityName();
             interceptionContext.screenName = screenViewTracker.getLastScreenName();
         }
 
         return interceptionContext;
     }
 
+    /**
+     * Initializes the context shared by every request (app, device, etc.) if it wasn't yet.
+     * It looks up the package manager, so it's better called out of the threads of the host app.
+     */
+    public static void init(@NonNull final Context context) {
+        if (!initialized) {
+            synchronized (InterceptionContext.class) {
+                if (!initialized) {
+                    initCommonContext(context);
+                    initialized = true;
+                }
+            }
+        }
+    }
+
     private static void initCommonContext(@NonNull final Context context) {
 
         final PackageManager packageManager = context.getPackageManager();
@@ -77,27 +84,4 @@ public class InterceptionContext {
             appVersion = "unknown";
         }
     }
-
-    @NonNull
-    private static String getTopActivityName(@NonNull Context context) {
-
-        String currentActivityName = "";
-
-        try {
-            final ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-            final List<ActivityManager.AppTask> taskInfo = am.getAppTasks();
-
-            if (!taskInfo.isEmpty()) {
-                final ActivityManager.RecentTaskInfo task = taskInfo.get(0).getTaskInfo();
-                final ComponentName componentName = task.topActivity;
-                if (componentName != null) {
-                    currentActivityName = componentName.getClassName();
-                }
-            }
-        } catch (Exception ignored) {
-            // Fail silently
-        }
-
-        return currentActivityName;
-    }
 }
@@ -0,0 +1,112 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.interception;
+
+import static com.trackingplan.client.sdk.TrackingplanConfig.MAX_REQUEST_BODY_SIZE_IN_BYTES;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pool of the buffers that hold the payload of intercepted requests. Buffers have
+ * power-of-two sizes, from MIN_BUFFER_SIZE_BYTES up to the first size that fits the largest
+ * payload kept, so a buffer is usually longer than the payload it holds.
+ * <p>
+ * Buffers are taken by instruments in the threads of the host app and returned once the
+ * raw track of their request has been built (see {@link HttpRequest#releasePayload()}).
+ * At most MAX_POOLED_BYTES are kept. Safe to call from any thread.
+ */
+final public class PayloadBufferPool {
+
+    static final int MIN_BUFFER_SIZE_BYTES = 1024;
+    static final int MAX_POOLED_BYTES = 512 * 1024;
+    // Enough for the chunks of the largest payload kept (see PayloadTee)
+    static final int MAX_BUFFERS_PER_SIZE = 32;
+
+    private static final PayloadBufferPool instance = new PayloadBufferPool(MAX_REQUEST_BODY_SIZE_IN_BYTES, MAX_POOLED_BYTES);
+
+    private final int maxBufferSize;
+    private final int maxPooledBytes;
+
+    // Free buffers of each size class, used as stacks
+    private final byte[][][] buffers;
+    private final int[] numBuffers;
+    private int pooledBytes = 0;
+    private long numAllocations = 0;
+
+    PayloadBufferPool(int maxPayloadSize, int maxPooledBytes) {
+        this.maxBufferSize = bufferSizeFor(maxPayloadSize);
+        this.maxPooledBytes = maxPooledBytes;
+        final int numSizes = sizeClassOf(maxBufferSize) + 1;
+        this.buffers = new byte[numSizes][MAX_BUFFERS_PER_SIZE][];
+        this.numBuffers = new int[numSizes];
+    }
+
+    public static PayloadBufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes a buffer with room for at least minSize bytes. Sizes beyond the largest size class
+     * are allocated and never pooled.
+     */
+    @NonNull
+    public byte[] obtain(int minSize) {
+        final int size = bufferSizeFor(minSize);
+        if (size <= maxBufferSize) {
+            final int sizeClass = sizeClassOf(size);
+            synchronized (this) {
+                final int count = numBuffers[sizeClass];
+                if (count > 0) {
+                    final byte[] buffer = buffers[sizeClass][count - 1];
+                    buffers[sizeClass][count - 1] = null;
+                    numBuffers[sizeClass] = count - 1;
+                    pooledBytes -= buffer.length;
+                    return buffer;
+                }
+                numAllocations += 1;
+            }
+        }
+        return new byte[size <= maxBufferSize ? size : minSize];
+    }
+
+    /**
+     * Gives the buffer back to the pool. The buffer must not be used afterwards.
+     */
+    public void release(@NonNull byte[] buffer) {
+        final int size = buffer.length;
+        if (size < MIN_BUFFER_SIZE_BYTES || size > maxBufferSize || Integer.bitCount(size) != 1) {
+            // Not taken from this pool
+            return;
+        }
+        final int sizeClass = sizeClassOf(size);
+        synchronized (this) {
+            final int count = numBuffers[sizeClass];
+            if (count == MAX_BUFFERS_PER_SIZE || pooledBytes + size > maxPooledBytes) {
+                return;
+            }
+            buffers[sizeClass][count] = buffer;
+            numBuffers[sizeClass] = count + 1;
+            pooledBytes += size;
+        }
+    }
+
+    /**
+     * Number of buffers that had to be allocated because the pool had none of the size
+     * requested.
+     */
+    public synchronized long getNumAllocations() {
+        return numAllocations;
+    }
+
+    static int bufferSizeFor(int minSize) {
+        if (minSize <= MIN_BUFFER_SIZE_BYTES) {
+            return MIN_BUFFER_SIZE_BYTES;
+        }
+        final int size = Integer.highestOneBit(minSize - 1) << 1;
+        // Overflows beyond 2^30
+        return size > 0 ? size : Integer.MAX_VALUE;
+    }
+
+    private static int sizeClassOf(int bufferSize) {
+        return Integer.numberOfTrailingZeros(bufferSize) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE_BYTES);
+    }
+}
@@ -0,0 +1,136 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.interception;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Keeps a copy of the first maxSize bytes of a request body while the host app writes it.
+ * <p>
+ * Bytes are written into fixed-size chunks taken from {@link PayloadBufferPool}. When the
+ * body is complete, {@link #moveTo} copies the chunks once into the payload buffer of the
+ * request, or hands the only chunk over when it's already the buffer a payload of that size
+ * would get. Bytes beyond maxSize are counted but not kept.
+ * <p>
+ * Not thread-safe. A tee belongs to the stream of a single request.
+ */
+final public class PayloadTee {
+
+    static final int CHUNK_SIZE_BYTES = 4 * 1024;
+
+    private final PayloadBufferPool pool;
+    private final int maxSize;
+
+    // Chunks in use. The last one is the one being written.
+    private byte[][] chunks;
+    private int numChunks = 0;
+    private byte[] chunk;
+    private int chunkPosition = 0;
+
+    private int size = 0;
+    private long numBytesWritten = 0;
+
+    public PayloadTee(int maxSize) {
+        this(PayloadBufferPool.getInstance(), maxSize);
+    }
+
+    PayloadTee(@NonNull PayloadBufferPool pool, int maxSize) {
+        this.pool = pool;
+        this.maxSize = maxSize;
+    }
+
+    public void write(int b) {
+        numBytesWritten += 1;
+        if (chunk != null && chunkPosition < CHUNK_SIZE_BYTES && size < maxSize) {
+            chunk[chunkPosition++] = (byte) b;
+            size += 1;
+            return;
+        }
+        if (size < maxSize) {
+            nextChunk();
+            chunk[chunkPosition++] = (byte) b;
+            size += 1;
+        }
+    }
+
+    public void write(@NonNull byte[] b, int off, int len) {
+        numBytesWritten += len;
+        int remaining = Math.min(len, maxSize - size);
+        while (remaining > 0) {
+            if (chunk == null || chunkPosition == CHUNK_SIZE_BYTES) {
+                nextChunk();
+            }
+            final int n = Math.min(remaining, CHUNK_SIZE_BYTES - chunkPosition);
+            System.arraycopy(b, off, chunk, chunkPosition, n);
+            chunkPosition += n;
+            size += n;
+            off += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Number of bytes kept.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of bytes written, including those that weren't kept.
+     */
+    public long getNumBytesWritten() {
+        return numBytesWritten;
+    }
+
+    /**
+     * Sets the bytes kept as the payload of the request and empties the tee.
+     */
+    public void moveTo(@NonNull InstrumentRequestBuilder builder) {
+
+        if (size == 0) {
+            release();
+            return;
+        }
+
+        if (numChunks == 1 && PayloadBufferPool.bufferSizeFor(size) == CHUNK_SIZE_BYTES) {
+            // The chunk is the buffer the pool would give for this payload
+            builder.setPooledRequestPayload(chunk, size);
+            chunks[0] = null;
+            numChunks = 0;
+        } else {
+            final byte[] payload = pool.obtain(size);
+            int position = 0;
+            for (int i = 0; i < numChunks; i++) {
+                final int n = Math.min(CHUNK_SIZE_BYTES, size - position);
+                System.arraycopy(chunks[i], 0, payload, position, n);
+                position += n;
+            }
+            builder.setPooledRequestPayload(payload, size);
+        }
+
+        release();
+    }
+
+    /**
+     * Gives the chunks back to the pool and empties the tee.
+     */
+    public void release() {
+        for (int i = 0; i < numChunks; i++) {
+            pool.release(chunks[i]);
+            chunks[i] = null;
+        }
+        numChunks = 0;
+        chunk = null;
+        chunkPosition = 0;
+        size = 0;
+    }
+
+    private void nextChunk() {
+        if (chunks == null) {
+            chunks = new byte[(maxSize + CHUNK_SIZE_BYTES - 1) / CHUNK_SIZE_BYTES][];
+        }
+        chunk = pool.obtain(CHUNK_SIZE_BYTES);
+        chunks[numChunks++] = chunk;
+        chunkPosition = 0;
+    }
+}
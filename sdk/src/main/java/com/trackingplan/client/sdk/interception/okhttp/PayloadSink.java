@@ -0,0 +1,85 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.interception.okhttp;
+
+import androidx.annotation.NonNull;
+
+import com.trackingplan.client.sdk.interception.InstrumentRequestBuilder;
+import com.trackingplan.client.sdk.interception.PayloadBufferPool;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * Sink where a request body is written to capture its payload. Bytes are read straight into
+ * a buffer of {@link PayloadBufferPool} of the given size. Writing more than that fails with
+ * {@link LimitExceededException}, so that a body is never serialized nor kept beyond it.
+ */
+final class PayloadSink implements Sink {
+
+    /**
+     * Thrown when the body is longer than the size of the sink.
+     */
+    static final class LimitExceededException extends IOException {
+        LimitExceededException() {
+            super("Request body is longer than expected");
+        }
+    }
+
+    private final int maxSize;
+    private byte[] buffer;
+    private int size = 0;
+
+    PayloadSink(int maxSize) {
+        this.maxSize = maxSize;
+        this.buffer = PayloadBufferPool.getInstance().obtain(maxSize);
+    }
+
+    @Override
+    public void write(@NonNull Buffer source, long byteCount) throws IOException {
+
+        if (byteCount > maxSize - size) {
+            source.skip(byteCount);
+            throw new LimitExceededException();
+        }
+
+        final int end = size + (int) byteCount;
+        while (size < end) {
+            size += source.read(buffer, size, end - size);
+        }
+    }
+
+    /**
+     * Sets the bytes written as the payload of the request. The sink can't be used afterwards.
+     */
+    void moveTo(@NonNull InstrumentRequestBuilder builder) {
+        builder.setPooledRequestPayload(buffer, size);
+        buffer = null;
+    }
+
+    /**
+     * Gives the buffer back to the pool. The sink can't be used afterwards.
+     */
+    void release() {
+        if (buffer != null) {
+            PayloadBufferPool.getInstance().release(buffer);
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @NonNull
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() {
+    }
+}
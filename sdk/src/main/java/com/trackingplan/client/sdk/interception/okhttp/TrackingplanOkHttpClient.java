@@ -49,7 +49,8 @@ import okhttp3.HttpUrl;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
 
 /**
  * These are the functions that are bytecode instrumented into the apk for
@@ -105,8 +106,10 @@ public class TrackingplanOkHttpClient {
             throws IOException {
 
         HttpUrl url = request.url();
+        String urlString = null;
         if (url != null) {
-            builder.setUrl(url.toString());
+            urlString = url.toString();
+            builder.setUrl(urlString);
         }
 
         String method = request.method();
@@ -114,18 +117,58 @@ public class TrackingplanOkHttpClient {
             builder.setHttpMethod(method);
         }
 
+        // The body is only written again for requests that will be processed
         RequestBody requestBody = request.body();
-        if (requestBody != null) {
-            long requestContentLength = requestBody.contentLength();
-            if (requestContentLength != -1) {
-                final Buffer buffer = new Buffer();
-                requestBody.writeTo(buffer);
-                builder.setRequestPayloadNumBytes(requestContentLength);
-                builder.setRequestPayload(
-                        buffer.readByteArray(Math.min(requestContentLength, MAX_REQUEST_BODY_SIZE_IN_BYTES)));
-            }
+        if (requestBody != null && urlString != null && builder.isSupportedDestination(urlString)) {
+            capturePayload(requestBody, builder);
         }
 
         builder.build();
     }
+
+    private static void capturePayload(@NonNull RequestBody requestBody, @NonNull InstrumentRequestBuilder builder)
+            throws IOException {
+
+        if (!canBeWrittenAgain(requestBody)) {
+            return;
+        }
+
+        long requestContentLength = requestBody.contentLength();
+        if (requestContentLength == -1) {
+            return;
+        }
+
+        builder.setRequestPayloadNumBytes(requestContentLength);
+
+        if (requestContentLength > MAX_REQUEST_BODY_SIZE_IN_BYTES) {
+            // Truncated payloads are ignored (see HttpInstrumentRequestBuilder)
+            return;
+        }
+
+        final PayloadSink sink = new PayloadSink((int) requestContentLength);
+        try {
+            final BufferedSink bufferedSink = Okio.buffer(sink);
+            requestBody.writeTo(bufferedSink);
+            bufferedSink.flush();
+            sink.moveTo(builder);
+        } catch (PayloadSink.LimitExceededException e) {
+            // Content length was wrong. The payload is left out, so the request counts as truncated.
+        } finally {
+            // Buffer goes back to the pool unless it was moved to the builder
+            sink.release();
+        }
+    }
+
+    /**
+     * One-shot bodies can only be written once, by OkHttp, and duplex bodies are written while
+     * the response is read.
+     */
+    private static boolean canBeWrittenAgain(@NonNull RequestBody requestBody) {
+        try {
+            return !requestBody.isOneShot() && !requestBody.isDuplex();
+        } catch (LinkageError e) {
+            // OkHttp older than 3.14 has neither one-shot nor duplex bodies
+            return true;
+        }
+    }
 }
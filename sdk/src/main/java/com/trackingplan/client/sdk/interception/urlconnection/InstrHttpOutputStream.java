@@ -4,25 +4,21 @@ package com.trackingplan.client.sdk.interception.urlconnection;
 import static com.trackingplan.client.sdk.TrackingplanConfig.MAX_REQUEST_BODY_SIZE_IN_BYTES;
 
 import com.trackingplan.client.sdk.interception.InstrumentRequestBuilder;
+import com.trackingplan.client.sdk.interception.PayloadTee;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 final class InstrHttpOutputStream extends OutputStream {
 
-    private static final int RESERVED_POST_SIZE_BYTES = 1024;
-
     private final OutputStream outputStream;
-    private final ByteArrayOutputStream teeStream;
+    private final PayloadTee tee;
     private final InstrumentRequestBuilder requestBuilder;
     private final InstrURLConnectionBase instrConn;
 
-    private int bytesWritten = 0;
-
     public InstrHttpOutputStream(OutputStream outputStream, InstrURLConnectionBase instrConn, InstrumentRequestBuilder builder) {
         this.outputStream = outputStream;
-        this.teeStream = new ByteArrayOutputStream(RESERVED_POST_SIZE_BYTES);
+        this.tee = new PayloadTee(MAX_REQUEST_BODY_SIZE_IN_BYTES);
         requestBuilder = builder;
         this.instrConn = instrConn;
     }
@@ -31,10 +27,7 @@ final class InstrHttpOutputStream extends OutputStream {
     public void write(int b) throws IOException {
         try {
             outputStream.write(b);
-            if (teeStream.size() < MAX_REQUEST_BODY_SIZE_IN_BYTES) {
-                teeStream.write(b);
-            }
-            bytesWritten++;
+            tee.write(b);
         } catch (IOException ex) {
             throw instrConn.finishInterceptionWithError(ex);
         }
@@ -44,10 +37,7 @@ final class InstrHttpOutputStream extends OutputStream {
     public void write(byte[] b) throws IOException {
         try {
             outputStream.write(b);
-            if (teeStream.size() < MAX_REQUEST_BODY_SIZE_IN_BYTES) {
-                writePayload(b, 0, b.length);
-            }
-            bytesWritten += b.length;
+            tee.write(b, 0, b.length);
         } catch (IOException ex) {
             throw instrConn.finishInterceptionWithError(ex);
         }
@@ -57,10 +47,7 @@ final class InstrHttpOutputStream extends OutputStream {
     public void write(byte[] b, int off, int len) throws IOException {
         try {
             outputStream.write(b, off, len);
-            if (teeStream.size() < MAX_REQUEST_BODY_SIZE_IN_BYTES) {
-                writePayload(b, off, len);
-            }
-            bytesWritten += len;
+            tee.write(b, off, len);
         } catch (IOException ex) {
             throw instrConn.finishInterceptionWithError(ex);
         }
@@ -69,9 +56,11 @@ final class InstrHttpOutputStream extends OutputStream {
     @Override
     public void close() throws IOException {
         try {
-            if (bytesWritten > 0) {
-                requestBuilder.setRequestPayload(teeStream.toByteArray());
-                requestBuilder.setRequestPayloadNumBytes(bytesWritten);
+            final long numBytesWritten = tee.getNumBytesWritten();
+            if (numBytesWritten > 0) {
+                // The payload is kept only once, even if the stream is closed again
+                tee.moveTo(requestBuilder);
+                requestBuilder.setRequestPayloadNumBytes(numBytesWritten);
             }
             outputStream.close();
         } catch (IOException ex) {
@@ -87,9 +76,4 @@ final class InstrHttpOutputStream extends OutputStream {
             throw instrConn.finishInterceptionWithError(ex);
         }
     }
-
-    private void writePayload(byte[] b, int off, int len) {
-        int boundedLen = Math.min(MAX_REQUEST_BODY_SIZE_IN_BYTES - teeStream.size(), len);
-        teeStream.write(b, off, boundedLen);
-    }
 }
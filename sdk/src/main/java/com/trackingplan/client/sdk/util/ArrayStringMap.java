@@ -0,0 +1,122 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of strings that keeps keys and values next to each other in a single array, in
+ * insertion order. Lookups are linear, which is faster and much lighter than a HashMap for
+ * the handful of entries it's meant for (e.g. the context of a request).
+ * <p>
+ * The map is read-only through the Map interface. Only its owner changes it with
+ * {@link #set}. Not thread-safe.
+ */
+final public class ArrayStringMap extends AbstractMap<String, String> {
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    // Key at even positions and its value right after it
+    private String[] entries;
+    private int size = 0;
+
+    public ArrayStringMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ArrayStringMap(int capacity) {
+        this.entries = new String[Math.max(capacity, 1) * 2];
+    }
+
+    /**
+     * Sets the value of the key, replacing the previous one if any.
+     */
+    public void set(@NonNull String key, @NonNull String value) {
+        final int index = indexOf(key);
+        if (index >= 0) {
+            entries[index + 1] = value;
+            return;
+        }
+        if (size * 2 == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[size * 2] = key;
+        entries[size * 2 + 1] = value;
+        size += 1;
+    }
+
+    @Nullable
+    @Override
+    public String get(@Nullable Object key) {
+        final int index = indexOf(key);
+        return index >= 0 ? entries[index + 1] : null;
+    }
+
+    @Override
+    public boolean containsKey(@Nullable Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @NonNull
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        final int index = next * 2;
+                        next += 1;
+                        return new SimpleImmutableEntry<>(entries[index], entries[index + 1]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int indexOf(@Nullable Object key) {
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < size * 2; i += 2) {
+            if (key.equals(entries[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,137 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free queue for many producer threads and a single consumer thread.
+ * <p>
+ * Every slot has a sequence number that tells whether it's free for the producer that
+ * claims that position or holds an element ready for the consumer. Producers claim positions
+ * with a CAS on the tail and never wait: when the buffer is full, {@link #offer} fails right
+ * away and the producer decides what to do with the element. Elements are consumed in the
+ * order their positions were claimed.
+ * <p>
+ * {@link #poll} and {@link #drain} must only be called from the consumer thread.
+ */
+final public class MpscRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    // Next position claimed by producers
+    private final AtomicLong tail = new AtomicLong(0);
+    // Next position read by the consumer. Only written from the consumer thread.
+    private volatile long head = 0;
+
+    /**
+     * @param capacity Maximum number of elements. It's rounded up to a power of two.
+     */
+    public MpscRingBuffer(int capacity) {
+
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the element to the buffer without waiting. Safe to call from any thread.
+     *
+     * @return False if the buffer is full
+     */
+    public boolean offer(@NonNull E element) {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    // Publishes the element to the consumer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                // The slot still holds an element from the previous lap
+                return false;
+            } else {
+                // Another producer claimed the position
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element of the buffer.
+     *
+     * @return The element or null if the buffer is empty or the oldest position was claimed
+     * but its element isn't published yet
+     */
+    @Nullable
+    public E poll() {
+        final long position = head;
+        final int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        final E element = elements.get(index);
+        elements.lazySet(index, null);
+        // Frees the slot for the producer of the next lap
+        sequences.set(index, position + capacity);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * Removes up to maxElements of the oldest elements and passes them to the consumer in
+     * order.
+     *
+     * @return Number of elements removed
+     */
+    public int drain(@NonNull Consumer<E> consumer, int maxElements) {
+        int numElements = 0;
+        while (numElements < maxElements) {
+            final E element = poll();
+            if (element == null) {
+                break;
+            }
+            numElements += 1;
+            consumer.accept(element);
+        }
+        return numElements;
+    }
+
+    /**
+     * True if no position is claimed. Elements being published by producers count as not
+     * empty. Safe to call from any thread.
+     */
+    public boolean isEmpty() {
+        return head == tail.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
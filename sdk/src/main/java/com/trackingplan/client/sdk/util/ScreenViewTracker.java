@@ -13,6 +13,7 @@ import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentManager;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -29,7 +30,11 @@ final public class ScreenViewTracker {
 
     private Application application;
     private final MyActivityLifecycleCallbacks callbacks;
-    private String lastScreenName = "";
+    // Read from the threads where requests are intercepted
+    private volatile String lastScreenName = "";
+    private volatile String currentActivityName = "";
+    // Only used from main thread
+    private WeakReference<Activity> currentActivity = new WeakReference<>(null);
 
     private final List<ScreenViewListener> listeners = new ArrayList<>();
 
@@ -42,6 +47,8 @@ final public class ScreenViewTracker {
         if (this.application != null) return;
         this.application = application;
         lastScreenName = "";
+        currentActivityName = "";
+        currentActivity = new WeakReference<>(null);
         application.registerActivityLifecycleCallbacks(callbacks);
     }
 
@@ -57,6 +64,15 @@ final public class ScreenViewTracker {
         return lastScreenName;
     }
 
+    /**
+     * Class name of the last resumed activity that hasn't been destroyed yet, i.e. the top
+     * activity of the app, or empty if there is none. It's kept while the app is in background.
+     */
+    @NonNull
+    public String getCurrentActivityName() {
+        return currentActivityName;
+    }
+
     public void registerScreenViewListener(@NonNull final ScreenViewListener listener) {
         if (!listeners.contains(listener)) {
             listeners.add(listener);
@@ -120,6 +136,8 @@ final public class ScreenViewTracker {
 
         @Override
         public void onActivityResumed(@NonNull Activity activity) {
+            currentActivity = new WeakReference<>(activity);
+            currentActivityName = activity.getClass().getName();
             if (activity instanceof FragmentActivity) {
                 final var fm = ((FragmentActivity) activity).getSupportFragmentManager();
                 if (fm.getFragments().isEmpty()) {
@@ -137,7 +155,12 @@ final public class ScreenViewTracker {
         }
 
         @Override
-        public void onActivityDestroyed(@NonNull Activity activity) {}
+        public void onActivityDestroyed(@NonNull Activity activity) {
+            if (currentActivity.get() == activity) {
+                currentActivity = new WeakReference<>(null);
+                currentActivityName = "";
+            }
+        }
 
         @Override
         public void onActivityStarted(@NonNull Activity activity) {}
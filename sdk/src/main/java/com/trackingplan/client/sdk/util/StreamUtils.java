@@ -22,6 +22,16 @@ public class StreamUtils {
         return result;
     }
 
+    /**
+     * Reads and discards the remaining bytes of the stream.
+     */
+    public static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buffer) != -1) {
+        }
+    }
+
     public static String convertInputStreamToString(InputStream in) throws IOException {
         return readAll(in).toString("utf-8");
     }
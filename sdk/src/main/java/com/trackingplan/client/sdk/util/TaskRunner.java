@@ -15,7 +15,19 @@ public class TaskRunner {
         void onComplete(T result, Exception error);
     }
 
-    private final Executor executor = Executors.newSingleThreadExecutor();
+    /**
+     * Task that keeps running after {@link #start(Callback)} returns, e.g. while it waits for
+     * other threads. It finishes when it calls the given callback, which it must do once.
+     */
+    public interface AsyncTask<T> {
+        void start(@NonNull Callback<T> callback) throws Exception;
+    }
+
+    private volatile Thread thread;
+    private final Executor executor = Executors.newSingleThreadExecutor(runnable -> {
+        thread = Executors.defaultThreadFactory().newThread(runnable);
+        return thread;
+    });
     private final Handler handler;
 
     public TaskRunner(@NonNull final Handler handler) {
@@ -36,4 +48,62 @@ public class TaskRunner {
             }
         });
     }
+
+    /**
+     * Executes the task after the given delay. The returned token can be passed to
+     * {@link #cancelDelayedTask(Runnable)} to cancel the task if it didn't start yet.
+     */
+    public <T> Runnable executeTaskDelayed(long delayMs, Callable<T> callable, Callback<T> callback) {
+        final Runnable token = () -> executeTask(callable, callback);
+        handler.postDelayed(token, delayMs);
+        return token;
+    }
+
+    /**
+     * Starts the task in the TaskRunner thread. The callback is executed once the task calls
+     * the callback it was started with.
+     */
+    public <T> void executeAsyncTask(AsyncTask<T> task, Callback<T> callback) {
+        executor.execute(() -> {
+            final Callback<T> completion = (result, error) -> {
+                if (callback != null) {
+                    handler.post(() -> callback.onComplete(result, error));
+                }
+            };
+            try {
+                task.start(completion);
+            } catch (Exception e) {
+                completion.onComplete(null, e);
+            }
+        });
+    }
+
+    /**
+     * Starts the task after the given delay. The returned token can be passed to
+     * {@link #cancelDelayedTask(Runnable)} to cancel the task if it didn't start yet.
+     */
+    public <T> Runnable executeAsyncTaskDelayed(long delayMs, AsyncTask<T> task, Callback<T> callback) {
+        final Runnable token = () -> executeAsyncTask(task, callback);
+        handler.postDelayed(token, delayMs);
+        return token;
+    }
+
+    /**
+     * Runs the runnable in the TaskRunner thread after the tasks already queued. It's meant
+     * for async tasks to continue their work in the TaskRunner thread.
+     */
+    public void execute(@NonNull Runnable runnable) {
+        executor.execute(runnable);
+    }
+
+    /**
+     * Returns true if it's called from the TaskRunner thread.
+     */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void cancelDelayedTask(@NonNull Runnable token) {
+        handler.removeCallbacks(token);
+    }
 }
@@ -0,0 +1,188 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import static org.junit.Assert.*;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.ServiceLocator;
+import com.trackingplan.shared.TestTimeProvider;
+import com.trackingplan.shared.adaptive.AdaptiveSamplingPattern;
+import com.trackingplan.shared.adaptive.SamplingMode;
+import com.trackingplan.shared.adaptive.SamplingResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Unit tests for the aggregation of high-frequency requests.
+ */
+public class EventAggregatorTest {
+
+    private static final long WINDOW_MS = 60 * 1000;
+    private static final String HEARTBEAT_URL = "https://api.amplitude.com/ping?position=10&t=1000";
+
+    private TestTimeProvider fakeTime;
+    private EventAggregator aggregator;
+
+    @Before
+    public void setUp() {
+        fakeTime = new TestTimeProvider();
+        ServiceLocator.INSTANCE.setTimeProvider(fakeTime);
+        aggregator = new EventAggregator();
+    }
+
+    @After
+    public void tearDown() {
+        ServiceLocator.INSTANCE.reset();
+    }
+
+    @Test
+    public void testRequestsAreNotAggregatedByDefault() {
+        assertFalse(aggregator.add(makeRequest("amplitude", HEARTBEAT_URL, null)));
+        assertEquals(-1, aggregator.getNextCloseTimeMs());
+    }
+
+    @Test
+    public void testRequestsOfAggregatedProviderAreFoldedUntilWindowCloses() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS));
+
+        final var first = makeRequest("amplitude", HEARTBEAT_URL, null);
+        assertTrue(aggregator.add(first));
+        assertTrue(aggregator.add(makeRequest("amplitude", "https://api.amplitude.com/ping?t=2000&position=20", null)));
+        assertTrue(aggregator.add(makeRequest("amplitude", HEARTBEAT_URL, null)));
+        assertFalse(aggregator.add(makeRequest("mixpanel", HEARTBEAT_URL, null)));
+        assertEquals(1, aggregator.getNumOpenWindows());
+
+        fakeTime.advanceTime(WINDOW_MS - 1);
+        assertTrue(aggregator.takeClosed().isEmpty());
+
+        fakeTime.advanceTime(1);
+        final var closed = aggregator.takeClosed();
+        assertEquals(1, closed.size());
+        assertSame(first, closed.get(0));
+        assertEquals(3, first.getAggregateCount());
+        assertEquals(first.getCreatedTimeMs(), first.getAggregateFirstTimeMs());
+        assertTrue(first.getAggregateLastTimeMs() >= first.getAggregateFirstTimeMs());
+        assertEquals(0, aggregator.getNumOpenWindows());
+    }
+
+    @Test
+    public void testPayloadOfFoldedRequestsIsReleased() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS));
+
+        final var first = makeRequestWithPayload("{\"event\": \"heartbeat\"}");
+        final var folded = makeRequestWithPayload("{\"event\": \"heartbeat\"}");
+
+        assertTrue(aggregator.add(first));
+        assertTrue(aggregator.add(folded));
+
+        // Only the representative is sent
+        assertEquals(0, folded.getPayloadLength());
+        assertTrue(first.getPayloadLength() > 0);
+    }
+
+    @Test
+    public void testRequestsWithDifferentShapeGoToDifferentWindows() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS));
+
+        aggregator.add(makeRequest("amplitude", HEARTBEAT_URL, null));
+        aggregator.add(makeRequest("amplitude", "https://api.amplitude.com/ping?position=10", null));
+        aggregator.add(makeRequest("amplitude", "https://api.amplitude.com/scroll?position=10&t=1000", null));
+
+        assertEquals(3, aggregator.getNumOpenWindows());
+    }
+
+    @Test
+    public void testDifferentEventsGoToDifferentWindows() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS, "google", WINDOW_MS));
+
+        final var scroll = makeRequestWithPayload("{\"event\": \"scroll\", \"depth\": 10}");
+        final var purchase = makeRequestWithPayload("{\"event\": \"purchase\", \"depth\": 10}");
+        assertTrue(aggregator.add(scroll));
+        assertTrue(aggregator.add(purchase));
+        assertTrue(aggregator.add(makeRequest("google", "https://www.google-analytics.com/g/collect?en=page_view&v=2", null)));
+        assertTrue(aggregator.add(makeRequest("google", "https://www.google-analytics.com/g/collect?en=purchase&v=2", null)));
+
+        assertEquals(4, aggregator.getNumOpenWindows());
+        assertTrue(purchase.getPayloadLength() > 0);
+    }
+
+    @Test
+    public void testUnreadablePayloadsAreNotAggregated() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS));
+
+        assertFalse(aggregator.add(makeRequestWithPayload("not a structured payload")));
+        assertEquals(0, aggregator.getNumOpenWindows());
+    }
+
+    @Test
+    public void testSingleRequestIsSentWithoutAggregateFields() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS));
+        final var request = makeRequest("amplitude", HEARTBEAT_URL, null);
+        aggregator.add(request);
+
+        final var closed = aggregator.takeAll();
+
+        assertEquals(1, closed.size());
+        assertEquals(0, closed.get(0).getAggregateCount());
+    }
+
+    @Test
+    public void testAdaptivePatternWindowIsUsed() {
+        final var pattern = new AdaptiveSamplingPattern("amplitude", null, 1, 1000);
+
+        assertTrue(aggregator.add(makeRequest("amplitude", HEARTBEAT_URL, pattern)));
+        assertTrue(aggregator.add(makeRequest("amplitude", HEARTBEAT_URL, pattern)));
+        assertEquals(fakeTime.elapsedRealTime() + 1000, aggregator.getNextCloseTimeMs());
+
+        // Requests of the same provider not matched by the pattern aren't aggregated
+        assertFalse(aggregator.add(makeRequest("amplitude", HEARTBEAT_URL, null)));
+
+        fakeTime.advanceTime(1000);
+        assertEquals(2, aggregator.takeClosed().get(0).getAggregateCount());
+    }
+
+    @Test
+    public void testOpenWindowsAreBounded() {
+        aggregator.setProviderWindows(Map.of("amplitude", WINDOW_MS));
+
+        for (int i = 0; i < EventAggregator.MAX_OPEN_WINDOWS; i++) {
+            assertTrue(aggregator.add(makeRequest("amplitude", "https://api.amplitude.com/ping" + i, null)));
+        }
+
+        assertFalse(aggregator.add(makeRequest("amplitude", "https://api.amplitude.com/other", null)));
+        assertTrue(aggregator.add(makeRequest("amplitude", "https://api.amplitude.com/ping0", null)));
+    }
+
+    @Test
+    public void testUrlShape() {
+        assertEquals("https://a.test/p", EventAggregator.getUrlShape("https://a.test/p"));
+        assertEquals("https://a.test/p?a&b", EventAggregator.getUrlShape("https://a.test/p?b=2&a=1"));
+        assertEquals("https://a.test/p?a&b", EventAggregator.getUrlShape("https://a.test/p?a&b=&#x"));
+    }
+
+    private static HttpRequest makeRequestWithPayload(String payload) {
+        final byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        return new HttpRequest.Builder()
+                .setUrl(HEARTBEAT_URL)
+                .setProvider("amplitude")
+                .setRequestPayload(data)
+                .setRequestPayloadNumBytes(data.length)
+                .build();
+    }
+
+    private static HttpRequest makeRequest(String provider, String url, AdaptiveSamplingPattern pattern) {
+        final var request = new HttpRequest.Builder()
+                .setUrl(url)
+                .setHttpMethod("GET")
+                .setProvider(provider)
+                .setInterceptionModule("test")
+                .build();
+        request.setSamplingResult(new SamplingResult.Include(1, pattern, SamplingMode.DEFAULT));
+        return request;
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import static org.junit.Assert.*;
+
+import com.trackingplan.shared.ServiceLocator;
+import com.trackingplan.shared.TestTimeProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the scheduling of flushes around host radio activity.
+ */
+public class RadioPiggybackSchedulerTest {
+
+    private static final long BATCH_TIMEOUT_MS = 30 * 1000;
+
+    private TestTimeProvider fakeTime;
+    private RadioPiggybackScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        fakeTime = new TestTimeProvider();
+        ServiceLocator.INSTANCE.setTimeProvider(fakeTime);
+        scheduler = new RadioPiggybackScheduler();
+        scheduler.setRadioAware(true);
+    }
+
+    @After
+    public void tearDown() {
+        ServiceLocator.INSTANCE.reset();
+    }
+
+    @Test
+    public void testRadioIsActiveDuringTailWindow() {
+        assertFalse(scheduler.isRadioActive());
+
+        scheduler.onHostNetworkActivity();
+        assertTrue(scheduler.isRadioActive());
+
+        fakeTime.advanceTime(RadioPiggybackScheduler.RADIO_TAIL_WINDOW_MS);
+        assertTrue(scheduler.isRadioActive());
+
+        fakeTime.advanceTime(1);
+        assertFalse(scheduler.isRadioActive());
+    }
+
+    @Test
+    public void testPiggybackRequiresActiveRadioAndHalfTheBatchTimeout() {
+        assertFalse(scheduler.shouldPiggyback(BATCH_TIMEOUT_MS, BATCH_TIMEOUT_MS));
+
+        scheduler.onHostNetworkActivity();
+        assertFalse(scheduler.shouldPiggyback(BATCH_TIMEOUT_MS / 2 - 1, BATCH_TIMEOUT_MS));
+        assertTrue(scheduler.shouldPiggyback(BATCH_TIMEOUT_MS / 2, BATCH_TIMEOUT_MS));
+
+        scheduler.setRadioAware(false);
+        assertFalse(scheduler.shouldPiggyback(BATCH_TIMEOUT_MS, BATCH_TIMEOUT_MS));
+    }
+
+    @Test
+    public void testFlushIsDeferredWhileRadioIsIdleUpToMaxDeferral() {
+        assertEquals(RadioPiggybackScheduler.MAX_IDLE_RADIO_DEFERRAL_MS,
+                scheduler.getFlushDeferralMs(BATCH_TIMEOUT_MS, BATCH_TIMEOUT_MS));
+        assertEquals(1000, scheduler.getFlushDeferralMs(
+                BATCH_TIMEOUT_MS + RadioPiggybackScheduler.MAX_IDLE_RADIO_DEFERRAL_MS - 1000, BATCH_TIMEOUT_MS));
+        assertEquals(0, scheduler.getFlushDeferralMs(
+                BATCH_TIMEOUT_MS + RadioPiggybackScheduler.MAX_IDLE_RADIO_DEFERRAL_MS, BATCH_TIMEOUT_MS));
+
+        // Not deferred when the radio is already awake
+        scheduler.onHostNetworkActivity();
+        assertEquals(0, scheduler.getFlushDeferralMs(BATCH_TIMEOUT_MS, BATCH_TIMEOUT_MS));
+    }
+
+    @Test
+    public void testNothingIsDeferredWhenNotRadioAware() {
+        scheduler.setRadioAware(false);
+        assertEquals(0, scheduler.getFlushDeferralMs(BATCH_TIMEOUT_MS, BATCH_TIMEOUT_MS));
+
+        scheduler.setRadioAware(true);
+        scheduler.reset();
+        assertFalse(scheduler.isRadioAware());
+    }
+
+    @Test
+    public void testAvoidedRadioWakeUpsAreCounted() {
+        assertEquals(0, scheduler.getAvoidedRadioWakeUps());
+        scheduler.onPiggybackFlush();
+        scheduler.onPiggybackFlush();
+        assertEquals(2, scheduler.getAvoidedRadioWakeUps());
+
+        // Kept across restarts
+        scheduler.reset();
+        assertEquals(2, scheduler.getAvoidedRadioWakeUps());
+    }
+}
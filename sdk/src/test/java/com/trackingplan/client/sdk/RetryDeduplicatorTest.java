@@ -0,0 +1,139 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import static org.junit.Assert.*;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+import com.trackingplan.shared.ServiceLocator;
+import com.trackingplan.shared.TestTimeProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit tests for the collapsing of retries made by the host app.
+ */
+public class RetryDeduplicatorTest {
+
+    private static final String PAYLOAD = "{\"events\": [{\"event_type\": \"purchase\", \"insert_id\": \"1\"}]}";
+
+    private TestTimeProvider fakeTime;
+    private RetryDeduplicator deduplicator;
+    private final Set<HttpRequest> pending = new HashSet<>();
+
+    @Before
+    public void setUp() {
+        fakeTime = new TestTimeProvider();
+        ServiceLocator.INSTANCE.setTimeProvider(fakeTime);
+        deduplicator = new RetryDeduplicator();
+    }
+
+    @After
+    public void tearDown() {
+        ServiceLocator.INSTANCE.reset();
+    }
+
+    @Test
+    public void testRetriesOfPendingRequestAreCollapsed() {
+        final var first = makeRequest("amplitude", PAYLOAD, 500);
+        assertFalse(collapse(first));
+
+        fakeTime.advanceTime(1000);
+        assertTrue(collapse(makeRequest("amplitude", PAYLOAD, 503)));
+        fakeTime.advanceTime(2000);
+        assertTrue(collapse(makeRequest("amplitude", PAYLOAD, 200)));
+
+        assertEquals(2, first.getRetryCount());
+        assertEquals(200, first.getResponseCode());
+        assertEquals(2, deduplicator.getNumCollapsedRetries());
+    }
+
+    @Test
+    public void testRetryOfSentRequestIsSentWithRetryCount() {
+        final var first = makeRequest("amplitude", PAYLOAD, 500);
+        collapse(first);
+        pending.remove(first);
+
+        final var retry = makeRequest("amplitude", PAYLOAD, 200);
+        assertFalse(collapse(retry));
+        assertEquals(1, retry.getRetryCount());
+        assertEquals(0, first.getRetryCount());
+
+        // Later retries are collapsed into the last attempt sent
+        assertTrue(collapse(makeRequest("amplitude", PAYLOAD, 200)));
+        assertEquals(2, retry.getRetryCount());
+    }
+
+    @Test
+    public void testDifferentRequestsAreNotCollapsed() {
+        collapse(makeRequest("amplitude", PAYLOAD, 200));
+
+        assertFalse(collapse(makeRequest("segment", PAYLOAD, 200)));
+        assertFalse(collapse(makeRequest("amplitude", PAYLOAD.replace("\"1\"", "\"2\""), 200)));
+        assertFalse(collapse(makeRequest("amplitude", "", 200)));
+        assertFalse(collapse(makeRequest("amplitude", "", 200)));
+    }
+
+    @Test
+    public void testRequestsOutsideWindowAreNotCollapsed() {
+        collapse(makeRequest("amplitude", PAYLOAD, 500));
+
+        fakeTime.advanceTime(RetryDeduplicator.RETRY_WINDOW_MS + 1);
+
+        final var request = makeRequest("amplitude", PAYLOAD, 200);
+        assertFalse(collapse(request));
+        assertEquals(0, request.getRetryCount());
+    }
+
+    @Test
+    public void testRetryOfDroppedRequestIsSentAsNewEvent() {
+        final var dropped = makeRequest("amplitude", PAYLOAD, 500);
+        assertFalse(deduplicator.collapseRetry(dropped, deduplicator.contentHash(dropped), pending::contains));
+
+        // Backpressure or the event budget dropped it, so it was never recorded
+        final var retry = makeRequest("amplitude", PAYLOAD, 200);
+        assertFalse(collapse(retry));
+        assertEquals(0, retry.getRetryCount());
+        assertEquals(0, deduplicator.getNumCollapsedRetries());
+    }
+
+    @Test
+    public void testWindowIsBounded() {
+        final var first = makeRequest("amplitude", PAYLOAD, 500);
+        collapse(first);
+
+        for (int i = 0; i < RetryDeduplicator.MAX_ENTRIES; i++) {
+            collapse(makeRequest("amplitude", "{\"i\": " + i + "}", 200));
+        }
+
+        assertFalse(collapse(makeRequest("amplitude", PAYLOAD, 200)));
+    }
+
+    private boolean collapse(HttpRequest request) {
+        final var key = deduplicator.contentHash(request);
+        final boolean collapsed = deduplicator.collapseRetry(request, key, pending::contains);
+        if (!collapsed) {
+            // Queued
+            deduplicator.recordAttempt(request, key);
+            pending.add(request);
+        }
+        return collapsed;
+    }
+
+    private static HttpRequest makeRequest(String provider, String payload, int responseCode) {
+        final byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        return new HttpRequest.Builder()
+                .setUrl("https://api2.amplitude.com/2/httpapi")
+                .setHttpMethod("POST")
+                .setProvider(provider)
+                .setRequestPayload(data)
+                .setRequestPayloadNumBytes(data.length)
+                .setHttpResponseCode(responseCode)
+                .build();
+    }
+}
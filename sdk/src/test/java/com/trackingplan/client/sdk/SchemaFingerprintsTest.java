@@ -0,0 +1,102 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk;
+
+import static org.junit.Assert.*;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for the replacement of payloads with known structure by their fingerprint.
+ */
+public class SchemaFingerprintsTest {
+
+    private static final String SESSION_ID = "session";
+    private static final int REFRESH_RATE = 100;
+
+    @Test
+    public void testFirstPayloadOfStructureIsSentInFull() {
+        final var fingerprints = new SchemaFingerprints(REFRESH_RATE);
+        final var request = makeRequest("{\"event_type\": \"scroll\", \"depth\": 10}");
+
+        fingerprints.apply(request, SESSION_ID);
+
+        assertNotNull(request.getPayloadFingerprint());
+        assertFalse(request.isPayloadElided());
+    }
+
+    @Test
+    public void testPayloadWithKnownStructureIsElided() {
+        final var fingerprints = new SchemaFingerprints(REFRESH_RATE);
+        final var first = makeRequest("{\"event_type\": \"scroll\", \"depth\": 10}");
+        final var second = makeRequest("{\"event_type\": \"scroll\", \"depth\": 90}");
+        final var other = makeRequest("{\"event_type\": \"purchase\", \"price\": 10}");
+
+        fingerprints.apply(first, SESSION_ID);
+        fingerprints.apply(second, SESSION_ID);
+        fingerprints.apply(other, SESSION_ID);
+
+        assertEquals(first.getPayloadFingerprint(), second.getPayloadFingerprint());
+        assertTrue(second.isPayloadElided());
+        assertEquals("scroll", second.getSampledPayloadValues().get("event_type"));
+        assertFalse(other.isPayloadElided());
+        assertEquals(1, fingerprints.getNumElidedPayloads());
+    }
+
+    @Test
+    public void testPayloadsAreRefreshedAtRefreshRate() {
+        final var fingerprints = new SchemaFingerprints(3);
+
+        int numFull = 0;
+        for (int i = 0; i < 10; i++) {
+            final var request = makeRequest("{\"event_type\": \"progress\", \"position\": " + i + "}");
+            fingerprints.apply(request, SESSION_ID);
+            if (!request.isPayloadElided()) {
+                numFull += 1;
+            }
+        }
+
+        // First one plus the 4th, 7th and 10th
+        assertEquals(4, numFull);
+    }
+
+    @Test
+    public void testStructuresAreForgottenWhenSessionChanges() {
+        final var fingerprints = new SchemaFingerprints(REFRESH_RATE);
+        fingerprints.apply(makeRequest("{\"event_type\": \"scroll\"}"), SESSION_ID);
+
+        final var request = makeRequest("{\"event_type\": \"scroll\"}");
+        fingerprints.apply(request, "other-session");
+
+        assertFalse(request.isPayloadElided());
+    }
+
+    @Test
+    public void testPayloadsWithoutStructureAreSentInFull() {
+        final var fingerprints = new SchemaFingerprints(REFRESH_RATE);
+
+        for (int i = 0; i < 2; i++) {
+            final var request = makeRequest("not a structured payload");
+            fingerprints.apply(request, SESSION_ID);
+            assertNull(request.getPayloadFingerprint());
+        }
+
+        final var empty = new HttpRequest.Builder().setUrl("https://api.amplitude.com/").build();
+        fingerprints.apply(empty, SESSION_ID);
+        assertNull(empty.getPayloadFingerprint());
+    }
+
+    private static HttpRequest makeRequest(String payload) {
+        final byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        return new HttpRequest.Builder()
+                .setUrl("https://api.amplitude.com/2/httpapi")
+                .setHttpMethod("POST")
+                .setProvider("amplitude")
+                .setRequestPayload(data)
+                .setRequestPayloadNumBytes(data.length)
+                .build();
+    }
+}
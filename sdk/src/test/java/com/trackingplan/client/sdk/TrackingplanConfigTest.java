@@ -3,8 +3,12 @@ package com.trackingplan.client.sdk;
 
 import static org.junit.Assert.*;
 
+import com.trackingplan.client.sdk.delivery.transport.LoopbackTransport;
+
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,6 +35,17 @@ public class TrackingplanConfigTest {
         assertFalse(config.isDryRunEnabled());
         assertTrue(config.isBackgroundObserverEnabled());
         assertTrue(config.customContext().isEmpty());
+        assertEquals(TrackingplanConfig.DEFAULT_COMPRESSION_LEVEL, config.getCompressionLevel());
+        assertTrue(config.isCompressionEnabled());
+        assertEquals(TrackingplanConfig.DEFAULT_CONNECTION_IDLE_TIMEOUT_MS, config.getConnectionIdleTimeoutMs());
+        assertFalse(config.isConnectionReuseEnabled());
+        assertEquals(TrackingplanConfig.DEFAULT_CONNECT_TIMEOUT_MS, config.getConnectTimeoutMs());
+        assertEquals(TrackingplanConfig.DEFAULT_READ_TIMEOUT_MS, config.getReadTimeoutMs());
+        assertEquals(TrackingplanConfig.DEFAULT_MAX_CONCURRENT_UPLOADS, config.getMaxConcurrentUploads());
+        assertEquals(TrackingplanConfig.DEFAULT_PROVIDER_EVENTS_PER_MINUTE, config.getProviderEventsPerMinute());
+        assertEquals(TrackingplanConfig.DEFAULT_MAX_EVENTS_PER_SESSION, config.getMaxEventsPerSession());
+        assertTrue(config.isNetworkCostPolicyEnabled());
+        assertNull(config.getTransport());
     }
 
     @Test
@@ -100,6 +115,184 @@ public class TrackingplanConfigTest {
         assertEquals("contextValue", updated.customContext().get("contextKey"));
     }
 
+    @Test
+    public void testCompressionLevel() {
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .compressionLevel(9)
+                .build();
+        assertEquals(9, config.getCompressionLevel());
+        assertTrue(config.isCompressionEnabled());
+
+        // Level 0 sends raw tracks uncompressed
+        TrackingplanConfig uncompressed = TrackingplanConfig.newConfig("test")
+                .compressionLevel(0)
+                .build();
+        assertFalse(uncompressed.isCompressionEnabled());
+
+        // Compression level is preserved when tags are updated
+        TrackingplanConfig updated = config.withTags(new HashMap<>(), false);
+        assertEquals(9, updated.getCompressionLevel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        TrackingplanConfig.newConfig("test").compressionLevel(10);
+    }
+
+    @Test
+    public void testConnectionIdleTimeout() {
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .connectionIdleTimeout(60000)
+                .build();
+        assertEquals(60000, config.getConnectionIdleTimeoutMs());
+        assertTrue(config.isConnectionReuseEnabled());
+
+        // Connection idle timeout is preserved when tags are updated
+        TrackingplanConfig updated = config.withTags(new HashMap<>(), false);
+        assertEquals(60000, updated.getConnectionIdleTimeoutMs());
+        assertEquals(config, updated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeConnectionIdleTimeout() {
+        TrackingplanConfig.newConfig("test").connectionIdleTimeout(-1);
+    }
+
+    @Test
+    public void testTimeoutsAndConcurrentUploads() {
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .connectTimeout(5000)
+                .readTimeout(10000)
+                .maxConcurrentUploads(4)
+                .build();
+        assertEquals(5000, config.getConnectTimeoutMs());
+        assertEquals(10000, config.getReadTimeoutMs());
+        assertEquals(4, config.getMaxConcurrentUploads());
+
+        // Delivery settings are preserved when tags are updated
+        TrackingplanConfig updated = config.withTags(new HashMap<>(), false);
+        assertEquals(config, updated);
+        assertNotEquals(config, TrackingplanConfig.newConfig("test").build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidReadTimeout() {
+        TrackingplanConfig.newConfig("test").readTimeout(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxConcurrentUploads() {
+        TrackingplanConfig.newConfig("test").maxConcurrentUploads(TrackingplanConfig.MAX_CONCURRENT_UPLOADS + 1);
+    }
+
+    @Test
+    public void testEventBudgetSettings() {
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .providerRateLimit(60, 10)
+                .maxEventsPerSession(500)
+                .build();
+        assertEquals(60, config.getProviderEventsPerMinute());
+        assertEquals(10, config.getProviderBurst());
+        assertEquals(500, config.getMaxEventsPerSession());
+
+        // Bursts are as large as the rate by default
+        assertEquals(30, TrackingplanConfig.newConfig("test").providerRateLimit(30).build().getProviderBurst());
+
+        TrackingplanConfig updated = config.withTags(new HashMap<>(), false);
+        assertEquals(config, updated);
+    }
+
+    @Test
+    public void testDisableNetworkCostPolicy() {
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .disableNetworkCostPolicy()
+                .build();
+        assertFalse(config.isNetworkCostPolicyEnabled());
+        assertNotEquals(TrackingplanConfig.newConfig("test").build(), config);
+        assertFalse(config.withTags(new HashMap<>(), false).isNetworkCostPolicyEnabled());
+    }
+
+    @Test
+    public void testTransport() {
+        final var transport = new LoopbackTransport();
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .transport(transport)
+                .build();
+        assertSame(transport, config.getTransport());
+        assertNotEquals(TrackingplanConfig.newConfig("test").build(), config);
+        assertSame(transport, config.withTags(new HashMap<>(), false).getTransport());
+    }
+
+    @Test
+    public void testTracksEndPoints() {
+        final var endPoints = Arrays.asList("https://eu.test/", "https://us.test/");
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .tracksEndPoints(endPoints)
+                .build();
+        assertEquals("https://eu.test/", config.getTracksEndPoint());
+        assertEquals(endPoints, config.getTracksEndPoints());
+        assertEquals(endPoints, config.withTags(new HashMap<>(), false).getTracksEndPoints());
+
+        // Setting a single endpoint replaces the list
+        config = TrackingplanConfig.newConfig("test")
+                .tracksEndPoints(endPoints)
+                .tracksEndPoint("https://ap.test/")
+                .build();
+        assertEquals(Collections.singletonList("https://ap.test/"), config.getTracksEndPoints());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyTracksEndPoints() {
+        TrackingplanConfig.newConfig("test").tracksEndPoints(Collections.emptyList());
+    }
+
+    @Test
+    public void testAggregateProvider() {
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .aggregateProvider("amplitude", 60000)
+                .build();
+        assertEquals(Map.of("amplitude", 60000L), config.getAggregationWindows());
+        assertEquals(config.getAggregationWindows(), config.withTags(new HashMap<>(), false).getAggregationWindows());
+        assertTrue(TrackingplanConfig.newConfig("test").build().getAggregationWindows().isEmpty());
+    }
+
+    @Test
+    public void testSchemaFingerprints() {
+        assertFalse(TrackingplanConfig.newConfig("test").build().isSchemaFingerprintEnabled());
+
+        TrackingplanConfig config = TrackingplanConfig.newConfig("test")
+                .enableSchemaFingerprints()
+                .build();
+        assertTrue(config.isSchemaFingerprintEnabled());
+        assertEquals(TrackingplanConfig.DEFAULT_SCHEMA_FINGERPRINT_REFRESH_RATE, config.getSchemaFingerprintRefreshRate());
+
+        config = TrackingplanConfig.newConfig("test")
+                .enableSchemaFingerprints(1)
+                .build();
+        assertTrue(config.isSchemaFingerprintEnabled());
+        assertEquals(1, config.withTags(new HashMap<>(), false).getSchemaFingerprintRefreshRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSchemaFingerprintRefreshRate() {
+        TrackingplanConfig.newConfig("test").enableSchemaFingerprints(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAggregationWindow() {
+        TrackingplanConfig.newConfig("test").aggregateProvider("amplitude", 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProviderRateLimit() {
+        TrackingplanConfig.newConfig("test").providerRateLimit(10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxEventsPerSession() {
+        TrackingplanConfig.newConfig("test").maxEventsPerSession(-1);
+    }
+
     @Test(expected = RuntimeException.class)
     public void testDryRunRequiresDebug() {
         // DryRun without debug should throw (Android-specific behavior)
@@ -0,0 +1,168 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import static org.junit.Assert.*;
+
+import com.trackingplan.client.sdk.interception.HttpRequest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Unit tests for the preset compression dictionaries and their trainer.
+ */
+public class CompressionDictionaryTest {
+
+    @Test
+    public void testDictionaryOfMainProviderIsSelected() {
+        final List<HttpRequest> requests = List.of(
+                makeRequest("segment", 0),
+                makeRequest("amplitude", 1),
+                makeRequest("amplitude", 2),
+                makeRequest("bing", 3),
+                makeRequest("bing", 4),
+                makeRequest("bing", 5)
+        );
+
+        final byte dictionaryId = CompressionDictionary.selectFor(requests, 1);
+
+        final var dictionary = CompressionDictionary.get(dictionaryId);
+        assertNotNull(dictionary);
+        assertEquals("amplitude", dictionary.getProvider());
+        assertEquals("amplitude-v1", dictionary.getName());
+    }
+
+    @Test
+    public void testNoDictionaryIsSelectedWithoutKnownProviders() {
+        assertEquals(CompressionDictionary.NONE, CompressionDictionary.selectFor(List.of(makeRequest("bing", 0)), 1));
+        assertEquals(CompressionDictionary.NONE, CompressionDictionary.selectFor(List.of(makeRequest("amplitude", 0)), 0));
+        assertNull(CompressionDictionary.get(CompressionDictionary.NONE));
+    }
+
+    @Test
+    public void testNewestVersionUpToMaxVersionIsSelected() {
+        // Registered out of order
+        CompressionDictionary.register(new CompressionDictionary((byte) 127, "versioned", 2, "\"v2\":"));
+        CompressionDictionary.register(new CompressionDictionary((byte) 126, "versioned", 1, "\"v1\":"));
+        final List<HttpRequest> requests = List.of(makeRequest("versioned", 0));
+
+        assertEquals(CompressionDictionary.NONE, CompressionDictionary.selectFor(requests, 0));
+        assertEquals(126, CompressionDictionary.selectFor(requests, 1));
+        assertEquals(127, CompressionDictionary.selectFor(requests, 2));
+        assertEquals(127, CompressionDictionary.selectFor(requests, 3));
+
+        // Batches stored with the previous version can still be decoded
+        assertEquals("versioned-v1", CompressionDictionary.get((byte) 126).getName());
+        assertThrows(IllegalArgumentException.class,
+                () -> CompressionDictionary.register(new CompressionDictionary((byte) 126, "other", 1, "")));
+    }
+
+    @Test
+    public void testDictionariesHaveUniqueNames() {
+        final Set<String> names = new HashSet<>();
+        for (int id = 1; id <= Byte.MAX_VALUE; id++) {
+            final var dictionary = CompressionDictionary.get((byte) id);
+            if (dictionary != null) {
+                assertEquals(id, dictionary.getId());
+                assertTrue(names.add(dictionary.getName()));
+                assertTrue(dictionary.getData().length <= PresetDictionaryTrainer.MAX_SIZE_BYTES);
+            }
+        }
+        assertFalse(names.isEmpty());
+    }
+
+    @Test
+    public void testDictionaryCompressesBatchBetterThanGzip() throws Exception {
+        final var dictionary = CompressionDictionary.get(CompressionDictionary.selectFor(List.of(makeRequest("amplitude", 0)), 1));
+        assertNotNull(dictionary);
+        final byte[] batch = makeBatch(0, 3);
+
+        final int deflatedSize = PresetDictionaryTrainer.deflatedSize(batch, dictionary.getData());
+
+        assertTrue(deflatedSize < PresetDictionaryTrainer.gzippedSize(batch));
+        assertArrayEquals(batch, inflate(deflate(batch, dictionary), dictionary.getData()));
+    }
+
+    @Test
+    public void testTrainedDictionaryCompressesHeldOutBatchesBetterThanGzip() {
+        final List<byte[]> training = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            training.add(makeBatch(i * 10, 3));
+        }
+        final byte[] heldOut = makeBatch(1000, 3);
+
+        final byte[] dictionary = PresetDictionaryTrainer.train(training, 1024);
+
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 1024);
+        assertTrue(new String(dictionary, StandardCharsets.UTF_8).contains("event_properties"));
+        assertTrue(PresetDictionaryTrainer.deflatedSize(heldOut, dictionary) < PresetDictionaryTrainer.gzippedSize(heldOut));
+    }
+
+    private static HttpRequest makeRequest(String provider, int index) {
+        return new HttpRequest.Builder()
+                .setUrl("https://example.com/" + index)
+                .setHttpMethod("POST")
+                .setProvider(provider)
+                .build();
+    }
+
+    /**
+     * Batch of JSON raw tracks with Amplitude payloads, as sent to the tracks endpoint.
+     */
+    private static byte[] makeBatch(int firstEvent, int numTracks) {
+        final StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < numTracks; i++) {
+            final int event = firstEvent + i;
+            if (i > 0) {
+                batch.append(',');
+            }
+            batch.append("{\"provider\":\"amplitude\",\"request\":{\"endpoint\":\"https://api2.amplitude.com/2/httpapi\",")
+                    .append("\"method\":\"POST\",\"post_payload\":\"{\\\"api_key\\\":\\\"k").append(event)
+                    .append("\\\",\\\"events\\\":[{\\\"event_type\\\":\\\"screen_").append(event)
+                    .append("\\\",\\\"user_id\\\":\\\"u").append(event * 7)
+                    .append("\\\",\\\"device_id\\\":\\\"d").append(event * 13)
+                    .append("\\\",\\\"time\\\":").append(1700000000000L + event)
+                    .append(",\\\"event_properties\\\":{\\\"index\\\":").append(event)
+                    .append("},\\\"platform\\\":\\\"Android\\\",\\\"os_name\\\":\\\"android\\\"}]}\"},")
+                    .append("\"response_code\":200,\"context\":{\"app_version\":\"1.0\"},\"ts\":").append(event)
+                    .append(",\"sdk\":\"android\",\"tp_id\":\"TP1\",\"environment\":\"PRODUCTION\",\"sampling_rate\":1}");
+        }
+        return batch.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] data, CompressionDictionary dictionary) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        try (var stream = new DeflateRequestBodyStream(out, Deflater.DEFAULT_COMPRESSION, dictionary)) {
+            stream.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data, byte[] dictionary) throws Exception {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final var out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import static org.junit.Assert.*;
+
+import com.trackingplan.shared.ServiceLocator;
+import com.trackingplan.shared.TestTimeProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Unit tests for the selection of the tracks endpoint and failover.
+ */
+public class EndpointSelectorTest {
+
+    private static final String EU = "https://eu-tracks.test/";
+    private static final String US = "https://us-tracks.test/";
+    private static final String AP = "https://ap-tracks.test/";
+
+    private TestTimeProvider fakeTime;
+
+    @Before
+    public void setUp() {
+        fakeTime = new TestTimeProvider();
+        ServiceLocator.INSTANCE.setTimeProvider(fakeTime);
+    }
+
+    @After
+    public void tearDown() {
+        ServiceLocator.INSTANCE.reset();
+    }
+
+    @Test
+    public void testMainEndpointIsUsedFirst() {
+        final var selector = new EndpointSelector(Arrays.asList(EU, US, AP));
+        assertEquals(EU, selector.getCurrentEndpoint());
+        assertEquals(-1, selector.getScore(EU), 0);
+    }
+
+    @Test
+    public void testUnmeasuredEndpointsAreTriedBeforeChoosingTheFastest() {
+        final var selector = new EndpointSelector(Arrays.asList(EU, US, AP));
+
+        selector.onSuccess(EU, 300);
+        assertEquals(US, selector.selectForSession());
+        selector.onSuccess(US, 80);
+        assertEquals(AP, selector.selectForSession());
+        selector.onSuccess(AP, 150);
+
+        assertEquals(US, selector.selectForSession());
+        assertEquals(US, selector.selectForSession());
+    }
+
+    @Test
+    public void testErrorsMakeEndpointsLookSlower() {
+        final var selector = new EndpointSelector(Arrays.asList(EU, US), 0, 0);
+        selector.onSuccess(EU, 100);
+        selector.onSuccess(US, 80);
+
+        selector.onFailure(US, 10);
+        assertTrue(selector.getScore(US) > selector.getScore(EU));
+        assertEquals(EU, selector.selectForSession());
+    }
+
+    @Test
+    public void testFailoverSkipsEndpointsCoolingDown() {
+        final var selector = new EndpointSelector(Arrays.asList(EU, US, AP), 1000, 8000);
+        selector.onSuccess(EU, 100);
+        selector.onSuccess(US, 200);
+        selector.onSuccess(AP, 300);
+
+        assertTrue(selector.onFailure(EU, 50));
+        assertEquals(US, selector.getCurrentEndpoint());
+
+        assertTrue(selector.onFailure(US, 50));
+        assertEquals(AP, selector.getCurrentEndpoint());
+
+        // Failures of an endpoint that isn't the current one don't change it
+        assertFalse(selector.onFailure(EU, 50));
+        assertEquals(AP, selector.getCurrentEndpoint());
+
+        // US recovers after its first cooldown but its error makes it slower than AP
+        fakeTime.advanceTime(1000);
+        assertEquals(AP, selector.selectForSession());
+
+        // EU recovers after its second cooldown, which is twice as long
+        fakeTime.advanceTime(1000);
+        selector.onSuccess(EU, 100);
+        assertEquals(EU, selector.selectForSession());
+    }
+
+    @Test
+    public void testEndpointRecoveringFirstIsUsedWhenAllAreCoolingDown() {
+        final var selector = new EndpointSelector(Arrays.asList(EU, US), 1000, 8000);
+
+        selector.onFailure(EU, 50);
+        selector.onFailure(EU, 50);
+        assertEquals(US, selector.getCurrentEndpoint());
+
+        // US cools down for less time than EU
+        assertFalse(selector.onFailure(US, 50));
+        assertEquals(US, selector.getCurrentEndpoint());
+    }
+
+    @Test
+    public void testSingleEndpointIsAlwaysUsed() {
+        final var selector = new EndpointSelector(Collections.singletonList(EU));
+        assertFalse(selector.onFailure(EU, 50));
+        assertEquals(EU, selector.selectForSession());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEndpointsAreRequired() {
+        new EndpointSelector(Collections.emptyList());
+    }
+}
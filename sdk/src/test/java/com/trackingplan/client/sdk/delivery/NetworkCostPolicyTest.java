@@ -0,0 +1,144 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import static org.junit.Assert.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.trackingplan.shared.ServiceLocator;
+import com.trackingplan.shared.TestTimeProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the network cost policy using a fake connection.
+ */
+public class NetworkCostPolicyTest {
+
+    private static final NetworkState WIFI = new NetworkState(true, false, false, false);
+    private static final NetworkState MOBILE_DATA = new NetworkState(true, true, false, false);
+    private static final NetworkState ROAMING = new NetworkState(true, true, true, false);
+    private static final NetworkState DATA_SAVER = new NetworkState(true, true, false, true);
+
+    private static final class FakeNetworkStateProvider implements NetworkStateProvider {
+        NetworkState state = WIFI;
+
+        @NonNull
+        @Override
+        public NetworkState getNetworkState() {
+            return state;
+        }
+
+        @Override
+        public void setListener(@Nullable Listener listener) {
+            // Not needed
+        }
+    }
+
+    private final FakeNetworkStateProvider network = new FakeNetworkStateProvider();
+    private TestTimeProvider fakeTime;
+
+    @Before
+    public void setUp() {
+        fakeTime = new TestTimeProvider();
+        ServiceLocator.INSTANCE.setTimeProvider(fakeTime);
+    }
+
+    @After
+    public void tearDown() {
+        ServiceLocator.INSTANCE.reset();
+    }
+
+    @Test
+    public void testCostOfNetworks() {
+        assertEquals(NetworkCostPolicy.Cost.UNMETERED, NetworkCostPolicy.getCost(WIFI));
+        assertEquals(NetworkCostPolicy.Cost.METERED, NetworkCostPolicy.getCost(MOBILE_DATA));
+        assertEquals(NetworkCostPolicy.Cost.EXPENSIVE, NetworkCostPolicy.getCost(ROAMING));
+        assertEquals(NetworkCostPolicy.Cost.EXPENSIVE, NetworkCostPolicy.getCost(DATA_SAVER));
+        assertEquals(NetworkCostPolicy.Cost.OFFLINE, NetworkCostPolicy.getCost(NetworkState.OFFLINE));
+        assertEquals(NetworkCostPolicy.Cost.UNMETERED, NetworkCostPolicy.getCost(NetworkState.UNKNOWN));
+    }
+
+    @Test
+    public void testBatchingAndCompressionOnCostlyNetworks() {
+        assertEquals(1, NetworkCostPolicy.getBatchWideningFactor(NetworkCostPolicy.Cost.UNMETERED));
+        assertTrue(NetworkCostPolicy.getBatchWideningFactor(NetworkCostPolicy.Cost.METERED) > 1);
+        assertTrue(NetworkCostPolicy.getBatchWideningFactor(NetworkCostPolicy.Cost.EXPENSIVE)
+                > NetworkCostPolicy.getBatchWideningFactor(NetworkCostPolicy.Cost.METERED));
+
+        assertFalse(NetworkCostPolicy.isMaxCompressionPreferred(NetworkCostPolicy.Cost.UNMETERED));
+        assertTrue(NetworkCostPolicy.isMaxCompressionPreferred(NetworkCostPolicy.Cost.METERED));
+        assertTrue(NetworkCostPolicy.isMaxCompressionPreferred(NetworkCostPolicy.Cost.EXPENSIVE));
+    }
+
+    @Test
+    public void testNothingIsSentOffline() {
+        final var policy = new NetworkCostPolicy(network, 1000, 60 * 1000);
+        network.state = NetworkState.OFFLINE;
+
+        assertFalse(policy.canSend(10));
+        assertEquals(0, policy.getRemainingDeferralMs());
+
+        network.state = MOBILE_DATA;
+        assertTrue(policy.canSend(10));
+        assertTrue(policy.canSend(10 * 1000));
+    }
+
+    @Test
+    public void testLargeBatchesAreDeferredOnExpensiveNetworksUpToMaxDeferral() {
+        final var policy = new NetworkCostPolicy(network, 1000, 60 * 1000);
+        network.state = ROAMING;
+
+        assertTrue(policy.canSend(1000));
+        assertFalse(policy.canSend(1001));
+        assertEquals(60 * 1000, policy.getRemainingDeferralMs());
+
+        fakeTime.advanceTime(30 * 1000);
+        assertFalse(policy.canSend(1001));
+        assertEquals(30 * 1000, policy.getRemainingDeferralMs());
+
+        // Sent anyway once the max deferral is reached
+        fakeTime.advanceTime(30 * 1000);
+        assertTrue(policy.canSend(1001));
+        assertEquals(0, policy.getRemainingDeferralMs());
+    }
+
+    @Test
+    public void testLargeBatchesAreNotDeferredAgainUntilBacklogIsDelivered() {
+        final var policy = new NetworkCostPolicy(network, 1000, 60 * 1000);
+        network.state = ROAMING;
+        assertFalse(policy.canSend(1001));
+
+        fakeTime.advanceTime(60 * 1000);
+        assertTrue(policy.canSend(1001));
+        // Next large batch of the backlog, even a bit later
+        fakeTime.advanceTime(1000);
+        assertTrue(policy.canSend(2000));
+        assertEquals(0, policy.getRemainingDeferralMs());
+
+        // Once the backlog is delivered, a new deferral starts from scratch
+        policy.resetDeferral();
+        assertFalse(policy.canSend(1001));
+        assertEquals(60 * 1000, policy.getRemainingDeferralMs());
+    }
+
+    @Test
+    public void testDeferralEndsOnCheaperNetwork() {
+        final var policy = new NetworkCostPolicy(network, 1000, 60 * 1000);
+        network.state = DATA_SAVER;
+        assertFalse(policy.canSend(5000));
+
+        network.state = WIFI;
+        assertTrue(policy.canSend(5000));
+        assertEquals(0, policy.getRemainingDeferralMs());
+
+        // A new deferral starts from scratch
+        network.state = DATA_SAVER;
+        fakeTime.advanceTime(10 * 60 * 1000);
+        assertFalse(policy.canSend(5000));
+        assertEquals(60 * 1000, policy.getRemainingDeferralMs());
+    }
+}
@@ -0,0 +1,265 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds preset dictionaries (see CompressionDictionary) from a corpus of recorded batches
+ * and reports their compression ratio compared to plain gzip. It runs on the JVM:
+ * <pre>
+ * PresetDictionaryTrainer &lt;corpus dir&gt; [max dictionary bytes]
+ * </pre>
+ * The corpus directory has a subdirectory per provider with a file per recorded batch, i.e.
+ * the uncompressed body of an upload to the tracks endpoint. The dictionary of each provider
+ * is printed as a Java string ready to be reviewed and released as a new version.
+ * <p>
+ * Fragments are JSON keys and short string values, both plain and escaped as they appear in
+ * the post_payload of raw tracks. They are ranked by the number of batches that contain them
+ * times their length, and the best ones are placed last, where deflate reaches them with the
+ * shortest distances.
+ */
+final public class PresetDictionaryTrainer {
+
+    public static final int DEFAULT_MAX_SIZE_BYTES = 4 * 1024;
+
+    // Deflate can't reach further back than its 32 KiB window
+    static final int MAX_SIZE_BYTES = 32 * 1024;
+
+    // Fragments found in fewer batches than this aren't worth a place in the dictionary
+    static final int MIN_BATCHES_PER_FRAGMENT = 2;
+
+    private static final Pattern FRAGMENT = Pattern.compile(
+            "(\\\\?\"[A-Za-z0-9_$.\\-]{1,64}\\\\?\":)|(\\\\?\"[A-Za-z0-9_$.\\-/ ]{1,32}\\\\?\")"
+    );
+
+    private PresetDictionaryTrainer() {
+    }
+
+    /**
+     * Builds a dictionary of at most maxSizeBytes from the given batches.
+     */
+    @NonNull
+    static byte[] train(@NonNull List<byte[]> batches, int maxSizeBytes) {
+
+        if (maxSizeBytes <= 0 || maxSizeBytes > MAX_SIZE_BYTES) {
+            throw new IllegalArgumentException("Dictionary size must be between 1 and " + MAX_SIZE_BYTES);
+        }
+
+        // Number of batches where each fragment appears
+        final Map<String, Integer> batchCounts = new HashMap<>();
+        for (byte[] batch : batches) {
+            final Set<String> fragments = new HashSet<>();
+            final Matcher matcher = FRAGMENT.matcher(new String(batch, StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                fragments.add(matcher.group());
+            }
+            for (String fragment : fragments) {
+                final Integer count = batchCounts.get(fragment);
+                batchCounts.put(fragment, count != null ? count + 1 : 1);
+            }
+        }
+
+        final List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : batchCounts.entrySet()) {
+            if (entry.getValue() >= MIN_BATCHES_PER_FRAGMENT) {
+                candidates.add(entry.getKey());
+            }
+        }
+        // Best first. Ties are broken alphabetically so that dictionaries are reproducible.
+        candidates.sort((a, b) -> {
+            final long scoreA = (long) batchCounts.get(a) * a.length();
+            final long scoreB = (long) batchCounts.get(b) * b.length();
+            return scoreA != scoreB ? Long.compare(scoreB, scoreA) : a.compareTo(b);
+        });
+
+        final List<String> selected = new ArrayList<>();
+        int sizeBytes = 0;
+        for (String fragment : candidates) {
+            final int fragmentSize = fragment.getBytes(StandardCharsets.UTF_8).length;
+            if (sizeBytes + fragmentSize > maxSizeBytes || containsFragment(selected, fragment)) {
+                continue;
+            }
+            selected.add(fragment);
+            sizeBytes += fragmentSize;
+        }
+
+        Collections.reverse(selected);
+        return String.join("", selected).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Size of the data deflated into a zlib stream with the given preset dictionary.
+     */
+    static int deflatedSize(@NonNull byte[] data, @Nullable byte[] dictionary) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] buffer = new byte[8192];
+            int size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Size of the data gzipped as uploads are compressed without preset dictionary.
+     */
+    static int gzippedSize(@NonNull byte[] data) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException ex) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        return out.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("Usage: PresetDictionaryTrainer <corpus dir> [max dictionary bytes]");
+            System.exit(1);
+        }
+
+        final File corpusDir = new File(args[0]);
+        final int maxSizeBytes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_SIZE_BYTES;
+
+        final File[] providerDirs = corpusDir.listFiles(File::isDirectory);
+        if (providerDirs == null || providerDirs.length == 0) {
+            System.err.println("No provider directories found in " + corpusDir);
+            System.exit(1);
+        }
+        Arrays.sort(providerDirs);
+
+        for (File providerDir : providerDirs) {
+            final List<byte[]> batches = readBatches(providerDir);
+            if (batches.isEmpty()) {
+                continue;
+            }
+
+            // Half of the batches are held out so that the ratio isn't measured on the
+            // batches the dictionary was trained with
+            final List<byte[]> training = new ArrayList<>();
+            final List<byte[]> evaluation = new ArrayList<>();
+            for (int i = 0; i < batches.size(); i++) {
+                (i % 2 == 0 || batches.size() == 1 ? training : evaluation).add(batches.get(i));
+            }
+            if (evaluation.isEmpty()) {
+                evaluation.addAll(training);
+            }
+
+            final byte[] dictionary = train(training, maxSizeBytes);
+            final String provider = providerDir.getName();
+
+            System.out.println("== " + provider + " (" + batches.size() + " batches, dictionary of " + dictionary.length + " bytes)");
+            report("trained", evaluation, dictionary);
+
+            final CompressionDictionary released = findReleased(provider);
+            if (released != null) {
+                report(released.getName(), evaluation, released.getData());
+            }
+
+            System.out.println(toJavaString(dictionary));
+            System.out.println();
+        }
+    }
+
+    private static void report(@NonNull String name, @NonNull List<byte[]> batches, @NonNull byte[] dictionary) {
+        long rawBytes = 0;
+        long gzipBytes = 0;
+        long dictionaryBytes = 0;
+        for (byte[] batch : batches) {
+            rawBytes += batch.length;
+            gzipBytes += gzippedSize(batch);
+            dictionaryBytes += deflatedSize(batch, dictionary);
+        }
+        System.out.println(String.format(Locale.US,
+                "%s: raw %d bytes, gzip %d bytes (%.2fx), dictionary %d bytes (%.2fx, %.1f%% smaller than gzip)",
+                name, rawBytes, gzipBytes, (double) rawBytes / gzipBytes, dictionaryBytes,
+                (double) rawBytes / dictionaryBytes, 100.0 * (gzipBytes - dictionaryBytes) / gzipBytes));
+    }
+
+    @Nullable
+    private static CompressionDictionary findReleased(@NonNull String provider) {
+        CompressionDictionary latest = null;
+        for (int id = 1; id <= Byte.MAX_VALUE; id++) {
+            final var dictionary = CompressionDictionary.get((byte) id);
+            if (dictionary != null && dictionary.getProvider().equals(provider)
+                    && (latest == null || dictionary.getVersion() > latest.getVersion())) {
+                latest = dictionary;
+            }
+        }
+        return latest;
+    }
+
+    @NonNull
+    private static List<byte[]> readBatches(@NonNull File providerDir) throws IOException {
+        final File[] files = providerDir.listFiles(File::isFile);
+        final List<byte[]> batches = new ArrayList<>();
+        if (files == null) {
+            return batches;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            batches.add(Files.readAllBytes(file.toPath()));
+        }
+        return batches;
+    }
+
+    private static boolean containsFragment(@NonNull List<String> selected, @NonNull String fragment) {
+        for (String other : selected) {
+            if (other.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private static String toJavaString(@NonNull byte[] dictionary) {
+        final String text = new String(dictionary, StandardCharsets.UTF_8);
+        final StringBuilder builder = new StringBuilder("\"\"");
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '\\' || c == '"') {
+                line.append('\\');
+            }
+            line.append(c);
+            if (line.length() >= 90 || i == text.length() - 1) {
+                builder.append("\n        + \"").append(line).append('"');
+                line = new StringBuilder();
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.delivery.cbor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the CBOR encoder and decoder used by the binary wire format.
+ *
+ * Expected encodings come from the examples of RFC 8949, Appendix A.
+ */
+public class CborTest {
+
+    @Test
+    public void testIntegersUseShortestEncoding() throws IOException {
+        assertEncoding("00", writer -> writer.writeLong(0));
+        assertEncoding("17", writer -> writer.writeLong(23));
+        assertEncoding("1818", writer -> writer.writeLong(24));
+        assertEncoding("1864", writer -> writer.writeLong(100));
+        assertEncoding("1903e8", writer -> writer.writeLong(1000));
+        assertEncoding("1a000f4240", writer -> writer.writeLong(1000000));
+        assertEncoding("1b000000e8d4a51000", writer -> writer.writeLong(1000000000000L));
+        assertEncoding("20", writer -> writer.writeLong(-1));
+        assertEncoding("3903e7", writer -> writer.writeLong(-1000));
+    }
+
+    @Test
+    public void testStringsAndSimpleValues() throws IOException {
+        assertEncoding("60", writer -> writer.writeString(""));
+        assertEncoding("6449455446", writer -> writer.writeString("IETF"));
+        assertEncoding("62c3bc", writer -> writer.writeString("\u00fc"));
+        assertEncoding("4401020304", writer -> writer.writeBytes(new byte[]{1, 2, 3, 4}));
+        assertEncoding("f4", writer -> writer.writeBoolean(false));
+        assertEncoding("f5", writer -> writer.writeBoolean(true));
+        assertEncoding("f6", CborWriter::writeNull);
+    }
+
+    @Test
+    public void testContainers() throws IOException {
+        assertEncoding("83010203", writer -> writer.writeArrayHeader(3).writeLong(1).writeLong(2).writeLong(3));
+        assertEncoding("a201020304", writer -> writer.writeMapHeader(2).writeLong(1).writeLong(2).writeLong(3).writeLong(4));
+        assertEncoding("bf6346756ef563416d7421ff", writer -> writer.writeStartMap()
+                .writeString("Fun").writeBoolean(true)
+                .writeString("Amt").writeLong(-2)
+                .writeBreak());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        final var out = new ByteArrayOutputStream();
+        new CborWriter(out)
+                .writeStartMap()
+                .writeString("provider").writeString("amplitude")
+                .writeString("ts").writeLong(1700000000000L)
+                .writeString("post_payload").writeBytes(payload)
+                .writeString("response_code").writeLong(-1)
+                .writeString("context").writeMapHeader(1).writeString("app_name").writeString("Test \u2603")
+                .writeString("list").writeArrayHeader(2).writeNull().writeBoolean(true)
+                .writeBreak();
+
+        final Object decoded = CborReader.decode(out.toByteArray());
+
+        assertTrue(decoded instanceof Map);
+        final Map<?, ?> map = (Map<?, ?>) decoded;
+        assertEquals(Arrays.asList("provider", "ts", "post_payload", "response_code", "context", "list"),
+                List.copyOf(map.keySet()));
+        assertEquals("amplitude", map.get("provider"));
+        assertEquals(1700000000000L, map.get("ts"));
+        assertArrayEquals(payload, (byte[]) map.get("post_payload"));
+        assertEquals(-1L, map.get("response_code"));
+        assertEquals("Test \u2603", ((Map<?, ?>) map.get("context")).get("app_name"));
+        assertEquals(Arrays.asList(null, true), map.get("list"));
+    }
+
+    @Test
+    public void testDecodeFloatsAndIndefiniteStrings() throws IOException {
+        assertEquals(1.5, CborReader.decode(hex("f93e00")));
+        assertEquals(100000.0, CborReader.decode(hex("fa47c35000")));
+        assertEquals(1.1, CborReader.decode(hex("fb3ff199999999999a")));
+        assertEquals("streaming", CborReader.decode(hex("7f657374726561646d696e67ff")));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, (byte[]) CborReader.decode(hex("5f42010243030405ff")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedDataIsRejected() throws IOException {
+        CborReader.decode(hex("64494554"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTrailingDataIsRejected() throws IOException {
+        CborReader.decode(hex("0101"));
+    }
+
+    private interface WriteAction {
+        void write(CborWriter writer) throws IOException;
+    }
+
+    private static void assertEncoding(String expectedHex, WriteAction action) throws IOException {
+        final var out = new ByteArrayOutputStream();
+        action.write(new CborWriter(out));
+        assertEquals(expectedHex, toHex(out.toByteArray()));
+    }
+
+    private static String toHex(byte[] bytes) {
+        final var builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xFF));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] hex(String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.interception;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Unit tests for the compact representation of intercepted requests and its payload pool.
+ */
+public class HttpRequestTest {
+
+    // Payload of a typical analytics request
+    private static final byte[] PAYLOAD = ("{\"api_key\":\"key\",\"events\":[{\"event_type\":\"screen_view\","
+            + "\"user_id\":\"user\",\"time\":1700000000000}]}").getBytes(StandardCharsets.UTF_8);
+
+    // Upper bound of the bytes allocated to intercept, build and release a request, which is
+    // mostly the request itself, its context and the strings given by the instrument
+    private static final long MAX_ALLOCATED_BYTES_PER_REQUEST = 512;
+
+    @Test
+    public void testOnlyPayloadHeadersAreKept() {
+        final var builder = new HttpRequest.Builder()
+                .addHeaderField("content-TYPE", "application/json")
+                .addHeaderField("Content-Encoding", "gzip")
+                .addHeaderField("Authorization", "Bearer token")
+                .addHeaderField(null, "HTTP/1.1 200 OK");
+
+        assertTrue(builder.hasHeaderField("Content-Type"));
+        assertFalse(builder.hasHeaderField("Authorization"));
+
+        final var request = builder.build();
+
+        assertEquals("application/json", request.getContentType());
+        assertEquals("gzip", request.getContentEncoding());
+        assertFalse(request.toString().contains("Bearer"));
+    }
+
+    @Test
+    public void testContextKeepsInsertionOrder() {
+        final var request = new HttpRequest.Builder()
+                .addContextField("app_name", "app")
+                .addContextField("device", "phone")
+                .build();
+        request.addContextField("app_name", "other");
+        request.addContextField("screen", "Home");
+
+        final Map<String, String> context = request.getContext();
+
+        assertEquals(3, context.size());
+        assertEquals("other", context.get("app_name"));
+        assertNull(context.get("activity"));
+        assertEquals("[app_name, device, screen]", context.keySet().toString());
+        assertEquals(Map.of("app_name", "other", "device", "phone", "screen", "Home"), context);
+        assertThrows(UnsupportedOperationException.class, () -> context.put("device", "tablet"));
+    }
+
+    @Test
+    public void testPooledPayloadIsGivenBackOnRelease() {
+        final var pool = PayloadBufferPool.getInstance();
+        final byte[] buffer = pool.obtain(PAYLOAD.length);
+        System.arraycopy(PAYLOAD, 0, buffer, 0, PAYLOAD.length);
+
+        final var request = new HttpRequest.Builder()
+                .setPooledRequestPayload(buffer, PAYLOAD.length)
+                .setRequestPayloadNumBytes(PAYLOAD.length)
+                .build();
+
+        assertSame(buffer, request.getPayloadBuffer());
+        assertEquals(PAYLOAD.length, request.getPayloadLength());
+        assertArrayEquals(PAYLOAD, request.getPayloadData());
+        assertFalse(request.isPayloadTruncated());
+
+        request.releasePayload();
+
+        assertEquals(0, request.getPayloadLength());
+        assertEquals(0, request.getPayloadData().length);
+        assertSame(buffer, pool.obtain(PAYLOAD.length));
+    }
+
+    @Test
+    public void testPoolKeepsBoundedNumberOfBytes() {
+        final var pool = new PayloadBufferPool(64 * 1024, 8 * 1024);
+
+        final byte[] small = pool.obtain(10);
+        final byte[] large = pool.obtain(5000);
+        final byte[] tooLarge = pool.obtain(100 * 1024);
+
+        assertEquals(PayloadBufferPool.MIN_BUFFER_SIZE_BYTES, small.length);
+        assertEquals(8 * 1024, large.length);
+        assertEquals(100 * 1024, tooLarge.length);
+        assertEquals(2, pool.getNumAllocations());
+
+        pool.release(small);
+        pool.release(large); // Exceeds MAX_POOLED_BYTES along with small
+        pool.release(tooLarge);
+        pool.release(new byte[3000]);
+
+        assertSame(small, pool.obtain(1000));
+        assertNotSame(large, pool.obtain(5000));
+        assertEquals(3, pool.getNumAllocations());
+    }
+
+    @Test
+    public void testAllocationsPerInterceptedRequest() {
+        final var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+        final var pool = PayloadBufferPool.getInstance();
+        final int numRequests = 10000;
+
+        // Warm up, so that the pool has a buffer and JIT compilation isn't measured
+        for (int i = 0; i < numRequests; i++) {
+            interceptAndRelease(pool);
+        }
+
+        final long numPoolAllocations = pool.getNumAllocations();
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < numRequests; i++) {
+            interceptAndRelease(pool);
+        }
+        final long bytesPerRequest = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / numRequests;
+
+        assertEquals(numPoolAllocations, pool.getNumAllocations());
+        assertTrue("Allocated " + bytesPerRequest + " bytes per request", bytesPerRequest < MAX_ALLOCATED_BYTES_PER_REQUEST);
+    }
+
+    /**
+     * Same steps as an HTTP instrument, the request processor and the batch tasks.
+     */
+    private static void interceptAndRelease(PayloadBufferPool pool) {
+        final var builder = new HttpRequest.Builder()
+                .setUrl("https://api2.amplitude.com/2/httpapi")
+                .setHttpMethod("POST")
+                .setUserAgent("okhttp/4.12.0")
+                .addHeaderField("Content-Type", "application/json")
+                .addHeaderField("Accept", "*/*")
+                .addHeaderField("Accept-Encoding", "gzip")
+                .addHeaderField("Connection", "keep-alive")
+                .addHeaderField("Host", "api2.amplitude.com")
+                .setHttpResponseCode(200)
+                .setInterceptionModule("okhttp");
+
+        final byte[] buffer = pool.obtain(PAYLOAD.length);
+        System.arraycopy(PAYLOAD, 0, buffer, 0, PAYLOAD.length);
+        builder.setPooledRequestPayload(buffer, PAYLOAD.length);
+        builder.setRequestPayloadNumBytes(PAYLOAD.length);
+
+        final var request = builder.build();
+        request.addContextField("app_name", "Example");
+        request.addContextField("app_version", "1.0");
+        request.addContextField("language", "en");
+        request.addContextField("device", "Pixel");
+        request.addContextField("platform", "android");
+        request.addContextField("activity", "MainActivity");
+        request.addContextField("screen", "Home");
+        request.setProvider("amplitude");
+
+        request.releasePayload();
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.interception;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Unit tests for the tee that keeps a copy of request bodies in pooled chunks.
+ */
+public class PayloadTeeTest {
+
+    private static final int MAX_PAYLOAD_SIZE = 100 * 1024;
+
+    @Test
+    public void testSmallBodyIsHandedOverWithoutCopy() {
+        final var pool = new PayloadBufferPool(MAX_PAYLOAD_SIZE, 512 * 1024);
+        final var tee = new PayloadTee(pool, MAX_PAYLOAD_SIZE);
+        final byte[] body = makeBody(3000);
+
+        for (byte b : body) {
+            tee.write(b);
+        }
+        final var builder = new TestRequestBuilder();
+        tee.moveTo(builder);
+        final var request = builder.buildRequest();
+
+        assertEquals(PayloadTee.CHUNK_SIZE_BYTES, request.getPayloadBuffer().length);
+        assertArrayEquals(body, request.getPayloadData());
+        assertEquals(0, tee.size());
+        assertEquals(1, pool.getNumAllocations());
+    }
+
+    @Test
+    public void testLargeBodyIsCopiedOnceAndBounded() {
+        final var pool = new PayloadBufferPool(MAX_PAYLOAD_SIZE, 512 * 1024);
+        final var tee = new PayloadTee(pool, MAX_PAYLOAD_SIZE);
+        final byte[] body = makeBody(150 * 1024);
+
+        tee.write(body[0]);
+        tee.write(body, 1, 9999);
+        tee.write(body, 10000, body.length - 10000);
+        final var builder = new TestRequestBuilder();
+        tee.moveTo(builder);
+        final var request = builder.buildRequest();
+
+        assertEquals(MAX_PAYLOAD_SIZE, request.getPayloadLength());
+        assertEquals(body.length, tee.getNumBytesWritten());
+        assertArrayEquals(Arrays.copyOf(body, MAX_PAYLOAD_SIZE), request.getPayloadData());
+
+        // Chunks were given back, so a second body of the same size takes them from the pool
+        pool.release(request.getPayloadBuffer());
+        final long numAllocations = pool.getNumAllocations();
+        final var secondTee = new PayloadTee(pool, MAX_PAYLOAD_SIZE);
+        secondTee.write(body, 0, body.length);
+        secondTee.moveTo(new TestRequestBuilder());
+        assertEquals(numAllocations, pool.getNumAllocations());
+    }
+
+    @Test
+    public void testEmptyBodyHasNoPayload() {
+        final var tee = new PayloadTee(MAX_PAYLOAD_SIZE);
+        final var builder = new TestRequestBuilder();
+
+        tee.write(new byte[0], 0, 0);
+        tee.moveTo(builder);
+
+        assertEquals(0, builder.buildRequest().getPayloadLength());
+    }
+
+    @Test
+    public void testAllocationsPerBody() {
+        final var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+        final var pool = new PayloadBufferPool(MAX_PAYLOAD_SIZE, 512 * 1024);
+        final byte[] body = makeBody(20 * 1024);
+        final int numBodies = 2000;
+
+        // Warm up, so that the pool has the chunks and JIT compilation isn't measured
+        for (int i = 0; i < numBodies; i++) {
+            teeAndRelease(pool, body);
+        }
+
+        final long numPoolAllocations = pool.getNumAllocations();
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < numBodies; i++) {
+            teeAndRelease(pool, body);
+        }
+        final long bytesPerBody = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / numBodies;
+
+        // A ByteArrayOutputStream allocates more than twice the body on its own
+        assertEquals(numPoolAllocations, pool.getNumAllocations());
+        assertTrue("Allocated " + bytesPerBody + " bytes per body", bytesPerBody < 1024);
+    }
+
+    /**
+     * Same steps as InstrHttpOutputStream and the batch tasks for a body written byte by byte.
+     */
+    private static void teeAndRelease(PayloadBufferPool pool, byte[] body) {
+        final var tee = new PayloadTee(pool, MAX_PAYLOAD_SIZE);
+        for (byte b : body) {
+            tee.write(b);
+        }
+        final var builder = new TestRequestBuilder();
+        tee.moveTo(builder);
+        final var request = builder.buildRequest();
+        pool.release(request.getPayloadBuffer());
+    }
+
+    private static byte[] makeBody(int size) {
+        final byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        return body;
+    }
+
+    private static final class TestRequestBuilder extends InstrumentRequestBuilder {
+
+        TestRequestBuilder() {
+            super(null, "test");
+        }
+
+        HttpRequest buildRequest() {
+            return builder.build();
+        }
+    }
+}
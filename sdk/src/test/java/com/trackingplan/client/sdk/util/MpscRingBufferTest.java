@@ -0,0 +1,119 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.client.sdk.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for the multi-producer single-consumer ring buffer.
+ */
+public class MpscRingBufferTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new MpscRingBuffer<Integer>(1).capacity());
+        assertEquals(8, new MpscRingBuffer<Integer>(5).capacity());
+        assertEquals(1024, new MpscRingBuffer<Integer>(1024).capacity());
+    }
+
+    @Test
+    public void testElementsArePolledInOrder() {
+        final var buffer = new MpscRingBuffer<Integer>(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+
+        // Several laps around the buffer
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.offer(2 * i));
+            assertTrue(buffer.offer(2 * i + 1));
+            assertFalse(buffer.isEmpty());
+            assertEquals(Integer.valueOf(2 * i), buffer.poll());
+            assertEquals(Integer.valueOf(2 * i + 1), buffer.poll());
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        final var buffer = new MpscRingBuffer<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+
+        assertFalse(buffer.offer(4));
+
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        assertFalse(buffer.offer(5));
+    }
+
+    @Test
+    public void testDrainIsLimited() {
+        final var buffer = new MpscRingBuffer<Integer>(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+        final List<Integer> drained = new ArrayList<>();
+
+        assertEquals(3, buffer.drain(drained::add, 3));
+        assertEquals(2, buffer.drain(drained::add, 10));
+        assertEquals(0, buffer.drain(drained::add, 10));
+
+        assertEquals(List.of(0, 1, 2, 3, 4), drained);
+    }
+
+    @Test
+    public void testConcurrentProducersDontLoseElements() throws Exception {
+        final int numProducers = 4;
+        final int numElementsPerProducer = 50000;
+        final var buffer = new MpscRingBuffer<Integer>(64);
+        final var start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+
+        for (int p = 0; p < numProducers; p++) {
+            final int producer = p;
+            final var thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < numElementsPerProducer; i++) {
+                    final int element = producer * numElementsPerProducer + i;
+                    while (!buffer.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        // Elements of each producer must arrive in the order they were offered
+        final int[] nextPerProducer = new int[numProducers];
+        int numConsumed = 0;
+        start.countDown();
+
+        while (numConsumed < numProducers * numElementsPerProducer) {
+            final Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            final int producer = element / numElementsPerProducer;
+            assertEquals(nextPerProducer[producer], element % numElementsPerProducer);
+            nextPerProducer[producer] += 1;
+            numConsumed += 1;
+        }
+
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
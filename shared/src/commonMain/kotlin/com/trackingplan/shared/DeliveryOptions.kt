@@ -0,0 +1,95 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.shared
+
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
+/**
+ * Delivery tuning sent by the config endpoint in the optional `delivery` block of the
+ * ingest config. Every option is optional: null means that the SDK keeps its own default.
+ *
+ * Values are not trusted as received. Use [withSafeBounds] to clamp them to the ranges
+ * the SDKs can handle.
+ *
+ * @property targetBatchSizeBytes Estimated size at which a batch is considered full
+ * @property maxBatchSizeBytes Estimated size that a batch never exceeds (unless it has one track)
+ * @property maxRequestsPerBatch Maximum number of tracks in a batch
+ * @property batchTimeoutMs Time after which a batch that isn't full is sent anyway
+ * @property compression Whether the tracks uploads are gzip-compressed
+ * @property flushOnBackground Whether pending tracks are sent when the app goes to background
+ * @property wireFormat Encoding of the raw tracks uploads: [WIRE_FORMAT_JSON] or [WIRE_FORMAT_CBOR].
+ * The tracks endpoint announces this way that it accepts CBOR. SDKs fall back to JSON anyway
+ * if an upload is rejected as unsupported.
+ * @property batchEnvelope Layout of the batches accepted by the tracks endpoint:
+ * [BATCH_ENVELOPE_V1] (array of raw tracks) or [BATCH_ENVELOPE_V2] (envelope with a header
+ * holding the fields shared by its raw tracks, which are left out of them).
+ * @property backpressureSampling Whether SDKs thin out tracks, on top of the sampling rate,
+ * while the tracks endpoint is throttling clients (429 or 503 responses). Kept tracks report
+ * the increased sampling rate.
+ * @property presetDictionaryVersion Latest version of the preset compression dictionaries
+ * known by the tracks endpoint. SDKs only compress batches with a preset dictionary whose
+ * version isn't newer than this one. Null means that preset dictionaries aren't accepted.
+ */
+@Serializable
+data class DeliveryOptions(
+    @SerialName("target_batch_size_bytes")
+    val targetBatchSizeBytes: Long? = null,
+    @SerialName("max_batch_size_bytes")
+    val maxBatchSizeBytes: Long? = null,
+    @SerialName("max_requests_per_batch")
+    val maxRequestsPerBatch: Int? = null,
+    @SerialName("batch_timeout_ms")
+    val batchTimeoutMs: Long? = null,
+    val compression: Boolean? = null,
+    @SerialName("flush_on_background")
+    val flushOnBackground: Boolean? = null,
+    @SerialName("wire_format")
+    val wireFormat: String? = null,
+    @SerialName("batch_envelope")
+    val batchEnvelope: Int? = null,
+    @SerialName("backpressure_sampling")
+    val backpressureSampling: Boolean? = null,
+    @SerialName("preset_dictionary_version")
+    val presetDictionaryVersion: Int? = null
+) {
+
+    /**
+     * Returns a copy with every option clamped to its safe bounds. The max batch size is
+     * never smaller than the target batch size. Unknown wire formats and batch envelope
+     * versions are ignored, as well as non-positive preset dictionary versions.
+     */
+    fun withSafeBounds(): DeliveryOptions {
+        val target = targetBatchSizeBytes?.coerceIn(MIN_BATCH_SIZE_BYTES, MAX_BATCH_SIZE_BYTES)
+        var max = maxBatchSizeBytes?.coerceIn(MIN_BATCH_SIZE_BYTES, MAX_BATCH_SIZE_BYTES)
+        if (target != null && max != null && max < target) {
+            max = target
+        }
+        return copy(
+            targetBatchSizeBytes = target,
+            maxBatchSizeBytes = max,
+            maxRequestsPerBatch = maxRequestsPerBatch?.coerceIn(MIN_REQUESTS_PER_BATCH, MAX_REQUESTS_PER_BATCH),
+            batchTimeoutMs = batchTimeoutMs?.coerceIn(MIN_BATCH_TIMEOUT_MS, MAX_BATCH_TIMEOUT_MS),
+            wireFormat = wireFormat?.takeIf { it == WIRE_FORMAT_JSON || it == WIRE_FORMAT_CBOR },
+            batchEnvelope = batchEnvelope?.takeIf { it == BATCH_ENVELOPE_V1 || it == BATCH_ENVELOPE_V2 },
+            presetDictionaryVersion = presetDictionaryVersion?.takeIf { it > 0 }
+        )
+    }
+
+    companion object {
+        const val MIN_BATCH_SIZE_BYTES: Long = 1024
+        const val MAX_BATCH_SIZE_BYTES: Long = 512 * 1024
+        const val MIN_REQUESTS_PER_BATCH: Int = 1
+        const val MAX_REQUESTS_PER_BATCH: Int = 500
+        const val MIN_BATCH_TIMEOUT_MS: Long = TimeProvider.SECOND
+        const val MAX_BATCH_TIMEOUT_MS: Long = 10 * TimeProvider.MINUTE
+
+        const val WIRE_FORMAT_JSON = "json"
+        const val WIRE_FORMAT_CBOR = "cbor"
+
+        const val BATCH_ENVELOPE_V1: Int = 1
+        const val BATCH_ENVELOPE_V2: Int = 2
+
+        /** No overrides. The SDK defaults are used. */
+        val EMPTY = DeliveryOptions()
+    }
+}
@@ -0,0 +1,113 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.shared
+
+/**
+ * Hard ceiling on the number of sampled requests that are sent to Trackingplan.
+ *
+ * Requests of each provider go through a token bucket that holds up to `providerBurst`
+ * tokens and is refilled at `providerEventsPerMinute`. On top of that, no more than
+ * `maxEventsPerSession` requests are sent during a session. A limit of 0 disables it.
+ *
+ * Requests over budget are suppressed and counted per provider. The count is reported with
+ * the next request of the same provider that is sent (see [takeSuppressedCount]) so that
+ * ingest can re-weight it.
+ *
+ * This class isn't thread-safe.
+ */
+class EventBudget(
+    providerEventsPerMinute: Int = 0,
+    providerBurst: Int = 0,
+    maxEventsPerSession: Int = 0
+) {
+
+    private class Bucket(var tokens: Double, var lastRefillTime: Long)
+
+    private val timeProvider: TimeProvider
+        get() = ServiceLocator.getTimeProvider()
+
+    private var providerEventsPerMinute = 0
+    private var providerBurst = 0
+    private var maxEventsPerSession = 0
+
+    private val buckets = HashMap<String, Bucket>()
+    private val suppressedCounts = HashMap<String, Int>()
+
+    private var sessionId = ""
+    private var numSessionEvents = 0
+
+    init {
+        update(providerEventsPerMinute, providerBurst, maxEventsPerSession)
+    }
+
+    /**
+     * Changes the limits. Requests already counted in the current session and pending
+     * suppressed counts are kept.
+     */
+    fun update(providerEventsPerMinute: Int, providerBurst: Int, maxEventsPerSession: Int) {
+        this.providerEventsPerMinute = providerEventsPerMinute.coerceAtLeast(0)
+        this.providerBurst = if (providerBurst > 0) providerBurst else this.providerEventsPerMinute
+        this.maxEventsPerSession = maxEventsPerSession.coerceAtLeast(0)
+        for (bucket in buckets.values) {
+            bucket.tokens = bucket.tokens.coerceAtMost(this.providerBurst.toDouble())
+        }
+    }
+
+    fun isUnlimited(): Boolean = providerEventsPerMinute == 0 && maxEventsPerSession == 0
+
+    /**
+     * Takes one event from the budget of the provider in the given session.
+     *
+     * @return true if the request can be sent, false if it must be suppressed
+     */
+    fun tryAcquire(provider: String, sessionId: String): Boolean {
+
+        if (sessionId != this.sessionId) {
+            this.sessionId = sessionId
+            numSessionEvents = 0
+        }
+
+        if (maxEventsPerSession > 0 && numSessionEvents >= maxEventsPerSession) {
+            suppress(provider)
+            return false
+        }
+
+        if (providerEventsPerMinute > 0 && !takeToken(provider)) {
+            suppress(provider)
+            return false
+        }
+
+        numSessionEvents += 1
+        return true
+    }
+
+    /**
+     * Returns the number of requests of the provider suppressed since the last call and
+     * resets it.
+     */
+    fun takeSuppressedCount(provider: String): Int {
+        return suppressedCounts.remove(provider) ?: 0
+    }
+
+    private fun takeToken(provider: String): Boolean {
+
+        val now = timeProvider.elapsedRealTime()
+        val bucket = buckets.getOrPut(provider) { Bucket(providerBurst.toDouble(), now) }
+
+        // Elapsed real time restarts when the device reboots
+        val elapsed = if (now >= bucket.lastRefillTime) now - bucket.lastRefillTime else 0L
+        bucket.tokens = (bucket.tokens + elapsed * providerEventsPerMinute.toDouble() / TimeProvider.MINUTE)
+            .coerceAtMost(providerBurst.toDouble())
+        bucket.lastRefillTime = now
+
+        if (bucket.tokens < 1) {
+            return false
+        }
+
+        bucket.tokens -= 1
+        return true
+    }
+
+    private fun suppress(provider: String) {
+        suppressedCounts[provider] = (suppressedCounts[provider] ?: 0) + 1
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.shared
+
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
+/**
+ * Event budget sent by the config endpoint in the optional `event_budget` block of the
+ * ingest config. It limits how many sampled requests are sent. Every option is optional:
+ * null means that the SDK keeps the value set in its local config. A value of 0 disables
+ * the corresponding limit.
+ *
+ * @property providerEventsPerMinute Requests of the same provider that can be sent per minute
+ * @property providerBurst Requests of the same provider that can be sent at once after a quiet
+ * period. Defaults to [providerEventsPerMinute] when 0.
+ * @property maxEventsPerSession Requests that can be sent during a session
+ */
+@Serializable
+data class EventBudgetOptions(
+    @SerialName("provider_events_per_minute")
+    val providerEventsPerMinute: Int? = null,
+    @SerialName("provider_burst")
+    val providerBurst: Int? = null,
+    @SerialName("max_events_per_session")
+    val maxEventsPerSession: Int? = null
+) {
+
+    /**
+     * Returns a copy with every option clamped to its safe bounds.
+     */
+    fun withSafeBounds(): EventBudgetOptions {
+        return copy(
+            providerEventsPerMinute = providerEventsPerMinute?.coerceIn(0, MAX_EVENTS),
+            providerBurst = providerBurst?.coerceIn(0, MAX_EVENTS),
+            maxEventsPerSession = maxEventsPerSession?.coerceIn(0, MAX_EVENTS)
+        )
+    }
+
+    companion object {
+        const val MAX_EVENTS: Int = 1_000_000
+
+        /** No overrides. The local config is used. */
+        val EMPTY = EventBudgetOptions()
+    }
+}
@@ -8,11 +8,13 @@ import kotlin.random.Random
 /**
  * Configuration downloaded from the Trackingplan config endpoint.
  * This class encapsulates all configuration options for the ingest pipeline,
- * including sampling rates and adaptive sampling options.
+ * including sampling rates, adaptive sampling options and delivery tuning.
  *
  * @property sampleRate The default sampling rate (1 = 100%, 2 = 50%, etc.)
  * @property environmentRates Environment-specific sampling rates that override the default
  * @property options Additional sampling configuration options
+ * @property delivery Optional delivery tuning (batching, compression, etc.)
+ * @property eventBudget Optional limits on the number of requests sent
  */
 @Serializable
 data class TrackingplanIngestConfig(
@@ -21,6 +23,9 @@ data class TrackingplanIngestConfig(
     @SerialName("environment_rates")
     val environmentRates: Map<String, Int> = emptyMap(),
     val options: SamplingOptions = SamplingOptions(),
+    val delivery: DeliveryOptions = DeliveryOptions.EMPTY,
+    @SerialName("event_budget")
+    val eventBudget: EventBudgetOptions = EventBudgetOptions.EMPTY,
     @kotlinx.serialization.Transient
     private val random: Random = Random.Default
 ) {
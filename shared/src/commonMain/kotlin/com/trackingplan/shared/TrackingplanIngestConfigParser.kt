@@ -16,6 +16,7 @@ object TrackingplanIngestConfigParser {
 
     /**
      * Parses a TrackingplanIngestConfig from a JSON string.
+     * Delivery options and event budget are clamped to their safe bounds.
      *
      * @param jsonString The JSON configuration string
      * @return Parsed TrackingplanIngestConfig
@@ -23,6 +24,10 @@ object TrackingplanIngestConfigParser {
      */
     @Throws(Exception::class)
     fun parse(jsonString: String): TrackingplanIngestConfig {
-        return json.decodeFromString<TrackingplanIngestConfig>(jsonString)
+        val config = json.decodeFromString<TrackingplanIngestConfig>(jsonString)
+        return config.copy(
+            delivery = config.delivery.withSafeBounds(),
+            eventBudget = config.eventBudget.withSafeBounds()
+        )
     }
 }
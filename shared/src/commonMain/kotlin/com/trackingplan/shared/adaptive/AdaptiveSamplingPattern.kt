@@ -13,12 +13,15 @@ import kotlinx.serialization.Serializable
  * @property provider The analytics provider this rule applies to (e.g., "amplitude", "mixpanel")
  * @property match Optional matching conditions. If null, rule applies to all requests for this provider
  * @property sampleRate The sampling rate to apply if this rule matches (1/X probability, where 1 = 100%, 2 = 50%, etc.)
+ * @property aggregateWindowMs If greater than 0, matching requests are folded into a single
+ *   aggregated track per window of this duration instead of being sent one by one
  */
 @Serializable
 data class AdaptiveSamplingPattern(
     val provider: String,
     val match: MatchCondition? = null,
-    @SerialName("sample_rate") val sampleRate: Int
+    @SerialName("sample_rate") val sampleRate: Int,
+    @SerialName("aggregate_window_ms") val aggregateWindowMs: Long = 0
 )
 
 /**
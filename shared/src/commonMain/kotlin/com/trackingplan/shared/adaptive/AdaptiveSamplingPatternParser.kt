@@ -53,7 +53,8 @@ object AdaptiveSamplingPatternParser {
      *     "event_type": "session_start",
      *     "plan": ["premium", "enterprise"]
      *   },
-     *   "sample_rate": 5
+     *   "sample_rate": 5,
+     *   "aggregate_window_ms": 60000
      * }
      * ```
      *
@@ -70,11 +71,12 @@ object AdaptiveSamplingPatternParser {
 
             val provider = jsonElement["provider"]?.jsonPrimitive?.content ?: return null
             val sampleRate = jsonElement["sample_rate"]?.jsonPrimitive?.intOrNull ?: 1
+            val aggregateWindowMs = jsonElement["aggregate_window_ms"]?.jsonPrimitive?.longOrNull ?: 0L
             val matchElement = jsonElement["match"]?.jsonObject
 
             val match = matchElement?.let { parseMatchCondition(it) }
 
-            AdaptiveSamplingPattern(provider, match, sampleRate)
+            AdaptiveSamplingPattern(provider, match, sampleRate, aggregateWindowMs.coerceAtLeast(0L))
         } catch (e: Exception) {
             // Return null for any parsing errors (malformed JSON, invalid structure, etc.)
             null
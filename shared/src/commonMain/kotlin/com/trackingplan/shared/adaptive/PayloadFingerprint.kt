@@ -0,0 +1,186 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.shared.adaptive
+
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+
+/**
+ * Structural fingerprint of an intercepted request.
+ *
+ * The fingerprint is a hash of the endpoint path, the names of the query parameters and the
+ * key paths and value types of the payload (see [PayloadFlattener.flattenToKeyPathTypes]).
+ * Two requests that only differ in their values have the same fingerprint, so once a
+ * payload with a given structure has been sent, the following ones can be described by the
+ * fingerprint and a few of their values.
+ *
+ * @property hash Hex-encoded 64-bit FNV-1a hash of the structure
+ * @property sampledValues Short string values of the request by key path, in the order
+ *   they appear (query parameters first). At most [MAX_SAMPLED_VALUES] are kept.
+ */
+data class PayloadFingerprint(
+    val hash: String,
+    val sampledValues: Map<String, String>
+) {
+    companion object {
+
+        const val MAX_SAMPLED_VALUES = 16
+        const val MAX_SAMPLED_VALUE_LENGTH = 64
+
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
+
+        // Keys that usually hold the name of the event tracked by a request (e.g. "en" in GA4
+        // hits, "event_type" in Amplitude events or "event" in Segment and Mixpanel ones)
+        private val EVENT_NAME_KEYS = setOf(
+            "event", "event_type", "event_name", "eventName", "en", "ea", "type", "name", "action"
+        )
+
+        private val json = Json { isLenient = true }
+
+        /**
+         * Computes the fingerprint of a request whose payload is JSON or form encoded
+         * (one or more lines of query strings).
+         *
+         * @param endpoint The URL of the request
+         * @param payload The payload of the request
+         * @return The fingerprint, or null if the payload is empty or has no known structure
+         */
+        fun compute(endpoint: String, payload: String?): PayloadFingerprint? {
+
+            if (payload.isNullOrBlank()) {
+                return null
+            }
+
+            val (path, endpointParams) = RequestDataExtractor.parseUrl(endpoint)
+            val structure = mutableListOf<String>()
+            val sampledValues = LinkedHashMap<String, String>()
+
+            endpointParams.forEach { (name, value) ->
+                structure.add("?$name:string")
+                sampleValue("?$name", value, sampledValues)
+            }
+
+            val element = parseJson(payload)
+            if (element != null) {
+                PayloadFlattener.flattenToKeyPathTypes(element).forEach { (keyPath, type) ->
+                    structure.add("$keyPath:$type")
+                }
+                sampleJsonValues(element, "", sampledValues)
+            } else {
+                val lines = payload.split("\n").map { it.trim() }.filter { it.isNotEmpty() }
+                if (lines.any { !it.contains('=') }) {
+                    return null
+                }
+                lines.forEach { line ->
+                    RequestDataExtractor.parseQueryString(line).forEach { (name, value) ->
+                        structure.add("[]$name:string")
+                        sampleValue("[]$name", value, sampledValues)
+                    }
+                }
+            }
+
+            // Sorted so that the order of keys doesn't change the fingerprint
+            val canonical = path + "\n" + structure.distinct().sorted().joinToString("\n")
+
+            return PayloadFingerprint(fnv1a64(canonical), sampledValues)
+        }
+
+        /**
+         * Names of the events tracked by a request, i.e. the values of the keys that usually
+         * hold them in the query of the URL and in a JSON or form encoded payload. Requests
+         * with the same fingerprint can track different events, which these tell apart.
+         *
+         * @return Sorted "key=value" pairs without duplicates
+         */
+        fun eventNames(endpoint: String, payload: String?): List<String> {
+
+            val names = mutableSetOf<String>()
+
+            RequestDataExtractor.parseUrl(endpoint).second.forEach { (name, value) ->
+                if (name in EVENT_NAME_KEYS) names.add("$name=$value")
+            }
+
+            if (!payload.isNullOrBlank()) {
+                val element = parseJson(payload)
+                if (element != null) {
+                    collectJsonEventNames(element, null, names)
+                } else {
+                    payload.split("\n").filter { it.contains('=') }.forEach { line ->
+                        RequestDataExtractor.parseQueryString(line.trim()).forEach { (name, value) ->
+                            if (name in EVENT_NAME_KEYS) names.add("$name=$value")
+                        }
+                    }
+                }
+            }
+
+            return names.sorted()
+        }
+
+        private fun collectJsonEventNames(element: JsonElement, key: String?, result: MutableSet<String>) {
+            when (element) {
+                is JsonObject -> element.forEach { (childKey, value) ->
+                    collectJsonEventNames(value, childKey, result)
+                }
+
+                is JsonArray -> element.forEach { item ->
+                    collectJsonEventNames(item, key, result)
+                }
+
+                is JsonNull -> return
+
+                is JsonPrimitive -> if (element.isString && key != null && key in EVENT_NAME_KEYS) {
+                    result.add("$key=${element.content}")
+                }
+            }
+        }
+
+        private fun parseJson(payload: String): JsonElement? {
+            return try {
+                val element = json.parseToJsonElement(payload)
+                if (element is JsonObject || element is JsonArray) element else null
+            } catch (e: Exception) {
+                null
+            }
+        }
+
+        private fun sampleJsonValues(element: JsonElement, path: String, result: MutableMap<String, String>) {
+            if (result.size >= MAX_SAMPLED_VALUES) {
+                return
+            }
+            when (element) {
+                is JsonObject -> element.forEach { (key, value) ->
+                    sampleJsonValues(value, if (path.isEmpty()) key else "$path.$key", result)
+                }
+
+                is JsonArray -> element.forEach { item ->
+                    sampleJsonValues(item, "$path[]", result)
+                }
+
+                is JsonNull -> return
+
+                is JsonPrimitive -> if (element.isString) {
+                    sampleValue(path, element.content, result)
+                }
+            }
+        }
+
+        private fun sampleValue(path: String, value: String, result: MutableMap<String, String>) {
+            if (result.size < MAX_SAMPLED_VALUES && value.length <= MAX_SAMPLED_VALUE_LENGTH && path !in result) {
+                result[path] = value
+            }
+        }
+
+        private fun fnv1a64(text: String): String {
+            var hash = FNV_OFFSET_BASIS
+            for (byte in text.encodeToByteArray()) {
+                hash = hash xor (byte.toLong() and 0xff)
+                hash *= FNV_PRIME
+            }
+            return hash.toULong().toString(16).padStart(16, '0')
+        }
+    }
+}
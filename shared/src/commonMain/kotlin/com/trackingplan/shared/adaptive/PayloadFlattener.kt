@@ -1,6 +1,13 @@
 // Copyright (c) 2021 Trackingplan
 package com.trackingplan.shared.adaptive
 
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.booleanOrNull
+
 /**
  * Utilities for flattening nested data structures for efficient pattern matching.
  *
@@ -81,6 +88,66 @@ object PayloadFlattener {
         }
     }
 
+    /**
+     * Flattens a JSON element into the paths of its keys and the type of the values found at
+     * each path. Unlike [flattenToKeyValues], the result only depends on the structure of the
+     * data, not on its values.
+     *
+     * Nested keys are joined with dots and the elements of an array share the path of the
+     * array followed by "[]":
+     * ```
+     * Input: {"event": "scroll", "props": {"depth": 10, "tags": ["a", "b"]}}
+     * Output: {"event" -> "string", "props.depth" -> "number", "props.tags[]" -> "string"}
+     * ```
+     * A path with values of several types maps to the sorted types joined with "|". Empty
+     * objects and arrays are kept as "object" and "array" leaves.
+     *
+     * @param element The JSON element to flatten
+     * @return Map of key path to value type
+     */
+    fun flattenToKeyPathTypes(element: JsonElement): Map<String, String> {
+        val result = mutableMapOf<String, MutableSet<String>>()
+        flattenTypesRecursive(element, "", result)
+        return result.mapValues { it.value.sorted().joinToString("|") }
+    }
+
+    private fun flattenTypesRecursive(
+        element: JsonElement,
+        path: String,
+        result: MutableMap<String, MutableSet<String>>
+    ) {
+        when (element) {
+            is JsonObject -> {
+                if (element.isEmpty()) {
+                    result.getOrPut(path) { mutableSetOf() }.add("object")
+                }
+                element.forEach { (key, value) ->
+                    flattenTypesRecursive(value, if (path.isEmpty()) key else "$path.$key", result)
+                }
+            }
+
+            is JsonArray -> {
+                if (element.isEmpty()) {
+                    result.getOrPut(path) { mutableSetOf() }.add("array")
+                }
+                element.forEach { item ->
+                    flattenTypesRecursive(item, "$path[]", result)
+                }
+            }
+
+            is JsonNull -> result.getOrPut(path) { mutableSetOf() }.add("null")
+
+            is JsonPrimitive -> {
+                val type = when {
+                    element.isString -> "string"
+                    element.booleanOrNull != null -> "boolean"
+                    else -> "number"
+                }
+                result.getOrPut(path) { mutableSetOf() }.add(type)
+            }
+        }
+    }
+
     /**
      * Flattens a payload variation to a key-value map.
      *
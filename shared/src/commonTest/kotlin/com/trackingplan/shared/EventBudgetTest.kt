@@ -0,0 +1,102 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.shared
+
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class EventBudgetTest {
+
+    private lateinit var fakeTime: TestTimeProvider
+
+    @BeforeTest
+    fun setup() {
+        fakeTime = TestTimeProvider()
+        ServiceLocator.setTimeProvider(fakeTime)
+    }
+
+    @AfterTest
+    fun cleanup() {
+        ServiceLocator.reset()
+    }
+
+    @Test
+    fun testUnlimitedByDefault() {
+        val budget = EventBudget()
+        assertTrue(budget.isUnlimited())
+        repeat(1000) {
+            assertTrue(budget.tryAcquire("amplitude", "session"))
+        }
+        assertEquals(0, budget.takeSuppressedCount("amplitude"))
+    }
+
+    @Test
+    fun testProviderBucketAllowsBurstAndRefills() {
+        val budget = EventBudget(providerEventsPerMinute = 60, providerBurst = 3)
+
+        repeat(3) {
+            assertTrue(budget.tryAcquire("amplitude", "session"))
+        }
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+
+        // Providers have their own bucket
+        assertTrue(budget.tryAcquire("segment", "session"))
+
+        // One token per second
+        fakeTime.advanceTime(TimeProvider.SECOND)
+        assertTrue(budget.tryAcquire("amplitude", "session"))
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+
+        // Bucket never holds more than the burst
+        fakeTime.advanceTime(TimeProvider.HOUR)
+        repeat(3) {
+            assertTrue(budget.tryAcquire("amplitude", "session"))
+        }
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+    }
+
+    @Test
+    fun testSuppressedCountIsReportedOnce() {
+        val budget = EventBudget(providerEventsPerMinute = 1)
+
+        assertTrue(budget.tryAcquire("amplitude", "session"))
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+        assertTrue(budget.tryAcquire("segment", "session"))
+
+        assertEquals(2, budget.takeSuppressedCount("amplitude"))
+        assertEquals(0, budget.takeSuppressedCount("amplitude"))
+        assertEquals(0, budget.takeSuppressedCount("segment"))
+    }
+
+    @Test
+    fun testSessionCapIsResetWithNewSession() {
+        val budget = EventBudget(maxEventsPerSession = 2)
+
+        assertTrue(budget.tryAcquire("amplitude", "session-1"))
+        assertTrue(budget.tryAcquire("segment", "session-1"))
+        assertFalse(budget.tryAcquire("amplitude", "session-1"))
+
+        assertTrue(budget.tryAcquire("amplitude", "session-2"))
+        assertEquals(1, budget.takeSuppressedCount("amplitude"))
+    }
+
+    @Test
+    fun testUpdateKeepsCountersAndCapsTokens() {
+        val budget = EventBudget(providerEventsPerMinute = 10)
+        assertTrue(budget.tryAcquire("amplitude", "session"))
+
+        budget.update(providerEventsPerMinute = 10, providerBurst = 1, maxEventsPerSession = 0)
+        assertTrue(budget.tryAcquire("amplitude", "session"))
+        assertFalse(budget.tryAcquire("amplitude", "session"))
+
+        budget.update(providerEventsPerMinute = 0, providerBurst = 0, maxEventsPerSession = 0)
+        assertTrue(budget.isUnlimited())
+        assertTrue(budget.tryAcquire("amplitude", "session"))
+        assertEquals(1, budget.takeSuppressedCount("amplitude"))
+    }
+}
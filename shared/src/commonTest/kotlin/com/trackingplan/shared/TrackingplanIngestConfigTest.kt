@@ -6,6 +6,7 @@ import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
 import kotlin.test.assertNotNull
+import kotlin.test.assertNull
 import kotlin.test.assertTrue
 
 class TrackingplanIngestConfigTest {
@@ -211,6 +212,132 @@ class TrackingplanIngestConfigTest {
         }
     }
 
+    @Test
+    fun testParseDeliveryOptions() {
+        val jsonConfig = """
+            {
+                "sample_rate": 1,
+                "delivery": {
+                    "target_batch_size_bytes": 32768,
+                    "max_batch_size_bytes": 131072,
+                    "max_requests_per_batch": 20,
+                    "batch_timeout_ms": 60000,
+                    "compression": false,
+                    "flush_on_background": false
+                }
+            }
+        """.trimIndent()
+
+        val config = TrackingplanIngestConfigParser.parse(jsonConfig)
+
+        assertEquals(32768L, config.delivery.targetBatchSizeBytes)
+        assertEquals(131072L, config.delivery.maxBatchSizeBytes)
+        assertEquals(20, config.delivery.maxRequestsPerBatch)
+        assertEquals(60000L, config.delivery.batchTimeoutMs)
+        assertEquals(false, config.delivery.compression)
+        assertEquals(false, config.delivery.flushOnBackground)
+    }
+
+    @Test
+    fun testParseConfigWithoutDeliveryOptionsKeepsSdkDefaults() {
+        val config = TrackingplanIngestConfigParser.parse("""{ "sample_rate": 1 }""")
+
+        assertEquals(DeliveryOptions.EMPTY, config.delivery)
+    }
+
+    @Test
+    fun testParsePartialDeliveryOptions() {
+        val jsonConfig = """
+            {
+                "delivery": {
+                    "batch_timeout_ms": 5000
+                }
+            }
+        """.trimIndent()
+
+        val config = TrackingplanIngestConfigParser.parse(jsonConfig)
+
+        assertEquals(5000L, config.delivery.batchTimeoutMs)
+        assertNull(config.delivery.targetBatchSizeBytes)
+        assertNull(config.delivery.maxRequestsPerBatch)
+        assertNull(config.delivery.compression)
+    }
+
+    @Test
+    fun testDeliveryOptionsAreClampedToSafeBounds() {
+        val jsonConfig = """
+            {
+                "delivery": {
+                    "target_batch_size_bytes": 100000000,
+                    "max_batch_size_bytes": 10,
+                    "max_requests_per_batch": 0,
+                    "batch_timeout_ms": 1
+                }
+            }
+        """.trimIndent()
+
+        val config = TrackingplanIngestConfigParser.parse(jsonConfig)
+
+        assertEquals(DeliveryOptions.MAX_BATCH_SIZE_BYTES, config.delivery.targetBatchSizeBytes)
+        // Max batch size is never below the target batch size
+        assertEquals(DeliveryOptions.MAX_BATCH_SIZE_BYTES, config.delivery.maxBatchSizeBytes)
+        assertEquals(DeliveryOptions.MIN_REQUESTS_PER_BATCH, config.delivery.maxRequestsPerBatch)
+        assertEquals(DeliveryOptions.MIN_BATCH_TIMEOUT_MS, config.delivery.batchTimeoutMs)
+    }
+
+    @Test
+    fun testParseWireFormat() {
+        val cborConfig = TrackingplanIngestConfigParser.parse("""{ "delivery": { "wire_format": "cbor" } }""")
+        assertEquals(DeliveryOptions.WIRE_FORMAT_CBOR, cborConfig.delivery.wireFormat)
+
+        // Unknown formats are ignored so that the SDK keeps sending JSON
+        val unknownConfig = TrackingplanIngestConfigParser.parse("""{ "delivery": { "wire_format": "protobuf" } }""")
+        assertNull(unknownConfig.delivery.wireFormat)
+    }
+
+    @Test
+    fun testParseBatchEnvelope() {
+        val config = TrackingplanIngestConfigParser.parse("""{ "delivery": { "batch_envelope": 2 } }""")
+        assertEquals(DeliveryOptions.BATCH_ENVELOPE_V2, config.delivery.batchEnvelope)
+
+        // Unknown versions are ignored so that the SDK keeps sending plain batches
+        val unknownConfig = TrackingplanIngestConfigParser.parse("""{ "delivery": { "batch_envelope": 3 } }""")
+        assertNull(unknownConfig.delivery.batchEnvelope)
+    }
+
+    @Test
+    fun testParsePresetDictionaryVersion() {
+        val config = TrackingplanIngestConfigParser.parse("""{ "delivery": { "preset_dictionary_version": 1 } }""")
+        assertEquals(1, config.delivery.presetDictionaryVersion)
+
+        // Invalid versions are ignored so that the SDK keeps sending gzip batches
+        val invalidConfig = TrackingplanIngestConfigParser.parse("""{ "delivery": { "preset_dictionary_version": 0 } }""")
+        assertNull(invalidConfig.delivery.presetDictionaryVersion)
+    }
+
+    @Test
+    fun testParseBackpressureSampling() {
+        val config = TrackingplanIngestConfigParser.parse("""{ "delivery": { "backpressure_sampling": true } }""")
+        assertEquals(true, config.delivery.backpressureSampling)
+
+        val emptyConfig = TrackingplanIngestConfigParser.parse("""{ "delivery": {} }""")
+        assertNull(emptyConfig.delivery.backpressureSampling)
+    }
+
+    @Test
+    fun testParseEventBudget() {
+        val config = TrackingplanIngestConfigParser.parse(
+            """{ "event_budget": { "provider_events_per_minute": 120, "max_events_per_session": -5 } }"""
+        )
+        assertEquals(120, config.eventBudget.providerEventsPerMinute)
+        assertNull(config.eventBudget.providerBurst)
+        // Negative values are clamped to 0, which disables the limit
+        assertEquals(0, config.eventBudget.maxEventsPerSession)
+
+        val emptyConfig = TrackingplanIngestConfigParser.parse("""{ "sample_rate": 1 }""")
+        assertEquals(EventBudgetOptions.EMPTY, emptyConfig.eventBudget)
+    }
+
     private class FakeRandom(private val value: Float) : Random() {
         override fun nextBits(bitCount: Int): Int = 0
         override fun nextFloat(): Float = value
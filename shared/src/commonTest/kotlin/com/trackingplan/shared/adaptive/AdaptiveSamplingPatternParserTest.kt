@@ -262,6 +262,26 @@ class AdaptiveSamplingPatternParserTest {
 
         assertNotNull(pattern)
         assertEquals(1, pattern.sampleRate)
+        assertEquals(0L, pattern.aggregateWindowMs)
+    }
+
+    @Test
+    fun testParsePatternWithAggregateWindow() {
+        val patternJson = """
+            {
+                "provider": "amplitude",
+                "match": {
+                    "event_type": "heartbeat"
+                },
+                "aggregate_window_ms": 60000
+            }
+        """.trimIndent()
+
+        val pattern = AdaptiveSamplingPatternParser.parsePattern(patternJson)
+
+        assertNotNull(pattern)
+        assertEquals(1, pattern.sampleRate)
+        assertEquals(60000L, pattern.aggregateWindowMs)
     }
 
     @Test
@@ -0,0 +1,88 @@
+// Copyright (c) 2021 Trackingplan
+package com.trackingplan.shared.adaptive
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class PayloadFingerprintTest {
+
+    private val endpoint = "https://api.amplitude.com/2/httpapi?client=android"
+
+    @Test
+    fun testSameStructureHasSameFingerprint() {
+        val first = PayloadFingerprint.compute(endpoint, """{"event_type": "scroll", "depth": 10}""")
+        val second = PayloadFingerprint.compute(endpoint, """{"depth": 80, "event_type": "scroll"}""")
+
+        assertNotNull(first)
+        assertNotNull(second)
+        assertEquals(first.hash, second.hash)
+        assertEquals(16, first.hash.length)
+    }
+
+    @Test
+    fun testDifferentStructureHasDifferentFingerprint() {
+        val base = PayloadFingerprint.compute(endpoint, """{"event_type": "scroll", "depth": 10}""")!!
+
+        val newKey = PayloadFingerprint.compute(endpoint, """{"event_type": "scroll", "depth": 10, "x": 1}""")!!
+        val newType = PayloadFingerprint.compute(endpoint, """{"event_type": "scroll", "depth": "10"}""")!!
+        val newPath = PayloadFingerprint.compute("https://api.amplitude.com/batch?client=android", """{"event_type": "scroll", "depth": 10}""")!!
+
+        assertNotEquals(base.hash, newKey.hash)
+        assertNotEquals(base.hash, newType.hash)
+        assertNotEquals(base.hash, newPath.hash)
+    }
+
+    @Test
+    fun testShortStringValuesAreSampled() {
+        val longValue = "x".repeat(PayloadFingerprint.MAX_SAMPLED_VALUE_LENGTH + 1)
+        val fingerprint = PayloadFingerprint.compute(
+            endpoint,
+            """{"events": [{"event_type": "scroll", "depth": 10, "id": "$longValue"}, {"event_type": "play"}]}"""
+        )
+
+        assertNotNull(fingerprint)
+        assertEquals(
+            mapOf("?client" to "android", "events[].event_type" to "scroll"),
+            fingerprint.sampledValues
+        )
+    }
+
+    @Test
+    fun testFormEncodedPayloadHasFingerprint() {
+        val first = PayloadFingerprint.compute(endpoint, "v=2&en=page_view\nv=2&en=scroll")
+        val second = PayloadFingerprint.compute(endpoint, "v=2&en=purchase")
+
+        assertNotNull(first)
+        assertNotNull(second)
+        assertEquals(first.hash, second.hash)
+        assertEquals("page_view", first.sampledValues["[]en"])
+    }
+
+    @Test
+    fun testPayloadWithoutStructureHasNoFingerprint() {
+        assertNull(PayloadFingerprint.compute(endpoint, null))
+        assertNull(PayloadFingerprint.compute(endpoint, ""))
+        assertNull(PayloadFingerprint.compute(endpoint, "plain text"))
+        assertNull(PayloadFingerprint.compute(endpoint, "\"just a string\""))
+    }
+
+    @Test
+    fun testEventNamesAreExtracted() {
+        assertEquals(
+            listOf("event_type=play", "event_type=scroll"),
+            PayloadFingerprint.eventNames(endpoint, """{"events": [{"event_type": "scroll"}, {"event_type": "play"}, {"event_type": "scroll"}]}""")
+        )
+        assertEquals(
+            listOf("en=page_view", "en=scroll"),
+            PayloadFingerprint.eventNames(endpoint, "v=2&en=page_view\nv=2&en=scroll")
+        )
+        assertEquals(
+            listOf("en=purchase"),
+            PayloadFingerprint.eventNames("https://www.google-analytics.com/g/collect?v=2&en=purchase", null)
+        )
+        assertEquals(emptyList<String>(), PayloadFingerprint.eventNames(endpoint, """{"depth": 10}"""))
+    }
+}
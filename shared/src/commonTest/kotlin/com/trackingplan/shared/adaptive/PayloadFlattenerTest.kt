@@ -1,6 +1,7 @@
 // Copyright (c) 2021 Trackingplan
 package com.trackingplan.shared.adaptive
 
+import kotlinx.serialization.json.Json
 import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertTrue
@@ -204,4 +205,25 @@ class PayloadFlattenerTest {
         assertTrue(flattened["source"]?.contains("web") == true)
         assertTrue(flattened["event"]?.contains("click") == true)
     }
+
+    @Test
+    fun testFlattenToKeyPathTypes() {
+        val element = Json.parseToJsonElement(
+            """{"event": "scroll", "props": {"depth": 10, "tags": ["a", 1], "extra": {}}, "ok": true, "none": null}"""
+        )
+
+        val flattened = PayloadFlattener.flattenToKeyPathTypes(element)
+
+        assertEquals(
+            mapOf(
+                "event" to "string",
+                "props.depth" to "number",
+                "props.tags[]" to "number|string",
+                "props.extra" to "object",
+                "ok" to "boolean",
+                "none" to "null"
+            ),
+            flattened
+        )
+    }
 }